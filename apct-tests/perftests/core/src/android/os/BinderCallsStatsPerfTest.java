@@ -32,6 +32,10 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 /**
  * Performance tests for {@link BinderCallsStats}
  */
@@ -40,6 +44,8 @@ import org.junit.runner.RunWith;
 public class BinderCallsStatsPerfTest {
     private static final int DEFAULT_BUCKET_SIZE = 1000;
     private static final int WORKSOURCE_UID = 1;
+    private static final int BINDER_THREAD_COUNT = 16;
+    private static final long TIMEOUT_MS = 5000;
     static class FakeCpuTimeBinderCallsStats extends BinderCallsStats {
         private int mTimeMs;
 
@@ -112,6 +118,56 @@ public class BinderCallsStatsPerfTest {
         runScenario(/* max bucket size */ 100);
     }
 
+    @Test
+    public void timeCallSession_16_threads() {
+        mBinderCallsStats.setDetailedTracking(true);
+        mBinderCallsStats.setSamplingInterval(1);
+        runConcurrentScenario(DEFAULT_BUCKET_SIZE);
+    }
+
+    @Test
+    public void timeCallSessionOnePercentSampling_16_threads() {
+        mBinderCallsStats.setDetailedTracking(false);
+        mBinderCallsStats.setSamplingInterval(100);
+        runConcurrentScenario(DEFAULT_BUCKET_SIZE);
+    }
+
+    // Measures the calls of one thread while BINDER_THREAD_COUNT - 1 other threads make calls
+    // too, as binder threads would.
+    private void runConcurrentScenario(int maxBucketSize) {
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final CountDownLatch startLatch = new CountDownLatch(BINDER_THREAD_COUNT - 1);
+        final Thread[] threads = new Thread[BINDER_THREAD_COUNT - 1];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                final Binder b = new Binder();
+                int code = 0;
+                startLatch.countDown();
+                while (running.get()) {
+                    CallSession s = mBinderCallsStats.callStarted(b, code++ % maxBucketSize,
+                            WORKSOURCE_UID);
+                    mBinderCallsStats.callEnded(s, 0, 0, WORKSOURCE_UID);
+                }
+            });
+            threads[i].start();
+        }
+        try {
+            startLatch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            runScenario(maxBucketSize);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } finally {
+            running.set(false);
+            for (Thread thread : threads) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+    }
+
     // There will be a warmup time of maxBucketSize to initialize the map of CallStat.
     private void runScenario(int maxBucketSize) {
         final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
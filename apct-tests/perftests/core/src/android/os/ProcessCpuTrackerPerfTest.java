@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import static org.junit.Assert.assertTrue;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.internal.os.ProcessCpuTracker;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Performance tests updating {@link ProcessCpuTracker} from a synthetic /proc tree, so that they
+ * don't depend on the processes running on the device nor need to read other apps' proc files.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class ProcessCpuTrackerPerfTest {
+    private static final int PROCESS_COUNT = 300;
+    private static final int THREADS_PER_PROCESS = 4;
+    private static final int FIRST_PID = 1000;
+
+    @Rule
+    public final PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private File mProcRoot;
+    private long mTicks;
+
+    @Before
+    public void setUp() throws IOException {
+        mProcRoot = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "ProcessCpuTrackerPerfTest");
+        FileUtils.deleteContentsAndDir(mProcRoot);
+        assertTrue(mProcRoot.mkdirs());
+        write(new File(mProcRoot, "loadavg"), "1.50 1.25 1.00 2/900 12345\n");
+        writeSystemStat(0);
+        for (int i = 0; i < PROCESS_COUNT; i++) {
+            final int pid = FIRST_PID + i * (THREADS_PER_PROCESS + 1);
+            final File procDir = new File(mProcRoot, Integer.toString(pid));
+            final File taskDir = new File(procDir, "task");
+            assertTrue(taskDir.mkdirs());
+            write(new File(procDir, "cmdline"), "com.example.process" + i + "\0");
+            writeProcessStat(new File(procDir, "stat"), pid, 0);
+            for (int t = 0; t <= THREADS_PER_PROCESS; t++) {
+                final File threadDir = new File(taskDir, Integer.toString(pid + t));
+                assertTrue(threadDir.mkdirs());
+                writeProcessStat(new File(threadDir, "stat"), pid + t, 0);
+            }
+        }
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteContentsAndDir(mProcRoot);
+    }
+
+    @Test
+    public void timeUpdate_idle() {
+        timeUpdate(false, 0);
+    }
+
+    @Test
+    public void timeUpdate_tenPercentBusy() {
+        timeUpdate(false, PROCESS_COUNT / 10);
+    }
+
+    @Test
+    public void timeUpdate_tenPercentBusy_withThreads() {
+        timeUpdate(true, PROCESS_COUNT / 10);
+    }
+
+    private void timeUpdate(boolean includeThreads, int busyProcesses) {
+        final ProcessCpuTracker tracker =
+                new ProcessCpuTracker(includeThreads, mProcRoot.getPath());
+        tracker.init();
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            try {
+                tick(busyProcesses);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            state.resumeTiming();
+            tracker.update();
+        }
+    }
+
+    /** Makes the first {@code busyProcesses} processes and their main thread use more CPU. */
+    private void tick(int busyProcesses) throws IOException {
+        mTicks++;
+        writeSystemStat(mTicks * busyProcesses);
+        for (int i = 0; i < busyProcesses; i++) {
+            final int pid = FIRST_PID + i * (THREADS_PER_PROCESS + 1);
+            final File procDir = new File(mProcRoot, Integer.toString(pid));
+            writeProcessStat(new File(procDir, "stat"), pid, mTicks);
+            writeProcessStat(new File(procDir, "task/" + pid + "/stat"), pid, mTicks);
+        }
+    }
+
+    private void writeSystemStat(long busyTicks) throws IOException {
+        write(new File(mProcRoot, "stat"), "cpu  " + (1000 + busyTicks) + " 0 " + (500 + busyTicks)
+                + " " + (100000 + mTicks * 100) + " 10 0 5 0 0 0\n");
+    }
+
+    private static void writeProcessStat(File file, int pid, long ticks) throws IOException {
+        write(file, pid + " (process" + pid + ") S 1 " + pid + " 0 0 -1 1077952832 "
+                + (100 + ticks) + " 0 " + ticks + " 0 " + (10 + ticks) + " " + (5 + ticks)
+                + " 0 0 20 0 " + (THREADS_PER_PROCESS + 1) + " 0 1000 123456789 2000 "
+                + "18446744073709551615 1 1 0 0 0 0 4612 1 1073775864 0 0 0 17 0 0 0 0 0 0\n");
+    }
+
+    private static void write(File file, String contents) throws IOException {
+        FileUtils.stringToFile(file, contents);
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import android.content.ComponentName;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+
+import androidx.test.filters.LargeTest;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Measures package queries while other threads of the same process issue queries too, with and
+ * without a thread that keeps changing package state. Queries that need the package manager lock
+ * queue up behind each other and behind every change; queries answered from a snapshot don't.
+ */
+@LargeTest
+@RunWith(Parameterized.class)
+public class PackageManagerMultithreadPerfTest {
+    private static final ComponentName TEST_ACTIVITY =
+            new ComponentName("com.android.perftests.packagemanager",
+                    "android.perftests.utils.PerfTestActivity");
+    private static final long TIMEOUT_MS = 5000;
+
+    @Rule
+    public final PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    @Parameterized.Parameter(0)
+    public String mName;
+
+    /** Number of threads querying in the background. */
+    @Parameterized.Parameter(1)
+    public int mBackgroundReaders;
+
+    /** Whether a background thread keeps changing package state. */
+    @Parameterized.Parameter(2)
+    public boolean mWithWriter;
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> getParameters() {
+        return Arrays.asList(new Object[][] {
+                { "readers_1", 0, false },
+                { "readers_4", 3, false },
+                { "readers_8", 7, false },
+                { "readers_1_writer", 0, true },
+                { "readers_4_writer", 3, true },
+                { "readers_8_writer", 7, true },
+        });
+    }
+
+    private PackageManager mPackageManager;
+    private List<PackageInfo> mInstalledPackages;
+    private AtomicBoolean mRunning;
+    private Thread[] mThreads;
+
+    @Before
+    public void setUp() throws Exception {
+        PackageManager.disableApplicationInfoCache();
+        PackageManager.disablePackageInfoCache();
+        mPackageManager = InstrumentationRegistry.getInstrumentation().getTargetContext()
+                .getPackageManager();
+        mInstalledPackages = mPackageManager.getInstalledPackages(0);
+        startBackgroundThreads();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mRunning.set(false);
+        for (Thread thread : mThreads) {
+            thread.join();
+        }
+        mPackageManager.setComponentEnabledSetting(TEST_ACTIVITY,
+                PackageManager.COMPONENT_ENABLED_STATE_DEFAULT, PackageManager.DONT_KILL_APP);
+    }
+
+    @Test
+    public void testGetPackageInfo() throws Exception {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final String packageName = TEST_ACTIVITY.getPackageName();
+        while (state.keepRunning()) {
+            mPackageManager.getPackageInfo(packageName, 0);
+        }
+    }
+
+    @Test
+    public void testGetApplicationInfo() throws Exception {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final String packageName = TEST_ACTIVITY.getPackageName();
+        while (state.keepRunning()) {
+            mPackageManager.getApplicationInfo(packageName, 0);
+        }
+    }
+
+    @Test
+    public void testGetInstalledPackages() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mPackageManager.getInstalledPackages(0);
+        }
+    }
+
+    private void startBackgroundThreads() throws InterruptedException {
+        final int threadCount = mBackgroundReaders + (mWithWriter ? 1 : 0);
+        final CountDownLatch startLatch = new CountDownLatch(threadCount);
+        mRunning = new AtomicBoolean(true);
+        mThreads = new Thread[threadCount];
+        for (int i = 0; i < mBackgroundReaders; i++) {
+            final int seed = i;
+            mThreads[i] = new Thread(() -> {
+                startLatch.countDown();
+                int next = seed;
+                while (mRunning.get()) {
+                    final String packageName =
+                            mInstalledPackages.get(next++ % mInstalledPackages.size()).packageName;
+                    try {
+                        mPackageManager.getPackageInfo(packageName, 0);
+                        mPackageManager.getApplicationInfo(packageName, 0);
+                    } catch (PackageManager.NameNotFoundException e) {
+                        // The package may be invisible to this app; the lookup still counts
+                    }
+                }
+            });
+        }
+        if (mWithWriter) {
+            mThreads[threadCount - 1] = new Thread(() -> {
+                startLatch.countDown();
+                boolean enabled = false;
+                while (mRunning.get()) {
+                    // Each change takes the package manager lock and invalidates its snapshot
+                    mPackageManager.setComponentEnabledSetting(TEST_ACTIVITY, enabled
+                                    ? PackageManager.COMPONENT_ENABLED_STATE_ENABLED
+                                    : PackageManager.COMPONENT_ENABLED_STATE_DISABLED,
+                            PackageManager.DONT_KILL_APP);
+                    enabled = !enabled;
+                }
+            });
+        }
+        for (Thread thread : mThreads) {
+            thread.start();
+        }
+        startLatch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+}
@@ -192,4 +192,24 @@ public class PackageManagerPerfTest {
     public void testGetInstalledPackagesWithFiltering() throws Exception {
         testGetInstalledPackages();
     }
+
+    @Test
+    @DisableCompatChanges(PackageManager.FILTER_APPLICATION_QUERY)
+    public void testForEachInstalledPackageVersion() throws Exception {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final PackageManager pm =
+                InstrumentationRegistry.getInstrumentation().getTargetContext().getPackageManager();
+        final int userId = UserHandle.myUserId();
+
+        while (state.keepRunning()) {
+            pm.forEachInstalledPackageAsUser(0, PackageManager.PACKAGE_INFO_FIELD_VERSION, userId,
+                    packageInfo -> {});
+        }
+    }
+
+    @Test
+    @EnableCompatChanges(PackageManager.FILTER_APPLICATION_QUERY)
+    public void testForEachInstalledPackageVersionWithFiltering() throws Exception {
+        testForEachInstalledPackageVersion();
+    }
 }
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import android.content.pm.PackageManager;
+import android.perftests.utils.ManualBenchmarkState;
+import android.perftests.utils.PerfManualStatusReporter;
+
+import androidx.test.filters.LargeTest;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Approximates the boot-time scan of the system partition done by PackageManagerService: every
+ * APK under the system app directories is parsed on a thread pool. Compares the historical fixed
+ * pool of four threads in directory order against a core-sized pool fed biggest-APK-first.
+ *
+ * <p>Reports the wall time of a full scan, plus the CPU utilization of the scan as a percentage
+ * of all available cores under the {@code cpu_utilization_percent} key.</p>
+ */
+@LargeTest
+@RunWith(Parameterized.class)
+public class PackageScanPerfTest {
+    private static final String[] SCAN_DIRS = {
+            "/system/app", "/system/priv-app", "/product/app", "/product/priv-app"
+    };
+
+    @Rule
+    public PerfManualStatusReporter mPerfManualStatusReporter = new PerfManualStatusReporter();
+
+    @Parameterized.Parameter(0)
+    public String mName;
+
+    @Parameterized.Parameter(1)
+    public boolean mAdaptive;
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> getParameters() {
+        return Arrays.asList(new Object[][] {
+                { "fixed4_directoryOrder", false },
+                { "perCore_biggestFirst", true },
+        });
+    }
+
+    private PackageManager mPackageManager;
+    private List<File> mApkFiles;
+
+    @Before
+    public void setUp() {
+        mPackageManager = InstrumentationRegistry.getInstrumentation().getTargetContext()
+                .getPackageManager();
+        mApkFiles = collectApkFiles();
+        if (mAdaptive) {
+            mApkFiles.sort(Comparator.comparingLong(File::length).reversed());
+        }
+    }
+
+    @Test
+    public void timeScanSystemPackages() throws Exception {
+        final ManualBenchmarkState state = mPerfManualStatusReporter.getBenchmarkState();
+        final int cores = Runtime.getRuntime().availableProcessors();
+        final int threads = mAdaptive ? Math.max(4, Math.min(8, cores)) : 4;
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            long elapsedTime = 0;
+            while (state.keepRunning(elapsedTime)) {
+                final long startCpuTime = Process.getElapsedCpuTime();
+                final long startTime = SystemClock.elapsedRealtimeNanos();
+                scanAll(executor);
+                elapsedTime = SystemClock.elapsedRealtimeNanos() - startTime;
+
+                final long cpuTimeMs = Process.getElapsedCpuTime() - startCpuTime;
+                final long wallTimeMs = Math.max(1, TimeUnit.NANOSECONDS.toMillis(elapsedTime));
+                state.addExtraResult("cpu_utilization_percent",
+                        cpuTimeMs * 100 / (wallTimeMs * cores));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void scanAll(ExecutorService executor) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(mApkFiles.size());
+        for (int i = 0; i < mApkFiles.size(); i++) {
+            final String path = mApkFiles.get(i).getAbsolutePath();
+            executor.execute(() -> {
+                try {
+                    mPackageManager.getPackageArchiveInfo(path, 0);
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+    }
+
+    private static List<File> collectApkFiles() {
+        final List<File> apkFiles = new ArrayList<>();
+        for (String dir : SCAN_DIRS) {
+            final File[] packageDirs = new File(dir).listFiles();
+            if (packageDirs == null) {
+                continue;
+            }
+            for (File packageDir : packageDirs) {
+                final File[] files = packageDir.isDirectory()
+                        ? packageDir.listFiles() : new File[] { packageDir };
+                if (files == null) {
+                    continue;
+                }
+                for (File file : files) {
+                    if (file.getName().endsWith(".apk")) {
+                        apkFiles.add(file);
+                    }
+                }
+            }
+        }
+        return apkFiles;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.Uri;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+
+import androidx.test.filters.LargeTest;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Resolves an intent against a large filter set resembling the broadcast receivers of a common
+ * action, with and without the category prefilter of {@link IntentResolver}.
+ */
+@LargeTest
+@RunWith(Parameterized.class)
+public class IntentResolverPerfTest {
+    private static final String ACTION = "com.android.server.TEST_ACTION";
+    private static final int FILTER_COUNT = 2000;
+    private static final int CATEGORY_COUNT = 40;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    @Parameterized.Parameter(0)
+    public String mName;
+
+    @Parameterized.Parameter(1)
+    public boolean mPrefilter;
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> getParameters() {
+        return Arrays.asList(new Object[][] {
+                { "fullMatch", false },
+                { "categoryPrefilter", true },
+        });
+    }
+
+    private TestResolver mResolver;
+    private Intent mIntent;
+
+    @Before
+    public void setUp() {
+        mResolver = new TestResolver();
+        for (int i = 0; i < FILTER_COUNT; i++) {
+            final IntentFilter filter = new IntentFilter(ACTION);
+            filter.addCategory("category" + (i % CATEGORY_COUNT));
+            filter.addDataScheme("package");
+            mResolver.addFilter(filter);
+        }
+        mResolver.setCategoryPrefilterEnabled(mPrefilter);
+        mIntent = new Intent(ACTION).addCategory("category7");
+        mIntent.setData(Uri.parse("package:com.example"));
+    }
+
+    @Test
+    public void timeQueryIntent() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mResolver.queryIntent(mIntent, null /* resolvedType */, false /* defaultOnly */,
+                    0 /* userId */);
+        }
+    }
+
+    private static class TestResolver extends IntentResolver<IntentFilter, IntentFilter> {
+        @Override
+        protected IntentFilter getIntentFilter(IntentFilter input) {
+            return input;
+        }
+
+        @Override
+        protected boolean isPackageForFilter(String packageName, IntentFilter filter) {
+            return false;
+        }
+
+        @Override
+        protected IntentFilter[] newArray(int size) {
+            return new IntentFilter[size];
+        }
+    }
+}
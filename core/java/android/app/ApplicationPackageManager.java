@@ -116,6 +116,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.function.Consumer;
 
 /** @hide */
 public class ApplicationPackageManager extends PackageManager {
@@ -132,6 +133,9 @@ public class ApplicationPackageManager extends PackageManager {
 
     private static final int DEFAULT_EPHEMERAL_COOKIE_MAX_SIZE_BYTES = 16384; // 16KB
 
+    // Packages fetched per call by forEachInstalledPackageAsUser
+    private static final int INSTALLED_PACKAGES_PAGE_SIZE = 200;
+
     // Default flags to use with PackageManager when no flags are given.
     private static final int sDefaultFlags = GET_SHARED_LIBRARY_FILES;
 
@@ -1032,6 +1036,31 @@ public class ApplicationPackageManager extends PackageManager {
         }
     }
 
+    /** @hide */
+    @Override
+    @SuppressWarnings("unchecked")
+    public void forEachInstalledPackageAsUser(int flags, int fields, int userId,
+            Consumer<PackageInfo> action) {
+        String afterPackageName = null;
+        List<PackageInfo> page;
+        do {
+            try {
+                final ParceledListSlice<PackageInfo> parceledList = mPM.getInstalledPackagesPage(
+                        updateFlagsForPackage(flags, userId), fields, afterPackageName,
+                        INSTALLED_PACKAGES_PAGE_SIZE, userId);
+                page = parceledList != null ? parceledList.getList() : Collections.emptyList();
+            } catch (RemoteException e) {
+                throw e.rethrowFromSystemServer();
+            }
+            for (int i = 0; i < page.size(); i++) {
+                action.accept(page.get(i));
+            }
+            if (!page.isEmpty()) {
+                afterPackageName = page.get(page.size() - 1).packageName;
+            }
+        } while (page.size() == INSTALLED_PACKAGES_PAGE_SIZE);
+    }
+
     @SuppressWarnings("unchecked")
     @Override
     public List<PackageInfo> getPackagesHoldingPermissions(
@@ -86,6 +86,7 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Objects;
 import java.util.Set;
+import java.util.function.Consumer;
 
 /**
  * Class for retrieving various kinds of information related to the application
@@ -600,6 +601,48 @@ public abstract class PackageManager {
      */
     public static final int ONLY_IF_NO_MATCH_FOUND = 0x00000004;
 
+    /** @hide */
+    @IntDef(flag = true, prefix = { "PACKAGE_INFO_FIELD_" }, value = {
+            PACKAGE_INFO_FIELD_VERSION,
+            PACKAGE_INFO_FIELD_INSTALL_TIMES,
+            PACKAGE_INFO_FIELD_APPLICATION_INFO,
+            PACKAGE_INFO_FIELD_ALL,
+    })
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface PackageInfoFields {}
+
+    /**
+     * Field for {@link #forEachInstalledPackageAsUser}: fill in {@link PackageInfo#versionName}
+     * and the version code. {@link PackageInfo#packageName} is always filled in.
+     *
+     * @hide
+     */
+    public static final int PACKAGE_INFO_FIELD_VERSION = 0x00000001;
+
+    /**
+     * Field for {@link #forEachInstalledPackageAsUser}: fill in
+     * {@link PackageInfo#firstInstallTime} and {@link PackageInfo#lastUpdateTime}.
+     *
+     * @hide
+     */
+    public static final int PACKAGE_INFO_FIELD_INSTALL_TIMES = 0x00000002;
+
+    /**
+     * Field for {@link #forEachInstalledPackageAsUser}: fill in
+     * {@link PackageInfo#applicationInfo}.
+     *
+     * @hide
+     */
+    public static final int PACKAGE_INFO_FIELD_APPLICATION_INFO = 0x00000004;
+
+    /**
+     * Field for {@link #forEachInstalledPackageAsUser}: fill in everything
+     * {@link #getInstalledPackages} would for the same flags.
+     *
+     * @hide
+     */
+    public static final int PACKAGE_INFO_FIELD_ALL = 0x80000000;
+
     /** @hide */
     @IntDef(flag = true, prefix = { "MODULE_" }, value = {
             MODULE_APEX_NAME,
@@ -4216,6 +4259,28 @@ public abstract class PackageManager {
     @NonNull
     public abstract List<PackageInfo> getInstalledPackages(@PackageInfoFlags int flags);
 
+    /**
+     * Calls {@code action} for each package installed for a user, in package name order,
+     * fetching them from the system a page at a time. Only the fields of {@link PackageInfo}
+     * given by {@code fields} are filled in besides the package name, which makes this much
+     * cheaper than {@link #getInstalledPackagesAsUser} for callers that only need a few of them.
+     *
+     * <p>Packages may be installed or removed while the pages are fetched; each package is
+     * reported at most once, and reflects the state at the time its page was fetched.</p>
+     *
+     * @param flags Additional option flags, as for {@link #getInstalledPackagesAsUser}.
+     *         {@link #MATCH_APEX} and {@link #MATCH_STATIC_SHARED_LIBRARIES} are not supported.
+     * @param fields The {@code PACKAGE_INFO_FIELD_} values of the fields to fill in.
+     *
+     * @hide
+     */
+    public void forEachInstalledPackageAsUser(@PackageInfoFlags int flags,
+            @PackageInfoFields int fields, @UserIdInt int userId,
+            @NonNull Consumer<PackageInfo> action) {
+        throw new UnsupportedOperationException(
+                "forEachInstalledPackageAsUser not implemented in subclass");
+    }
+
     /**
      * Return a List of all installed packages that are currently holding any of
      * the given permissions.
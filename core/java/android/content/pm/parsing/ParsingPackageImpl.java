@@ -273,6 +273,13 @@ public class ParsingPackageImpl implements ParsingPackage, Parcelable {
     @Nullable
     private PackageParser.SigningDetails signingDetails;
 
+    /**
+     * Undecoded component section of a package read with lazy components, see
+     * {@link #ParsingPackageImpl(Parcel, Parcel.ReadWriteHelper)}. Cleared once decoded.
+     */
+    @Nullable
+    private volatile Parcel mLazyComponents;
+
     @NonNull
     @DataClass.ParcelWith(ForInternedString.class)
     protected String codePath;
@@ -496,18 +503,21 @@ public class ParsingPackageImpl implements ParsingPackage, Parcelable {
 
     @Override
     public ParsingPackageImpl sortActivities() {
+        materializeComponents();
         Collections.sort(this.activities, ORDER_COMPARATOR);
         return this;
     }
 
     @Override
     public ParsingPackageImpl sortReceivers() {
+        materializeComponents();
         Collections.sort(this.receivers, ORDER_COMPARATOR);
         return this;
     }
 
     @Override
     public ParsingPackageImpl sortServices() {
+        materializeComponents();
         Collections.sort(this.services, ORDER_COMPARATOR);
         return this;
     }
@@ -547,6 +557,7 @@ public class ParsingPackageImpl implements ParsingPackage, Parcelable {
 
     @Override
     public ParsingPackageImpl addInstrumentation(ParsedInstrumentation instrumentation) {
+        materializeComponents();
         this.instrumentations = CollectionUtils.add(this.instrumentations, instrumentation);
         return this;
     }
@@ -573,12 +584,14 @@ public class ParsingPackageImpl implements ParsingPackage, Parcelable {
 
     @Override
     public ParsingPackageImpl addPermission(ParsedPermission permission) {
+        materializeComponents();
         this.permissions = CollectionUtils.add(this.permissions, permission);
         return this;
     }
 
     @Override
     public ParsingPackageImpl addPermissionGroup(ParsedPermissionGroup permissionGroup) {
+        materializeComponents();
         this.permissionGroups = CollectionUtils.add(this.permissionGroups, permissionGroup);
         return this;
     }
@@ -610,6 +623,7 @@ public class ParsingPackageImpl implements ParsingPackage, Parcelable {
 
     @Override
     public ParsingPackageImpl addActivity(ParsedActivity parsedActivity) {
+        materializeComponents();
         this.activities = CollectionUtils.add(this.activities, parsedActivity);
         addMimeGroupsFromComponent(parsedActivity);
         return this;
@@ -617,6 +631,7 @@ public class ParsingPackageImpl implements ParsingPackage, Parcelable {
 
     @Override
     public ParsingPackageImpl addReceiver(ParsedActivity parsedReceiver) {
+        materializeComponents();
         this.receivers = CollectionUtils.add(this.receivers, parsedReceiver);
         addMimeGroupsFromComponent(parsedReceiver);
         return this;
@@ -624,6 +639,7 @@ public class ParsingPackageImpl implements ParsingPackage, Parcelable {
 
     @Override
     public ParsingPackageImpl addService(ParsedService parsedService) {
+        materializeComponents();
         this.services = CollectionUtils.add(this.services, parsedService);
         addMimeGroupsFromComponent(parsedService);
         return this;
@@ -631,6 +647,7 @@ public class ParsingPackageImpl implements ParsingPackage, Parcelable {
 
     @Override
     public ParsingPackageImpl addProvider(ParsedProvider parsedProvider) {
+        materializeComponents();
         this.providers = CollectionUtils.add(this.providers, parsedProvider);
         addMimeGroupsFromComponent(parsedProvider);
         return this;
@@ -638,6 +655,7 @@ public class ParsingPackageImpl implements ParsingPackage, Parcelable {
 
     @Override
     public ParsingPackageImpl addAttribution(ParsedAttribution attribution) {
+        materializeComponents();
         this.attributions = CollectionUtils.add(this.attributions, attribution);
         return this;
     }
@@ -694,6 +712,7 @@ public class ParsingPackageImpl implements ParsingPackage, Parcelable {
     @Override
     public ParsingPackageImpl addPreferredActivityFilter(String className,
             ParsedIntentInfo intentInfo) {
+        materializeComponents();
         this.preferredActivityFilters = CollectionUtils.add(this.preferredActivityFilters,
                 Pair.create(className, intentInfo));
         return this;
@@ -1009,15 +1028,7 @@ public class ParsingPackageImpl implements ParsingPackage, Parcelable {
         sForStringSet.parcel(this.upgradeKeySets, dest, flags);
         dest.writeMap(this.keySetMapping);
         sForInternedStringList.parcel(this.protectedBroadcasts, dest, flags);
-        dest.writeTypedList(this.activities);
-        dest.writeTypedList(this.receivers);
-        dest.writeTypedList(this.services);
-        dest.writeTypedList(this.providers);
-        dest.writeTypedList(this.attributions);
-        dest.writeTypedList(this.permissions);
-        dest.writeTypedList(this.permissionGroups);
-        dest.writeTypedList(this.instrumentations);
-        sForIntentInfoPairs.parcel(this.preferredActivityFilters, dest, flags);
+        writeComponentsToParcel(dest, flags);
         dest.writeMap(this.processes);
         dest.writeBundle(this.metaData);
         sForInternedString.parcel(this.volumeUuid, dest, flags);
@@ -1116,6 +1127,17 @@ public class ParsingPackageImpl implements ParsingPackage, Parcelable {
     }
 
     public ParsingPackageImpl(Parcel in) {
+        this(in, null /* lazyComponentsHelper */);
+    }
+
+    /**
+     * @param lazyComponentsHelper if non-null, components, intent filters and permissions are
+     *                             not unparcelled here. Their encoded form is kept aside and
+     *                             decoded with this helper the first time any of them is
+     *                             accessed. Pass the string pool helper installed on {@code in},
+     *                             or {@link Parcel.ReadWriteHelper#DEFAULT} if there is none.
+     */
+    public ParsingPackageImpl(Parcel in, @Nullable Parcel.ReadWriteHelper lazyComponentsHelper) {
         // We use the boot classloader for all classes that we load.
         final ClassLoader boot = Object.class.getClassLoader();
         this.supportsSmallScreens = sForBoolean.unparcel(in);
@@ -1172,15 +1194,7 @@ public class ParsingPackageImpl implements ParsingPackage, Parcelable {
         this.keySetMapping = in.readHashMap(boot);
         this.protectedBroadcasts = sForInternedStringList.unparcel(in);
 
-        this.activities = in.createTypedArrayList(ParsedActivity.CREATOR);
-        this.receivers = in.createTypedArrayList(ParsedActivity.CREATOR);
-        this.services = in.createTypedArrayList(ParsedService.CREATOR);
-        this.providers = in.createTypedArrayList(ParsedProvider.CREATOR);
-        this.attributions = in.createTypedArrayList(ParsedAttribution.CREATOR);
-        this.permissions = in.createTypedArrayList(ParsedPermission.CREATOR);
-        this.permissionGroups = in.createTypedArrayList(ParsedPermissionGroup.CREATOR);
-        this.instrumentations = in.createTypedArrayList(ParsedInstrumentation.CREATOR);
-        this.preferredActivityFilters = sForIntentInfoPairs.unparcel(in);
+        readComponentsFromParcel(in, lazyComponentsHelper);
         this.processes = in.readHashMap(boot);
         this.metaData = in.readBundle(boot);
         this.volumeUuid = sForInternedString.unparcel(in);
@@ -1289,6 +1303,77 @@ public class ParsingPackageImpl implements ParsingPackage, Parcelable {
                 }
             };
 
+    /**
+     * Writes the component section, prefixed with its size so that readers can skip over it.
+     */
+    private void writeComponentsToParcel(Parcel dest, int flags) {
+        materializeComponents();
+        final int sizePosition = dest.dataPosition();
+        dest.writeInt(0);
+        final int startPosition = dest.dataPosition();
+        dest.writeTypedList(this.activities);
+        dest.writeTypedList(this.receivers);
+        dest.writeTypedList(this.services);
+        dest.writeTypedList(this.providers);
+        dest.writeTypedList(this.attributions);
+        dest.writeTypedList(this.permissions);
+        dest.writeTypedList(this.permissionGroups);
+        dest.writeTypedList(this.instrumentations);
+        sForIntentInfoPairs.parcel(this.preferredActivityFilters, dest, flags);
+        final int endPosition = dest.dataPosition();
+        dest.setDataPosition(sizePosition);
+        dest.writeInt(endPosition - startPosition);
+        dest.setDataPosition(endPosition);
+    }
+
+    private void readComponentsFromParcel(Parcel in,
+            @Nullable Parcel.ReadWriteHelper lazyComponentsHelper) {
+        final int size = in.readInt();
+        if (lazyComponentsHelper == null) {
+            unparcelComponents(in);
+            return;
+        }
+
+        final int startPosition = in.dataPosition();
+        final Parcel components = Parcel.obtain();
+        components.appendFrom(in, startPosition, size);
+        components.setDataPosition(0);
+        components.setReadWriteHelper(lazyComponentsHelper);
+        in.setDataPosition(startPosition + size);
+        mLazyComponents = components;
+    }
+
+    private void unparcelComponents(Parcel in) {
+        this.activities = in.createTypedArrayList(ParsedActivity.CREATOR);
+        this.receivers = in.createTypedArrayList(ParsedActivity.CREATOR);
+        this.services = in.createTypedArrayList(ParsedService.CREATOR);
+        this.providers = in.createTypedArrayList(ParsedProvider.CREATOR);
+        this.attributions = in.createTypedArrayList(ParsedAttribution.CREATOR);
+        this.permissions = in.createTypedArrayList(ParsedPermission.CREATOR);
+        this.permissionGroups = in.createTypedArrayList(ParsedPermissionGroup.CREATOR);
+        this.instrumentations = in.createTypedArrayList(ParsedInstrumentation.CREATOR);
+        this.preferredActivityFilters = sForIntentInfoPairs.unparcel(in);
+    }
+
+    /**
+     * Decodes the component section if it was read lazily and hasn't been accessed yet. Must be
+     * called before touching any of the component, permission or intent filter lists.
+     */
+    protected final void materializeComponents() {
+        if (mLazyComponents == null) {
+            return;
+        }
+        synchronized (this) {
+            final Parcel components = mLazyComponents;
+            if (components == null) {
+                return;
+            }
+            unparcelComponents(components);
+            mLazyComponents = null;
+            components.recycle();
+        }
+    }
+
     @Override
     public int getVersionCode() {
         return versionCode;
@@ -1517,54 +1602,63 @@ public class ParsingPackageImpl implements ParsingPackage, Parcelable {
     @NonNull
     @Override
     public List<ParsedActivity> getActivities() {
+        materializeComponents();
         return activities;
     }
 
     @NonNull
     @Override
     public List<ParsedActivity> getReceivers() {
+        materializeComponents();
         return receivers;
     }
 
     @NonNull
     @Override
     public List<ParsedService> getServices() {
+        materializeComponents();
         return services;
     }
 
     @NonNull
     @Override
     public List<ParsedProvider> getProviders() {
+        materializeComponents();
         return providers;
     }
 
     @NonNull
     @Override
     public List<ParsedAttribution> getAttributions() {
+        materializeComponents();
         return attributions;
     }
 
     @NonNull
     @Override
     public List<ParsedPermission> getPermissions() {
+        materializeComponents();
         return permissions;
     }
 
     @NonNull
     @Override
     public List<ParsedPermissionGroup> getPermissionGroups() {
+        materializeComponents();
         return permissionGroups;
     }
 
     @NonNull
     @Override
     public List<ParsedInstrumentation> getInstrumentations() {
+        materializeComponents();
         return instrumentations;
     }
 
     @NonNull
     @Override
     public List<Pair<String,ParsedIntentInfo>> getPreferredActivityFilters() {
+        materializeComponents();
         return preferredActivityFilters;
     }
 
@@ -2139,6 +2139,14 @@ public abstract class BatteryStats implements Parcelable {
     @UnsupportedAppUsage
     public abstract boolean startIteratingHistoryLocked();
 
+    /**
+     * Like {@link #startIteratingHistoryLocked()}, but the history recorded before
+     * {@code startTime} may be skipped rather than returned by {@link #getNextHistoryLocked}.
+     */
+    public boolean startIteratingHistoryLocked(long startTime) {
+        return startIteratingHistoryLocked();
+    }
+
     public abstract int getHistoryStringPoolSize();
 
     public abstract int getHistoryStringPoolBytes();
@@ -7151,7 +7159,7 @@ public abstract class BatteryStats implements Parcelable {
         long now = getHistoryBaseTime() + SystemClock.elapsedRealtime();
 
         if ((flags & (DUMP_INCLUDE_HISTORY | DUMP_HISTORY_ONLY)) != 0) {
-            if (startIteratingHistoryLocked()) {
+            if (startIteratingHistoryLocked(histStart)) {
                 try {
                     for (int i=0; i<getHistoryStringPoolSize(); i++) {
                         pw.print(BATTERY_STATS_CHECKIN_VERSION); pw.print(',');
@@ -7715,7 +7723,7 @@ public abstract class BatteryStats implements Parcelable {
     }
 
     private void dumpProtoHistoryLocked(ProtoOutputStream proto, int flags, long histStart) {
-        if (!startIteratingHistoryLocked()) {
+        if (!startIteratingHistoryLocked(histStart)) {
             return;
         }
 
@@ -70,6 +70,7 @@ import android.os.RemoteCallback;
 import android.os.RemoteException;
 import android.os.ResultReceiver;
 import android.os.ServiceManager;
+import android.os.SharedMemory;
 import android.os.UserHandle;
 import android.speech.tts.TextToSpeech;
 import android.text.TextUtils;
@@ -2231,6 +2232,28 @@ public final class Settings {
      */
     public static final String CALL_METHOD_GENERATION_KEY = "_generation";
 
+    /**
+     * @hide - Specifies that the caller of the fast-path call()-based flow can read the settings
+     * from a {@link SettingsSnapshot}. If the table has one, the response bundle will contain
+     * the same key mapped to a {@link android.os.SharedMemory}, and an integer mapped to
+     * {@link #CALL_METHOD_SNAPSHOT_GENERATION_KEY}. Only request it along with the generation
+     * tracking, as a snapshot is only valid while the generation is unchanged.
+     */
+    public static final String CALL_METHOD_SNAPSHOT_KEY = "_snapshot";
+
+    /**
+     * @hide Key with the settings table generation the snapshot was taken at. The value is an
+     * integer.
+     *
+     * @see #CALL_METHOD_SNAPSHOT_KEY
+     */
+    public static final String CALL_METHOD_SNAPSHOT_GENERATION_KEY = "_snapshot_generation";
+
+    /**
+     * @hide - String list argument extra to the batch get call()-based requests
+     */
+    public static final String CALL_METHOD_NAMES_KEY = "_names";
+
     /**
      * @hide - User handle argument extra to the fast-path call()-based requests
      */
@@ -2307,6 +2330,15 @@ public final class Settings {
     /** @hide - Private call() method to reset to defaults the 'configuration' table */
     public static final String CALL_METHOD_RESET_CONFIG = "RESET_config";
 
+    /** @hide - Private call() method to read several settings from the 'system' table */
+    public static final String CALL_METHOD_GET_BATCH_SYSTEM = "GET_BATCH_system";
+
+    /** @hide - Private call() method to read several settings from the 'secure' table */
+    public static final String CALL_METHOD_GET_BATCH_SECURE = "GET_BATCH_secure";
+
+    /** @hide - Private call() method to read several settings from the 'global' table */
+    public static final String CALL_METHOD_GET_BATCH_GLOBAL = "GET_BATCH_global";
+
     /** @hide - Private call() method to query the 'system' table */
     public static final String CALL_METHOD_LIST_SYSTEM = "LIST_system";
 
@@ -2643,22 +2675,47 @@ public final class Settings {
         private final String mCallSetCommand;
         private final String mCallListCommand;
         private final String mCallSetAllCommand;
+        private final String mCallGetBatchCommand;
+
+        // Whether to ask the provider for a snapshot of the table, to read it without calls.
+        private final boolean mUseSnapshot;
 
         @GuardedBy("this")
         private GenerationTracker mGenerationTracker;
 
+        // Only valid while the generation is mSnapshotGeneration.
+        @GuardedBy("this")
+        private SettingsSnapshot mSnapshot;
+        @GuardedBy("this")
+        private int mSnapshotGeneration;
+
         public NameValueCache(Uri uri, String getCommand, String setCommand,
                 ContentProviderHolder providerHolder) {
-            this(uri, getCommand, setCommand, null, null, providerHolder);
+            this(uri, getCommand, setCommand, null, null, null, false, providerHolder);
         }
 
         NameValueCache(Uri uri, String getCommand, String setCommand, String listCommand,
                 String setAllCommand, ContentProviderHolder providerHolder) {
+            this(uri, getCommand, setCommand, listCommand, setAllCommand, null, false,
+                    providerHolder);
+        }
+
+        NameValueCache(Uri uri, String getCommand, String setCommand, String getBatchCommand,
+                boolean useSnapshot, ContentProviderHolder providerHolder) {
+            this(uri, getCommand, setCommand, null, null, getBatchCommand, useSnapshot,
+                    providerHolder);
+        }
+
+        private NameValueCache(Uri uri, String getCommand, String setCommand,
+                String listCommand, String setAllCommand, String getBatchCommand,
+                boolean useSnapshot, ContentProviderHolder providerHolder) {
             mUri = uri;
             mCallGetCommand = getCommand;
             mCallSetCommand = setCommand;
             mCallListCommand = listCommand;
             mCallSetAllCommand = setAllCommand;
+            mCallGetBatchCommand = getBatchCommand;
+            mUseSnapshot = useSnapshot;
             mProviderHolder = providerHolder;
         }
 
@@ -2728,6 +2785,15 @@ public final class Settings {
                         }
                         if (mGenerationTracker != null) {
                             currentGeneration = mGenerationTracker.getCurrentGeneration();
+                            if (mSnapshot != null && mSnapshotGeneration == currentGeneration) {
+                                final int index = mSnapshot.indexOf(name);
+                                if (index < 0 || mSnapshot.hasValue(index)) {
+                                    final String value =
+                                            index >= 0 ? mSnapshot.getValue(index) : null;
+                                    mValues.put(name, value);
+                                    return value;
+                                }
+                            }
                         }
                     }
                 }
@@ -2763,6 +2829,13 @@ public final class Settings {
                                         + userHandle);
                             }
                         }
+                        if (isSelf && mUseSnapshot && (mSnapshot == null
+                                || mSnapshotGeneration != currentGeneration)) {
+                            if (args == null) {
+                                args = new Bundle();
+                            }
+                            args.putString(CALL_METHOD_SNAPSHOT_KEY, null);
+                        }
                     }
                     Bundle b;
                     // If we're in system server and in a binder transaction we need to clear the
@@ -2790,39 +2863,14 @@ public final class Settings {
                         if (isSelf) {
                             synchronized (NameValueCache.this) {
                                 if (needsGenerationTracker) {
-                                    MemoryIntArray array = b.getParcelable(
-                                            CALL_METHOD_TRACK_GENERATION_KEY);
-                                    final int index = b.getInt(
-                                            CALL_METHOD_GENERATION_INDEX_KEY, -1);
-                                    if (array != null && index >= 0) {
-                                        final int generation = b.getInt(
-                                                CALL_METHOD_GENERATION_KEY, 0);
-                                        if (DEBUG) {
-                                            Log.i(TAG, "Received generation tracker for type:"
-                                                    + mUri.getPath() + " in package:"
-                                                    + cr.getPackageName() + " and user:"
-                                                    + userHandle + " with index:" + index);
-                                        }
-                                        if (mGenerationTracker != null) {
-                                            mGenerationTracker.destroy();
-                                        }
-                                        mGenerationTracker = new GenerationTracker(array, index,
-                                                generation, () -> {
-                                            synchronized (NameValueCache.this) {
-                                                Log.e(TAG, "Error accessing generation"
-                                                        + " tracker - removing");
-                                                if (mGenerationTracker != null) {
-                                                    GenerationTracker generationTracker =
-                                                            mGenerationTracker;
-                                                    mGenerationTracker = null;
-                                                    generationTracker.destroy();
-                                                    mValues.clear();
-                                                }
-                                            }
-                                        });
+                                    final int generation = installGenerationTrackerLocked(b, cr);
+                                    if (generation >= 0) {
                                         currentGeneration = generation;
                                     }
                                 }
+                                if (mUseSnapshot) {
+                                    updateSnapshotLocked(b);
+                                }
                                 if (mGenerationTracker != null && currentGeneration ==
                                         mGenerationTracker.getCurrentGeneration()) {
                                     mValues.put(name, value);
@@ -2973,35 +3021,8 @@ public final class Settings {
 
                 synchronized (NameValueCache.this) {
                     if (needsGenerationTracker) {
-                        MemoryIntArray array = b.getParcelable(
-                                CALL_METHOD_TRACK_GENERATION_KEY);
-                        final int index = b.getInt(
-                                CALL_METHOD_GENERATION_INDEX_KEY, -1);
-                        if (array != null && index >= 0) {
-                            final int generation = b.getInt(
-                                    CALL_METHOD_GENERATION_KEY, 0);
-                            if (DEBUG) {
-                                Log.i(TAG, "Received generation tracker for type:"
-                                        + mUri.getPath() + " in package:"
-                                        + cr.getPackageName() + " with index:" + index);
-                            }
-                            if (mGenerationTracker != null) {
-                                mGenerationTracker.destroy();
-                            }
-                            mGenerationTracker = new GenerationTracker(array, index,
-                                    generation, () -> {
-                                synchronized (NameValueCache.this) {
-                                    Log.e(TAG, "Error accessing generation tracker"
-                                            + " - removing");
-                                    if (mGenerationTracker != null) {
-                                        GenerationTracker generationTracker =
-                                                mGenerationTracker;
-                                        mGenerationTracker = null;
-                                        generationTracker.destroy();
-                                        mValues.clear();
-                                    }
-                                }
-                            });
+                        final int generation = installGenerationTrackerLocked(b, cr);
+                        if (generation >= 0) {
                             currentGeneration = generation;
                         }
                     }
@@ -3020,6 +3041,170 @@ public final class Settings {
             }
         }
 
+        /**
+         * Reads the given settings of the current user which aren't cached yet in a single call,
+         * so that reading them after doesn't need a call each.
+         */
+        public void prefetchStrings(ContentResolver cr, List<String> names) {
+            if (mCallGetBatchCommand == null) {
+                return;
+            }
+            final ArrayList<String> missingNames = new ArrayList<>(names.size());
+            int currentGeneration = -1;
+            boolean needsGenerationTracker = false;
+            synchronized (NameValueCache.this) {
+                if (mGenerationTracker == null) {
+                    needsGenerationTracker = true;
+                } else {
+                    if (mGenerationTracker.isGenerationChanged()) {
+                        mValues.clear();
+                    }
+                    if (mGenerationTracker != null) {
+                        currentGeneration = mGenerationTracker.getCurrentGeneration();
+                    }
+                }
+                final boolean snapshotValid = mSnapshot != null && currentGeneration >= 0
+                        && mSnapshotGeneration == currentGeneration;
+                for (int i = 0; i < names.size(); i++) {
+                    final String name = names.get(i);
+                    if (mValues.containsKey(name)) {
+                        continue;
+                    }
+                    if (snapshotValid) {
+                        final int index = mSnapshot.indexOf(name);
+                        if (index < 0 || mSnapshot.hasValue(index)) {
+                            continue;
+                        }
+                    }
+                    missingNames.add(name);
+                }
+            }
+            if (missingNames.isEmpty()) {
+                return;
+            }
+
+            final IContentProvider cp = mProviderHolder.getProvider(cr);
+            final Bundle args = new Bundle();
+            args.putStringArrayList(CALL_METHOD_NAMES_KEY, missingNames);
+            if (needsGenerationTracker) {
+                args.putString(CALL_METHOD_TRACK_GENERATION_KEY, null);
+            }
+            final Bundle b;
+            try {
+                // Same workaround as in getStringForUser().
+                if (Settings.isInSystemServer() && Binder.getCallingUid() != Process.myUid()) {
+                    final long token = Binder.clearCallingIdentity();
+                    try {
+                        b = cp.call(cr.getPackageName(), cr.getAttributionTag(),
+                                mProviderHolder.mUri.getAuthority(), mCallGetBatchCommand, null,
+                                args);
+                    } finally {
+                        Binder.restoreCallingIdentity(token);
+                    }
+                } else {
+                    b = cp.call(cr.getPackageName(), cr.getAttributionTag(),
+                            mProviderHolder.mUri.getAuthority(), mCallGetBatchCommand, null,
+                            args);
+                }
+            } catch (RemoteException e) {
+                // Not supported by the remote side, the settings will be read one by one
+                return;
+            }
+            if (b == null) {
+                return;
+            }
+            final Map<String, String> values =
+                    (HashMap) b.getSerializable(Settings.NameValueTable.VALUE);
+            if (values == null) {
+                return;
+            }
+            synchronized (NameValueCache.this) {
+                if (needsGenerationTracker) {
+                    final int generation = installGenerationTrackerLocked(b, cr);
+                    if (generation >= 0) {
+                        currentGeneration = generation;
+                    }
+                }
+                if (mGenerationTracker != null
+                        && currentGeneration == mGenerationTracker.getCurrentGeneration()) {
+                    mValues.putAll(values);
+                }
+            }
+        }
+
+        /**
+         * Starts tracking the generation of the table with the memory array of a response.
+         *
+         * @return the generation in the response, or -1 if it has no memory array
+         */
+        @GuardedBy("this")
+        private int installGenerationTrackerLocked(Bundle b, ContentResolver cr) {
+            MemoryIntArray array = b.getParcelable(CALL_METHOD_TRACK_GENERATION_KEY);
+            final int index = b.getInt(CALL_METHOD_GENERATION_INDEX_KEY, -1);
+            if (array == null || index < 0) {
+                return -1;
+            }
+            final int generation = b.getInt(CALL_METHOD_GENERATION_KEY, 0);
+            if (DEBUG) {
+                Log.i(TAG, "Received generation tracker for type:" + mUri.getPath()
+                        + " in package:" + cr.getPackageName() + " with index:" + index);
+            }
+            if (mGenerationTracker != null) {
+                mGenerationTracker.destroy();
+            }
+            mGenerationTracker = new GenerationTracker(array, index, generation, () -> {
+                synchronized (NameValueCache.this) {
+                    Log.e(TAG, "Error accessing generation tracker - removing");
+                    if (mGenerationTracker != null) {
+                        GenerationTracker generationTracker = mGenerationTracker;
+                        mGenerationTracker = null;
+                        generationTracker.destroy();
+                        mValues.clear();
+                        clearSnapshotLocked();
+                    }
+                }
+            });
+            return generation;
+        }
+
+        /** Maps the snapshot of a response, if it is for the generation tracked. */
+        @GuardedBy("this")
+        private void updateSnapshotLocked(Bundle b) {
+            final SharedMemory memory = b.getParcelable(CALL_METHOD_SNAPSHOT_KEY);
+            if (memory == null) {
+                return;
+            }
+            try {
+                final int generation = b.getInt(CALL_METHOD_SNAPSHOT_GENERATION_KEY, -1);
+                if (mGenerationTracker == null
+                        || generation != mGenerationTracker.getCurrentGeneration()) {
+                    return;
+                }
+                final SettingsSnapshot snapshot = SettingsSnapshot.map(memory);
+                if (snapshot == null) {
+                    return;
+                }
+                clearSnapshotLocked();
+                mSnapshot = snapshot;
+                mSnapshotGeneration = generation;
+                if (DEBUG) {
+                    Log.i(TAG, "Received snapshot for type:" + mUri.getPath()
+                            + " with generation:" + generation);
+                }
+            } finally {
+                // The mapping stays valid
+                memory.close();
+            }
+        }
+
+        @GuardedBy("this")
+        private void clearSnapshotLocked() {
+            if (mSnapshot != null) {
+                mSnapshot.unmap();
+                mSnapshot = null;
+            }
+        }
+
         public void clearGenerationTrackerForTest() {
             synchronized (NameValueCache.this) {
                 if (mGenerationTracker != null) {
@@ -3027,6 +3212,7 @@ public final class Settings {
                 }
                 mValues.clear();
                 mGenerationTracker = null;
+                clearSnapshotLocked();
             }
         }
     }
@@ -3075,6 +3261,8 @@ public final class Settings {
                 CONTENT_URI,
                 CALL_METHOD_GET_SYSTEM,
                 CALL_METHOD_PUT_SYSTEM,
+                CALL_METHOD_GET_BATCH_SYSTEM,
+                false /* useSnapshot */,
                 sProviderHolder);
 
         @UnsupportedAppUsage
@@ -3221,6 +3409,24 @@ public final class Settings {
             return sNameValueCache.getStringForUser(resolver, name, userHandle);
         }
 
+        /**
+         * Reads the given settings of the current user in a single call, so that reading them
+         * after is served from the local cache. Use when reading many settings at once, e.g.
+         * during startup.
+         *
+         * @hide
+         */
+        public static void prefetch(ContentResolver resolver, String... names) {
+            final ArrayList<String> tableNames = new ArrayList<>(names.length);
+            for (String name : names) {
+                if (!MOVED_TO_SECURE.contains(name) && !MOVED_TO_GLOBAL.contains(name)
+                        && !MOVED_TO_SECURE_THEN_GLOBAL.contains(name)) {
+                    tableNames.add(name);
+                }
+            }
+            sNameValueCache.prefetchStrings(resolver, tableNames);
+        }
+
         /**
          * Store a name/value pair into the database.
          * @param resolver to access the database with
@@ -5558,6 +5764,8 @@ public final class Settings {
                 CONTENT_URI,
                 CALL_METHOD_GET_SECURE,
                 CALL_METHOD_PUT_SECURE,
+                CALL_METHOD_GET_BATCH_SECURE,
+                false /* useSnapshot */,
                 sProviderHolder);
 
         private static ILockSettings sLockSettings = null;
@@ -5753,6 +5961,23 @@ public final class Settings {
             return sNameValueCache.getStringForUser(resolver, name, userHandle);
         }
 
+        /**
+         * Reads the given settings of the current user in a single call, so that reading them
+         * after is served from the local cache. Use when reading many settings at once, e.g.
+         * during startup.
+         *
+         * @hide
+         */
+        public static void prefetch(ContentResolver resolver, String... names) {
+            final ArrayList<String> tableNames = new ArrayList<>(names.length);
+            for (String name : names) {
+                if (!MOVED_TO_GLOBAL.contains(name) && !MOVED_TO_LOCK_SETTINGS.contains(name)) {
+                    tableNames.add(name);
+                }
+            }
+            sNameValueCache.prefetchStrings(resolver, tableNames);
+        }
+
         /**
          * Store a name/value pair into the database. Values written by this method will be
          * overridden if a restore happens in the future.
@@ -13783,6 +14008,8 @@ public final class Settings {
                     CONTENT_URI,
                     CALL_METHOD_GET_GLOBAL,
                     CALL_METHOD_PUT_GLOBAL,
+                    CALL_METHOD_GET_BATCH_GLOBAL,
+                    true /* useSnapshot */,
                     sProviderHolder);
 
         // Certain settings have been moved from global to the per-user secure namespace
@@ -13834,6 +14061,22 @@ public final class Settings {
             return sNameValueCache.getStringForUser(resolver, name, userHandle);
         }
 
+        /**
+         * Reads the given settings in a single call, so that reading them after is served from
+         * the local cache. Use when reading many settings at once, e.g. during startup.
+         *
+         * @hide
+         */
+        public static void prefetch(ContentResolver resolver, String... names) {
+            final ArrayList<String> tableNames = new ArrayList<>(names.length);
+            for (String name : names) {
+                if (!MOVED_TO_SECURE.contains(name)) {
+                    tableNames.add(name);
+                }
+            }
+            sNameValueCache.prefetchStrings(resolver, tableNames);
+        }
+
         /**
          * Store a name/value pair into the database.
          * @param resolver to access the database with
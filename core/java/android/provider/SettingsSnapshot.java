@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.provider;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * A read-only copy of a settings table in shared memory, which the settings provider publishes so
+ * that the clients can read the settings without a binder call each.
+ *
+ * <p>The snapshot starts with a header {@code [magic][count]}, followed by the offsets of the
+ * {@code count} settings sorted by name, then the settings as
+ * {@code [name length][name chars][value length][value chars]}. The value length is
+ * {@link #NULL_VALUE} for a null value, and {@link #OMITTED_VALUE} for a value too large to be
+ * copied into the snapshot, which has to be read from the provider.
+ *
+ * @hide
+ */
+public final class SettingsSnapshot {
+    private static final String TAG = "SettingsSnapshot";
+
+    private static final int MAGIC = 0x53455453; // SETS
+
+    private static final int HEADER_SIZE = 8;
+
+    private static final int NULL_VALUE = -1;
+    private static final int OMITTED_VALUE = -2;
+
+    /** Values longer than this are left out, so that a few large blobs don't bloat everyone. */
+    @VisibleForTesting
+    public static final int MAX_VALUE_LENGTH = 1024;
+
+    private final ByteBuffer mBuffer;
+    private final int mCount;
+
+    private SettingsSnapshot(ByteBuffer buffer, int count) {
+        mBuffer = buffer;
+        mCount = count;
+    }
+
+    /**
+     * Writes a snapshot of the given settings into a new read-only shared memory region.
+     *
+     * @param names the names of the settings, sorted by {@link String#compareTo}
+     * @param values the values of the settings, in the same order
+     * @return the shared memory, or null if it couldn't be allocated
+     */
+    public static @Nullable SharedMemory write(@NonNull String debugName,
+            @NonNull List<String> names, @NonNull List<String> values) {
+        final int count = names.size();
+        int size = HEADER_SIZE + 4 * count;
+        for (int i = 0; i < count; i++) {
+            final String value = values.get(i);
+            size += 8 + 2 * names.get(i).length();
+            if (value != null && value.length() <= MAX_VALUE_LENGTH) {
+                size += 2 * value.length();
+            }
+        }
+
+        final SharedMemory memory;
+        try {
+            memory = SharedMemory.create(debugName, size);
+        } catch (ErrnoException e) {
+            Log.e(TAG, "Can't allocate a snapshot of " + size + " bytes for " + debugName, e);
+            return null;
+        }
+        try {
+            final ByteBuffer buffer = memory.mapReadWrite();
+            try {
+                buffer.putInt(MAGIC);
+                buffer.putInt(count);
+                int offset = HEADER_SIZE + 4 * count;
+                for (int i = 0; i < count; i++) {
+                    buffer.putInt(HEADER_SIZE + 4 * i, offset);
+                    buffer.position(offset);
+                    putString(buffer, names.get(i));
+                    final String value = values.get(i);
+                    if (value == null) {
+                        buffer.putInt(NULL_VALUE);
+                    } else if (value.length() > MAX_VALUE_LENGTH) {
+                        buffer.putInt(OMITTED_VALUE);
+                    } else {
+                        putString(buffer, value);
+                    }
+                    offset = buffer.position();
+                }
+            } finally {
+                SharedMemory.unmap(buffer);
+            }
+            // Clients can only map it read-only from now on
+            memory.setProtect(OsConstants.PROT_READ);
+        } catch (ErrnoException e) {
+            Log.e(TAG, "Can't write the snapshot of " + debugName, e);
+            memory.close();
+            return null;
+        }
+        return memory;
+    }
+
+    /**
+     * Maps a snapshot read-only. The shared memory can be closed once mapped.
+     *
+     * @return the snapshot, or null if it couldn't be mapped or is malformed
+     */
+    public static @Nullable SettingsSnapshot map(@NonNull SharedMemory memory) {
+        final ByteBuffer buffer;
+        try {
+            buffer = memory.mapReadOnly();
+        } catch (ErrnoException e) {
+            Log.e(TAG, "Can't map snapshot", e);
+            return null;
+        }
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC
+                || buffer.getInt(4) < 0 || buffer.getInt(4) > (buffer.limit() - HEADER_SIZE) / 4) {
+            Log.e(TAG, "Malformed snapshot");
+            SharedMemory.unmap(buffer);
+            return null;
+        }
+        return new SettingsSnapshot(buffer, buffer.getInt(4));
+    }
+
+    /** Releases the mapping. The snapshot can't be used after. */
+    public void unmap() {
+        SharedMemory.unmap(mBuffer);
+    }
+
+    /**
+     * Returns the index of a setting in the snapshot, or a negative value if it isn't set.
+     */
+    public int indexOf(@NonNull String name) {
+        int low = 0;
+        int high = mCount - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int cmp = compareName(getOffset(mid), name);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /** Returns whether the value of the setting at the index was copied into the snapshot. */
+    public boolean hasValue(int index) {
+        return mBuffer.getInt(getValueOffset(index)) != OMITTED_VALUE;
+    }
+
+    /** Returns the value of the setting at the index, which must be {@link #hasValue}. */
+    public @Nullable String getValue(int index) {
+        final int offset = getValueOffset(index);
+        final int length = mBuffer.getInt(offset);
+        if (length < 0) {
+            return null;
+        }
+        final char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = mBuffer.getChar(offset + 4 + 2 * i);
+        }
+        return new String(chars);
+    }
+
+    private int getOffset(int index) {
+        return mBuffer.getInt(HEADER_SIZE + 4 * index);
+    }
+
+    private int getValueOffset(int index) {
+        final int offset = getOffset(index);
+        return offset + 4 + 2 * mBuffer.getInt(offset);
+    }
+
+    /** Compares the name at the offset with the given one, like {@link String#compareTo}. */
+    private int compareName(int offset, String name) {
+        final int length = mBuffer.getInt(offset);
+        final int minLength = Math.min(length, name.length());
+        for (int i = 0; i < minLength; i++) {
+            final char c = mBuffer.getChar(offset + 4 + 2 * i);
+            if (c != name.charAt(i)) {
+                return c - name.charAt(i);
+            }
+        }
+        return length - name.length();
+    }
+
+    private static void putString(ByteBuffer buffer, String s) {
+        buffer.putInt(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            buffer.putChar(s.charAt(i));
+        }
+    }
+}
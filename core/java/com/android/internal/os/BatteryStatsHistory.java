@@ -17,22 +17,35 @@
 package com.android.internal.os;
 
 import android.os.BatteryStats;
+import android.os.FileUtils;
 import android.os.Parcel;
 import android.os.StatFs;
 import android.os.SystemClock;
 import android.util.ArraySet;
 import android.util.AtomicFile;
 import android.util.Slog;
+import android.util.SparseArray;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.ParseUtils;
 
+import libcore.io.IoUtils;
+
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
 
 /**
  * BatteryStatsHistory encapsulates battery history files.
@@ -50,6 +63,12 @@ import java.util.Set;
  * When count of history files exceeds {@link BatteryStatsImpl.Constants#MAX_HISTORY_FILES},
  * the lowest numbered file is deleted and a new file is open.
  *
+ * Once a history file is no longer active it is compressed in the background. A compressed file
+ * starts with a header holding the time of its last record and the history item its first record
+ * is a delta of, so that iterating the history from a given time can skip the older files without
+ * reading them. Compressed files are counted by their size rather than as a full history buffer,
+ * which lets more of them fit in the same disk budget.
+ *
  * All interfaces in BatteryStatsHistory should only be called by BatteryStatsImpl and protected by
  * locks on BatteryStatsImpl object.
  */
@@ -59,8 +78,19 @@ public class BatteryStatsHistory {
     private static final String TAG = "BatteryStatsHistory";
     public static final String HISTORY_DIR = "battery-history";
     public static final String FILE_SUFFIX = ".bin";
+    private static final String TMP_SUFFIX = ".tmp";
     private static final int MIN_FREE_SPACE = 100 * 1024 * 1024;
 
+    // A compressed history file starts with this magic, where an uncompressed one starts with
+    // BatteryStatsImpl.VERSION, then VERSION, the time of the last record, the length of the
+    // uncompressed file and the length of the base history item that follows the header.
+    private static final int COMPRESSED_MAGIC = 0x42534831; // "BSH1"
+    private static final int COMPRESSED_HEADER_SIZE = 24;
+    // VERSION and the time of the last record.
+    private static final int HEADER_SIZE = 12;
+    // However well the history files compress, keep at most this many times MAX_HISTORY_FILES.
+    private static final int MAX_COMPRESSED_FILES_FACTOR = 4;
+
     private final BatteryStatsImpl mStats;
     private final Parcel mHistoryBuffer;
     private final File mHistoryDir;
@@ -72,6 +102,22 @@ public class BatteryStatsHistory {
      * A list of history files with incremental indexes.
      */
     private final List<Integer> mFileNumbers = new ArrayList<>();
+    /**
+     * The headers of the history files other than the active one, read on demand.
+     */
+    private final SparseArray<FileHeader> mFileHeaders = new SparseArray<>();
+    /**
+     * The history item that the first record of {@link #mActiveFile} is a delta of, as a
+     * marshalled parcel, or null if unknown.
+     */
+    private byte[] mActiveFileBaseItem;
+    /**
+     * Incremented by {@link #resetAllFiles}, so that compressing a file deleted meanwhile doesn't
+     * replace a new file with the same number.
+     */
+    @GuardedBy("mStats")
+    private int mGeneration;
+    private final Executor mCompressionExecutor;
 
     /**
      * A list of small history parcels, used when BatteryStatsImpl object is created from
@@ -95,6 +141,11 @@ public class BatteryStatsHistory {
      * When iterating history files, the current record count.
      */
     private int mRecordCount = 0;
+    /**
+     * When iterating history files from a given time, the history item the first record read is
+     * a delta of.
+     */
+    private byte[] mIterationBaseItem;
     /**
      * Used when BatteryStatsImpl object is created from deserialization of a parcel,
      * such as Settings app or checkin file, to iterate over history parcels.
@@ -108,8 +159,15 @@ public class BatteryStatsHistory {
      * @param historyBuffer The in-memory history buffer.
      */
     public BatteryStatsHistory(BatteryStatsImpl stats, File systemDir, Parcel historyBuffer) {
+        this(stats, systemDir, historyBuffer, BackgroundThread.getExecutor());
+    }
+
+    @VisibleForTesting
+    BatteryStatsHistory(BatteryStatsImpl stats, File systemDir, Parcel historyBuffer,
+            Executor compressionExecutor) {
         mStats = stats;
         mHistoryBuffer = historyBuffer;
+        mCompressionExecutor = compressionExecutor;
         mHistoryDir = new File(systemDir, HISTORY_DIR);
         mHistoryDir.mkdirs();
         if (!mHistoryDir.exists()) {
@@ -121,6 +179,11 @@ public class BatteryStatsHistory {
         mHistoryDir.listFiles(new FilenameFilter() {
             @Override
             public boolean accept(File dir, String name) {
+                if (name.endsWith(TMP_SUFFIX)) {
+                    // Left over from compressing a file when the system went down.
+                    new File(dir, name).delete();
+                    return false;
+                }
                 final int b = name.lastIndexOf(FILE_SUFFIX);
                 if (b <= 0) {
                     return false;
@@ -139,6 +202,10 @@ public class BatteryStatsHistory {
             mFileNumbers.addAll(dedup);
             Collections.sort(mFileNumbers);
             setActiveFile(mFileNumbers.get(mFileNumbers.size() - 1));
+            // Compress the files left uncompressed by an earlier version or by a crash.
+            for (int i = 0; i < mFileNumbers.size() - 1; i++) {
+                scheduleCompression(mFileNumbers.get(i), null);
+            }
         } else {
             // No file found, default to have file 0.
             mFileNumbers.add(0);
@@ -156,6 +223,7 @@ public class BatteryStatsHistory {
         mStats = stats;
         mHistoryDir = null;
         mHistoryBuffer = historyBuffer;
+        mCompressionExecutor = null;
     }
     /**
      * Set the active file that mHistoryBuffer is backed up into.
@@ -184,28 +252,53 @@ public class BatteryStatsHistory {
      * create next history file.
      */
     public void startNextFile() {
+        startNextFile(null);
+    }
+
+    /**
+     * When {@link #mHistoryBuffer} reaches {@link BatteryStatsImpl.Constants#MAX_HISTORY_BUFFER},
+     * create next history file.
+     * @param baseItem the last history item written, which the first record of the next file is
+     *                 a delta of, or null if unknown.
+     */
+    public void startNextFile(BatteryStats.HistoryItem baseItem) {
         if (mFileNumbers.isEmpty()) {
             Slog.wtf(TAG, "mFileNumbers should never be empty");
             return;
         }
         // The last number in mFileNumbers is the highest number. The next file number is highest
         // number plus one.
-        final int next = mFileNumbers.get(mFileNumbers.size() - 1) + 1;
+        final int last = mFileNumbers.get(mFileNumbers.size() - 1);
+        final int next = last + 1;
         mFileNumbers.add(next);
         setActiveFile(next);
+        scheduleCompression(last, mActiveFileBaseItem);
+        mActiveFileBaseItem = null;
+        if (baseItem != null) {
+            final Parcel p = Parcel.obtain();
+            baseItem.writeToParcel(p, 0);
+            mActiveFileBaseItem = p.marshall();
+            p.recycle();
+        }
 
         // if free disk space is less than 100MB, delete oldest history file.
         if (!hasFreeDiskSpace()) {
-            int oldest = mFileNumbers.remove(0);
-            getFile(oldest).delete();
+            deleteFile(mFileNumbers.remove(0));
         }
 
-        // if there are more history files than allowed, delete oldest history files.
-        // MAX_HISTORY_FILES can be updated by GService config at run time.
-        while (mFileNumbers.size() > mStats.mConstants.MAX_HISTORY_FILES) {
-            int oldest = mFileNumbers.get(0);
-            getFile(oldest).delete();
-            mFileNumbers.remove(0);
+        // if the history files take more than MAX_HISTORY_FILES history buffers, delete oldest
+        // history files. MAX_HISTORY_FILES can be updated by GService config at run time.
+        final int maxFiles = mStats.mConstants.MAX_HISTORY_FILES;
+        final long maxSize = (long) maxFiles * mStats.mConstants.MAX_HISTORY_BUFFER;
+        long size = mStats.mConstants.MAX_HISTORY_BUFFER; // The active file
+        for (int i = 0; i < mFileNumbers.size() - 1; i++) {
+            size += getDiskBudgetUsage(mFileNumbers.get(i));
+        }
+        while (mFileNumbers.size() > 1 && (size > maxSize
+                || mFileNumbers.size() > maxFiles * MAX_COMPRESSED_FILES_FACTOR)) {
+            final int oldest = mFileNumbers.remove(0);
+            size -= getDiskBudgetUsage(oldest);
+            deleteFile(oldest);
         }
     }
 
@@ -214,11 +307,29 @@ public class BatteryStatsHistory {
      */
     public void resetAllFiles() {
         for (Integer i : mFileNumbers) {
-            getFile(i).delete();
+            deleteFile(i);
         }
         mFileNumbers.clear();
         mFileNumbers.add(0);
         setActiveFile(0);
+        mActiveFileBaseItem = null;
+        synchronized (mStats) {
+            mGeneration++;
+        }
+    }
+
+    private void deleteFile(int fileNumber) {
+        getFile(fileNumber).delete();
+        mFileHeaders.remove(fileNumber);
+    }
+
+    /**
+     * How much of the disk budget of the history files a file other than the active one takes.
+     * An uncompressed file is counted as a full history buffer.
+     */
+    private long getDiskBudgetUsage(int fileNumber) {
+        final FileHeader header = getFileHeader(fileNumber);
+        return header.compressed ? header.fileSize : mStats.mConstants.MAX_HISTORY_BUFFER;
     }
 
     /**
@@ -231,6 +342,43 @@ public class BatteryStatsHistory {
         mCurrentParcel = null;
         mCurrentParcelEnd = 0;
         mParcelIndex = 0;
+        mIterationBaseItem = null;
+        return true;
+    }
+
+    /**
+     * Start iterating history files and history buffer, skipping the files that only hold
+     * records older than startTime when the state they end with is known.
+     * @param startTime the history time of the first record of interest, or -1 for all.
+     * @return always return true.
+     */
+    public boolean startIteratingHistory(long startTime) {
+        startIteratingHistory();
+        if (startTime < 0 || mFileNumbers.isEmpty()) {
+            return true;
+        }
+        final int activeIndex = mFileNumbers.size() - 1;
+        int firstIndex = activeIndex;
+        for (int i = 0; i < activeIndex; i++) {
+            if (getFileHeader(mFileNumbers.get(i)).endTime >= startTime) {
+                firstIndex = i;
+                break;
+            }
+        }
+        // The first record of a file can only be decoded knowing the record before it.
+        for (int i = firstIndex; i > 0; i--) {
+            final byte[] baseItem = i == activeIndex
+                    ? mActiveFileBaseItem : getFileHeader(mFileNumbers.get(i)).baseItem;
+            if (baseItem != null) {
+                mCurrentFileIndex = i;
+                mIterationBaseItem = baseItem;
+                break;
+            }
+        }
+        if (DEBUG) {
+            Slog.d(TAG, "Iterating history from " + startTime + ", skipping "
+                    + mCurrentFileIndex + " files");
+        }
         return true;
     }
 
@@ -257,6 +405,13 @@ public class BatteryStatsHistory {
         if (mRecordCount == 0) {
             // reset out if it is the first record.
             out.clear();
+            if (mIterationBaseItem != null) {
+                final Parcel p = Parcel.obtain();
+                p.unmarshall(mIterationBaseItem, 0, mIterationBaseItem.length);
+                p.setDataPosition(0);
+                out.readFromParcel(p);
+                p.recycle();
+            }
         }
         ++mRecordCount;
 
@@ -344,6 +499,11 @@ public class BatteryStatsHistory {
             Slog.e(TAG, "Error reading file "+ file.getBaseFile().getPath(), e);
             return false;
         }
+        raw = decompress(raw);
+        if (raw == null) {
+            Slog.e(TAG, "Error decompressing file " + file.getBaseFile().getPath());
+            return false;
+        }
         out.unmarshall(raw, 0, raw.length);
         out.setDataPosition(0);
         return skipHead(out);
@@ -400,8 +560,8 @@ public class BatteryStatsHistory {
         mHistoryParcels = new ArrayList<>();
         final int count = in.readInt();
         for(int i = 0; i < count; i++) {
-            byte[] temp = in.createByteArray();
-            if (temp.length == 0) {
+            byte[] temp = decompress(in.createByteArray());
+            if (temp == null || temp.length == 0) {
                 continue;
             }
             Parcel p = Parcel.obtain();
@@ -414,6 +574,200 @@ public class BatteryStatsHistory {
         }
     }
 
+    /**
+     * Compress a history file in the background, unless already compressed.
+     * @param baseItem the history item that the first record of the file is a delta of, as a
+     *                 marshalled parcel, or null if unknown.
+     */
+    private void scheduleCompression(int fileNumber, byte[] baseItem) {
+        final int generation;
+        synchronized (mStats) {
+            generation = mGeneration;
+        }
+        mCompressionExecutor.execute(() -> compressFile(fileNumber, baseItem, generation));
+    }
+
+    private void compressFile(int fileNumber, byte[] baseItem, int generation) {
+        final long start = SystemClock.uptimeMillis();
+        final AtomicFile file = getFile(fileNumber);
+        final byte[] raw;
+        try {
+            raw = file.readFully();
+        } catch (IOException e) {
+            // Deleted meanwhile.
+            return;
+        }
+        final FileHeader header = parseHeader(raw, raw.length);
+        if (header == null || header.compressed) {
+            return;
+        }
+        header.compressed = true;
+        header.baseItem = baseItem;
+
+        final File tmpFile = new File(mHistoryDir, fileNumber + TMP_SUFFIX);
+        final Deflater deflater = new Deflater();
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(tmpFile);
+            final Parcel p = Parcel.obtain();
+            p.writeInt(COMPRESSED_MAGIC);
+            p.writeInt(mStats.VERSION);
+            p.writeLong(header.endTime);
+            p.writeInt(raw.length);
+            p.writeInt(baseItem != null ? baseItem.length : 0);
+            fos.write(p.marshall());
+            p.recycle();
+            if (baseItem != null) {
+                fos.write(baseItem);
+            }
+            final DeflaterOutputStream out = new DeflaterOutputStream(fos, deflater);
+            out.write(raw);
+            out.finish();
+            fos.flush();
+            FileUtils.sync(fos);
+        } catch (IOException e) {
+            Slog.w(TAG, "Error compressing history file " + file.getBaseFile().getPath(), e);
+            tmpFile.delete();
+            return;
+        } finally {
+            IoUtils.closeQuietly(fos);
+            deflater.end();
+        }
+
+        synchronized (mStats) {
+            if (generation != mGeneration || !mFileNumbers.contains(fileNumber)
+                    || !tmpFile.renameTo(file.getBaseFile())) {
+                tmpFile.delete();
+                return;
+            }
+            header.fileSize = file.getBaseFile().length();
+            mFileHeaders.put(fileNumber, header);
+        }
+        if (DEBUG) {
+            Slog.d(TAG, "compressFile:" + file.getBaseFile().getPath() + " bytes:" + raw.length
+                    + " compressed:" + header.fileSize
+                    + " duration ms:" + (SystemClock.uptimeMillis() - start));
+        }
+    }
+
+    /**
+     * Returns the uncompressed content of a history file, or null if it cannot be decompressed.
+     */
+    private byte[] decompress(byte[] data) {
+        final FileHeader header = parseHeader(data, data.length);
+        if (header == null || !header.compressed) {
+            return data;
+        }
+        final int offset = COMPRESSED_HEADER_SIZE + header.baseItemLength;
+        if (offset > data.length) {
+            return null;
+        }
+        final byte[] raw = new byte[header.rawSize];
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, offset, data.length - offset);
+            int size = 0;
+            while (size < raw.length && !inflater.finished()) {
+                final int n = inflater.inflate(raw, size, raw.length - size);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                size += n;
+            }
+            return size == raw.length ? raw : null;
+        } catch (DataFormatException e) {
+            Slog.w(TAG, "Corrupted history file", e);
+            return null;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Returns the header of a history file other than the active one, reading it on first use.
+     */
+    private FileHeader getFileHeader(int fileNumber) {
+        FileHeader header = mFileHeaders.get(fileNumber);
+        if (header == null) {
+            header = readFileHeader(getFile(fileNumber));
+            mFileHeaders.put(fileNumber, header);
+        }
+        return header;
+    }
+
+    private FileHeader readFileHeader(AtomicFile file) {
+        InputStream in = null;
+        try {
+            in = file.openRead();
+            final byte[] head = new byte[COMPRESSED_HEADER_SIZE];
+            int size = 0;
+            int n;
+            while (size < head.length && (n = in.read(head, size, head.length - size)) > 0) {
+                size += n;
+            }
+            final FileHeader header = parseHeader(head, size);
+            if (header != null) {
+                header.fileSize = file.getBaseFile().length();
+                if (header.compressed && header.baseItemLength > 0) {
+                    final byte[] baseItem = new byte[header.baseItemLength];
+                    size = 0;
+                    while (size < baseItem.length
+                            && (n = in.read(baseItem, size, baseItem.length - size)) > 0) {
+                        size += n;
+                    }
+                    header.baseItem = size == baseItem.length ? baseItem : null;
+                }
+                return header;
+            }
+        } catch (IOException e) {
+            Slog.w(TAG, "Error reading header of " + file.getBaseFile().getPath(), e);
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+        // Unknown content, never skipped when iterating and counted as a full history buffer.
+        final FileHeader header = new FileHeader();
+        header.endTime = Long.MAX_VALUE;
+        return header;
+    }
+
+    /**
+     * Parses the header at the start of the content of a history file.
+     * @return the header, or null if the content is not a history file of this version.
+     */
+    private FileHeader parseHeader(byte[] data, int length) {
+        if (length < HEADER_SIZE) {
+            return null;
+        }
+        final Parcel p = Parcel.obtain();
+        try {
+            p.unmarshall(data, 0, Math.min(length, COMPRESSED_HEADER_SIZE));
+            p.setDataPosition(0);
+            final FileHeader header = new FileHeader();
+            int version = p.readInt();
+            if (version == COMPRESSED_MAGIC) {
+                if (length < COMPRESSED_HEADER_SIZE) {
+                    return null;
+                }
+                header.compressed = true;
+                version = p.readInt();
+            }
+            if (version != mStats.VERSION) {
+                return null;
+            }
+            header.endTime = p.readLong();
+            if (header.compressed) {
+                header.rawSize = p.readInt();
+                header.baseItemLength = p.readInt();
+                if (header.rawSize < 0 || header.baseItemLength < 0) {
+                    return null;
+                }
+            }
+            return header;
+        } finally {
+            p.recycle();
+        }
+    }
+
     /**
      * @return true if there is more than 100MB free disk space left.
      */
@@ -430,6 +784,11 @@ public class BatteryStatsHistory {
         return mActiveFile;
     }
 
+    @VisibleForTesting
+    boolean isFileCompressed(int fileNumber) {
+        return getFileHeader(fileNumber).compressed;
+    }
+
     /**
      * @return the total size of all history files and history buffer.
      */
@@ -446,4 +805,14 @@ public class BatteryStatsHistory {
         }
         return ret;
     }
+
+    private static final class FileHeader {
+        boolean compressed;
+        // The history time of the last record.
+        long endTime;
+        long fileSize;
+        int rawSize;
+        int baseItemLength;
+        byte[] baseItem;
+    }
 }
@@ -153,6 +153,10 @@ public class BatteryStatsImpl extends BatteryStats {
     // Current on-disk Parcel version
     static final int VERSION = 188 + (USE_OLD_HISTORY ? 1000 : 0);
 
+    // How far in the future the summary of an idle uid is written again to check that it doesn't
+    // depend on the current time before it is kept for the next summaries.
+    private static final long SUMMARY_CACHE_CHECK_OFFSET_US = 60 * 60 * 1000 * 1000L;
+
     // The maximum number of names wakelocks we will keep track of
     // per uid; once the limit is reached, we batch the remaining wakelocks
     // in to one common name.
@@ -3691,7 +3695,7 @@ public class BatteryStatsImpl extends BatteryStats {
                 Slog.d(TAG, "addHistoryBufferLocked writeHistoryLocked takes ms:"
                         + (SystemClock.uptimeMillis() - start));
             }
-            mBatteryStatsHistory.startNextFile();
+            mBatteryStatsHistory.startNextFile(mHistoryLastWritten);
             mHistoryBuffer.setDataSize(0);
             mHistoryBuffer.setDataPosition(0);
             mHistoryBuffer.setDataCapacity(mConstants.MAX_HISTORY_BUFFER / 2);
@@ -3885,6 +3889,9 @@ public class BatteryStatsImpl extends BatteryStats {
                         + " and battery is " + (unplugged ? "on" : "off"));
             }
 
+            // The sections of idle uids are only kept while the time bases of their timers are
+            // in the same state, a timer left running counts again once they start.
+            invalidateSummaryCachesLocked();
             mOnBatteryTimeBase.setRunning(unplugged, uptime, realtime);
             if (updateOnBatteryTimeBase) {
                 for (int i = mUidStats.size() - 1; i >= 0; --i) {
@@ -3900,6 +3907,17 @@ public class BatteryStatsImpl extends BatteryStats {
         }
     }
 
+    /**
+     * Drops the cached summary sections of all uids, must be called whenever the time bases
+     * shared by their timers start, stop or are reset.
+     */
+    @GuardedBy("this")
+    void invalidateSummaryCachesLocked() {
+        for (int i = mUidStats.size() - 1; i >= 0; --i) {
+            mUidStats.valueAt(i).invalidateSummaryCacheLocked();
+        }
+    }
+
     private void updateBatteryPropertiesLocked() {
         try {
             IBatteryPropertiesRegistrar registrar = IBatteryPropertiesRegistrar.Stub.asInterface(
@@ -4590,6 +4608,7 @@ public class BatteryStatsImpl extends BatteryStats {
         uid = mapUid(uid);
         Uid u = mUidStats.get(uid);
         if (u != null) {
+            u.invalidateSummaryCacheLocked();
             u.reportExcessiveCpuLocked(proc, overTime, usedTime);
         }
     }
@@ -5424,6 +5443,7 @@ public class BatteryStatsImpl extends BatteryStats {
             mAudioOnTimer.stopAllRunningLocked(elapsedRealtime);
             for (int i=0; i<mUidStats.size(); i++) {
                 BatteryStatsImpl.Uid uid = mUidStats.valueAt(i);
+                uid.invalidateSummaryCacheLocked();
                 uid.noteResetAudioLocked(elapsedRealtime);
             }
         }
@@ -5441,6 +5461,7 @@ public class BatteryStatsImpl extends BatteryStats {
             mVideoOnTimer.stopAllRunningLocked(elapsedRealtime);
             for (int i=0; i<mUidStats.size(); i++) {
                 BatteryStatsImpl.Uid uid = mUidStats.valueAt(i);
+                uid.invalidateSummaryCacheLocked();
                 uid.noteResetVideoLocked(elapsedRealtime);
             }
         }
@@ -5540,6 +5561,7 @@ public class BatteryStatsImpl extends BatteryStats {
             mCameraOnTimer.stopAllRunningLocked(elapsedRealtime);
             for (int i=0; i<mUidStats.size(); i++) {
                 BatteryStatsImpl.Uid uid = mUidStats.valueAt(i);
+                uid.invalidateSummaryCacheLocked();
                 uid.noteResetCameraLocked(elapsedRealtime);
             }
         }
@@ -5557,6 +5579,7 @@ public class BatteryStatsImpl extends BatteryStats {
             mFlashlightOnTimer.stopAllRunningLocked(elapsedRealtime);
             for (int i=0; i<mUidStats.size(); i++) {
                 BatteryStatsImpl.Uid uid = mUidStats.valueAt(i);
+                uid.invalidateSummaryCacheLocked();
                 uid.noteResetFlashlightLocked(elapsedRealtime);
             }
         }
@@ -5642,6 +5665,7 @@ public class BatteryStatsImpl extends BatteryStats {
             mBluetoothScanTimer.stopAllRunningLocked(elapsedRealtime);
             for (int i=0; i<mUidStats.size(); i++) {
                 BatteryStatsImpl.Uid uid = mUidStats.valueAt(i);
+                uid.invalidateSummaryCacheLocked();
                 uid.noteResetBluetoothScanLocked(elapsedRealtime);
             }
         }
@@ -6738,6 +6762,12 @@ public class BatteryStatsImpl extends BatteryStats {
          */
         final SparseArray<Pid> mPids = new SparseArray<>();
 
+        /**
+         * The summary section last written for this uid, reused by the next summaries until the
+         * uid changes. See {@link #writeUidSummaryToParcelLocked}.
+         */
+        Parcel mSummaryCache;
+
         public Uid(BatteryStatsImpl bsi, int uid) {
             mBsi = bsi;
             mUid = uid;
@@ -7768,6 +7798,17 @@ public class BatteryStatsImpl extends BatteryStats {
             mMobileRadioActiveCount = new LongSamplingCounter(mBsi.mOnBatteryTimeBase);
         }
 
+        /**
+         * Drops the cached summary section of this uid, must be called whenever its stats change
+         * other than through {@link BatteryStatsImpl#getUidStatsLocked}.
+         */
+        void invalidateSummaryCacheLocked() {
+            if (mSummaryCache != null) {
+                mSummaryCache.recycle();
+                mSummaryCache = null;
+            }
+        }
+
         /**
          * Clear all stats for this uid.  Returns true if the uid is completely
          * inactive so can be dropped.
@@ -7776,6 +7817,8 @@ public class BatteryStatsImpl extends BatteryStats {
         public boolean reset(long uptime, long realtime) {
             boolean active = false;
 
+            invalidateSummaryCacheLocked();
+
             mOnBatteryBackgroundTimeBase.init(uptime, realtime);
             mOnBatteryScreenOffBackgroundTimeBase.init(uptime, realtime);
 
@@ -7947,6 +7990,7 @@ public class BatteryStatsImpl extends BatteryStats {
          * {@link BatteryStatsImpl#mUidStats}
          */
         void detachFromTimeBase() {
+            invalidateSummaryCacheLocked();
             detachIfNotNull(mWifiRunningTimer);
             detachIfNotNull(mFullWifiLockTimer);
             detachIfNotNull(mWifiScanTimer);
@@ -8416,6 +8460,7 @@ public class BatteryStatsImpl extends BatteryStats {
             for (int k = 0; k < numProcs; k++) {
                 String processName = in.readString();
                 Uid.Proc proc = new Proc(mBsi, processName);
+                proc.mUid = this;
                 proc.readFromParcelLocked(in);
                 mProcessStats.put(processName, proc);
             }
@@ -8425,6 +8470,7 @@ public class BatteryStatsImpl extends BatteryStats {
             for (int l = 0; l < numPkgs; l++) {
                 String packageName = in.readString();
                 Uid.Pkg pkg = new Pkg(mBsi);
+                pkg.mUid = this;
                 pkg.readFromParcelLocked(in);
                 mPackageStats.put(packageName, pkg);
             }
@@ -8908,6 +8954,12 @@ public class BatteryStatsImpl extends BatteryStats {
              */
             protected BatteryStatsImpl mBsi;
 
+            /**
+             * The uid this process belongs to, if known, whose summary cache is dropped when
+             * the process is updated.
+             */
+            Uid mUid;
+
             /**
              * The name of this process.
              */
@@ -8988,6 +9040,7 @@ public class BatteryStatsImpl extends BatteryStats {
             }
 
             public void addExcessiveCpu(long overTime, long usedTime) {
+                invalidateSummaryCacheLocked();
                 if (mExcessivePower == null) {
                     mExcessivePower = new ArrayList<ExcessivePower>();
                 }
@@ -9063,6 +9116,7 @@ public class BatteryStatsImpl extends BatteryStats {
 
             public void addCpuTimeLocked(int utime, int stime, boolean isRunning) {
                 if (isRunning) {
+                    invalidateSummaryCacheLocked();
                     mUserTime += utime;
                     mSystemTime += stime;
                 }
@@ -9070,22 +9124,32 @@ public class BatteryStatsImpl extends BatteryStats {
 
             @UnsupportedAppUsage
             public void addForegroundTimeLocked(long ttime) {
+                invalidateSummaryCacheLocked();
                 mForegroundTime += ttime;
             }
 
             @UnsupportedAppUsage
             public void incStartsLocked() {
+                invalidateSummaryCacheLocked();
                 mStarts++;
             }
 
             public void incNumCrashesLocked() {
+                invalidateSummaryCacheLocked();
                 mNumCrashes++;
             }
 
             public void incNumAnrsLocked() {
+                invalidateSummaryCacheLocked();
                 mNumAnrs++;
             }
 
+            private void invalidateSummaryCacheLocked() {
+                if (mUid != null) {
+                    mUid.invalidateSummaryCacheLocked();
+                }
+            }
+
             @Override
             public boolean isActive() {
                 return mActive;
@@ -9135,6 +9199,12 @@ public class BatteryStatsImpl extends BatteryStats {
              */
             protected BatteryStatsImpl mBsi;
 
+            /**
+             * The uid this package belongs to, if known, whose summary cache is dropped when
+             * the package or one of its services is updated.
+             */
+            Uid mUid;
+
             /**
              * Number of times wakeup alarms have occurred for this app.
              * On screen-off timebase starting in report v25.
@@ -9188,7 +9258,7 @@ public class BatteryStatsImpl extends BatteryStats {
                 mServiceStats.clear();
                 for (int m = 0; m < numServs; m++) {
                     String serviceName = in.readString();
-                    Uid.Pkg.Serv serv = new Serv(mBsi);
+                    Uid.Pkg.Serv serv = newServiceStatsLocked();
                     mServiceStats.put(serviceName, serv);
 
                     serv.readFromParcelLocked(in);
@@ -9218,6 +9288,9 @@ public class BatteryStatsImpl extends BatteryStats {
             }
 
             public void noteWakeupAlarmLocked(String tag) {
+                if (mUid != null) {
+                    mUid.invalidateSummaryCacheLocked();
+                }
                 Counter c = mWakeupAlarms.get(tag);
                 if (c == null) {
                     c = new Counter(mBsi.mOnBatteryScreenOffTimeBase);
@@ -9240,6 +9313,12 @@ public class BatteryStatsImpl extends BatteryStats {
                  */
                 protected BatteryStatsImpl mBsi;
 
+                /**
+                 * The uid this service belongs to, if known, whose summary cache is dropped
+                 * when the service is updated.
+                 */
+                Uid mUid;
+
                 /**
                  * The android package in which this service resides.
                  */
@@ -9354,6 +9433,7 @@ public class BatteryStatsImpl extends BatteryStats {
                 @UnsupportedAppUsage
                 public void startLaunchedLocked() {
                     if (!mLaunched) {
+                        invalidateSummaryCacheLocked();
                         mLaunches++;
                         mLaunchedSince = mBsi.getBatteryUptimeLocked();
                         mLaunched = true;
@@ -9363,6 +9443,7 @@ public class BatteryStatsImpl extends BatteryStats {
                 @UnsupportedAppUsage
                 public void stopLaunchedLocked() {
                     if (mLaunched) {
+                        invalidateSummaryCacheLocked();
                         long time = mBsi.getBatteryUptimeLocked() - mLaunchedSince;
                         if (time > 0) {
                             mLaunchedTime += time;
@@ -9376,6 +9457,7 @@ public class BatteryStatsImpl extends BatteryStats {
                 @UnsupportedAppUsage
                 public void startRunningLocked() {
                     if (!mRunning) {
+                        invalidateSummaryCacheLocked();
                         mStarts++;
                         mRunningSince = mBsi.getBatteryUptimeLocked();
                         mRunning = true;
@@ -9385,6 +9467,7 @@ public class BatteryStatsImpl extends BatteryStats {
                 @UnsupportedAppUsage
                 public void stopRunningLocked() {
                     if (mRunning) {
+                        invalidateSummaryCacheLocked();
                         long time = mBsi.getBatteryUptimeLocked() - mRunningSince;
                         if (time > 0) {
                             mStartTime += time;
@@ -9395,6 +9478,12 @@ public class BatteryStatsImpl extends BatteryStats {
                     }
                 }
 
+                private void invalidateSummaryCacheLocked() {
+                    if (mUid != null) {
+                        mUid.invalidateSummaryCacheLocked();
+                    }
+                }
+
                 @UnsupportedAppUsage
                 public BatteryStatsImpl getBatteryStats() {
                     return mBsi;
@@ -9417,7 +9506,9 @@ public class BatteryStatsImpl extends BatteryStats {
             }
 
             final Serv newServiceStatsLocked() {
-                return new Serv(mBsi);
+                final Serv serv = new Serv(mBsi);
+                serv.mUid = mUid;
+                return serv;
             }
         }
 
@@ -9429,6 +9520,7 @@ public class BatteryStatsImpl extends BatteryStats {
             Proc ps = mProcessStats.get(name);
             if (ps == null) {
                 ps = new Proc(mBsi, name);
+                ps.mUid = this;
                 mProcessStats.put(name, ps);
             }
 
@@ -9502,11 +9594,13 @@ public class BatteryStatsImpl extends BatteryStats {
         }
 
         public boolean updateOnBatteryBgTimeBase(long uptimeUs, long realtimeUs) {
+            invalidateSummaryCacheLocked();
             boolean on = mBsi.mOnBatteryTimeBase.isRunning() && isInBackground();
             return mOnBatteryBackgroundTimeBase.setRunning(on, uptimeUs, realtimeUs);
         }
 
         public boolean updateOnBatteryScreenOffBgTimeBase(long uptimeUs, long realtimeUs) {
+            invalidateSummaryCacheLocked();
             boolean on = mBsi.mOnBatteryScreenOffTimeBase.isRunning() && isInBackground();
             return mOnBatteryScreenOffBackgroundTimeBase.setRunning(on, uptimeUs, realtimeUs);
         }
@@ -9532,6 +9626,7 @@ public class BatteryStatsImpl extends BatteryStats {
             Pkg ps = mPackageStats.get(name);
             if (ps == null) {
                 ps = new Pkg(mBsi);
+                ps.mUid = this;
                 mPackageStats.put(name, ps);
             }
 
@@ -10326,7 +10421,12 @@ public class BatteryStatsImpl extends BatteryStats {
     @Override
     @UnsupportedAppUsage
     public boolean startIteratingHistoryLocked() {
-        mBatteryStatsHistory.startIteratingHistory();
+        return startIteratingHistoryLocked(-1);
+    }
+
+    @Override
+    public boolean startIteratingHistoryLocked(long startTime) {
+        mBatteryStatsHistory.startIteratingHistory(startTime);
         mReadOverflow = false;
         mIteratingHistory = true;
         mReadHistoryStrings = new String[mHistoryTagPool.size()];
@@ -10423,6 +10523,7 @@ public class BatteryStatsImpl extends BatteryStats {
 
     void initTimes(long uptime, long realtime) {
         mStartClockTime = System.currentTimeMillis();
+        invalidateSummaryCachesLocked();
         mOnBatteryTimeBase.init(uptime, realtime);
         mOnBatteryScreenOffTimeBase.init(uptime, realtime);
         mRealtime = 0;
@@ -10460,6 +10561,7 @@ public class BatteryStatsImpl extends BatteryStats {
         addHistoryRecordLocked(mSecRealtime, mSecUptime);
         mDischargeCurrentLevel = mDischargeUnplugLevel = mDischargePlugLevel
                 = mCurrentBatteryLevel = mHistoryCur.batteryLevel;
+        invalidateSummaryCachesLocked();
         mOnBatteryTimeBase.reset(uptime, realtime);
         mOnBatteryScreenOffTimeBase.reset(uptime, realtime);
         if ((mHistoryCur.states&HistoryItem.STATE_BATTERY_PLUGGED_FLAG) == 0) {
@@ -10878,6 +10980,7 @@ public class BatteryStatsImpl extends BatteryStats {
                     if (scanTimeSinceMarkMs > 0) {
                         // Set the new mark so that next time we get new data since this point.
                         uid.mWifiScanTimer.setMark(elapsedRealtimeMs);
+                        uid.invalidateSummaryCacheLocked();
 
                         long scanRxTimeSinceMarkMs = scanTimeSinceMarkMs;
                         long scanTxTimeSinceMarkMs = scanTimeSinceMarkMs;
@@ -10921,6 +11024,7 @@ public class BatteryStatsImpl extends BatteryStats {
                     if (wifiLockTimeSinceMarkMs > 0) {
                         // Set the new mark so that next time we get new data since this point.
                         uid.mFullWifiLockTimer.setMark(elapsedRealtimeMs);
+                        uid.invalidateSummaryCacheLocked();
 
                         final long myIdleTimeMs = (wifiLockTimeSinceMarkMs * idleTimeMs)
                                 / totalWifiLockTimeMs;
@@ -11320,6 +11424,7 @@ public class BatteryStatsImpl extends BatteryStats {
             if (scanTimeSinceMarkMs > 0) {
                 // Set the new mark so that next time we get new data since this point.
                 u.mBluetoothScanTimer.setMark(elapsedRealtimeMs);
+                u.invalidateSummaryCacheLocked();
 
                 long scanTimeRxSinceMarkMs = scanTimeSinceMarkMs;
                 long scanTimeTxSinceMarkMs = scanTimeSinceMarkMs;
@@ -11845,6 +11950,7 @@ public class BatteryStatsImpl extends BatteryStats {
                     Slog.d(TAG, sb.toString());
                 }
 
+                timer.mUid.invalidateSummaryCacheLocked();
                 timer.mUid.mUserCpuTime.addCountLocked(userTimeUs, onBattery);
                 timer.mUid.mSystemCpuTime.addCountLocked(systemTimeUs, onBattery);
                 if (updatedUids != null) {
@@ -11953,6 +12059,7 @@ public class BatteryStatsImpl extends BatteryStats {
         if (mWakeLockAllocationsUs != null) {
             for (int i = 0; i < numWakelocks; ++i) {
                 final Uid u = partialTimers.get(i).mUid;
+                u.invalidateSummaryCacheLocked();
                 if (u.mCpuClusterSpeedTimesUs == null ||
                         u.mCpuClusterSpeedTimesUs.length != numClusters) {
                     detachIfNotNull(u.mCpuClusterSpeedTimesUs);
@@ -12878,6 +12985,9 @@ public class BatteryStatsImpl extends BatteryStats {
         if (u == null) {
             u = new Uid(this, uid);
             mUidStats.put(uid, u);
+        } else {
+            // The caller is about to update the stats of the uid
+            u.invalidateSummaryCacheLocked();
         }
         return u;
     }
@@ -12888,6 +12998,9 @@ public class BatteryStatsImpl extends BatteryStats {
      */
     public Uid getAvailableUidStatsLocked(int uid) {
         Uid u = mUidStats.get(uid);
+        if (u != null) {
+            u.invalidateSummaryCacheLocked();
+        }
         return u;
     }
 
@@ -14211,320 +14324,357 @@ public class BatteryStatsImpl extends BatteryStats {
         for (int iu = 0; iu < NU; iu++) {
             out.writeInt(mUidStats.keyAt(iu));
             Uid u = mUidStats.valueAt(iu);
+            writeUidSummaryToParcelLocked(out, u, NOW_SYS, NOWREAL_SYS);
+        }
+    }
 
-            u.mOnBatteryBackgroundTimeBase.writeSummaryToParcel(out, NOW_SYS, NOWREAL_SYS);
-            u.mOnBatteryScreenOffBackgroundTimeBase.writeSummaryToParcel(out, NOW_SYS, NOWREAL_SYS);
+    /**
+     * Writes the summary of a uid. Other than its background time bases, the section of a uid
+     * without a process is kept and reused by the next summaries as long as the uid doesn't
+     * change, provided that it doesn't depend on the current time, i.e. that none of its timers
+     * is running on battery.
+     */
+    @VisibleForTesting
+    void writeUidSummaryToParcelLocked(Parcel out, Uid u, long NOW_SYS, long NOWREAL_SYS) {
+        u.mOnBatteryBackgroundTimeBase.writeSummaryToParcel(out, NOW_SYS, NOWREAL_SYS);
+        u.mOnBatteryScreenOffBackgroundTimeBase.writeSummaryToParcel(out, NOW_SYS, NOWREAL_SYS);
 
-            if (u.mWifiRunningTimer != null) {
-                out.writeInt(1);
-                u.mWifiRunningTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        if (u.mSummaryCache != null) {
+            out.appendFrom(u.mSummaryCache, 0, u.mSummaryCache.dataSize());
+            return;
+        }
+        if (u.mProcessState != ActivityManager.PROCESS_STATE_NONEXISTENT) {
+            writeUidSummarySectionLocked(out, u, NOW_SYS, NOWREAL_SYS);
+            return;
+        }
+        final Parcel section = Parcel.obtain();
+        final Parcel later = Parcel.obtain();
+        try {
+            writeUidSummarySectionLocked(section, u, NOW_SYS, NOWREAL_SYS);
+            writeUidSummarySectionLocked(later, u, NOW_SYS + SUMMARY_CACHE_CHECK_OFFSET_US,
+                    NOWREAL_SYS + SUMMARY_CACHE_CHECK_OFFSET_US);
+            out.appendFrom(section, 0, section.dataSize());
+            if (section.compareData(later) == 0) {
+                u.mSummaryCache = section;
             } else {
-                out.writeInt(0);
+                section.recycle();
             }
-            if (u.mFullWifiLockTimer != null) {
+        } finally {
+            later.recycle();
+        }
+    }
+
+    private void writeUidSummarySectionLocked(Parcel out, Uid u, long NOW_SYS,
+            long NOWREAL_SYS) {
+        if (u.mWifiRunningTimer != null) {
+            out.writeInt(1);
+            u.mWifiRunningTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mFullWifiLockTimer != null) {
+            out.writeInt(1);
+            u.mFullWifiLockTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mWifiScanTimer != null) {
+            out.writeInt(1);
+            u.mWifiScanTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        for (int i = 0; i < Uid.NUM_WIFI_BATCHED_SCAN_BINS; i++) {
+            if (u.mWifiBatchedScanTimer[i] != null) {
                 out.writeInt(1);
-                u.mFullWifiLockTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+                u.mWifiBatchedScanTimer[i].writeSummaryFromParcelLocked(out, NOWREAL_SYS);
             } else {
                 out.writeInt(0);
             }
-            if (u.mWifiScanTimer != null) {
+        }
+        if (u.mWifiMulticastTimer != null) {
+            out.writeInt(1);
+            u.mWifiMulticastTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mAudioTurnedOnTimer != null) {
+            out.writeInt(1);
+            u.mAudioTurnedOnTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mVideoTurnedOnTimer != null) {
+            out.writeInt(1);
+            u.mVideoTurnedOnTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mFlashlightTurnedOnTimer != null) {
+            out.writeInt(1);
+            u.mFlashlightTurnedOnTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mCameraTurnedOnTimer != null) {
+            out.writeInt(1);
+            u.mCameraTurnedOnTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mForegroundActivityTimer != null) {
+            out.writeInt(1);
+            u.mForegroundActivityTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mForegroundServiceTimer != null) {
+            out.writeInt(1);
+            u.mForegroundServiceTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mAggregatedPartialWakelockTimer != null) {
+            out.writeInt(1);
+            u.mAggregatedPartialWakelockTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mBluetoothScanTimer != null) {
+            out.writeInt(1);
+            u.mBluetoothScanTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mBluetoothUnoptimizedScanTimer != null) {
+            out.writeInt(1);
+            u.mBluetoothUnoptimizedScanTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mBluetoothScanResultCounter != null) {
+            out.writeInt(1);
+            u.mBluetoothScanResultCounter.writeSummaryFromParcelLocked(out);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mBluetoothScanResultBgCounter != null) {
+            out.writeInt(1);
+            u.mBluetoothScanResultBgCounter.writeSummaryFromParcelLocked(out);
+        } else {
+            out.writeInt(0);
+        }
+        for (int i = 0; i < Uid.NUM_PROCESS_STATE; i++) {
+            if (u.mProcessStateTimer[i] != null) {
                 out.writeInt(1);
-                u.mWifiScanTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+                u.mProcessStateTimer[i].writeSummaryFromParcelLocked(out, NOWREAL_SYS);
             } else {
                 out.writeInt(0);
             }
-            for (int i = 0; i < Uid.NUM_WIFI_BATCHED_SCAN_BINS; i++) {
-                if (u.mWifiBatchedScanTimer[i] != null) {
+        }
+        if (u.mVibratorOnTimer != null) {
+            out.writeInt(1);
+            u.mVibratorOnTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+
+        if (u.mUserActivityCounters == null) {
+            out.writeInt(0);
+        } else {
+            out.writeInt(1);
+            for (int i=0; i<Uid.NUM_USER_ACTIVITY_TYPES; i++) {
+                u.mUserActivityCounters[i].writeSummaryFromParcelLocked(out);
+            }
+        }
+
+        if (u.mNetworkByteActivityCounters == null) {
+            out.writeInt(0);
+        } else {
+            out.writeInt(1);
+            for (int i = 0; i < NUM_NETWORK_ACTIVITY_TYPES; i++) {
+                u.mNetworkByteActivityCounters[i].writeSummaryFromParcelLocked(out);
+                u.mNetworkPacketActivityCounters[i].writeSummaryFromParcelLocked(out);
+            }
+            u.mMobileRadioActiveTime.writeSummaryFromParcelLocked(out);
+            u.mMobileRadioActiveCount.writeSummaryFromParcelLocked(out);
+        }
+
+        u.mUserCpuTime.writeSummaryFromParcelLocked(out);
+        u.mSystemCpuTime.writeSummaryFromParcelLocked(out);
+
+        if (u.mCpuClusterSpeedTimesUs != null) {
+            out.writeInt(1);
+            out.writeInt(u.mCpuClusterSpeedTimesUs.length);
+            for (LongSamplingCounter[] cpuSpeeds : u.mCpuClusterSpeedTimesUs) {
+                if (cpuSpeeds != null) {
                     out.writeInt(1);
-                    u.mWifiBatchedScanTimer[i].writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+                    out.writeInt(cpuSpeeds.length);
+                    for (LongSamplingCounter c : cpuSpeeds) {
+                        if (c != null) {
+                            out.writeInt(1);
+                            c.writeSummaryFromParcelLocked(out);
+                        } else {
+                            out.writeInt(0);
+                        }
+                    }
                 } else {
                     out.writeInt(0);
                 }
             }
-            if (u.mWifiMulticastTimer != null) {
-                out.writeInt(1);
-                u.mWifiMulticastTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            } else {
-                out.writeInt(0);
-            }
-            if (u.mAudioTurnedOnTimer != null) {
-                out.writeInt(1);
-                u.mAudioTurnedOnTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            } else {
-                out.writeInt(0);
-            }
-            if (u.mVideoTurnedOnTimer != null) {
-                out.writeInt(1);
-                u.mVideoTurnedOnTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            } else {
-                out.writeInt(0);
-            }
-            if (u.mFlashlightTurnedOnTimer != null) {
-                out.writeInt(1);
-                u.mFlashlightTurnedOnTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            } else {
-                out.writeInt(0);
-            }
-            if (u.mCameraTurnedOnTimer != null) {
-                out.writeInt(1);
-                u.mCameraTurnedOnTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            } else {
-                out.writeInt(0);
-            }
-            if (u.mForegroundActivityTimer != null) {
-                out.writeInt(1);
-                u.mForegroundActivityTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            } else {
-                out.writeInt(0);
-            }
-            if (u.mForegroundServiceTimer != null) {
-                out.writeInt(1);
-                u.mForegroundServiceTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            } else {
-                out.writeInt(0);
-            }
-            if (u.mAggregatedPartialWakelockTimer != null) {
-                out.writeInt(1);
-                u.mAggregatedPartialWakelockTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            } else {
-                out.writeInt(0);
-            }
-            if (u.mBluetoothScanTimer != null) {
-                out.writeInt(1);
-                u.mBluetoothScanTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            } else {
-                out.writeInt(0);
+        } else {
+            out.writeInt(0);
+        }
+
+        LongSamplingCounterArray.writeSummaryToParcelLocked(out, u.mCpuFreqTimeMs);
+        LongSamplingCounterArray.writeSummaryToParcelLocked(out, u.mScreenOffCpuFreqTimeMs);
+
+        u.mCpuActiveTimeMs.writeSummaryFromParcelLocked(out);
+        u.mCpuClusterTimesMs.writeSummaryToParcelLocked(out);
+
+        if (u.mProcStateTimeMs != null) {
+            out.writeInt(u.mProcStateTimeMs.length);
+            for (LongSamplingCounterArray counters : u.mProcStateTimeMs) {
+                LongSamplingCounterArray.writeSummaryToParcelLocked(out, counters);
             }
-            if (u.mBluetoothUnoptimizedScanTimer != null) {
-                out.writeInt(1);
-                u.mBluetoothUnoptimizedScanTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            } else {
-                out.writeInt(0);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mProcStateScreenOffTimeMs != null) {
+            out.writeInt(u.mProcStateScreenOffTimeMs.length);
+            for (LongSamplingCounterArray counters : u.mProcStateScreenOffTimeMs) {
+                LongSamplingCounterArray.writeSummaryToParcelLocked(out, counters);
             }
-            if (u.mBluetoothScanResultCounter != null) {
+        } else {
+            out.writeInt(0);
+        }
+
+        if (u.mMobileRadioApWakeupCount != null) {
+            out.writeInt(1);
+            u.mMobileRadioApWakeupCount.writeSummaryFromParcelLocked(out);
+        } else {
+            out.writeInt(0);
+        }
+
+        if (u.mWifiRadioApWakeupCount != null) {
+            out.writeInt(1);
+            u.mWifiRadioApWakeupCount.writeSummaryFromParcelLocked(out);
+        } else {
+            out.writeInt(0);
+        }
+
+        final ArrayMap<String, Uid.Wakelock> wakeStats = u.mWakelockStats.getMap();
+        int NW = wakeStats.size();
+        out.writeInt(NW);
+        for (int iw=0; iw<NW; iw++) {
+            out.writeString(wakeStats.keyAt(iw));
+            Uid.Wakelock wl = wakeStats.valueAt(iw);
+            if (wl.mTimerFull != null) {
                 out.writeInt(1);
-                u.mBluetoothScanResultCounter.writeSummaryFromParcelLocked(out);
+                wl.mTimerFull.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
             } else {
                 out.writeInt(0);
             }
-            if (u.mBluetoothScanResultBgCounter != null) {
+            if (wl.mTimerPartial != null) {
                 out.writeInt(1);
-                u.mBluetoothScanResultBgCounter.writeSummaryFromParcelLocked(out);
+                wl.mTimerPartial.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
             } else {
                 out.writeInt(0);
             }
-            for (int i = 0; i < Uid.NUM_PROCESS_STATE; i++) {
-                if (u.mProcessStateTimer[i] != null) {
-                    out.writeInt(1);
-                    u.mProcessStateTimer[i].writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-                } else {
-                    out.writeInt(0);
-                }
-            }
-            if (u.mVibratorOnTimer != null) {
+            if (wl.mTimerWindow != null) {
                 out.writeInt(1);
-                u.mVibratorOnTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            } else {
-                out.writeInt(0);
-            }
-
-            if (u.mUserActivityCounters == null) {
-                out.writeInt(0);
+                wl.mTimerWindow.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
             } else {
-                out.writeInt(1);
-                for (int i=0; i<Uid.NUM_USER_ACTIVITY_TYPES; i++) {
-                    u.mUserActivityCounters[i].writeSummaryFromParcelLocked(out);
-                }
-            }
-
-            if (u.mNetworkByteActivityCounters == null) {
                 out.writeInt(0);
-            } else {
-                out.writeInt(1);
-                for (int i = 0; i < NUM_NETWORK_ACTIVITY_TYPES; i++) {
-                    u.mNetworkByteActivityCounters[i].writeSummaryFromParcelLocked(out);
-                    u.mNetworkPacketActivityCounters[i].writeSummaryFromParcelLocked(out);
-                }
-                u.mMobileRadioActiveTime.writeSummaryFromParcelLocked(out);
-                u.mMobileRadioActiveCount.writeSummaryFromParcelLocked(out);
             }
-
-            u.mUserCpuTime.writeSummaryFromParcelLocked(out);
-            u.mSystemCpuTime.writeSummaryFromParcelLocked(out);
-
-            if (u.mCpuClusterSpeedTimesUs != null) {
+            if (wl.mTimerDraw != null) {
                 out.writeInt(1);
-                out.writeInt(u.mCpuClusterSpeedTimesUs.length);
-                for (LongSamplingCounter[] cpuSpeeds : u.mCpuClusterSpeedTimesUs) {
-                    if (cpuSpeeds != null) {
-                        out.writeInt(1);
-                        out.writeInt(cpuSpeeds.length);
-                        for (LongSamplingCounter c : cpuSpeeds) {
-                            if (c != null) {
-                                out.writeInt(1);
-                                c.writeSummaryFromParcelLocked(out);
-                            } else {
-                                out.writeInt(0);
-                            }
-                        }
-                    } else {
-                        out.writeInt(0);
-                    }
-                }
+                wl.mTimerDraw.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
             } else {
                 out.writeInt(0);
             }
+        }
 
-            LongSamplingCounterArray.writeSummaryToParcelLocked(out, u.mCpuFreqTimeMs);
-            LongSamplingCounterArray.writeSummaryToParcelLocked(out, u.mScreenOffCpuFreqTimeMs);
+        final ArrayMap<String, DualTimer> syncStats = u.mSyncStats.getMap();
+        int NS = syncStats.size();
+        out.writeInt(NS);
+        for (int is=0; is<NS; is++) {
+            out.writeString(syncStats.keyAt(is));
+            syncStats.valueAt(is).writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        }
 
-            u.mCpuActiveTimeMs.writeSummaryFromParcelLocked(out);
-            u.mCpuClusterTimesMs.writeSummaryToParcelLocked(out);
+        final ArrayMap<String, DualTimer> jobStats = u.mJobStats.getMap();
+        int NJ = jobStats.size();
+        out.writeInt(NJ);
+        for (int ij=0; ij<NJ; ij++) {
+            out.writeString(jobStats.keyAt(ij));
+            jobStats.valueAt(ij).writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        }
 
-            if (u.mProcStateTimeMs != null) {
-                out.writeInt(u.mProcStateTimeMs.length);
-                for (LongSamplingCounterArray counters : u.mProcStateTimeMs) {
-                    LongSamplingCounterArray.writeSummaryToParcelLocked(out, counters);
-                }
-            } else {
-                out.writeInt(0);
-            }
-            if (u.mProcStateScreenOffTimeMs != null) {
-                out.writeInt(u.mProcStateScreenOffTimeMs.length);
-                for (LongSamplingCounterArray counters : u.mProcStateScreenOffTimeMs) {
-                    LongSamplingCounterArray.writeSummaryToParcelLocked(out, counters);
-                }
-            } else {
-                out.writeInt(0);
-            }
+        u.writeJobCompletionsToParcelLocked(out);
 
-            if (u.mMobileRadioApWakeupCount != null) {
+        u.mJobsDeferredEventCount.writeSummaryFromParcelLocked(out);
+        u.mJobsDeferredCount.writeSummaryFromParcelLocked(out);
+        u.mJobsFreshnessTimeMs.writeSummaryFromParcelLocked(out);
+        for (int i = 0; i < JOB_FRESHNESS_BUCKETS.length; i++) {
+            if (u.mJobsFreshnessBuckets[i] != null) {
                 out.writeInt(1);
-                u.mMobileRadioApWakeupCount.writeSummaryFromParcelLocked(out);
+                u.mJobsFreshnessBuckets[i].writeSummaryFromParcelLocked(out);
             } else {
                 out.writeInt(0);
             }
+        }
 
-            if (u.mWifiRadioApWakeupCount != null) {
+        int NSE = u.mSensorStats.size();
+        out.writeInt(NSE);
+        for (int ise=0; ise<NSE; ise++) {
+            out.writeInt(u.mSensorStats.keyAt(ise));
+            Uid.Sensor se = u.mSensorStats.valueAt(ise);
+            if (se.mTimer != null) {
                 out.writeInt(1);
-                u.mWifiRadioApWakeupCount.writeSummaryFromParcelLocked(out);
+                se.mTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
             } else {
                 out.writeInt(0);
             }
+        }
 
-            final ArrayMap<String, Uid.Wakelock> wakeStats = u.mWakelockStats.getMap();
-            int NW = wakeStats.size();
-            out.writeInt(NW);
-            for (int iw=0; iw<NW; iw++) {
-                out.writeString(wakeStats.keyAt(iw));
-                Uid.Wakelock wl = wakeStats.valueAt(iw);
-                if (wl.mTimerFull != null) {
-                    out.writeInt(1);
-                    wl.mTimerFull.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-                } else {
-                    out.writeInt(0);
-                }
-                if (wl.mTimerPartial != null) {
-                    out.writeInt(1);
-                    wl.mTimerPartial.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-                } else {
-                    out.writeInt(0);
-                }
-                if (wl.mTimerWindow != null) {
-                    out.writeInt(1);
-                    wl.mTimerWindow.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-                } else {
-                    out.writeInt(0);
-                }
-                if (wl.mTimerDraw != null) {
-                    out.writeInt(1);
-                    wl.mTimerDraw.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-                } else {
-                    out.writeInt(0);
-                }
-            }
-
-            final ArrayMap<String, DualTimer> syncStats = u.mSyncStats.getMap();
-            int NS = syncStats.size();
-            out.writeInt(NS);
-            for (int is=0; is<NS; is++) {
-                out.writeString(syncStats.keyAt(is));
-                syncStats.valueAt(is).writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            }
-
-            final ArrayMap<String, DualTimer> jobStats = u.mJobStats.getMap();
-            int NJ = jobStats.size();
-            out.writeInt(NJ);
-            for (int ij=0; ij<NJ; ij++) {
-                out.writeString(jobStats.keyAt(ij));
-                jobStats.valueAt(ij).writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            }
-
-            u.writeJobCompletionsToParcelLocked(out);
-
-            u.mJobsDeferredEventCount.writeSummaryFromParcelLocked(out);
-            u.mJobsDeferredCount.writeSummaryFromParcelLocked(out);
-            u.mJobsFreshnessTimeMs.writeSummaryFromParcelLocked(out);
-            for (int i = 0; i < JOB_FRESHNESS_BUCKETS.length; i++) {
-                if (u.mJobsFreshnessBuckets[i] != null) {
-                    out.writeInt(1);
-                    u.mJobsFreshnessBuckets[i].writeSummaryFromParcelLocked(out);
-                } else {
-                    out.writeInt(0);
-                }
-            }
-
-            int NSE = u.mSensorStats.size();
-            out.writeInt(NSE);
-            for (int ise=0; ise<NSE; ise++) {
-                out.writeInt(u.mSensorStats.keyAt(ise));
-                Uid.Sensor se = u.mSensorStats.valueAt(ise);
-                if (se.mTimer != null) {
-                    out.writeInt(1);
-                    se.mTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-                } else {
-                    out.writeInt(0);
-                }
-            }
+        int NP = u.mProcessStats.size();
+        out.writeInt(NP);
+        for (int ip=0; ip<NP; ip++) {
+            out.writeString(u.mProcessStats.keyAt(ip));
+            Uid.Proc ps = u.mProcessStats.valueAt(ip);
+            out.writeLong(ps.mUserTime);
+            out.writeLong(ps.mSystemTime);
+            out.writeLong(ps.mForegroundTime);
+            out.writeInt(ps.mStarts);
+            out.writeInt(ps.mNumCrashes);
+            out.writeInt(ps.mNumAnrs);
+            ps.writeExcessivePowerToParcelLocked(out);
+        }
 
-            int NP = u.mProcessStats.size();
-            out.writeInt(NP);
-            for (int ip=0; ip<NP; ip++) {
-                out.writeString(u.mProcessStats.keyAt(ip));
-                Uid.Proc ps = u.mProcessStats.valueAt(ip);
-                out.writeLong(ps.mUserTime);
-                out.writeLong(ps.mSystemTime);
-                out.writeLong(ps.mForegroundTime);
-                out.writeInt(ps.mStarts);
-                out.writeInt(ps.mNumCrashes);
-                out.writeInt(ps.mNumAnrs);
-                ps.writeExcessivePowerToParcelLocked(out);
-            }
-
-            NP = u.mPackageStats.size();
-            out.writeInt(NP);
-            if (NP > 0) {
-                for (Map.Entry<String, BatteryStatsImpl.Uid.Pkg> ent
-                    : u.mPackageStats.entrySet()) {
-                    out.writeString(ent.getKey());
-                    Uid.Pkg ps = ent.getValue();
-                    final int NWA = ps.mWakeupAlarms.size();
-                    out.writeInt(NWA);
-                    for (int iwa=0; iwa<NWA; iwa++) {
-                        out.writeString(ps.mWakeupAlarms.keyAt(iwa));
-                        ps.mWakeupAlarms.valueAt(iwa).writeSummaryFromParcelLocked(out);
-                    }
-                    NS = ps.mServiceStats.size();
-                    out.writeInt(NS);
-                    for (int is=0; is<NS; is++) {
-                        out.writeString(ps.mServiceStats.keyAt(is));
-                        BatteryStatsImpl.Uid.Pkg.Serv ss = ps.mServiceStats.valueAt(is);
-                        long time = ss.getStartTimeToNowLocked(
-                                mOnBatteryTimeBase.getUptime(NOW_SYS));
-                        out.writeLong(time);
-                        out.writeInt(ss.mStarts);
-                        out.writeInt(ss.mLaunches);
-                    }
+        NP = u.mPackageStats.size();
+        out.writeInt(NP);
+        if (NP > 0) {
+            for (Map.Entry<String, BatteryStatsImpl.Uid.Pkg> ent
+                : u.mPackageStats.entrySet()) {
+                out.writeString(ent.getKey());
+                Uid.Pkg ps = ent.getValue();
+                final int NWA = ps.mWakeupAlarms.size();
+                out.writeInt(NWA);
+                for (int iwa=0; iwa<NWA; iwa++) {
+                    out.writeString(ps.mWakeupAlarms.keyAt(iwa));
+                    ps.mWakeupAlarms.valueAt(iwa).writeSummaryFromParcelLocked(out);
+                }
+                NS = ps.mServiceStats.size();
+                out.writeInt(NS);
+                for (int is=0; is<NS; is++) {
+                    out.writeString(ps.mServiceStats.keyAt(is));
+                    BatteryStatsImpl.Uid.Pkg.Serv ss = ps.mServiceStats.valueAt(is);
+                    long time = ss.getStartTimeToNowLocked(
+                            mOnBatteryTimeBase.getUptime(NOW_SYS));
+                    out.writeLong(time);
+                    out.writeInt(ss.mStarts);
+                    out.writeInt(ss.mLaunches);
                 }
             }
         }
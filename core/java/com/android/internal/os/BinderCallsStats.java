@@ -39,9 +39,8 @@ import java.util.Collection;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.Random;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.ToDoubleFunction;
 
 /**
@@ -54,13 +53,18 @@ public class BinderCallsStats implements BinderInternal.Observer {
     public static final int PERIODIC_SAMPLING_INTERVAL_DEFAULT = 1000;
     public static final boolean DEFAULT_TRACK_SCREEN_INTERACTIVE = false;
     public static final boolean DEFAULT_TRACK_DIRECT_CALLING_UID = true;
+    public static final boolean DEFAULT_LATENCY_HISTOGRAMS = false;
     public static final int MAX_BINDER_CALL_STATS_COUNT_DEFAULT = 1500;
     private static final String DEBUG_ENTRY_PREFIX = "__DEBUG_";
 
     private static class OverflowBinder extends Binder {}
 
     private static final String TAG = "BinderCallsStats";
+    // Calls are recorded into one of SHARD_COUNT shards picked by thread, so that binder threads
+    // rarely contend for the same lock. Must be a power of 2.
+    private static final int SHARD_COUNT = 8;
     private static final int CALL_SESSIONS_POOL_SIZE = 100;
+    private static final int SHARD_CALL_SESSIONS_POOL_SIZE = CALL_SESSIONS_POOL_SIZE / SHARD_COUNT;
     private static final int MAX_EXCEPTION_COUNT_SIZE = 50;
     private static final String EXCEPTION_COUNT_OVERFLOW_NAME = "overflow";
     // Default values for overflow entry. The work source uid does not use a default value in order
@@ -75,20 +79,23 @@ public class BinderCallsStats implements BinderInternal.Observer {
     // Sampling period to control how often to track CPU usage. 1 means all calls, 100 means ~1 out
     // of 100 requests.
     private int mPeriodicSamplingInterval = PERIODIC_SAMPLING_INTERVAL_DEFAULT;
+    // Maximum number of call stats tracked, across all shards.
     private int mMaxBinderCallStatsCount = MAX_BINDER_CALL_STATS_COUNT_DEFAULT;
-    @GuardedBy("mLock")
-    private final SparseArray<UidEntry> mUidEntries = new SparseArray<>();
+    // Number of call stats tracked, across all shards. Shards check it without a common lock, so
+    // concurrent calls can overshoot the maximum by at most one call stat per shard.
+    private final AtomicInteger mCallStatsCount = new AtomicInteger();
+    private final Shard[] mShards = new Shard[SHARD_COUNT];
     @GuardedBy("mLock")
     private final ArrayMap<String, Integer> mExceptionCounts = new ArrayMap<>();
-    private final Queue<CallSession> mCallSessionsPool = new ConcurrentLinkedQueue<>();
     private final Object mLock = new Object();
     private final Random mRandom;
     private long mStartCurrentTime = System.currentTimeMillis();
     private long mStartElapsedTime = SystemClock.elapsedRealtime();
-    private long mCallStatsCount = 0;
     private boolean mAddDebugEntries = false;
     private boolean mTrackDirectCallingUid = DEFAULT_TRACK_DIRECT_CALLING_UID;
     private boolean mTrackScreenInteractive = DEFAULT_TRACK_SCREEN_INTERACTIVE;
+    // Whether to record a latency histogram per call stat, which costs about 1KB each.
+    private boolean mLatencyHistograms = DEFAULT_LATENCY_HISTOGRAMS;
 
     private CachedDeviceState.Readonly mDeviceState;
     private CachedDeviceState.TimeInStateStopwatch mBatteryStopwatch;
@@ -100,8 +107,39 @@ public class BinderCallsStats implements BinderInternal.Observer {
         }
     }
 
+    /**
+     * The calls recorded by the threads mapped to a shard. The shards are only merged when the
+     * stats are read, so recording a call never allocates once its call stat exists and only
+     * contends with the threads mapped to the same shard.
+     */
+    private static final class Shard {
+        @GuardedBy("this")
+        final SparseArray<UidEntry> uidEntries = new SparseArray<>();
+        @GuardedBy("this")
+        final CallSession[] callSessionsPool = new CallSession[SHARD_CALL_SESSIONS_POOL_SIZE];
+        @GuardedBy("this")
+        int callSessionsPoolSize;
+
+        @GuardedBy("this")
+        UidEntry getUidEntry(int uid) {
+            UidEntry uidEntry = uidEntries.get(uid);
+            if (uidEntry == null) {
+                uidEntry = new UidEntry(uid);
+                uidEntries.put(uid, uidEntry);
+            }
+            return uidEntry;
+        }
+    }
+
     public BinderCallsStats(Injector injector) {
         this.mRandom = injector.getRandomGenerator();
+        for (int i = 0; i < SHARD_COUNT; i++) {
+            mShards[i] = new Shard();
+        }
+    }
+
+    private Shard getShard() {
+        return mShards[(int) Thread.currentThread().getId() & (SHARD_COUNT - 1)];
     }
 
     public void setDeviceState(@NonNull CachedDeviceState.Readonly deviceState) {
@@ -119,7 +157,7 @@ public class BinderCallsStats implements BinderInternal.Observer {
             return null;
         }
 
-        final CallSession s = obtainCallSession();
+        final CallSession s = obtainCallSession(getShard());
         s.binderClass = binder.getClass();
         s.transactionCode = code;
         s.exceptionThrown = false;
@@ -132,9 +170,15 @@ public class BinderCallsStats implements BinderInternal.Observer {
         return s;
     }
 
-    private CallSession obtainCallSession() {
-        CallSession s = mCallSessionsPool.poll();
-        return s == null ? new CallSession() : s;
+    private CallSession obtainCallSession(Shard shard) {
+        synchronized (shard) {
+            if (shard.callSessionsPoolSize > 0) {
+                final CallSession s = shard.callSessionsPool[--shard.callSessionsPoolSize];
+                shard.callSessionsPool[shard.callSessionsPoolSize] = null;
+                return s;
+            }
+        }
+        return new CallSession();
     }
 
     @Override
@@ -144,14 +188,18 @@ public class BinderCallsStats implements BinderInternal.Observer {
             return;
         }
 
-        processCallEnded(s, parcelRequestSize, parcelReplySize, workSourceUid);
+        final Shard shard = getShard();
+        synchronized (shard) {
+            processCallEndedLocked(shard, s, parcelRequestSize, parcelReplySize, workSourceUid);
 
-        if (mCallSessionsPool.size() < CALL_SESSIONS_POOL_SIZE) {
-            mCallSessionsPool.add(s);
+            if (shard.callSessionsPoolSize < SHARD_CALL_SESSIONS_POOL_SIZE) {
+                shard.callSessionsPool[shard.callSessionsPoolSize++] = s;
+            }
         }
     }
 
-    private void processCallEnded(CallSession s,
+    @GuardedBy("shard")
+    private void processCallEndedLocked(Shard shard, CallSession s,
             int parcelRequestSize, int parcelReplySize, int workSourceUid) {
         // Non-negative time signals we need to record data for this call.
         final boolean recordCall = s.cpuTimeStarted >= 0;
@@ -171,62 +219,79 @@ public class BinderCallsStats implements BinderInternal.Observer {
                 ? getCallingUid()
                 : OVERFLOW_DIRECT_CALLING_UID;
 
-        synchronized (mLock) {
-            // This was already checked in #callStart but check again while synchronized.
-            if (mDeviceState == null || mDeviceState.isCharging()) {
-                return;
-            }
+        // This was already checked in #callStart but check again while synchronized.
+        if (mDeviceState == null || mDeviceState.isCharging()) {
+            return;
+        }
 
-            final UidEntry uidEntry = getUidEntry(workSourceUid);
-            uidEntry.callCount++;
+        final UidEntry uidEntry = shard.getUidEntry(workSourceUid);
+        uidEntry.callCount++;
 
-            if (recordCall) {
-                uidEntry.cpuTimeMicros += duration;
-                uidEntry.recordedCallCount++;
+        if (recordCall) {
+            uidEntry.cpuTimeMicros += duration;
+            uidEntry.recordedCallCount++;
+
+            final CallStat callStat = uidEntry.getOrCreate(
+                    callingUid, s.binderClass, s.transactionCode,
+                    screenInteractive,
+                    mCallStatsCount.get() >= mMaxBinderCallStatsCount);
+            final boolean isNewCallStat = callStat.callCount == 0;
+            if (isNewCallStat) {
+                mCallStatsCount.incrementAndGet();
+            }
 
-                final CallStat callStat = uidEntry.getOrCreate(
-                        callingUid, s.binderClass, s.transactionCode,
-                        screenInteractive,
-                        mCallStatsCount >= mMaxBinderCallStatsCount);
-                final boolean isNewCallStat = callStat.callCount == 0;
-                if (isNewCallStat) {
-                    mCallStatsCount++;
+            callStat.callCount++;
+            callStat.recordedCallCount++;
+            callStat.cpuTimeMicros += duration;
+            callStat.maxCpuTimeMicros = Math.max(callStat.maxCpuTimeMicros, duration);
+            callStat.latencyMicros += latencyDuration;
+            callStat.maxLatencyMicros =
+                    Math.max(callStat.maxLatencyMicros, latencyDuration);
+            if (mLatencyHistograms) {
+                if (callStat.latencyHistogram == null) {
+                    callStat.latencyHistogram = new LatencyHistogram();
                 }
-
+                callStat.latencyHistogram.record(latencyDuration);
+            }
+            if (mDetailedTracking) {
+                callStat.exceptionCount += s.exceptionThrown ? 1 : 0;
+                callStat.maxRequestSizeBytes =
+                        Math.max(callStat.maxRequestSizeBytes, parcelRequestSize);
+                callStat.maxReplySizeBytes =
+                        Math.max(callStat.maxReplySizeBytes, parcelReplySize);
+            }
+        } else {
+            // Only record the total call count if we already track data for this key.
+            // It helps to keep the memory usage down when sampling is enabled.
+            final CallStat callStat = uidEntry.get(
+                    callingUid, s.binderClass, s.transactionCode,
+                    screenInteractive);
+            if (callStat != null) {
                 callStat.callCount++;
-                callStat.recordedCallCount++;
-                callStat.cpuTimeMicros += duration;
-                callStat.maxCpuTimeMicros = Math.max(callStat.maxCpuTimeMicros, duration);
-                callStat.latencyMicros += latencyDuration;
-                callStat.maxLatencyMicros =
-                        Math.max(callStat.maxLatencyMicros, latencyDuration);
-                if (mDetailedTracking) {
-                    callStat.exceptionCount += s.exceptionThrown ? 1 : 0;
-                    callStat.maxRequestSizeBytes =
-                            Math.max(callStat.maxRequestSizeBytes, parcelRequestSize);
-                    callStat.maxReplySizeBytes =
-                            Math.max(callStat.maxReplySizeBytes, parcelReplySize);
-                }
-            } else {
-                // Only record the total call count if we already track data for this key.
-                // It helps to keep the memory usage down when sampling is enabled.
-                final CallStat callStat = uidEntry.get(
-                        callingUid, s.binderClass, s.transactionCode,
-                        screenInteractive);
-                if (callStat != null) {
-                    callStat.callCount++;
-                }
             }
         }
     }
 
-    private UidEntry getUidEntry(int uid) {
-        UidEntry uidEntry = mUidEntries.get(uid);
-        if (uidEntry == null) {
-            uidEntry = new UidEntry(uid);
-            mUidEntries.put(uid, uidEntry);
+    /**
+     * Merges the entries of all the shards into new entries.
+     */
+    private SparseArray<UidEntry> mergeShards() {
+        final SparseArray<UidEntry> merged = new SparseArray<>();
+        for (Shard shard : mShards) {
+            synchronized (shard) {
+                final int uidEntriesSize = shard.uidEntries.size();
+                for (int i = 0; i < uidEntriesSize; i++) {
+                    final UidEntry entry = shard.uidEntries.valueAt(i);
+                    UidEntry mergedEntry = merged.get(entry.workSourceUid);
+                    if (mergedEntry == null) {
+                        mergedEntry = new UidEntry(entry.workSourceUid);
+                        merged.put(entry.workSourceUid, mergedEntry);
+                    }
+                    mergedEntry.add(entry);
+                }
+            }
         }
-        return uidEntry;
+        return merged;
     }
 
     @Override
@@ -283,29 +348,29 @@ public class BinderCallsStats implements BinderInternal.Observer {
         }
 
         ArrayList<ExportedCallStat> resultCallStats = new ArrayList<>();
-        synchronized (mLock) {
-            final int uidEntriesSize = mUidEntries.size();
-            for (int entryIdx = 0; entryIdx < uidEntriesSize; entryIdx++) {
-                final UidEntry entry = mUidEntries.valueAt(entryIdx);
-                for (CallStat stat : entry.getCallStatsList()) {
-                    ExportedCallStat exported = new ExportedCallStat();
-                    exported.workSourceUid = entry.workSourceUid;
-                    exported.callingUid = stat.callingUid;
-                    exported.className = stat.binderClass.getName();
-                    exported.binderClass = stat.binderClass;
-                    exported.transactionCode = stat.transactionCode;
-                    exported.screenInteractive = stat.screenInteractive;
-                    exported.cpuTimeMicros = stat.cpuTimeMicros;
-                    exported.maxCpuTimeMicros = stat.maxCpuTimeMicros;
-                    exported.latencyMicros = stat.latencyMicros;
-                    exported.maxLatencyMicros = stat.maxLatencyMicros;
-                    exported.recordedCallCount = stat.recordedCallCount;
-                    exported.callCount = stat.callCount;
-                    exported.maxRequestSizeBytes = stat.maxRequestSizeBytes;
-                    exported.maxReplySizeBytes = stat.maxReplySizeBytes;
-                    exported.exceptionCount = stat.exceptionCount;
-                    resultCallStats.add(exported);
-                }
+        final SparseArray<UidEntry> uidEntries = mergeShards();
+        final int uidEntriesSize = uidEntries.size();
+        for (int entryIdx = 0; entryIdx < uidEntriesSize; entryIdx++) {
+            final UidEntry entry = uidEntries.valueAt(entryIdx);
+            for (CallStat stat : entry.getCallStatsList()) {
+                ExportedCallStat exported = new ExportedCallStat();
+                exported.workSourceUid = entry.workSourceUid;
+                exported.callingUid = stat.callingUid;
+                exported.className = stat.binderClass.getName();
+                exported.binderClass = stat.binderClass;
+                exported.transactionCode = stat.transactionCode;
+                exported.screenInteractive = stat.screenInteractive;
+                exported.cpuTimeMicros = stat.cpuTimeMicros;
+                exported.maxCpuTimeMicros = stat.maxCpuTimeMicros;
+                exported.latencyMicros = stat.latencyMicros;
+                exported.maxLatencyMicros = stat.maxLatencyMicros;
+                exported.recordedCallCount = stat.recordedCallCount;
+                exported.callCount = stat.callCount;
+                exported.maxRequestSizeBytes = stat.maxRequestSizeBytes;
+                exported.maxReplySizeBytes = stat.maxReplySizeBytes;
+                exported.exceptionCount = stat.exceptionCount;
+                exported.latencyHistogram = stat.latencyHistogram;
+                resultCallStats.add(exported);
             }
         }
 
@@ -388,9 +453,10 @@ public class BinderCallsStats implements BinderInternal.Observer {
         pw.println("Sampling interval period: " + mPeriodicSamplingInterval);
         final List<UidEntry> entries = new ArrayList<>();
 
-        final int uidEntriesSize = mUidEntries.size();
+        final SparseArray<UidEntry> uidEntries = mergeShards();
+        final int uidEntriesSize = uidEntries.size();
         for (int i = 0; i < uidEntriesSize; i++) {
-            UidEntry e = mUidEntries.valueAt(i);
+            UidEntry e = uidEntries.valueAt(i);
             entries.add(e);
             totalCpuTime += e.cpuTimeMicros;
             totalRecordedCallsCount += e.recordedCallCount;
@@ -433,6 +499,30 @@ public class BinderCallsStats implements BinderInternal.Observer {
             pw.println(sb);
         }
         pw.println();
+        if (mLatencyHistograms) {
+            pw.println("Per-UID latency percentiles (package/uid, worksource, call_desc, "
+                    + "screen_interactive, recorded_call_count, p50_latency_micros, "
+                    + "p99_latency_micros, p999_latency_micros):");
+            for (ExportedCallStat e : exportedCallStats) {
+                if (e.latencyHistogram == null) {
+                    continue;
+                }
+                sb.setLength(0);
+                sb.append("    ")
+                        .append(packageMap.mapUid(e.callingUid))
+                        .append(',')
+                        .append(packageMap.mapUid(e.workSourceUid))
+                        .append(',').append(e.className)
+                        .append('#').append(e.methodName)
+                        .append(',').append(e.screenInteractive)
+                        .append(',').append(e.latencyHistogram.getCount())
+                        .append(',').append(e.latencyHistogram.getValueAtPercentile(50))
+                        .append(',').append(e.latencyHistogram.getValueAtPercentile(99))
+                        .append(',').append(e.latencyHistogram.getValueAtPercentile(99.9));
+                pw.println(sb);
+            }
+            pw.println();
+        }
         pw.println("Per-UID Summary " + datasetSizeDesc
                 + "(cpu_time, % of total cpu_time, recorded_call_count, call_count, package/uid):");
         final List<UidEntry> summaryEntries = verbose ? entries
@@ -518,12 +608,24 @@ public class BinderCallsStats implements BinderInternal.Observer {
         }
     }
 
+    /**
+     * Whether to record a histogram of the latencies of each call.
+     */
+    public void setLatencyHistograms(boolean enabled) {
+        synchronized (mLock) {
+            if (enabled != mLatencyHistograms) {
+                mLatencyHistograms = enabled;
+                reset();
+            }
+        }
+    }
+
     public void setAddDebugEntries(boolean addDebugEntries) {
         mAddDebugEntries = addDebugEntries;
     }
 
     /**
-     * Sets the maximum number of items to track.
+     * Sets the maximum number of items to track, per shard.
      */
     public void setMaxBinderCallStats(int maxKeys) {
         if (maxKeys <= 0) {
@@ -557,8 +659,12 @@ public class BinderCallsStats implements BinderInternal.Observer {
 
     public void reset() {
         synchronized (mLock) {
-            mCallStatsCount = 0;
-            mUidEntries.clear();
+            for (Shard shard : mShards) {
+                synchronized (shard) {
+                    shard.uidEntries.clear();
+                }
+            }
+            mCallStatsCount.set(0);
             mExceptionCounts.clear();
             mStartCurrentTime = System.currentTimeMillis();
             mStartElapsedTime = SystemClock.elapsedRealtime();
@@ -586,6 +692,9 @@ public class BinderCallsStats implements BinderInternal.Observer {
         public long maxRequestSizeBytes;
         public long maxReplySizeBytes;
         public long exceptionCount;
+        // Only set if latency histograms are enabled.
+        @Nullable
+        public LatencyHistogram latencyHistogram;
 
         // Used internally.
         Class<? extends Binder> binderClass;
@@ -620,6 +729,9 @@ public class BinderCallsStats implements BinderInternal.Observer {
         public long maxRequestSizeBytes;
         public long maxReplySizeBytes;
         public long exceptionCount;
+        // Latencies of the recorded calls, only set if latency histograms are enabled.
+        @Nullable
+        public LatencyHistogram latencyHistogram;
 
         CallStat(int callingUid, Class<? extends Binder> binderClass, int transactionCode,
                 boolean screenInteractive) {
@@ -628,6 +740,25 @@ public class BinderCallsStats implements BinderInternal.Observer {
             this.transactionCode = transactionCode;
             this.screenInteractive = screenInteractive;
         }
+
+        void add(CallStat other) {
+            recordedCallCount += other.recordedCallCount;
+            callCount += other.callCount;
+            cpuTimeMicros += other.cpuTimeMicros;
+            maxCpuTimeMicros = Math.max(maxCpuTimeMicros, other.maxCpuTimeMicros);
+            latencyMicros += other.latencyMicros;
+            maxLatencyMicros = Math.max(maxLatencyMicros, other.maxLatencyMicros);
+            maxRequestSizeBytes = Math.max(maxRequestSizeBytes, other.maxRequestSizeBytes);
+            maxReplySizeBytes = Math.max(maxReplySizeBytes, other.maxReplySizeBytes);
+            exceptionCount += other.exceptionCount;
+            if (other.latencyHistogram != null) {
+                if (latencyHistogram == null) {
+                    latencyHistogram = new LatencyHistogram(other.latencyHistogram);
+                } else {
+                    latencyHistogram.add(other.latencyHistogram);
+                }
+            }
+        }
     }
 
     /** Key used to store CallStat object in a Map. */
@@ -725,6 +856,16 @@ public class BinderCallsStats implements BinderInternal.Observer {
             return mapCallStat;
         }
 
+        void add(UidEntry other) {
+            recordedCallCount += other.recordedCallCount;
+            callCount += other.callCount;
+            cpuTimeMicros += other.cpuTimeMicros;
+            for (CallStat stat : other.getCallStatsList()) {
+                getOrCreate(stat.callingUid, stat.binderClass, stat.transactionCode,
+                        stat.screenInteractive, false).add(stat);
+            }
+        }
+
         /**
          * Returns list of calls sorted by CPU time
          */
@@ -757,9 +898,12 @@ public class BinderCallsStats implements BinderInternal.Observer {
         }
     }
 
+    /**
+     * Returns a snapshot of the entries of all the shards, merged.
+     */
     @VisibleForTesting
     public SparseArray<UidEntry> getUidEntries() {
-        return mUidEntries;
+        return mergeShards();
     }
 
     @VisibleForTesting
@@ -0,0 +1,399 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import android.os.Trace;
+import android.util.ArrayMap;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Loads and initializes the classes preloaded by the zygote, guided by an optional boot profile.
+ *
+ * <p>The profile is a text file whose first line is {@code fingerprint <build fingerprint>},
+ * followed by one class per line, in the form
+ * {@code <class name> <init cost in us> <boots since last used> [<group>]}. Lines starting with
+ * '#' are comments. A profile recorded on another build is ignored. Classes used by no app for at
+ * least {@code maxUnusedBoots} boots are skipped. The classes of each group are initialized in
+ * order on a single thread, and the groups on up to {@code maxThreads} threads, the most
+ * expensive groups first, so the profile must only group together classes which don't depend on
+ * the classes of another group during their static initialization. The other classes are
+ * initialized in order on the calling thread once all the groups are done.
+ *
+ * <p>A profile breaking that rule can't be trusted, but mustn't stop the zygote from starting:
+ * errors in the groups are logged and their classes skipped, and if the groups don't finish in
+ * time the other classes are initialized on a thread of their own, in case they wait on the
+ * stuck ones. {@link #hasProfileFailed} then tells the caller to drop the profile.
+ *
+ * <p>All the threads started by {@link #preload} have terminated when it returns, unless
+ * {@link #hasStuckThreads}. The zygote can't fork with other threads running, so it then has to
+ * restart, without the profile.
+ *
+ * @hide
+ */
+public final class ClassPreloader {
+    private static final String TAG = "ClassPreloader";
+
+    /** Group of the classes which must be initialized on the calling thread. */
+    @VisibleForTesting
+    static final int NO_GROUP = -1;
+
+    /** The key of the first line of a profile, giving the build it was recorded on. */
+    @VisibleForTesting
+    static final String FINGERPRINT_KEY = "fingerprint";
+
+    // Time after which the preloading threads are considered stuck, e.g. because the profile
+    // put two classes initializing each other in different groups.
+    private static final long THREAD_TIMEOUT_MS = 60 * 1000;
+
+    // The number of the most expensive classes logged after preloading.
+    private static final int SLOWEST_CLASSES_LOGGED = 10;
+
+    private final ClassLoader mClassLoader;
+    private final int mMaxThreads;
+    private final int mMaxUnusedBoots;
+    private final long mThreadTimeoutMs;
+    private final ArrayMap<String, ProfileEntry> mProfile = new ArrayMap<>();
+    private final ArrayList<Thread> mThreads = new ArrayList<>();
+
+    private boolean mProfileFailed;
+    private boolean mThreadsStuck;
+
+    /**
+     * @param classLoader the class loader of the preloaded classes, null for the boot class path
+     * @param maxThreads the maximum number of threads initializing the groups of classes
+     * @param maxUnusedBoots the number of boots after which a class no app used is skipped, or 0
+     *     to preload all the classes
+     */
+    public ClassPreloader(ClassLoader classLoader, int maxThreads, int maxUnusedBoots) {
+        this(classLoader, maxThreads, maxUnusedBoots, THREAD_TIMEOUT_MS);
+    }
+
+    @VisibleForTesting
+    ClassPreloader(ClassLoader classLoader, int maxThreads, int maxUnusedBoots,
+            long threadTimeoutMs) {
+        mClassLoader = classLoader;
+        mMaxThreads = Math.max(1, maxThreads);
+        mMaxUnusedBoots = maxUnusedBoots;
+        mThreadTimeoutMs = threadTimeoutMs;
+    }
+
+    /**
+     * Reads the boot profile. Malformed lines are ignored, and so is the whole profile if it
+     * wasn't recorded on this build, as its classes and groups may no longer match.
+     *
+     * @param fingerprint the fingerprint of the running build
+     * @return whether the profile is used
+     */
+    public boolean readProfile(Reader reader, String fingerprint) throws IOException {
+        final BufferedReader br = new BufferedReader(reader);
+        boolean sawFingerprint = false;
+        String line;
+        while ((line = br.readLine()) != null) {
+            line = line.trim();
+            if (line.startsWith("#") || line.isEmpty()) {
+                continue;
+            }
+            final String[] fields = line.split("\\s+");
+            if (!sawFingerprint) {
+                if (fields.length != 2 || !FINGERPRINT_KEY.equals(fields[0])
+                        || !fields[1].equals(fingerprint)) {
+                    Log.w(TAG, "Ignoring profile of another build: " + line);
+                    return false;
+                }
+                sawFingerprint = true;
+                continue;
+            }
+            if (fields.length < 3) {
+                Log.w(TAG, "Ignoring malformed profile line: " + line);
+                continue;
+            }
+            try {
+                final ProfileEntry entry = new ProfileEntry(Long.parseLong(fields[1]),
+                        Integer.parseInt(fields[2]),
+                        fields.length > 3 ? Integer.parseInt(fields[3]) : NO_GROUP);
+                mProfile.put(fields[0], entry);
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Ignoring malformed profile line: " + line);
+            }
+        }
+        return sawFingerprint;
+    }
+
+    /**
+     * Loads and initializes the given classes. Errors in the classes of the groups don't throw,
+     * those in the other classes do, as they would without a profile.
+     *
+     * @return the number of classes initialized
+     */
+    public int preload(List<String> classNames) {
+        final Task serialTask = new Task();
+        final ArrayMap<Integer, Task> groups = new ArrayMap<>();
+        int skipped = 0;
+        for (int i = 0; i < classNames.size(); i++) {
+            final String className = classNames.get(i);
+            final ProfileEntry entry = mProfile.get(className);
+            if (entry == null) {
+                serialTask.add(className, 0);
+                continue;
+            }
+            if (mMaxUnusedBoots > 0 && entry.unusedBoots >= mMaxUnusedBoots) {
+                skipped++;
+                continue;
+            }
+            if (entry.group == NO_GROUP) {
+                serialTask.add(className, entry.costUs);
+                continue;
+            }
+            Task group = groups.get(entry.group);
+            if (group == null) {
+                group = new Task();
+                groups.put(entry.group, group);
+            }
+            group.add(className, entry.costUs);
+        }
+
+        final long startNs = System.nanoTime();
+        final List<List<Task>> plan = planThreads(new ArrayList<>(groups.values()), mMaxThreads);
+        final boolean groupsDone = runOnThreads(plan);
+        final long parallelNs = System.nanoTime() - startNs;
+        for (int i = 0; i < groups.size(); i++) {
+            if (groups.valueAt(i).failed > 0) {
+                Log.e(TAG, "Errors initializing the groups of the boot profile");
+                mProfileFailed = true;
+                break;
+            }
+        }
+
+        if (groupsDone) {
+            serialTask.run(mClassLoader, true /* rethrow */);
+        } else {
+            Log.e(TAG, "Groups of the boot profile still initializing after " + mThreadTimeoutMs
+                    + "ms, check them for classes depending on each other");
+            mProfileFailed = true;
+            if (!runOnThreads(Collections.singletonList(Collections.singletonList(serialTask)))) {
+                Log.e(TAG, "Classes without a group stuck behind the groups");
+            }
+        }
+        // Give the slow threads a last chance before giving up on forking from this zygote
+        joinThreads();
+        for (int i = 0; i < mThreads.size(); i++) {
+            if (mThreads.get(i).isAlive()) {
+                Log.e(TAG, mThreads.get(i).getName() + " is stuck preloading classes");
+                mThreadsStuck = true;
+            }
+        }
+
+        int count = 0;
+        final ArrayList<Task> tasks = new ArrayList<>(groups.values());
+        tasks.add(serialTask);
+        final ArrayList<ClassCost> costs = new ArrayList<>();
+        for (int i = 0; i < tasks.size(); i++) {
+            final Task task = tasks.get(i);
+            count += task.initialized;
+            final long[] measuredNs = task.measuredNs;
+            for (int j = 0; measuredNs != null && j < task.classNames.size(); j++) {
+                costs.add(new ClassCost(task.classNames.get(j), measuredNs[j]));
+            }
+        }
+        logReport(count, skipped, groups.size(), plan.size(), parallelNs, costs);
+        return count;
+    }
+
+    /**
+     * Returns whether the profile failed to initialize the classes, so that it should not be
+     * used again.
+     */
+    public boolean hasProfileFailed() {
+        return mProfileFailed;
+    }
+
+    /**
+     * Returns whether some threads are still initializing classes, most likely deadlocked. They
+     * can't be stopped, so the process can't fork.
+     */
+    public boolean hasStuckThreads() {
+        return mThreadsStuck;
+    }
+
+    /**
+     * Spreads the groups over up to {@code maxThreads} threads so that they finish about at the
+     * same time, based on the costs recorded in the profile.
+     */
+    @VisibleForTesting
+    static List<List<Task>> planThreads(List<Task> groups, int maxThreads) {
+        final int threadCount = Math.min(maxThreads, groups.size());
+        final ArrayList<List<Task>> plan = new ArrayList<>(threadCount);
+        final long[] plannedUs = new long[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            plan.add(new ArrayList<>());
+        }
+        final ArrayList<Task> sorted = new ArrayList<>(groups);
+        Collections.sort(sorted, (a, b) -> Long.compare(b.expectedCostUs, a.expectedCostUs));
+        for (int i = 0; i < sorted.size(); i++) {
+            int thread = 0;
+            for (int j = 1; j < threadCount; j++) {
+                if (plannedUs[j] < plannedUs[thread]) {
+                    thread = j;
+                }
+            }
+            plan.get(thread).add(sorted.get(i));
+            plannedUs[thread] += sorted.get(i).expectedCostUs;
+        }
+        return plan;
+    }
+
+    /**
+     * Runs each list of tasks on a thread of its own and waits for them.
+     *
+     * @return whether the threads finished in time
+     */
+    private boolean runOnThreads(List<List<Task>> plan) {
+        final int firstThread = mThreads.size();
+        for (int i = 0; i < plan.size(); i++) {
+            final List<Task> tasks = plan.get(i);
+            final Thread thread = new Thread(() -> {
+                for (int j = 0; j < tasks.size(); j++) {
+                    tasks.get(j).run(mClassLoader, false /* rethrow */);
+                }
+            }, "ClassPreloader-" + mThreads.size());
+            thread.start();
+            mThreads.add(thread);
+        }
+        final long deadline = System.currentTimeMillis() + mThreadTimeoutMs;
+        boolean done = true;
+        for (int i = firstThread; i < mThreads.size(); i++) {
+            done &= join(mThreads.get(i), deadline);
+        }
+        return done;
+    }
+
+    private void joinThreads() {
+        final long deadline = System.currentTimeMillis() + mThreadTimeoutMs;
+        for (int i = 0; i < mThreads.size(); i++) {
+            join(mThreads.get(i), deadline);
+        }
+    }
+
+    private static boolean join(Thread thread, long deadline) {
+        while (thread.isAlive()) {
+            final long remainingMs = deadline - System.currentTimeMillis();
+            if (remainingMs <= 0) {
+                return false;
+            }
+            try {
+                thread.join(remainingMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return !thread.isAlive();
+            }
+        }
+        return true;
+    }
+
+    private static void logReport(int count, int skipped, int groupCount, int threadCount,
+            long parallelNs, List<ClassCost> costs) {
+        Log.i(TAG, "Initialized " + count + " classes (" + groupCount + " groups on "
+                + threadCount + " threads in " + (parallelNs / 1000000) + "ms), skipped "
+                + skipped + " unused classes");
+        Collections.sort(costs, (a, b) -> Long.compare(b.costNs, a.costNs));
+        final StringBuilder sb = new StringBuilder("Slowest classes:");
+        for (int i = 0; i < Math.min(SLOWEST_CLASSES_LOGGED, costs.size()); i++) {
+            sb.append(' ').append(costs.get(i).className)
+                    .append('=').append(costs.get(i).costNs / 1000).append("us");
+        }
+        Log.i(TAG, sb.toString());
+    }
+
+    private static final class ProfileEntry {
+        final long costUs;
+        final int unusedBoots;
+        final int group;
+
+        ProfileEntry(long costUs, int unusedBoots, int group) {
+            this.costUs = costUs;
+            this.unusedBoots = unusedBoots;
+            this.group = group;
+        }
+    }
+
+    private static final class ClassCost {
+        final String className;
+        final long costNs;
+
+        ClassCost(String className, long costNs) {
+            this.className = className;
+            this.costNs = costNs;
+        }
+    }
+
+    /** Classes initialized in order on a single thread. */
+    @VisibleForTesting
+    static final class Task {
+        final ArrayList<String> classNames = new ArrayList<>();
+        long expectedCostUs;
+        volatile long[] measuredNs;
+        int initialized;
+        int failed;
+
+        void add(String className, long costUs) {
+            classNames.add(className);
+            expectedCostUs += costUs;
+        }
+
+        /**
+         * @param rethrow whether to throw the unexpected errors, or to only count them and go on
+         *     with the next class
+         */
+        void run(ClassLoader classLoader, boolean rethrow) {
+            final long[] measured = new long[classNames.size()];
+            measuredNs = measured;
+            for (int i = 0; i < classNames.size(); i++) {
+                final String className = classNames.get(i);
+                Trace.traceBegin(Trace.TRACE_TAG_DALVIK, className);
+                final long startNs = System.nanoTime();
+                try {
+                    // Use Class.forName(String, boolean, ClassLoader) to avoid repeated stack
+                    // lookups, and true to force initialization.
+                    Class.forName(className, true, classLoader);
+                    initialized++;
+                } catch (ClassNotFoundException e) {
+                    Log.w(TAG, "Class not found for preloading: " + className);
+                } catch (UnsatisfiedLinkError e) {
+                    Log.w(TAG, "Problem preloading " + className + ": " + e);
+                } catch (Throwable t) {
+                    Log.e(TAG, "Error preloading " + className + ".", t);
+                    if (rethrow) {
+                        throw t;
+                    }
+                    failed++;
+                } finally {
+                    measured[i] = System.nanoTime() - startNs;
+                    Trace.traceEnd(Trace.TRACE_TAG_DALVIK);
+                }
+            }
+        }
+    }
+}
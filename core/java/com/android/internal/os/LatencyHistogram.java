@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.internal.os;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+/**
+ * A fixed size, log-linear histogram of latencies in microseconds, in the spirit of HdrHistogram.
+ * Each power of 2 is split into {@link #SUB_BUCKET_COUNT} linear buckets, so the percentiles
+ * are within 12.5% of the recorded latencies whatever their magnitude.
+ *
+ * Not thread safe, the owner must synchronize the calls.
+ *
+ * @hide Only for use within the system server.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    // Latencies of 2^MAX_EXPONENT micros (~67s) or more are counted in the last bucket.
+    private static final int MAX_EXPONENT = 26;
+    @VisibleForTesting
+    static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+    private final int[] mCounts = new int[BUCKET_COUNT];
+    private long mTotalCount;
+    private long mMaxValue;
+
+    public LatencyHistogram() {
+    }
+
+    public LatencyHistogram(LatencyHistogram other) {
+        add(other);
+    }
+
+    /** Records a latency, in microseconds. */
+    public void record(long valueMicros) {
+        mCounts[getBucketIndex(valueMicros)]++;
+        mTotalCount++;
+        mMaxValue = Math.max(mMaxValue, valueMicros);
+    }
+
+    /** Adds the latencies recorded by {@code other}. */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mCounts[i] += other.mCounts[i];
+        }
+        mTotalCount += other.mTotalCount;
+        mMaxValue = Math.max(mMaxValue, other.mMaxValue);
+    }
+
+    /** Returns the number of latencies recorded. */
+    public long getCount() {
+        return mTotalCount;
+    }
+
+    /**
+     * Returns the latency, in microseconds, that {@code percentile} percent of the recorded
+     * latencies don't exceed, or 0 if none were recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (mTotalCount == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * mTotalCount));
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += mCounts[i];
+            if (count >= rank) {
+                return Math.min(getBucketLowerBound(i + 1) - 1, mMaxValue);
+            }
+        }
+        return mMaxValue;
+    }
+
+    @VisibleForTesting
+    static int getBucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return value <= 0 ? 0 : (int) value;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent >= MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        final int shift = exponent - SUB_BUCKET_BITS;
+        return ((shift + 1) << SUB_BUCKET_BITS) + (int) (value >> shift) - SUB_BUCKET_COUNT;
+    }
+
+    @VisibleForTesting
+    static long getBucketLowerBound(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        final int shift = (index >> SUB_BUCKET_BITS) - 1;
+        return (long) (SUB_BUCKET_COUNT + (index & (SUB_BUCKET_COUNT - 1))) << shift;
+    }
+}
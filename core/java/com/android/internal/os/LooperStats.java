@@ -56,6 +56,7 @@ public class LooperStats implements Looper.Observer {
     private long mStartElapsedTime = SystemClock.elapsedRealtime();
     private boolean mAddDebugEntries = false;
     private boolean mTrackScreenInteractive = false;
+    private boolean mLatencyHistograms = false;
 
     public LooperStats(int samplingInterval, int entriesSizeCap) {
         this.mSamplingInterval = samplingInterval;
@@ -106,6 +107,12 @@ public class LooperStats implements Looper.Observer {
                     final long cpuUsage = getThreadTimeMicro() - session.cpuStartMicro;
                     entry.totalLatencyMicro += latency;
                     entry.maxLatencyMicro = Math.max(entry.maxLatencyMicro, latency);
+                    if (mLatencyHistograms) {
+                        if (entry.latencyHistogram == null) {
+                            entry.latencyHistogram = new LatencyHistogram();
+                        }
+                        entry.latencyHistogram.record(latency);
+                    }
                     entry.cpuUsageMicro += cpuUsage;
                     entry.maxCpuUsageMicro = Math.max(entry.maxCpuUsageMicro, cpuUsage);
                     if (msg.getWhen() > 0) {
@@ -225,6 +232,11 @@ public class LooperStats implements Looper.Observer {
         mTrackScreenInteractive = enabled;
     }
 
+    /** Whether to record a histogram of the latencies of each entry, about 1KB each. */
+    public void setLatencyHistograms(boolean enabled) {
+        mLatencyHistograms = enabled;
+    }
+
     @Nullable
     private Entry findEntry(Message msg, boolean allowCreateNew) {
         final boolean isInteractive = mTrackScreenInteractive
@@ -301,6 +313,7 @@ public class LooperStats implements Looper.Observer {
         public long recordedDelayMessageCount;
         public long delayMillis;
         public long maxDelayMillis;
+        public LatencyHistogram latencyHistogram;
 
         Entry(Message msg, boolean isInteractive) {
             this.workSourceUid = msg.workSourceUid;
@@ -327,6 +340,7 @@ public class LooperStats implements Looper.Observer {
             delayMillis = 0;
             maxDelayMillis = 0;
             recordedDelayMessageCount = 0;
+            latencyHistogram = null;
         }
 
         static int idFor(Message msg, boolean isInteractive) {
@@ -360,6 +374,9 @@ public class LooperStats implements Looper.Observer {
         public final long maxDelayMillis;
         public final long delayMillis;
         public final long recordedDelayMessageCount;
+        // Only set if latency histograms are enabled.
+        @Nullable
+        public final LatencyHistogram latencyHistogram;
 
         ExportedEntry(Entry entry) {
             this.workSourceUid = entry.workSourceUid;
@@ -383,6 +400,8 @@ public class LooperStats implements Looper.Observer {
             this.delayMillis = entry.delayMillis;
             this.maxDelayMillis = entry.maxDelayMillis;
             this.recordedDelayMessageCount = entry.recordedDelayMessageCount;
+            this.latencyHistogram = entry.latencyHistogram != null
+                    ? new LatencyHistogram(entry.latencyHistogram) : null;
         }
     }
 }
@@ -34,9 +34,9 @@ import android.system.OsConstants;
 import android.util.Slog;
 import android.util.proto.ProtoOutputStream;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.FastPrintWriter;
 
-import java.io.File;
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.io.StringWriter;
@@ -140,6 +140,11 @@ public class ProcessCpuTracker {
 
     private final boolean mIncludeThreads;
 
+    // The directory procfs is mounted on, /proc unless testing.
+    private final String mProcRoot;
+    private final String mSystemCpuFile;
+    private final String mLoadAverageFile;
+
     // How long a CPU jiffy is in milliseconds.
     private final long mJiffyMillis;
 
@@ -177,6 +182,11 @@ public class ProcessCpuTracker {
 
     private final ArrayList<Stats> mProcStats = new ArrayList<Stats>();
     private final ArrayList<Stats> mWorkingProcs = new ArrayList<Stats>();
+
+    // Where collectStats() merges the current processes and threads with the known ones, so that
+    // it's a single pass over both lists rather than an insert or remove per change.
+    private final ArrayList<Stats> mMergedProcStats = new ArrayList<Stats>();
+    private final ArrayList<Stats> mMergedThreadStats = new ArrayList<Stats>();
     private boolean mWorkingProcsSorted;
 
     private boolean mFirst = true;
@@ -251,14 +261,14 @@ public class ProcessCpuTracker {
         public boolean added;
         public boolean removed;
 
-        Stats(int _pid, int parentPid, boolean includeThreads) {
+        Stats(String procRoot, int _pid, Stats parent, boolean includeThreads) {
             pid = _pid;
-            if (parentPid < 0) {
-                final File procDir = new File("/proc", Integer.toString(pid));
-                uid = getUid(procDir.toString());
-                statFile = new File(procDir, "stat").toString();
-                cmdlineFile = new File(procDir, "cmdline").toString();
-                threadsDir = (new File(procDir, "task")).toString();
+            if (parent == null) {
+                final String procDir = procRoot + "/" + pid;
+                uid = getUid(procDir);
+                statFile = procDir + "/stat";
+                cmdlineFile = procDir + "/cmdline";
+                threadsDir = procDir + "/task";
                 if (includeThreads) {
                     threadStats = new ArrayList<Stats>();
                     workingThreads = new ArrayList<Stats>();
@@ -267,12 +277,9 @@ public class ProcessCpuTracker {
                     workingThreads = null;
                 }
             } else {
-                final File procDir = new File("/proc", Integer.toString(
-                        parentPid));
-                final File taskDir = new File(
-                        new File(procDir, "task"), Integer.toString(pid));
-                uid = getUid(taskDir.toString());
-                statFile = new File(taskDir, "stat").toString();
+                // Threads belong to the uid of their process, no need to stat them.
+                uid = parent.uid;
+                statFile = parent.threadsDir + "/" + pid + "/stat";
                 cmdlineFile = null;
                 threadsDir = null;
                 threadStats = null;
@@ -311,7 +318,18 @@ public class ProcessCpuTracker {
 
     @UnsupportedAppUsage
     public ProcessCpuTracker(boolean includeThreads) {
+        this(includeThreads, "/proc");
+    }
+
+    /**
+     * @param procRoot the directory to read the proc files from, instead of /proc
+     */
+    @VisibleForTesting
+    public ProcessCpuTracker(boolean includeThreads, String procRoot) {
         mIncludeThreads = includeThreads;
+        mProcRoot = procRoot;
+        mSystemCpuFile = procRoot + "/stat";
+        mLoadAverageFile = procRoot + "/loadavg";
         long jiffyHz = Os.sysconf(OsConstants._SC_CLK_TCK);
         mJiffyMillis = 1000/jiffyHz;
     }
@@ -338,7 +356,7 @@ public class ProcessCpuTracker {
         final long nowWallTime = System.currentTimeMillis();
 
         final long[] sysCpu = mSystemCpuData;
-        if (Process.readProcFile("/proc/stat", SYSTEM_CPU_FORMAT,
+        if (Process.readProcFile(mSystemCpuFile, SYSTEM_CPU_FORMAT,
                 null, sysCpu, null)) {
             // Total user time is user + nice time.
             final long usertime = (sysCpu[0]+sysCpu[1]) * mJiffyMillis;
@@ -403,13 +421,13 @@ public class ProcessCpuTracker {
 
         final StrictMode.ThreadPolicy savedPolicy = StrictMode.allowThreadDiskReads();
         try {
-            mCurPids = collectStats("/proc", -1, mFirst, mCurPids, mProcStats);
+            mCurPids = collectStats(mProcRoot, null, mFirst, mCurPids, mProcStats);
         } finally {
             StrictMode.setThreadPolicy(savedPolicy);
         }
 
         final float[] loadAverages = mLoadAverageData;
-        if (Process.readProcFile("/proc/loadavg", LOAD_AVERAGE_FORMAT,
+        if (Process.readProcFile(mLoadAverageFile, LOAD_AVERAGE_FORMAT,
                 null, null, loadAverages)) {
             float load1 = loadAverages[0];
             float load5 = loadAverages[1];
@@ -429,12 +447,16 @@ public class ProcessCpuTracker {
         mFirst = false;
     }
 
-    private int[] collectStats(String statsFile, int parentPid, boolean first,
+    private int[] collectStats(String statsFile, Stats parent, boolean first,
             int[] curPids, ArrayList<Stats> allProcs) {
 
         int[] pids = Process.getPids(statsFile, curPids);
         int NP = (pids == null) ? 0 : pids.length;
-        int NS = allProcs.size();
+        final int NS = allProcs.size();
+        // Both pids and allProcs are sorted by pid, so the processes still running are kept,
+        // the new ones are added and the ones gone are dropped in a single pass.
+        final ArrayList<Stats> merged = parent == null ? mMergedProcStats : mMergedThreadStats;
+        merged.clear();
         int curStatsIndex = 0;
         for (int i=0; i<NP; i++) {
             int pid = pids[i];
@@ -449,15 +471,16 @@ public class ProcessCpuTracker {
                 st.added = false;
                 st.working = false;
                 curStatsIndex++;
+                merged.add(st);
                 if (DEBUG) Slog.v(TAG, "Existing "
-                        + (parentPid < 0 ? "process" : "thread")
+                        + (parent == null ? "process" : "thread")
                         + " pid " + pid + ": " + st);
 
                 if (st.interesting) {
                     final long uptime = SystemClock.uptimeMillis();
 
                     final long[] procStats = mProcessStatsData;
-                    if (!Process.readProcFile(st.statFile.toString(),
+                    if (!Process.readProcFile(st.statFile,
                             PROCESS_STATS_FORMAT, null, procStats, null)) {
                         continue;
                     }
@@ -482,10 +505,10 @@ public class ProcessCpuTracker {
                         st.active = true;
                     }
 
-                    if (parentPid < 0) {
+                    if (parent == null) {
                         getName(st, st.cmdlineFile);
                         if (st.threadStats != null) {
-                            mCurThreadPids = collectStats(st.threadsDir, pid, false,
+                            mCurThreadPids = collectStats(st.threadsDir, st, false,
                                     mCurThreadPids, st.threadStats);
                         }
                     }
@@ -514,18 +537,16 @@ public class ProcessCpuTracker {
 
             if (st == null || st.pid > pid) {
                 // We have a new process!
-                st = new Stats(pid, parentPid, mIncludeThreads);
-                allProcs.add(curStatsIndex, st);
-                curStatsIndex++;
-                NS++;
+                st = new Stats(mProcRoot, pid, parent, mIncludeThreads);
+                merged.add(st);
                 if (DEBUG) Slog.v(TAG, "New "
-                        + (parentPid < 0 ? "process" : "thread")
+                        + (parent == null ? "process" : "thread")
                         + " pid " + pid + ": " + st);
 
                 final String[] procStatsString = mProcessFullStatsStringData;
                 final long[] procStats = mProcessFullStatsData;
                 st.base_uptime = SystemClock.uptimeMillis();
-                String path = st.statFile.toString();
+                String path = st.statFile;
                 //Slog.d(TAG, "Reading proc file: " + path);
                 if (Process.readProcFile(path, PROCESS_FULL_STATS_FORMAT, procStatsString,
                         procStats, null)) {
@@ -553,10 +574,10 @@ public class ProcessCpuTracker {
                     st.base_minfaults = st.base_majfaults = 0;
                 }
 
-                if (parentPid < 0) {
+                if (parent == null) {
                     getName(st, st.cmdlineFile);
                     if (st.threadStats != null) {
-                        mCurThreadPids = collectStats(st.threadsDir, pid, true,
+                        mCurThreadPids = collectStats(st.threadsDir, st, true,
                                 mCurThreadPids, st.threadStats);
                     }
                 } else if (st.interesting) {
@@ -580,16 +601,10 @@ public class ProcessCpuTracker {
             }
 
             // This process has gone away!
-            st.rel_utime = 0;
-            st.rel_stime = 0;
-            st.rel_minfaults = 0;
-            st.rel_majfaults = 0;
-            st.removed = true;
-            st.working = true;
-            allProcs.remove(curStatsIndex);
-            NS--;
+            markRemoved(st);
+            curStatsIndex++;
             if (DEBUG) Slog.v(TAG, "Removed "
-                    + (parentPid < 0 ? "process" : "thread")
+                    + (parent == null ? "process" : "thread")
                     + " pid " + pid + ": " + st);
             // Decrement the loop counter so that we process the current pid
             // again the next time through the loop.
@@ -600,20 +615,29 @@ public class ProcessCpuTracker {
         while (curStatsIndex < NS) {
             // This process has gone away!
             final Stats st = allProcs.get(curStatsIndex);
-            st.rel_utime = 0;
-            st.rel_stime = 0;
-            st.rel_minfaults = 0;
-            st.rel_majfaults = 0;
-            st.removed = true;
-            st.working = true;
-            allProcs.remove(curStatsIndex);
-            NS--;
+            markRemoved(st);
+            curStatsIndex++;
             if (localLOGV) Slog.v(TAG, "Removed pid " + st.pid + ": " + st);
         }
 
+        allProcs.clear();
+        final int NM = merged.size();
+        for (int i = 0; i < NM; i++) {
+            allProcs.add(merged.get(i));
+        }
+        merged.clear();
         return pids;
     }
 
+    private static void markRemoved(Stats st) {
+        st.rel_utime = 0;
+        st.rel_stime = 0;
+        st.rel_minfaults = 0;
+        st.rel_majfaults = 0;
+        st.removed = true;
+        st.working = true;
+    }
+
     /**
      * Returns the total time (in milliseconds) spent executing in
      * both user and system code.  Safe to call without lock held.
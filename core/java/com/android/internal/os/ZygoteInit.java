@@ -73,6 +73,7 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.security.Provider;
 import java.security.Security;
+import java.util.ArrayList;
 
 /**
  * Startup class for the zygote process.
@@ -112,6 +113,23 @@ public class ZygoteInit {
      */
     private static final String PRELOADED_CLASSES = "/system/etc/preloaded-classes";
 
+    /**
+     * The path of the boot profile guiding the preloading of the classes, see
+     * {@link ClassPreloader}. Nothing on the device records it: it is pushed by the tooling
+     * profiling the boot of a build, and only used on that build. It is read as root, before
+     * the privileges are dropped to preload, and renamed with {@link #FAILED_PROFILE_SUFFIX} if
+     * preloading with it fails, so that the next start preloads in order.
+     */
+    private static final String PRELOADED_CLASSES_PROFILE =
+            "/data/system/preloaded-classes-profile";
+
+    private static final String FAILED_PROFILE_SUFFIX = ".failed";
+
+    /**
+     * The maximum number of threads initializing the preloaded classes in parallel.
+     */
+    private static final int MAX_PRELOAD_THREADS = 4;
+
     /**
      * Controls whether we should preload resources during zygote init.
      */
@@ -260,6 +278,13 @@ public class ZygoteInit {
         Log.i(TAG, "Preloading classes...");
         long startTime = SystemClock.uptimeMillis();
 
+        // Null for the boot classpath class-loader.
+        final ClassPreloader preloader = new ClassPreloader(null,
+                Math.min(MAX_PRELOAD_THREADS, Runtime.getRuntime().availableProcessors()),
+                SystemProperties.getInt(
+                        "persist.device_config.runtime_native_boot.preload_max_unused_boots", 0));
+        readPreloadProfile(preloader);
+
         // Drop root perms while running static initializers.
         final int reuid = Os.getuid();
         final int regid = Os.getgid();
@@ -283,7 +308,7 @@ public class ZygoteInit {
             BufferedReader br =
                     new BufferedReader(new InputStreamReader(is), Zygote.SOCKET_BUFFER_SIZE);
 
-            int count = 0;
+            final ArrayList<String> classNames = new ArrayList<>();
             String line;
             while ((line = br.readLine()) != null) {
                 // Skip comments and blank lines.
@@ -291,33 +316,11 @@ public class ZygoteInit {
                 if (line.startsWith("#") || line.equals("")) {
                     continue;
                 }
-
-                Trace.traceBegin(Trace.TRACE_TAG_DALVIK, line);
-                try {
-                    // Load and explicitly initialize the given class. Use
-                    // Class.forName(String, boolean, ClassLoader) to avoid repeated stack lookups
-                    // (to derive the caller's class-loader). Use true to force initialization, and
-                    // null for the boot classpath class-loader (could as well cache the
-                    // class-loader of this class in a variable).
-                    Class.forName(line, true, null);
-                    count++;
-                } catch (ClassNotFoundException e) {
-                    Log.w(TAG, "Class not found for preloading: " + line);
-                } catch (UnsatisfiedLinkError e) {
-                    Log.w(TAG, "Problem preloading " + line + ": " + e);
-                } catch (Throwable t) {
-                    Log.e(TAG, "Error preloading " + line + ".", t);
-                    if (t instanceof Error) {
-                        throw (Error) t;
-                    }
-                    if (t instanceof RuntimeException) {
-                        throw (RuntimeException) t;
-                    }
-                    throw new RuntimeException(t);
-                }
-                Trace.traceEnd(Trace.TRACE_TAG_DALVIK);
+                classNames.add(line);
             }
 
+            final int count = preloader.preload(classNames);
+
             Log.i(TAG, "...preloaded " + count + " classes in "
                     + (SystemClock.uptimeMillis() - startTime) + "ms.");
         } catch (IOException e) {
@@ -355,6 +358,39 @@ public class ZygoteInit {
                     throw new RuntimeException("Failed to restore root", ex);
                 }
             }
+
+            if (preloader.hasProfileFailed()) {
+                discardPreloadProfile();
+            }
+        }
+        if (preloader.hasStuckThreads()) {
+            // The stuck threads would keep us from ever forking. The profile is gone, so the next
+            // zygote preloads in order.
+            throw new RuntimeException("Preloading threads stuck, restarting without "
+                    + PRELOADED_CLASSES_PROFILE);
+        }
+    }
+
+    private static void readPreloadProfile(ClassPreloader preloader) {
+        final File profile = new File(PRELOADED_CLASSES_PROFILE);
+        if (!profile.exists()) {
+            return;
+        }
+        try (InputStreamReader reader = new InputStreamReader(new FileInputStream(profile))) {
+            // Not Build.FINGERPRINT, whose static initializer mustn't run as root.
+            if (!preloader.readProfile(reader, SystemProperties.get("ro.build.fingerprint"))) {
+                discardPreloadProfile();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Error reading " + PRELOADED_CLASSES_PROFILE + ", preloading in order.", e);
+        }
+    }
+
+    private static void discardPreloadProfile() {
+        final File profile = new File(PRELOADED_CLASSES_PROFILE);
+        Log.w(TAG, "Discarding " + PRELOADED_CLASSES_PROFILE);
+        if (!profile.renameTo(new File(PRELOADED_CLASSES_PROFILE + FAILED_PROFILE_SUFFIX))) {
+            Log.w(TAG, "Failed to rename " + PRELOADED_CLASSES_PROFILE);
         }
     }
 
@@ -0,0 +1,433 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.util;
+
+import static com.android.internal.util.BinaryXmlSerializer.REF_FIRST_INDEX;
+import static com.android.internal.util.BinaryXmlSerializer.REF_NEW;
+import static com.android.internal.util.BinaryXmlSerializer.REF_NULL;
+import static com.android.internal.util.BinaryXmlSerializer.TOKEN_END_TAG;
+import static com.android.internal.util.BinaryXmlSerializer.TOKEN_RESET;
+import static com.android.internal.util.BinaryXmlSerializer.TOKEN_START_TAG;
+import static com.android.internal.util.BinaryXmlSerializer.TOKEN_TEXT;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * Reads documents written by {@link BinaryXmlSerializer}. Behaves like a non-namespace aware text
+ * parser: {@link #next()} reports START_TAG, TEXT, END_TAG and END_DOCUMENT events, and depth
+ * follows the same rules, so code written against text XML can read either format.
+ *
+ * <p>Like {@link BinaryXmlSerializer}, this is a restricted {@link XmlPullParser}. Input must come
+ * from an {@link InputStream}; {@link #setInput(Reader)} and
+ * {@link #defineEntityReplacementText} throw {@link UnsupportedOperationException}. Namespaces
+ * are never reported, and enabling a feature or setting a property throws
+ * {@link XmlPullParserException}.</p>
+ */
+public class BinaryXmlPullParser implements XmlPullParser {
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private int mPos;
+    private int mLimit;
+    private InputStream mIn;
+
+    private final ArrayList<String> mInterned = new ArrayList<>();
+    private final ArrayList<String> mTagStack = new ArrayList<>();
+
+    private int mEventType;
+    private int mDepth;
+    /** Set after an END_TAG, whose depth only drops once the next event is read. */
+    private boolean mPopPending;
+    private String mName;
+    private String mText;
+    private String[] mAttributes = new String[16];
+    private int mAttributeCount;
+
+    @Override
+    public void setInput(InputStream in, String inputEncoding) throws XmlPullParserException {
+        if (in == null) {
+            throw new IllegalArgumentException();
+        }
+        mIn = in;
+        mPos = 0;
+        mLimit = 0;
+        mInterned.clear();
+        mTagStack.clear();
+        mEventType = START_DOCUMENT;
+        mDepth = 0;
+        mPopPending = false;
+        mName = null;
+        mText = null;
+        mAttributeCount = 0;
+    }
+
+    @Override
+    public void setInput(Reader in) {
+        throw new UnsupportedOperationException("Binary XML needs an InputStream");
+    }
+
+    @Override
+    public int next() throws XmlPullParserException, IOException {
+        if (mEventType == END_DOCUMENT) {
+            return END_DOCUMENT;
+        }
+        if (mPopPending) {
+            mTagStack.remove(mTagStack.size() - 1);
+            mDepth--;
+            mPopPending = false;
+        }
+        mName = null;
+        mText = null;
+        mAttributeCount = 0;
+        while (true) {
+            final int token = readByte();
+            switch (token) {
+                case -1:
+                    if (mDepth != 0) {
+                        throw new XmlPullParserException("Unexpected end of document", this,
+                                null);
+                    }
+                    return mEventType = END_DOCUMENT;
+                case TOKEN_START_TAG:
+                    mName = readStringRef();
+                    mAttributeCount = readVarint();
+                    if (mAttributes.length < mAttributeCount * 2) {
+                        mAttributes = new String[mAttributeCount * 2];
+                    }
+                    for (int i = 0; i < mAttributeCount * 2; i++) {
+                        mAttributes[i] = readStringRef();
+                    }
+                    mTagStack.add(mName);
+                    mDepth++;
+                    return mEventType = START_TAG;
+                case TOKEN_END_TAG:
+                    if (mDepth == 0) {
+                        throw new XmlPullParserException("Unbalanced end tag", this, null);
+                    }
+                    mName = mTagStack.get(mTagStack.size() - 1);
+                    mPopPending = true;
+                    return mEventType = END_TAG;
+                case TOKEN_TEXT:
+                    mText = readString();
+                    return mEventType = TEXT;
+                case TOKEN_RESET:
+                    mInterned.clear();
+                    break;
+                default:
+                    throw new XmlPullParserException("Unknown token " + token, this, null);
+            }
+        }
+    }
+
+    @Override
+    public int nextToken() throws XmlPullParserException, IOException {
+        return next();
+    }
+
+    @Override
+    public int nextTag() throws XmlPullParserException, IOException {
+        int eventType = next();
+        if (eventType == TEXT && isWhitespace()) {
+            eventType = next();
+        }
+        if (eventType != START_TAG && eventType != END_TAG) {
+            throw new XmlPullParserException("Expected start or end tag", this, null);
+        }
+        return eventType;
+    }
+
+    @Override
+    public String nextText() throws XmlPullParserException, IOException {
+        if (mEventType != START_TAG) {
+            throw new XmlPullParserException("Parser must be on START_TAG to read text", this,
+                    null);
+        }
+        int eventType = next();
+        if (eventType == TEXT) {
+            final String result = mText;
+            eventType = next();
+            if (eventType != END_TAG) {
+                throw new XmlPullParserException("Text must be followed by END_TAG", this, null);
+            }
+            return result;
+        } else if (eventType == END_TAG) {
+            return "";
+        }
+        throw new XmlPullParserException("Parser must be on START_TAG or TEXT to read text", this,
+                null);
+    }
+
+    @Override
+    public void require(int type, String namespace, String name) throws XmlPullParserException {
+        if (type != mEventType || (name != null && !name.equals(getName()))) {
+            throw new XmlPullParserException("Expected " + TYPES[type] + " " + name, this, null);
+        }
+    }
+
+    @Override
+    public int getEventType() {
+        return mEventType;
+    }
+
+    @Override
+    public int getDepth() {
+        return mDepth;
+    }
+
+    @Override
+    public String getName() {
+        return mName;
+    }
+
+    @Override
+    public String getText() {
+        return mText;
+    }
+
+    @Override
+    public char[] getTextCharacters(int[] holderForStartAndLength) {
+        if (mText == null) {
+            holderForStartAndLength[0] = -1;
+            holderForStartAndLength[1] = -1;
+            return null;
+        }
+        holderForStartAndLength[0] = 0;
+        holderForStartAndLength[1] = mText.length();
+        return mText.toCharArray();
+    }
+
+    @Override
+    public boolean isWhitespace() throws XmlPullParserException {
+        if (mEventType != TEXT) {
+            throw new XmlPullParserException("Not on TEXT", this, null);
+        }
+        return mText.trim().isEmpty();
+    }
+
+    @Override
+    public boolean isEmptyElementTag() {
+        return false;
+    }
+
+    @Override
+    public int getAttributeCount() {
+        return mEventType == START_TAG ? mAttributeCount : -1;
+    }
+
+    @Override
+    public String getAttributeName(int index) {
+        checkAttributeIndex(index);
+        return mAttributes[index * 2];
+    }
+
+    @Override
+    public String getAttributeValue(int index) {
+        checkAttributeIndex(index);
+        return mAttributes[index * 2 + 1];
+    }
+
+    @Override
+    public String getAttributeValue(String namespace, String name) {
+        for (int i = 0; i < mAttributeCount; i++) {
+            if (name.equals(mAttributes[i * 2])) {
+                return mAttributes[i * 2 + 1];
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String getAttributeNamespace(int index) {
+        checkAttributeIndex(index);
+        return "";
+    }
+
+    @Override
+    public String getAttributePrefix(int index) {
+        checkAttributeIndex(index);
+        return null;
+    }
+
+    @Override
+    public String getAttributeType(int index) {
+        checkAttributeIndex(index);
+        return "CDATA";
+    }
+
+    @Override
+    public boolean isAttributeDefault(int index) {
+        checkAttributeIndex(index);
+        return false;
+    }
+
+    @Override
+    public String getNamespace() {
+        return "";
+    }
+
+    @Override
+    public String getNamespace(String prefix) {
+        return null;
+    }
+
+    @Override
+    public String getPrefix() {
+        return null;
+    }
+
+    @Override
+    public int getNamespaceCount(int depth) {
+        return 0;
+    }
+
+    @Override
+    public String getNamespacePrefix(int pos) {
+        throw new IndexOutOfBoundsException();
+    }
+
+    @Override
+    public String getNamespaceUri(int pos) {
+        throw new IndexOutOfBoundsException();
+    }
+
+    @Override
+    public String getPositionDescription() {
+        return TYPES[mEventType] + (mName != null ? " <" + mName + ">" : "")
+                + " depth " + mDepth + " (binary)";
+    }
+
+    @Override
+    public int getLineNumber() {
+        return -1;
+    }
+
+    @Override
+    public int getColumnNumber() {
+        return -1;
+    }
+
+    @Override
+    public String getInputEncoding() {
+        return null;
+    }
+
+    @Override
+    public void setFeature(String name, boolean state) throws XmlPullParserException {
+        if (state) {
+            throw new XmlPullParserException("Unsupported feature: " + name);
+        }
+    }
+
+    @Override
+    public boolean getFeature(String name) {
+        return false;
+    }
+
+    @Override
+    public void setProperty(String name, Object value) throws XmlPullParserException {
+        throw new XmlPullParserException("Unsupported property: " + name);
+    }
+
+    @Override
+    public Object getProperty(String name) {
+        return null;
+    }
+
+    @Override
+    public void defineEntityReplacementText(String entityName, String replacementText) {
+        throw new UnsupportedOperationException("Binary XML has no entity references");
+    }
+
+    private void checkAttributeIndex(int index) {
+        if (mEventType != START_TAG || index < 0 || index >= mAttributeCount) {
+            throw new IndexOutOfBoundsException("Attribute " + index);
+        }
+    }
+
+    private String readStringRef() throws IOException, XmlPullParserException {
+        final int ref = readVarint();
+        if (ref == REF_NULL) {
+            return null;
+        } else if (ref == REF_NEW) {
+            final String value = readString();
+            mInterned.add(value);
+            return value;
+        }
+        final int index = ref - REF_FIRST_INDEX;
+        if (index >= mInterned.size()) {
+            throw new XmlPullParserException("Bad string reference " + ref, this, null);
+        }
+        return mInterned.get(index);
+    }
+
+    private String readString() throws IOException {
+        final int length = readVarint();
+        if (length <= mLimit - mPos) {
+            final String value = new String(mBuffer, mPos, length, StandardCharsets.UTF_8);
+            mPos += length;
+            return value;
+        }
+        final byte[] bytes = new byte[length];
+        int copied = mLimit - mPos;
+        System.arraycopy(mBuffer, mPos, bytes, 0, copied);
+        mPos = mLimit;
+        while (copied < length) {
+            final int read = mIn.read(bytes, copied, length - copied);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            copied += read;
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private int readVarint() throws IOException {
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            final int b = readByte();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            result |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /** Returns the next byte, or -1 at the end of the input. */
+    private int readByte() throws IOException {
+        if (mPos == mLimit) {
+            mLimit = mIn.read(mBuffer, 0, mBuffer.length);
+            mPos = 0;
+            if (mLimit <= 0) {
+                mLimit = 0;
+                return -1;
+            }
+        }
+        return mBuffer[mPos++] & 0xFF;
+    }
+}
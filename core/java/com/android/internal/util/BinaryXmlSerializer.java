@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.util;
+
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * An {@link XmlSerializer} that writes a compact binary encoding of the document instead of text,
+ * to be read back with {@link BinaryXmlPullParser}. Tag names, attribute names and attribute values
+ * are interned, so a string that repeats through the document (a permission name, a path prefix)
+ * is written once and then referenced by index. Only elements, attributes and text are kept;
+ * indentation, comments and namespaces are dropped.
+ *
+ * <p>The format is a sequence of tokens, each a single byte followed by its payload:</p>
+ * <ul>
+ *     <li>{@link #TOKEN_START_TAG}: name, attribute count, then name / value pairs</li>
+ *     <li>{@link #TOKEN_END_TAG}: no payload, closes the innermost open tag</li>
+ *     <li>{@link #TOKEN_TEXT}: a string that is not interned</li>
+ *     <li>{@link #TOKEN_RESET}: forget every interned string, so the tokens that follow can be
+ *     decoded without having seen the ones before</li>
+ * </ul>
+ * Integers are unsigned LEB128 varints and strings are a byte length followed by UTF-8.
+ *
+ * <p>This is a restricted {@link XmlSerializer}, meant for state files written and read by the
+ * system. Output must go to an {@link OutputStream}; {@link #setOutput(Writer)} throws
+ * {@link UnsupportedOperationException}, as do namespace prefixes ({@link #getPrefix},
+ * {@link #setPrefix}), properties ({@link #setProperty}) and entity references
+ * ({@link #entityRef}). Features are ignored. Comments, processing instructions, doctype
+ * declarations and ignorable whitespace are accepted and dropped.</p>
+ */
+public class BinaryXmlSerializer implements XmlSerializer {
+    public static final int TOKEN_START_TAG = 1;
+    public static final int TOKEN_END_TAG = 2;
+    public static final int TOKEN_TEXT = 3;
+    public static final int TOKEN_RESET = 4;
+
+    /** String reference for a null attribute value. */
+    static final int REF_NULL = 0;
+    /** String reference announcing a new string, which is interned after it is written. */
+    static final int REF_NEW = 1;
+    /** The first string reference that points at an interned string. */
+    static final int REF_FIRST_INDEX = 2;
+
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private int mPos;
+    private OutputStream mOut;
+
+    private final HashMap<String, Integer> mInterned = new HashMap<>();
+    private final ArrayList<String> mTagStack = new ArrayList<>();
+
+    /** Name and attributes of a start tag that has not been written yet. */
+    private String mPendingTag;
+    private final ArrayList<String> mPendingAttributes = new ArrayList<>();
+
+    @Override
+    public void setOutput(OutputStream os, String encoding) throws IOException {
+        if (os == null) {
+            throw new IllegalArgumentException();
+        }
+        mOut = os;
+        mPos = 0;
+        mInterned.clear();
+        mTagStack.clear();
+        mPendingTag = null;
+        mPendingAttributes.clear();
+    }
+
+    @Override
+    public void setOutput(Writer writer) {
+        throw new UnsupportedOperationException("Binary XML needs an OutputStream");
+    }
+
+    @Override
+    public void startDocument(String encoding, Boolean standalone) {
+    }
+
+    @Override
+    public void endDocument() throws IOException {
+        flushPendingTag();
+        flush();
+    }
+
+    @Override
+    public XmlSerializer startTag(String namespace, String name) throws IOException {
+        flushPendingTag();
+        mPendingTag = name;
+        mTagStack.add(name);
+        return this;
+    }
+
+    @Override
+    public XmlSerializer attribute(String namespace, String name, String value) {
+        if (mPendingTag == null) {
+            throw new IllegalStateException("attribute() must follow startTag()");
+        }
+        mPendingAttributes.add(name);
+        mPendingAttributes.add(value);
+        return this;
+    }
+
+    @Override
+    public XmlSerializer endTag(String namespace, String name) throws IOException {
+        flushPendingTag();
+        if (mTagStack.isEmpty()) {
+            throw new IllegalStateException("endTag() without matching startTag(): " + name);
+        }
+        mTagStack.remove(mTagStack.size() - 1);
+        writeByte(TOKEN_END_TAG);
+        return this;
+    }
+
+    @Override
+    public XmlSerializer text(String text) throws IOException {
+        flushPendingTag();
+        writeByte(TOKEN_TEXT);
+        writeString(text);
+        return this;
+    }
+
+    @Override
+    public XmlSerializer text(char[] buf, int start, int len) throws IOException {
+        return text(new String(buf, start, len));
+    }
+
+    @Override
+    public void cdsect(String text) throws IOException {
+        text(text);
+    }
+
+    /**
+     * Writes a {@link #TOKEN_RESET}, after which strings interned so far are written out again.
+     * Lets a caller cut the output into pieces that can be decoded on their own.
+     */
+    public void resetInterning() throws IOException {
+        flushPendingTag();
+        writeByte(TOKEN_RESET);
+        mInterned.clear();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushPendingTag();
+        if (mPos > 0) {
+            mOut.write(mBuffer, 0, mPos);
+            mPos = 0;
+        }
+        mOut.flush();
+    }
+
+    @Override
+    public int getDepth() {
+        return mTagStack.size();
+    }
+
+    @Override
+    public String getName() {
+        return mTagStack.isEmpty() ? null : mTagStack.get(mTagStack.size() - 1);
+    }
+
+    @Override
+    public String getNamespace() {
+        return null;
+    }
+
+    @Override
+    public String getPrefix(String namespace, boolean generatePrefix) {
+        throw new UnsupportedOperationException("Binary XML has no namespaces");
+    }
+
+    @Override
+    public void setPrefix(String prefix, String namespace) {
+        throw new UnsupportedOperationException("Binary XML has no namespaces");
+    }
+
+    @Override
+    public void setFeature(String name, boolean state) {
+        // Features only affect how text is laid out, which does not apply here.
+    }
+
+    @Override
+    public boolean getFeature(String name) {
+        return false;
+    }
+
+    @Override
+    public void setProperty(String name, Object value) {
+        throw new UnsupportedOperationException("Binary XML has no properties");
+    }
+
+    @Override
+    public Object getProperty(String name) {
+        return null;
+    }
+
+    @Override
+    public void ignorableWhitespace(String text) {
+    }
+
+    @Override
+    public void comment(String text) {
+    }
+
+    @Override
+    public void processingInstruction(String text) {
+    }
+
+    @Override
+    public void docdecl(String text) {
+    }
+
+    @Override
+    public void entityRef(String text) {
+        throw new UnsupportedOperationException("Binary XML has no entity references");
+    }
+
+    private void flushPendingTag() throws IOException {
+        if (mPendingTag == null) {
+            return;
+        }
+        writeByte(TOKEN_START_TAG);
+        writeStringRef(mPendingTag);
+        final int attributeCount = mPendingAttributes.size() / 2;
+        writeVarint(attributeCount);
+        for (int i = 0; i < mPendingAttributes.size(); i++) {
+            writeStringRef(mPendingAttributes.get(i));
+        }
+        mPendingTag = null;
+        mPendingAttributes.clear();
+    }
+
+    private void writeStringRef(String value) throws IOException {
+        if (value == null) {
+            writeVarint(REF_NULL);
+            return;
+        }
+        final Integer index = mInterned.get(value);
+        if (index != null) {
+            writeVarint(index + REF_FIRST_INDEX);
+            return;
+        }
+        writeVarint(REF_NEW);
+        writeString(value);
+        mInterned.put(value, mInterned.size());
+    }
+
+    private void writeString(String value) throws IOException {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(bytes.length);
+        if (bytes.length > mBuffer.length - mPos) {
+            flushBuffer();
+            if (bytes.length > mBuffer.length) {
+                mOut.write(bytes);
+                return;
+            }
+        }
+        System.arraycopy(bytes, 0, mBuffer, mPos, bytes.length);
+        mPos += bytes.length;
+    }
+
+    private void writeVarint(int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        writeByte(value);
+    }
+
+    private void writeByte(int value) throws IOException {
+        if (mPos == mBuffer.length) {
+            flushBuffer();
+        }
+        mBuffer[mPos++] = (byte) value;
+    }
+
+    private void flushBuffer() throws IOException {
+        mOut.write(mBuffer, 0, mPos);
+        mPos = 0;
+    }
+}
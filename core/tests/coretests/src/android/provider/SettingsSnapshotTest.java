@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.provider;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.os.SharedMemory;
+import android.platform.test.annotations.Presubmit;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+@Presubmit
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class SettingsSnapshotTest {
+    @Test
+    public void testLookup() {
+        final char[] largeValue = new char[SettingsSnapshot.MAX_VALUE_LENGTH + 1];
+        Arrays.fill(largeValue, 'x');
+        final SharedMemory memory = SettingsSnapshot.write("test",
+                Arrays.asList("adb_enabled", "large", "null_value", "wifi_on", "\u00e9t\u00e9"),
+                Arrays.asList("1", new String(largeValue), null, "0", "\u2603"));
+        assertThat(memory).isNotNull();
+
+        final SettingsSnapshot snapshot = SettingsSnapshot.map(memory);
+        memory.close();
+        assertThat(snapshot).isNotNull();
+        try {
+            assertThat(snapshot.getValue(snapshot.indexOf("adb_enabled"))).isEqualTo("1");
+            assertThat(snapshot.getValue(snapshot.indexOf("wifi_on"))).isEqualTo("0");
+            assertThat(snapshot.getValue(snapshot.indexOf("\u00e9t\u00e9"))).isEqualTo("\u2603");
+
+            final int nullIndex = snapshot.indexOf("null_value");
+            assertThat(nullIndex).isAtLeast(0);
+            assertThat(snapshot.hasValue(nullIndex)).isTrue();
+            assertThat(snapshot.getValue(nullIndex)).isNull();
+
+            final int largeIndex = snapshot.indexOf("large");
+            assertThat(largeIndex).isAtLeast(0);
+            assertThat(snapshot.hasValue(largeIndex)).isFalse();
+
+            assertThat(snapshot.indexOf("adb")).isLessThan(0);
+            assertThat(snapshot.indexOf("adb_enabled_2")).isLessThan(0);
+            assertThat(snapshot.indexOf("zzz")).isLessThan(0);
+        } finally {
+            snapshot.unmap();
+        }
+    }
+
+    @Test
+    public void testEmpty() {
+        final SharedMemory memory = SettingsSnapshot.write("test", Collections.emptyList(),
+                Collections.emptyList());
+        final SettingsSnapshot snapshot = SettingsSnapshot.map(memory);
+        memory.close();
+        try {
+            assertThat(snapshot.indexOf("adb_enabled")).isLessThan(0);
+        } finally {
+            snapshot.unmap();
+        }
+    }
+}
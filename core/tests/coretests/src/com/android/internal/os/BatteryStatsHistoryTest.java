@@ -18,16 +18,20 @@ package com.android.internal.os;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import android.content.Context;
+import android.os.BatteryStats;
 import android.os.Parcel;
+import android.util.AtomicFile;
 import android.util.Log;
 
 import androidx.test.InstrumentationRegistry;
 import androidx.test.runner.AndroidJUnit4;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -139,6 +143,100 @@ public class BatteryStatsHistoryTest {
         verifyActiveFile(history2, "1.bin");
     }
 
+    @Test
+    public void testCompressedFiles() {
+        BatteryStatsHistory history = new BatteryStatsHistory(mBatteryStatsImpl, mSystemDir,
+                mHistoryBuffer, Runnable::run);
+        // Files 0 to 2 end at 1000, 2000 and 3000, and the files after file 0 start in the state
+        // the previous one ended with.
+        writeActiveFile(history, 1000, 0);
+        history.startNextFile(historyItem(90));
+        writeActiveFile(history, 2000, 1);
+        history.startNextFile(historyItem(80));
+        writeActiveFile(history, 3000, 2);
+        history.startNextFile(historyItem(70));
+        writeActiveFile(history, 4000, 3);
+        mHistoryBuffer.writeInt(3);
+        verifyFileNumbers(history, Arrays.asList(0, 1, 2, 3));
+        for (int i = 0; i < 3; i++) {
+            assertTrue(history.isFileCompressed(i));
+        }
+
+        final BatteryStats.HistoryItem item = new BatteryStats.HistoryItem();
+        history.startIteratingHistory();
+        for (int i = 0; i < 4; i++) {
+            assertEquals(i, history.getNextParcel(item).readInt());
+        }
+        assertNull(history.getNextParcel(item));
+        history.finishIteratingHistory();
+
+        verifyIteratingFrom(history, 500, 0, 0);
+        verifyIteratingFrom(history, 1000, 0, 0);
+        verifyIteratingFrom(history, 1500, 1, 90);
+        verifyIteratingFrom(history, 2500, 2, 80);
+        verifyIteratingFrom(history, 5000, 3, 70);
+
+        // A new object picks up the compressed files, but not what the active file starts with.
+        BatteryStatsHistory history2 = new BatteryStatsHistory(mBatteryStatsImpl, mSystemDir,
+                mHistoryBuffer, Runnable::run);
+        verifyIteratingFrom(history2, 2500, 2, 80);
+        verifyIteratingFrom(history2, 5000, 2, 80);
+    }
+
+    @Test
+    public void testCompressedFilesFitInDiskBudget() {
+        BatteryStatsHistory history = new BatteryStatsHistory(mBatteryStatsImpl, mSystemDir,
+                mHistoryBuffer, Runnable::run);
+        List<Integer> fileList = new ArrayList<>();
+        for (int i = 0; i < MAX_HISTORY_FILES * 2; i++) {
+            fileList.add(i);
+            writeActiveFile(history, i * 1000, i);
+            history.startNextFile(historyItem(100 - i));
+        }
+        fileList.add(MAX_HISTORY_FILES * 2);
+        createActiveFile(history);
+        // The compressed files are much smaller than a history buffer, so none was deleted.
+        verifyFileNumbers(history, fileList);
+    }
+
+    private void verifyIteratingFrom(BatteryStatsHistory history, long startTime,
+            int firstPayload, int batteryLevel) {
+        final BatteryStats.HistoryItem item = new BatteryStats.HistoryItem();
+        history.startIteratingHistory(startTime);
+        assertEquals(firstPayload, history.getNextParcel(item).readInt());
+        assertEquals(batteryLevel, item.batteryLevel);
+        history.finishIteratingHistory();
+    }
+
+    private BatteryStats.HistoryItem historyItem(int batteryLevel) {
+        final BatteryStats.HistoryItem item = new BatteryStats.HistoryItem();
+        item.batteryLevel = (byte) batteryLevel;
+        return item;
+    }
+
+    /**
+     * Writes the active file the way BatteryStatsImpl does, with a single int of history data.
+     */
+    private void writeActiveFile(BatteryStatsHistory history, long endTime, int payload) {
+        final Parcel p = Parcel.obtain();
+        p.writeInt(mBatteryStatsImpl.VERSION);
+        p.writeLong(endTime);
+        p.writeInt(4);
+        p.writeInt(payload);
+        final AtomicFile file = history.getActiveFile();
+        FileOutputStream fos = null;
+        try {
+            fos = file.startWrite();
+            fos.write(p.marshall());
+            file.finishWrite(fos);
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing history file " + file.getBaseFile().getPath(), e);
+            file.failWrite(fos);
+        } finally {
+            p.recycle();
+        }
+    }
+
     private void verifyActiveFile(BatteryStatsHistory history, String file) {
         final File expectedFile = new File(mHistoryDir, file);
         assertEquals(expectedFile.getPath(), history.getActiveFile().getBaseFile().getPath());
@@ -27,11 +27,14 @@ import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.when;
 
 import android.os.BatteryStats;
+import android.os.Parcel;
+import android.os.Process;
 import android.util.SparseArray;
 import android.util.SparseIntArray;
 import android.view.Display;
@@ -413,6 +416,100 @@ public class BatteryStatsImplTest {
                 * 1000, totalTime);
     }
 
+    @Test
+    public void testWriteUidSummary_idleUidReused() {
+        final int testUid = 10032;
+        mBatteryStatsImpl.updateTimeBasesLocked(true, Display.STATE_OFF, 0, 0);
+
+        final BatteryStatsImpl.Uid u = mBatteryStatsImpl.getUidStatsLocked(testUid);
+        final BatteryStatsImpl.Uid.Proc proc = u.getProcessStatsLocked("com.example");
+        proc.addCpuTimeLocked(100, 200, true);
+        final BatteryStatsImpl.Uid.Pkg.Serv serv =
+                u.getServiceStatsLocked("com.example", "com.example.Service");
+
+        final Parcel first = writeUidSummary(u, 1000);
+        assertNotNull(u.mSummaryCache);
+        final Parcel second = writeUidSummary(u, 5000);
+        assertTrue(first.compareData(second) != 0);
+        // Only the background time bases moved on
+        assertEquals(0, compareAfterTimeBases(first, second));
+
+        // Updates through references held outside of BatteryStatsImpl drop the cached section
+        proc.incStartsLocked();
+        assertNull(u.mSummaryCache);
+        final Parcel third = writeUidSummary(u, 5000);
+        assertTrue(second.compareData(third) != 0);
+        assertNotNull(u.mSummaryCache);
+
+        // The section of a running service depends on the current time so isn't kept
+        serv.startRunningLocked();
+        assertNull(u.mSummaryCache);
+        writeUidSummary(u, 6000).recycle();
+        assertNull(u.mSummaryCache);
+
+        first.recycle();
+        second.recycle();
+        third.recycle();
+    }
+
+    @Test
+    public void testWriteUidSummary_uidWithProcessNotCached() {
+        final int testUid = 10032;
+        mBatteryStatsImpl.updateTimeBasesLocked(true, Display.STATE_OFF, 0, 0);
+
+        final BatteryStatsImpl.Uid u = mBatteryStatsImpl.getUidStatsLocked(testUid);
+        u.setProcessStateForTest(PROCESS_STATE_TOP);
+        writeUidSummary(u, 1000).recycle();
+        assertNull(u.mSummaryCache);
+    }
+
+    @Test
+    public void testWriteUidSummary_droppedWhenTimeBasesStart() {
+        // Native uids never get a process state, their timers run while they look idle
+        final int testUid = Process.SYSTEM_UID;
+        mBatteryStatsImpl.updateTimeBasesLocked(false, Display.STATE_OFF, 0, 0);
+
+        final BatteryStatsImpl.Uid u = mBatteryStatsImpl.getUidStatsLocked(testUid);
+        u.noteAudioTurnedOnLocked(1000);
+        // A running timer doesn't count while the device is plugged in
+        final Parcel plugged = writeUidSummary(u, 2000);
+        assertNotNull(u.mSummaryCache);
+
+        mBatteryStatsImpl.updateTimeBasesLocked(true, Display.STATE_OFF, 3000 * 1000,
+                3000 * 1000);
+        assertNull(u.mSummaryCache);
+        final Parcel first = writeUidSummary(u, 5000);
+        assertNull(u.mSummaryCache);
+        final Parcel second = writeUidSummary(u, 9000);
+        assertTrue(compareAfterTimeBases(plugged, first) != 0);
+        assertTrue(compareAfterTimeBases(first, second) != 0);
+
+        plugged.recycle();
+        first.recycle();
+        second.recycle();
+    }
+
+    private Parcel writeUidSummary(BatteryStatsImpl.Uid u, long nowMs) {
+        final Parcel parcel = Parcel.obtain();
+        mBatteryStatsImpl.writeUidSummaryToParcelLocked(parcel, u, nowMs * 1000, nowMs * 1000);
+        return parcel;
+    }
+
+    /** Compares two uid summaries, skipping the uptime and realtime of both time bases. */
+    private static int compareAfterTimeBases(Parcel first, Parcel second) {
+        final int offset = 4 * Long.BYTES;
+        final Parcel firstRest = Parcel.obtain();
+        final Parcel secondRest = Parcel.obtain();
+        try {
+            firstRest.appendFrom(first, offset, first.dataSize() - offset);
+            secondRest.appendFrom(second, offset, second.dataSize() - offset);
+            return firstRest.compareData(secondRest);
+        } finally {
+            firstRest.recycle();
+            secondRest.recycle();
+        }
+    }
+
     private void addIsolatedUid(int parentUid, int childUid) {
         final BatteryStatsImpl.Uid u = mBatteryStatsImpl.getUidStatsLocked(parentUid);
         u.addIsolatedUid(childUid);
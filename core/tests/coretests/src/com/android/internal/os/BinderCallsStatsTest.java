@@ -78,9 +78,11 @@ public class BinderCallsStatsTest {
         callSession = bcs.callStarted(binder, 1, WORKSOURCE_UID);
         bcs.time += 20;
         bcs.callEnded(callSession, REQUEST_SIZE, REPLY_SIZE, WORKSOURCE_UID);
+        uidEntry = bcs.getUidEntries().get(WORKSOURCE_UID);
         assertEquals(2, uidEntry.callCount);
         assertEquals(1, uidEntry.recordedCallCount);
         assertEquals(10, uidEntry.cpuTimeMicros);
+        callStatsList = new ArrayList(uidEntry.getCallStatsList());
         assertEquals(1, callStatsList.size());
 
         callSession = bcs.callStarted(binder, 2, WORKSOURCE_UID);
@@ -603,6 +605,40 @@ public class BinderCallsStatsTest {
         assertEquals(-1 , callStats.callingUid);
     }
 
+    @Test
+    public void testOverflow_maxCountAcrossThreads() throws Exception {
+        TestBinderCallsStats bcs = new TestBinderCallsStats();
+        bcs.setDetailedTracking(true);
+        bcs.setSamplingInterval(1);
+        bcs.setMaxBinderCallStats(1);
+
+        // Calls from different threads are recorded in different shards, but the maximum
+        // applies to all of them.
+        Binder binder = new Binder();
+        for (int i = 0; i < 4; i++) {
+            final int code = i + 1;
+            Thread thread = new Thread(() -> {
+                CallSession callSession = bcs.callStarted(binder, code, WORKSOURCE_UID);
+                bcs.callEnded(callSession, REQUEST_SIZE, REPLY_SIZE, WORKSOURCE_UID);
+            });
+            thread.start();
+            thread.join();
+        }
+
+        List<BinderCallsStats.ExportedCallStat> callStatsList = bcs.getExportedCallStats();
+        assertEquals(2, callStatsList.size());
+        long overflowCallCount = 0;
+        for (BinderCallsStats.ExportedCallStat callStats : callStatsList) {
+            if ("com.android.internal.os.BinderCallsStats$OverflowBinder".equals(
+                    callStats.className)) {
+                overflowCallCount += callStats.callCount;
+            } else {
+                assertEquals("1", callStats.methodName);
+            }
+        }
+        assertEquals(3, overflowCallCount);
+    }
+
     @Test
     public void testOverflow_oneOverflowEntryPerUid() {
         TestBinderCallsStats bcs = new TestBinderCallsStats();
@@ -753,6 +789,66 @@ public class BinderCallsStatsTest {
         assertEquals(1, callStats.recordedCallCount);
     }
 
+    @Test
+    public void testLatencyHistograms() {
+        TestBinderCallsStats bcs = new TestBinderCallsStats();
+        bcs.setDetailedTracking(true);
+        bcs.setLatencyHistograms(true);
+        Binder binder = new Binder();
+
+        for (int i = 0; i < 100; i++) {
+            CallSession callSession = bcs.callStarted(binder, 1, WORKSOURCE_UID);
+            bcs.elapsedTime += i < 99 ? 10 : 5000;
+            bcs.callEnded(callSession, REQUEST_SIZE, REPLY_SIZE, WORKSOURCE_UID);
+        }
+
+        List<BinderCallsStats.ExportedCallStat> callStatsList = bcs.getExportedCallStats();
+        assertEquals(1, callStatsList.size());
+        LatencyHistogram histogram = callStatsList.get(0).latencyHistogram;
+        assertEquals(100, histogram.getCount());
+        assertEquals(10, histogram.getValueAtPercentile(50));
+        assertEquals(10, histogram.getValueAtPercentile(99));
+        assertEquals(5000, histogram.getValueAtPercentile(99.9));
+
+        bcs.setLatencyHistograms(false);
+        CallSession callSession = bcs.callStarted(binder, 1, WORKSOURCE_UID);
+        bcs.callEnded(callSession, REQUEST_SIZE, REPLY_SIZE, WORKSOURCE_UID);
+        assertEquals(null, bcs.getExportedCallStats().get(0).latencyHistogram);
+    }
+
+    @Test
+    public void testCallsFromManyThreadsAreMerged() throws Exception {
+        TestBinderCallsStats bcs = new TestBinderCallsStats();
+        bcs.setDetailedTracking(true);
+        Binder binder = new Binder();
+
+        Thread[] threads = new Thread[16];
+        for (int i = 0; i < threads.length; i++) {
+            final int requestSize = i;
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 100; j++) {
+                    CallSession callSession = bcs.callStarted(binder, 1, WORKSOURCE_UID);
+                    bcs.callEnded(callSession, requestSize, REPLY_SIZE, WORKSOURCE_UID);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        SparseArray<BinderCallsStats.UidEntry> uidEntries = bcs.getUidEntries();
+        assertEquals(1, uidEntries.size());
+        BinderCallsStats.UidEntry uidEntry = uidEntries.get(WORKSOURCE_UID);
+        assertEquals(1600, uidEntry.callCount);
+        assertEquals(1600, uidEntry.recordedCallCount);
+
+        List<BinderCallsStats.CallStat> callStatsList = new ArrayList(uidEntry.getCallStatsList());
+        assertEquals(1, callStatsList.size());
+        assertEquals(1600, callStatsList.get(0).callCount);
+        assertEquals(threads.length - 1, callStatsList.get(0).maxRequestSizeBytes);
+    }
+
     class TestBinderCallsStats extends BinderCallsStats {
         public int callingUid = CALLING_UID;
         public long time = 1234;
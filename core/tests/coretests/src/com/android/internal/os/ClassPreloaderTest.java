@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.internal.os;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.os.SystemClock;
+import android.platform.test.annotations.Presubmit;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+@Presubmit
+public class ClassPreloaderTest {
+    private static final String FINGERPRINT = "vendor/product/device:11/ID/1:user/release-keys";
+    private static final long SLOW_INIT_MS = 400;
+
+    private static final Set<String> sInitialized = Collections.synchronizedSet(new HashSet<>());
+    // The classes of the tests other than testPreload, which checks all of sInitialized
+    private static final Set<String> sOtherInitialized =
+            Collections.synchronizedSet(new HashSet<>());
+
+    @Test
+    public void testPreload() throws Exception {
+        final String prefix = ClassPreloaderTest.class.getName() + "$";
+        final ClassPreloader preloader = new ClassPreloader(getClass().getClassLoader(), 2, 3);
+        assertTrue(preloader.readProfile(new StringReader("# Comment\n"
+                + "\n"
+                + ClassPreloader.FINGERPRINT_KEY + " " + FINGERPRINT + "\n"
+                + prefix + "First 1000 0 1\n"
+                + prefix + "Second 500 0 2\n"
+                + prefix + "Third 500 1 2\n"
+                + prefix + "Unused 100 3 2\n"
+                + prefix + "Serial 100 0\n"
+                + "malformed line\n"), FINGERPRINT));
+
+        final int count = preloader.preload(Arrays.asList(prefix + "First", prefix + "Second",
+                prefix + "Third", prefix + "Unused", prefix + "Serial", prefix + "NotInProfile",
+                prefix + "Missing"));
+
+        assertEquals(5, count);
+        assertEquals(new HashSet<>(Arrays.asList("First", "Second", "Third", "Serial",
+                "NotInProfile")), sInitialized);
+    }
+
+    @Test
+    public void testReadProfile_otherBuild() throws Exception {
+        final String prefix = ClassPreloaderTest.class.getName() + "$";
+        final ClassPreloader preloader = new ClassPreloader(getClass().getClassLoader(), 2, 1);
+
+        assertFalse(preloader.readProfile(new StringReader(
+                ClassPreloader.FINGERPRINT_KEY + " other/build\n"
+                + prefix + "OtherBuildUnused 100 3 1\n"), FINGERPRINT));
+        assertFalse(preloader.readProfile(new StringReader(
+                prefix + "OtherBuildUnused 100 3 1\n"), FINGERPRINT));
+
+        // The unused class is still preloaded, as the profile is ignored
+        assertEquals(1, preloader.preload(Arrays.asList(prefix + "OtherBuildUnused")));
+        assertTrue(sOtherInitialized.contains("OtherBuildUnused"));
+    }
+
+    @Test
+    public void testPreload_groupErrors() throws Exception {
+        final String prefix = ClassPreloaderTest.class.getName() + "$";
+        final ClassPreloader preloader = new ClassPreloader(getClass().getClassLoader(), 2, 0);
+        preloader.readProfile(new StringReader(ClassPreloader.FINGERPRINT_KEY + " " + FINGERPRINT
+                + "\n"
+                + prefix + "Failing 100 0 1\n"
+                + prefix + "AfterFailing 100 0 1\n"), FINGERPRINT);
+
+        final int count = preloader.preload(Arrays.asList(prefix + "Failing",
+                prefix + "AfterFailing", prefix + "SerialAfterFailing"));
+
+        // The errors of the groups don't stop preloading, but discard the profile
+        assertEquals(2, count);
+        assertTrue(sOtherInitialized.contains("AfterFailing"));
+        assertTrue(sOtherInitialized.contains("SerialAfterFailing"));
+        assertTrue(preloader.hasProfileFailed());
+        assertFalse(preloader.hasStuckThreads());
+    }
+
+    @Test
+    public void testPreload_groupTimeout() throws Exception {
+        final String prefix = ClassPreloaderTest.class.getName() + "$";
+        // Times out while the slow class initializes, but not in the last wait for the threads
+        final ClassPreloader preloader = new ClassPreloader(getClass().getClassLoader(), 2, 0,
+                SLOW_INIT_MS * 3 / 4);
+        preloader.readProfile(new StringReader(ClassPreloader.FINGERPRINT_KEY + " " + FINGERPRINT
+                + "\n"
+                + prefix + "Slow 100 0 1\n"), FINGERPRINT);
+
+        final int count = preloader.preload(Arrays.asList(prefix + "Slow",
+                prefix + "SerialAfterSlow"));
+
+        // The classes are all initialized, as the slow thread finished in the end
+        assertEquals(2, count);
+        assertTrue(sOtherInitialized.contains("Slow"));
+        assertTrue(sOtherInitialized.contains("SerialAfterSlow"));
+        assertTrue(preloader.hasProfileFailed());
+        assertFalse(preloader.hasStuckThreads());
+    }
+
+    @Test
+    public void testPlanThreads() {
+        final List<ClassPreloader.Task> groups = new ArrayList<>();
+        for (long cost : new long[] {40, 100, 10, 60, 50}) {
+            final ClassPreloader.Task group = new ClassPreloader.Task();
+            group.add("Class" + cost, cost);
+            groups.add(group);
+        }
+
+        final List<List<ClassPreloader.Task>> plan = ClassPreloader.planThreads(groups, 2);
+
+        assertEquals(2, plan.size());
+        assertEquals(Arrays.asList("Class100", "Class40"), classNames(plan.get(0)));
+        assertEquals(Arrays.asList("Class60", "Class50", "Class10"), classNames(plan.get(1)));
+        assertEquals(1, ClassPreloader.planThreads(groups.subList(0, 1), 4).size());
+        assertTrue(ClassPreloader.planThreads(new ArrayList<>(), 4).isEmpty());
+    }
+
+    private static List<String> classNames(List<ClassPreloader.Task> tasks) {
+        final List<String> classNames = new ArrayList<>();
+        for (ClassPreloader.Task task : tasks) {
+            classNames.addAll(task.classNames);
+        }
+        return classNames;
+    }
+
+    private static class First {
+        static {
+            sInitialized.add("First");
+        }
+    }
+
+    private static class Second {
+        static {
+            sInitialized.add("Second");
+        }
+    }
+
+    private static class Third {
+        static {
+            sInitialized.add("Third");
+        }
+    }
+
+    private static class Unused {
+        static {
+            sInitialized.add("Unused");
+        }
+    }
+
+    private static class Serial {
+        static {
+            sInitialized.add("Serial");
+        }
+    }
+
+    private static class NotInProfile {
+        static {
+            sInitialized.add("NotInProfile");
+        }
+    }
+
+    private static class OtherBuildUnused {
+        static {
+            sOtherInitialized.add("OtherBuildUnused");
+        }
+    }
+
+    private static class Failing {
+        static {
+            if (true) {
+                throw new IllegalStateException("Failing to initialize");
+            }
+        }
+    }
+
+    private static class AfterFailing {
+        static {
+            sOtherInitialized.add("AfterFailing");
+        }
+    }
+
+    private static class SerialAfterFailing {
+        static {
+            sOtherInitialized.add("SerialAfterFailing");
+        }
+    }
+
+    private static class Slow {
+        static {
+            SystemClock.sleep(SLOW_INIT_MS);
+            sOtherInitialized.add("Slow");
+        }
+    }
+
+    private static class SerialAfterSlow {
+        static {
+            sOtherInitialized.add("SerialAfterSlow");
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.internal.os;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.platform.test.annotations.Presubmit;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+@Presubmit
+public class LatencyHistogramTest {
+    @Test
+    public void testBuckets() {
+        for (int i = 0; i < LatencyHistogram.BUCKET_COUNT; i++) {
+            final long lowerBound = LatencyHistogram.getBucketLowerBound(i);
+            assertEquals(i, LatencyHistogram.getBucketIndex(lowerBound));
+            assertEquals(i, LatencyHistogram.getBucketIndex(
+                    LatencyHistogram.getBucketLowerBound(i + 1) - 1));
+        }
+        assertEquals(0, LatencyHistogram.getBucketIndex(-1));
+        assertEquals(LatencyHistogram.BUCKET_COUNT - 1,
+                LatencyHistogram.getBucketIndex(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testPercentiles() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getValueAtPercentile(50));
+
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(100);
+        }
+        histogram.record(20_000);
+        histogram.record(1_000_000);
+
+        assertEquals(1002, histogram.getCount());
+        assertWithinPrecision(100, histogram.getValueAtPercentile(50));
+        assertWithinPrecision(100, histogram.getValueAtPercentile(99));
+        assertWithinPrecision(20_000, histogram.getValueAtPercentile(99.9));
+        assertEquals(1_000_000, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void testAdd() {
+        final LatencyHistogram first = new LatencyHistogram();
+        final LatencyHistogram second = new LatencyHistogram();
+        first.record(10);
+        second.record(5000);
+        second.record(5000);
+
+        final LatencyHistogram merged = new LatencyHistogram(first);
+        merged.add(second);
+
+        assertEquals(1, first.getCount());
+        assertEquals(3, merged.getCount());
+        assertWithinPrecision(10, merged.getValueAtPercentile(33));
+        assertWithinPrecision(5000, merged.getValueAtPercentile(50));
+    }
+
+    private static void assertWithinPrecision(long expected, long actual) {
+        assertTrue("Expected ~" + expected + " but was " + actual,
+                actual >= expected && actual <= expected + expected / 8);
+    }
+}
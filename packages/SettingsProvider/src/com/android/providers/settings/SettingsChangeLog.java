@@ -0,0 +1,350 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.settings;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.FileUtils;
+import android.util.Slog;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the settings changed since the settings state file was last written, so
+ * that a change doesn't rewrite the whole file.
+ *
+ * <p>The log starts with a header holding the generation of the state file it applies to, which
+ * is also stored in the state file. A log whose generation doesn't match is stale, e.g. because
+ * the process died after the state file was written but before the log was deleted, and is
+ * dropped. Then each change is appended as a record holding its length, a CRC32 and the
+ * setting, so a record torn by a crash ends the replay. Records hold the whole setting, so the
+ * last record of a setting wins.
+ *
+ * <p>The records are first buffered, which is cheap enough to do under the settings lock, then
+ * appended to the file by {@link #flush}.
+ */
+final class SettingsChangeLog {
+    private static final String TAG = "SettingsChangeLog";
+
+    private static final int MAGIC = 0x534c4f47; // SLOG
+
+    private static final int HEADER_SIZE = 12;
+
+    private static final int TYPE_PUT = 1;
+    private static final int TYPE_DELETE = 2;
+
+    /** Applies the replayed changes. */
+    interface Replayer {
+        void onPut(@NonNull String id, @NonNull String name, @Nullable String value,
+                @Nullable String defaultValue, @NonNull String packageName, @Nullable String tag,
+                boolean defaultFromSystem, boolean preservedInRestore);
+
+        void onDelete(@NonNull String name);
+    }
+
+    private final File mFile;
+
+    /** Serializes the file operations, always acquired before {@link #mLock}. */
+    private final Object mFileLock = new Object();
+    private final Object mLock = new Object();
+
+    @GuardedBy("mLock")
+    private final RecordBuffer mRecord = new RecordBuffer();
+    @GuardedBy("mLock")
+    private final DataOutputStream mRecordOut = new DataOutputStream(mRecord);
+    @GuardedBy("mLock")
+    private final ByteArrayOutputStream mPending = new ByteArrayOutputStream();
+    @GuardedBy("mLock")
+    private final DataOutputStream mPendingOut = new DataOutputStream(mPending);
+    @GuardedBy("mLock")
+    private final CRC32 mCrc = new CRC32();
+    /** The generation of the state file the buffered records apply to. */
+    @GuardedBy("mLock")
+    private long mGeneration;
+    @GuardedBy("mLock")
+    private long mSize;
+
+    /** The generation of the state file the records in the file apply to. */
+    @GuardedBy("mFileLock")
+    private long mFileGeneration;
+
+    SettingsChangeLog(@NonNull File file) {
+        mFile = file;
+    }
+
+    void writePut(@NonNull String id, @NonNull String name, @Nullable String value,
+            @Nullable String defaultValue, @NonNull String packageName, @Nullable String tag,
+            boolean defaultFromSystem, boolean preservedInRestore) {
+        synchronized (mLock) {
+            try {
+                mRecordOut.writeByte(TYPE_PUT);
+                writeStringLocked(id);
+                writeStringLocked(name);
+                writeStringLocked(value);
+                writeStringLocked(defaultValue);
+                writeStringLocked(packageName);
+                writeStringLocked(tag);
+                mRecordOut.writeBoolean(defaultFromSystem);
+                mRecordOut.writeBoolean(preservedInRestore);
+                commitRecordLocked();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    void writeDelete(@NonNull String name) {
+        synchronized (mLock) {
+            try {
+                mRecordOut.writeByte(TYPE_DELETE);
+                writeStringLocked(name);
+                commitRecordLocked();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /** Returns the size of the records which the next state file would make obsolete. */
+    long getSize() {
+        synchronized (mLock) {
+            return mSize;
+        }
+    }
+
+    /**
+     * Appends the buffered records to the file, unless they apply to a state file which isn't
+     * committed yet.
+     *
+     * @return the number of bytes written, or -1 if the write failed
+     */
+    long flush() {
+        synchronized (mFileLock) {
+            final byte[] data;
+            synchronized (mLock) {
+                if (mPending.size() == 0 || mGeneration != mFileGeneration) {
+                    return 0;
+                }
+                data = mPending.toByteArray();
+                mPending.reset();
+            }
+            return append(data);
+        }
+    }
+
+    /**
+     * Drops the buffered records as a new state file including them is about to be written, the
+     * next records apply to it.
+     */
+    void startGeneration(long generation) {
+        synchronized (mLock) {
+            mPending.reset();
+            mGeneration = generation;
+            mSize = 0;
+        }
+    }
+
+    /**
+     * Deletes the records made obsolete by the state file of the given generation, once it is
+     * committed. Then writes the records buffered since {@link #startGeneration}.
+     *
+     * @return the number of bytes written, or -1 if the write failed
+     */
+    long commitGeneration(long generation) {
+        synchronized (mFileLock) {
+            mFile.delete();
+            mFileGeneration = generation;
+        }
+        return flush();
+    }
+
+    /**
+     * Replays the records applying to the state file of the given generation, and drops the log
+     * if it applies to another one.
+     *
+     * @return the number of changes replayed
+     */
+    int replay(long generation, @NonNull Replayer replayer) {
+        synchronized (mFileLock) {
+            synchronized (mLock) {
+                mPending.reset();
+                mGeneration = generation;
+                mSize = 0;
+            }
+            mFileGeneration = generation;
+
+            final long fileLength = mFile.length();
+            final DataInputStream in;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            } catch (FileNotFoundException e) {
+                return 0;
+            }
+            final CRC32 crc = new CRC32();
+            int count = 0;
+            long validLength = 0;
+            try {
+                if (in.readInt() != MAGIC) {
+                    Slog.w(TAG, "Invalid header in " + mFile);
+                } else if (in.readLong() != generation) {
+                    Slog.i(TAG, "Dropping stale " + mFile);
+                } else {
+                    validLength = HEADER_SIZE;
+                    while (true) {
+                        final int length;
+                        try {
+                            length = in.readInt();
+                        } catch (EOFException e) {
+                            break;
+                        }
+                        final int expectedCrc = in.readInt();
+                        if (length <= 0 || length > fileLength - validLength - 8) {
+                            Slog.w(TAG, "Invalid record length " + length + " in " + mFile);
+                            break;
+                        }
+                        final byte[] record = new byte[length];
+                        in.readFully(record);
+                        crc.reset();
+                        crc.update(record, 0, length);
+                        if ((int) crc.getValue() != expectedCrc) {
+                            Slog.w(TAG, "Corrupted record in " + mFile);
+                            break;
+                        }
+                        replayRecord(new DataInputStream(new ByteArrayInputStream(record)),
+                                replayer);
+                        validLength += 8 + length;
+                        count++;
+                    }
+                }
+            } catch (EOFException e) {
+                Slog.w(TAG, "Truncated record in " + mFile);
+            } catch (IOException e) {
+                Slog.w(TAG, "Failed to read " + mFile, e);
+            } finally {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+
+            if (validLength == 0) {
+                mFile.delete();
+            } else if (validLength < fileLength) {
+                // Drop the torn records, so that the next records are appended after valid ones.
+                try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+                    raf.setLength(validLength);
+                } catch (IOException e) {
+                    Slog.w(TAG, "Failed to truncate " + mFile, e);
+                }
+            }
+            synchronized (mLock) {
+                mSize = validLength;
+            }
+            return count;
+        }
+    }
+
+    private static void replayRecord(DataInputStream in, Replayer replayer) throws IOException {
+        final int type = in.readByte();
+        switch (type) {
+            case TYPE_PUT:
+                replayer.onPut(readString(in), readString(in), readString(in), readString(in),
+                        readString(in), readString(in), in.readBoolean(), in.readBoolean());
+                break;
+            case TYPE_DELETE:
+                replayer.onDelete(readString(in));
+                break;
+            default:
+                Slog.w(TAG, "Skipping record of unknown type " + type);
+        }
+    }
+
+    /** Writes the chars of the string, as values may hold anything, including binary data. */
+    @GuardedBy("mLock")
+    private void writeStringLocked(@Nullable String value) throws IOException {
+        if (value == null) {
+            mRecordOut.writeInt(-1);
+            return;
+        }
+        mRecordOut.writeInt(value.length());
+        mRecordOut.writeChars(value);
+    }
+
+    private static @Nullable String readString(DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        final char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = in.readChar();
+        }
+        return new String(chars);
+    }
+
+    @GuardedBy("mLock")
+    private void commitRecordLocked() throws IOException {
+        final int length = mRecord.size();
+        mCrc.reset();
+        mCrc.update(mRecord.getBuffer(), 0, length);
+        mPendingOut.writeInt(length);
+        mPendingOut.writeInt((int) mCrc.getValue());
+        mPendingOut.write(mRecord.getBuffer(), 0, length);
+        mRecord.reset();
+        mSize += 8 + length;
+    }
+
+    @GuardedBy("mFileLock")
+    private long append(byte[] data) {
+        final boolean newFile = mFile.length() == 0;
+        try (FileOutputStream out = new FileOutputStream(mFile, true)) {
+            final DataOutputStream dataOut = new DataOutputStream(out);
+            if (newFile) {
+                dataOut.writeInt(MAGIC);
+                dataOut.writeLong(mFileGeneration);
+            }
+            dataOut.write(data);
+            dataOut.flush();
+            FileUtils.sync(out);
+            return (newFile ? HEADER_SIZE : 0) + data.length;
+        } catch (IOException e) {
+            Slog.w(TAG, "Failed to write " + mFile, e);
+            return -1;
+        }
+    }
+
+    /** Gives access to the bytes of the record being written without copying them. */
+    private static final class RecordBuffer extends ByteArrayOutputStream {
+        byte[] getBuffer() {
+            return buf;
+        }
+    }
+}
@@ -72,6 +72,7 @@ import android.os.RemoteCallback;
 import android.os.RemoteException;
 import android.os.SELinux;
 import android.os.ServiceManager;
+import android.os.SharedMemory;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.provider.DeviceConfig;
@@ -366,7 +367,11 @@ public class SettingsProvider extends ContentProvider {
 
             case Settings.CALL_METHOD_GET_GLOBAL: {
                 Setting setting = getGlobalSetting(name);
-                return packageValueForCallResult(setting, isTrackingGeneration(args));
+                Bundle result = packageValueForCallResult(setting, isTrackingGeneration(args));
+                if (isRequestingSnapshot(args)) {
+                    addGlobalSnapshot(result);
+                }
+                return result;
             }
 
             case Settings.CALL_METHOD_GET_SECURE: {
@@ -380,6 +385,21 @@ public class SettingsProvider extends ContentProvider {
                 return packageValueForCallResult(setting, isTrackingGeneration(args));
             }
 
+            case Settings.CALL_METHOD_GET_BATCH_GLOBAL: {
+                return packageSettingsForCallResult(SETTINGS_TYPE_GLOBAL,
+                        getSettingNames(args), requestingUserId, isTrackingGeneration(args));
+            }
+
+            case Settings.CALL_METHOD_GET_BATCH_SECURE: {
+                return packageSettingsForCallResult(SETTINGS_TYPE_SECURE,
+                        getSettingNames(args), requestingUserId, isTrackingGeneration(args));
+            }
+
+            case Settings.CALL_METHOD_GET_BATCH_SYSTEM: {
+                return packageSettingsForCallResult(SETTINGS_TYPE_SYSTEM,
+                        getSettingNames(args), requestingUserId, isTrackingGeneration(args));
+            }
+
             case Settings.CALL_METHOD_PUT_CONFIG: {
                 String value = getSettingValue(args);
                 final boolean makeDefault = getSettingMakeDefault(args);
@@ -2179,6 +2199,73 @@ public class SettingsProvider extends ContentProvider {
         return result;
     }
 
+    /**
+     * Reads several settings, with the same checks as reading them one by one. The generation
+     * is only added if they all come from the same table, which isn't the case for the secure
+     * settings of a profile cloned from its parent.
+     */
+    private Bundle packageSettingsForCallResult(int type, List<String> names,
+            int requestingUserId, boolean trackingGeneration) {
+        final HashMap<String, String> keyValues = new HashMap<>();
+        int key = -1;
+        boolean sameKey = true;
+        for (int i = 0; i < names.size(); i++) {
+            final String name = names.get(i);
+            final Setting setting;
+            switch (type) {
+                case SETTINGS_TYPE_GLOBAL:
+                    setting = getGlobalSetting(name);
+                    break;
+                case SETTINGS_TYPE_SECURE:
+                    setting = getSecureSetting(name, requestingUserId, /*enableOverride=*/ true);
+                    break;
+                case SETTINGS_TYPE_SYSTEM:
+                    setting = getSystemSetting(name, requestingUserId);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Invalid settings type:" + type);
+            }
+            if (setting == null) {
+                keyValues.put(name, null);
+                continue;
+            }
+            keyValues.put(name, !setting.isNull() ? setting.getValue() : null);
+            if (key == -1) {
+                key = setting.getKey();
+            } else if (key != setting.getKey()) {
+                sameKey = false;
+            }
+        }
+
+        Bundle result = new Bundle();
+        result.putSerializable(Settings.NameValueTable.VALUE, keyValues);
+        if (trackingGeneration && sameKey && key != -1) {
+            mSettingsRegistry.mGenerationRegistry.addGenerationData(result, key);
+        }
+        return result;
+    }
+
+    /** Adds the snapshot of the global settings, shared by all the clients. */
+    private void addGlobalSnapshot(Bundle result) {
+        final int key = makeKey(SETTINGS_TYPE_GLOBAL, UserHandle.USER_SYSTEM);
+        synchronized (mLock) {
+            final int generation = mSettingsRegistry.mGenerationRegistry.getGeneration(key);
+            if (generation < 0) {
+                return;
+            }
+            final SettingsState settingsState = mSettingsRegistry.getSettingsLocked(
+                    SETTINGS_TYPE_GLOBAL, UserHandle.USER_SYSTEM);
+            if (settingsState == null) {
+                return;
+            }
+            final SharedMemory snapshot = settingsState.getSnapshotLocked(generation);
+            if (snapshot != null) {
+                result.putParcelable(Settings.CALL_METHOD_SNAPSHOT_KEY, snapshot);
+                result.putInt(Settings.CALL_METHOD_SNAPSHOT_GENERATION_KEY, generation);
+            }
+        }
+    }
+
     private Bundle packageValuesForCallResult(HashMap<String, String> keyValues,
             boolean trackingGeneration) {
         Bundle result = new Bundle();
@@ -2257,6 +2344,16 @@ public class SettingsProvider extends ContentProvider {
         return args != null && args.containsKey(Settings.CALL_METHOD_TRACK_GENERATION_KEY);
     }
 
+    private static boolean isRequestingSnapshot(Bundle args) {
+        return args != null && args.containsKey(Settings.CALL_METHOD_SNAPSHOT_KEY);
+    }
+
+    private static List<String> getSettingNames(Bundle args) {
+        final List<String> names =
+                (args != null) ? args.getStringArrayList(Settings.CALL_METHOD_NAMES_KEY) : null;
+        return (names != null) ? names : Collections.emptyList();
+    }
+
     private static String getSettingValue(Bundle args) {
         return (args != null) ? args.getString(Settings.NameValueTable.VALUE) : null;
     }
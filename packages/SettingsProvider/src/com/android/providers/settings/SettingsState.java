@@ -20,6 +20,7 @@ import static android.os.Process.FIRST_APPLICATION_UID;
 import static android.os.Process.INVALID_UID;
 
 import android.annotation.NonNull;
+import android.annotation.Nullable;
 import android.content.Context;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
@@ -31,13 +32,16 @@ import android.os.FileUtils;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SharedMemory;
 import android.os.SystemClock;
 import android.os.UserHandle;
 import android.provider.Settings;
 import android.provider.Settings.Global;
+import android.provider.SettingsSnapshot;
 import android.providers.settings.SettingsOperationProto;
 import android.text.TextUtils;
 import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.AtomicFile;
 import android.util.Base64;
 import android.util.Slog;
@@ -47,6 +51,7 @@ import android.util.Xml;
 import android.util.proto.ProtoOutputStream;
 
 import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.ArrayUtils;
 import com.android.internal.util.FrameworkStatsLog;
 
@@ -66,6 +71,7 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -78,6 +84,12 @@ import java.util.Set;
  * for saving the state asynchronously to an XML file after a mutation and
  * loading the from an XML file on construction.
  * <p>
+ * To not rewrite the whole XML file for each mutation, the changed settings are
+ * appended to a {@link SettingsChangeLog} next to it, which is replayed on top
+ * of the XML file when loading. The XML file is written again once the log
+ * grows larger than it.
+ * </p>
+ * <p>
  * This class uses the same lock as the settings provider to ensure that
  * multiple changes made by the settings provider, e,g, upgrade, bulk insert,
  * etc, are atomically persisted since the asynchronous persistence is using
@@ -104,6 +116,12 @@ final class SettingsState {
 
     public static final String FALLBACK_FILE_SUFFIX = ".fallback";
 
+    public static final String CHANGE_LOG_FILE_SUFFIX = ".log";
+
+    // The state file is written again once the log of the changes grows past its size, and at
+    // least this size, so that each write is at most written twice.
+    private static final long MIN_COMPACTION_LOG_SIZE = 16 * 1024;
+
     private static final String TAG_SETTINGS = "settings";
     private static final String TAG_SETTING = "setting";
     private static final String ATTR_PACKAGE = "package";
@@ -112,6 +130,7 @@ final class SettingsState {
     private static final String ATTR_TAG_BASE64 = "tagBase64";
 
     private static final String ATTR_VERSION = "version";
+    private static final String ATTR_LOG_GENERATION = "logGeneration";
     private static final String ATTR_ID = "id";
     private static final String ATTR_NAME = "name";
 
@@ -217,6 +236,33 @@ final class SettingsState {
     @GuardedBy("mLock")
     private int mNextHistoricalOpIdx;
 
+    @GuardedBy("mLock")
+    private final SettingsChangeLog mChangeLog;
+
+    // The settings changed since the last write, which can be written to the change log.
+    @GuardedBy("mLock")
+    private final ArraySet<String> mChangedNames = new ArraySet<>();
+
+    // Whether a change can't be written to the change log, so the state file is written again.
+    @GuardedBy("mLock")
+    private boolean mFullWriteNeeded;
+
+    // The generation of the state file, which the change log must match to be replayed.
+    @GuardedBy("mLock")
+    private long mLogGeneration;
+
+    @GuardedBy("mLock")
+    private long mStateFileSize;
+
+    @GuardedBy("mLock")
+    private long mBytesWritten;
+
+    @GuardedBy("mLock")
+    private SharedMemory mSnapshot;
+
+    @GuardedBy("mLock")
+    private int mSnapshotGeneration;
+
     public static final int SETTINGS_TYPE_GLOBAL = 0;
     public static final int SETTINGS_TYPE_SYSTEM = 1;
     public static final int SETTINGS_TYPE_SECURE = 2;
@@ -275,6 +321,7 @@ final class SettingsState {
         mLock = lock;
         mStatePersistFile = file;
         mStatePersistTag = "settings-" + getTypeFromKey(key) + "-" + getUserIdFromKey(key);
+        mChangeLog = new SettingsChangeLog(new File(file.getPath() + CHANGE_LOG_FILE_SUFFIX));
         mKey = key;
         mHandler = new MyHandler(looper);
         if (maxBytesPerAppPackage == MAX_BYTES_PER_APP_PACKAGE_LIMITED) {
@@ -311,7 +358,7 @@ final class SettingsState {
         }
         mVersion = version;
 
-        scheduleWriteIfNeededLocked();
+        scheduleFullWriteLocked();
     }
 
     // The settings provider must hold its lock when calling here.
@@ -330,6 +377,7 @@ final class SettingsState {
             Setting setting = mSettings.valueAt(i);
             if (packageName.equals(setting.packageName)) {
                 mSettings.removeAt(i);
+                mChangedNames.add(name);
                 removedSomething = true;
             }
         }
@@ -351,6 +399,35 @@ final class SettingsState {
         return names;
     }
 
+    /**
+     * Returns a read-only copy of the settings in shared memory, which clients can read while
+     * the generation of the settings is unchanged. The copy is only taken again once the
+     * generation changed.
+     *
+     * @param generation the current generation, read before calling here so that the copy is
+     *     never older than the generation
+     */
+    // The settings provider must hold its lock when calling here.
+    @GuardedBy("mLock")
+    public @Nullable SharedMemory getSnapshotLocked(int generation) {
+        if (mSnapshot != null && mSnapshotGeneration == generation) {
+            return mSnapshot;
+        }
+        // Not closed as a response may still be sending it, it is released once collected.
+        mSnapshot = null;
+
+        final ArrayList<String> names = new ArrayList<>(mSettings.keySet());
+        Collections.sort(names);
+        final ArrayList<String> values = new ArrayList<>(names.size());
+        for (int i = 0; i < names.size(); i++) {
+            final Setting setting = mSettings.get(names.get(i));
+            values.add(setting.isNull() ? null : setting.getValue());
+        }
+        mSnapshot = SettingsSnapshot.write(keyToString(mKey), names, values);
+        mSnapshotGeneration = generation;
+        return mSnapshot;
+    }
+
     // The settings provider must hold its lock when calling here.
     @GuardedBy("mLock")
     public Setting getSettingLocked(String name) {
@@ -387,7 +464,7 @@ final class SettingsState {
             mSettings.put(name, newSetting);
             updateMemoryUsagePerPackageLocked(newSetting.getPackageName(), oldValue,
                     newSetting.getValue(), oldDefaultValue, newSetting.getDefaultValue());
-            scheduleWriteIfNeededLocked();
+            scheduleWriteIfNeededLocked(name);
         }
     }
 
@@ -442,7 +519,7 @@ final class SettingsState {
         updateMemoryUsagePerPackageLocked(packageName, oldValue, value,
                 oldDefaultValue, newState.getDefaultValue());
 
-        scheduleWriteIfNeededLocked();
+        scheduleWriteIfNeededLocked(name);
 
         return true;
     }
@@ -467,7 +544,7 @@ final class SettingsState {
         // to unban all unbanned namespaces.
         if (mNamespaceBannedHashes.get(prefix) != null) {
             mNamespaceBannedHashes.clear();
-            scheduleWriteIfNeededLocked();
+            scheduleFullWriteLocked();
         }
     }
 
@@ -479,6 +556,7 @@ final class SettingsState {
         // The write is intentionally not scheduled here, banned hashes should and will be written
         // when the related setting changes are written
         mNamespaceBannedHashes.put(prefix, hashCode(keyValues));
+        mFullWriteNeeded = true;
     }
 
     @GuardedBy("mLock")
@@ -538,6 +616,7 @@ final class SettingsState {
         }
 
         if (!changedKeys.isEmpty()) {
+            mChangedNames.addAll(changedKeys);
             scheduleWriteIfNeededLocked();
         }
 
@@ -568,7 +647,7 @@ final class SettingsState {
 
         addHistoricalOperationLocked(HISTORICAL_OPERATION_DELETE, oldState);
 
-        scheduleWriteIfNeededLocked();
+        scheduleWriteIfNeededLocked(name);
 
         return true;
     }
@@ -598,7 +677,7 @@ final class SettingsState {
 
         addHistoricalOperationLocked(HISTORICAL_OPERATION_RESET, oldSetting);
 
-        scheduleWriteIfNeededLocked();
+        scheduleWriteIfNeededLocked(name);
 
         return true;
     }
@@ -742,6 +821,18 @@ final class SettingsState {
         return mSettings.indexOfKey(name) >= 0;
     }
 
+    @GuardedBy("mLock")
+    private void scheduleWriteIfNeededLocked(String changedName) {
+        mChangedNames.add(changedName);
+        scheduleWriteIfNeededLocked();
+    }
+
+    @GuardedBy("mLock")
+    private void scheduleFullWriteLocked() {
+        mFullWriteNeeded = true;
+        scheduleWriteIfNeededLocked();
+    }
+
     @GuardedBy("mLock")
     private void scheduleWriteIfNeededLocked() {
         // If dirty then we have a write already scheduled.
@@ -786,15 +877,52 @@ final class SettingsState {
         final int version;
         final ArrayMap<String, Setting> settings;
         final ArrayMap<String, String> namespaceBannedHashes;
+        final long logGeneration;
 
         synchronized (mLock) {
-            version = mVersion;
-            settings = new ArrayMap<>(mSettings);
-            namespaceBannedHashes = new ArrayMap<>(mNamespaceBannedHashes);
             mDirty = false;
             mWriteScheduled = false;
+
+            // Only the changed settings are written to the log, until it is large enough that
+            // writing the state file again costs less than replaying it.
+            if (!mFullWriteNeeded) {
+                logChangedSettingsLocked();
+            }
+            mChangedNames.clear();
+            if (!mFullWriteNeeded && mChangeLog.getSize()
+                    < Math.max(MIN_COMPACTION_LOG_SIZE, mStateFileSize)) {
+                version = VERSION_UNDEFINED;
+                settings = null;
+                namespaceBannedHashes = null;
+                logGeneration = mLogGeneration;
+            } else {
+                mFullWriteNeeded = false;
+                version = mVersion;
+                settings = new ArrayMap<>(mSettings);
+                namespaceBannedHashes = new ArrayMap<>(mNamespaceBannedHashes);
+                logGeneration = ++mLogGeneration;
+                mChangeLog.startGeneration(logGeneration);
+            }
         }
 
+        if (settings == null) {
+            final long bytesWritten;
+            synchronized (mWriteLock) {
+                bytesWritten = mChangeLog.flush();
+            }
+            synchronized (mLock) {
+                if (bytesWritten < 0) {
+                    // The log may end with a torn record now, so start over from a state file.
+                    scheduleFullWriteLocked();
+                } else {
+                    mBytesWritten += bytesWritten;
+                }
+            }
+            return;
+        }
+
+        long stateFileSize = 0;
+        long logBytesWritten = 0;
         synchronized (mWriteLock) {
             if (DEBUG_PERSISTENCE) {
                 Slog.i(LOG_TAG, "[PERSIST START]");
@@ -812,6 +940,7 @@ final class SettingsState {
                 serializer.startDocument(null, true);
                 serializer.startTag(null, TAG_SETTINGS);
                 serializer.attribute(null, ATTR_VERSION, String.valueOf(version));
+                serializer.attribute(null, ATTR_LOG_GENERATION, String.valueOf(logGeneration));
 
                 final int settingCount = settings.size();
                 for (int i = 0; i < settingCount; i++) {
@@ -850,6 +979,9 @@ final class SettingsState {
                 serializer.endDocument();
                 destination.finishWrite(out);
 
+                stateFileSize = destination.getBaseFile().length();
+                logBytesWritten = mChangeLog.commitGeneration(logGeneration);
+
                 wroteState = true;
 
                 if (DEBUG_PERSISTENCE) {
@@ -880,13 +1012,45 @@ final class SettingsState {
             }
         }
 
-        if (wroteState) {
-            synchronized (mLock) {
+        synchronized (mLock) {
+            if (wroteState) {
+                mStateFileSize = stateFileSize;
+                mBytesWritten += stateFileSize + Math.max(logBytesWritten, 0);
                 addHistoricalOperationLocked(HISTORICAL_OPERATION_PERSIST, null);
             }
+            if (!wroteState) {
+                // The change log applies to a state file which wasn't written, the next write
+                // must write the state file again.
+                mFullWriteNeeded = true;
+            } else if (logBytesWritten < 0) {
+                scheduleFullWriteLocked();
+            }
         }
     }
 
+    @GuardedBy("mLock")
+    private void logChangedSettingsLocked() {
+        final int changedCount = mChangedNames.size();
+        for (int i = 0; i < changedCount; i++) {
+            final String name = mChangedNames.valueAt(i);
+            final Setting setting = mSettings.get(name);
+            if (setting == null) {
+                mChangeLog.writeDelete(name);
+            } else if (!setting.isTransient()) {
+                mChangeLog.writePut(setting.getId(), name, setting.getValue(),
+                        setting.getDefaultValue(), setting.getPackageName(), setting.getTag(),
+                        setting.isDefaultFromSystem(), setting.isValuePreservedInRestore());
+            }
+        }
+    }
+
+    /** Returns the number of bytes written to persist the settings so far. */
+    @VisibleForTesting
+    @GuardedBy("mLock")
+    long getBytesWrittenLocked() {
+        return mBytesWritten;
+    }
+
     private static void logSettingsDirectoryInformation(File settingsFile) {
         File parent = settingsFile.getParentFile();
         Slog.i(LOG_TAG, "directory info for directory/file " + settingsFile
@@ -1002,6 +1166,34 @@ final class SettingsState {
 
     @GuardedBy("mLock")
     private void readStateSyncLocked() throws IllegalStateException {
+        readStateFileLocked();
+
+        final int changeCount = mChangeLog.replay(mLogGeneration,
+                new SettingsChangeLog.Replayer() {
+                    @Override
+                    public void onPut(String id, String name, String value, String defaultValue,
+                            String packageName, String tag, boolean defaultFromSystem,
+                            boolean preservedInRestore) {
+                        mSettings.put(name, new Setting(name, value, defaultValue, packageName,
+                                tag, defaultFromSystem, id, preservedInRestore));
+                    }
+
+                    @Override
+                    public void onDelete(String name) {
+                        mSettings.remove(name);
+                    }
+                });
+        if (changeCount > 0) {
+            Slog.i(LOG_TAG, "Replayed " + changeCount + " setting changes for "
+                    + keyToString(mKey));
+        }
+        mStateFileSize = mStatePersistFile.length();
+        // The changes can only be logged for a state file with a generation
+        mFullWriteNeeded = mLogGeneration == 0;
+    }
+
+    @GuardedBy("mLock")
+    private void readStateFileLocked() throws IllegalStateException {
         FileInputStream in;
         AtomicFile file = new AtomicFile(mStatePersistFile);
         try {
@@ -1090,6 +1282,8 @@ final class SettingsState {
             throws IOException, XmlPullParserException {
 
         mVersion = Integer.parseInt(parser.getAttributeValue(null, ATTR_VERSION));
+        final String logGeneration = parser.getAttributeValue(null, ATTR_LOG_GENERATION);
+        mLogGeneration = logGeneration != null ? Long.parseLong(logGeneration) : 0;
 
         final int outerDepth = parser.getDepth();
         int type;
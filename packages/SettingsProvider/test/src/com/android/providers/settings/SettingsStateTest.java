@@ -17,6 +17,7 @@ package com.android.providers.settings;
 
 import android.os.Looper;
 import android.test.AndroidTestCase;
+import android.util.Log;
 import android.util.Xml;
 
 import org.xmlpull.v1.XmlSerializer;
@@ -25,9 +26,12 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.PrintStream;
+import java.io.RandomAccessFile;
 import java.nio.charset.StandardCharsets;
 
 public class SettingsStateTest extends AndroidTestCase {
+    private static final String TAG = "SettingsStateTest";
+
     public static final String CRAZY_STRING =
             "\u0000\u0001\u0002\u0003\u0004\u0005\u0006\u0007\u0008\u0009\n\u000b\u000c\r" +
             "\u000e\u000f\u0010\u0011\u0012\u0013\u0014\u0015\u0016\u0017\u0018\u0019\u001a" +
@@ -53,11 +57,14 @@ public class SettingsStateTest extends AndroidTestCase {
     private final Object mLock = new Object();
 
     private File mSettingsFile;
+    private File mChangeLogFile;
 
     @Override
     protected void setUp() {
         mSettingsFile = new File(getContext().getCacheDir(), "setting.xml");
         mSettingsFile.delete();
+        mChangeLogFile = new File(mSettingsFile.getPath() + SettingsState.CHANGE_LOG_FILE_SUFFIX);
+        mChangeLogFile.delete();
     }
 
     public void testIsBinary() {
@@ -274,6 +281,111 @@ public class SettingsStateTest extends AndroidTestCase {
         assertTrue(settingsState.getSettingLocked(SETTING_NAME).isValuePreservedInRestore());
     }
 
+    /**
+     * Make sure the changes written to the change log after the settings file are read back.
+     */
+    public void testReadWrite_changeLog() {
+        SettingsState settingsWriter = getSettingStateObject();
+        settingsWriter.insertSettingLocked("k1", "v1", null, false, TEST_PACKAGE);
+        settingsWriter.insertSettingLocked("k2", "v2", null, false, TEST_PACKAGE);
+        settingsWriter.persistSyncLocked();
+        final long settingsFileLength = mSettingsFile.length();
+
+        settingsWriter.insertSettingLocked("k1", CRAZY_STRING, null, false, TEST_PACKAGE);
+        settingsWriter.deleteSettingLocked("k2");
+        settingsWriter.insertSettingLocked("k3", null, null, false, TEST_PACKAGE);
+        settingsWriter.persistSyncLocked();
+        assertEquals(settingsFileLength, mSettingsFile.length());
+        assertTrue(mChangeLogFile.exists());
+
+        SettingsState settingsReader = getSettingStateObject();
+        assertEquals(CRAZY_STRING, settingsReader.getSettingLocked("k1").getValue());
+        assertTrue(settingsReader.getSettingLocked("k2").isNull());
+        assertFalse(settingsReader.getSettingLocked("k3").isNull());
+        assertEquals(null, settingsReader.getSettingLocked("k3").getValue());
+    }
+
+    /**
+     * Make sure a change torn by a crash doesn't prevent reading the previous changes.
+     */
+    public void testReadWrite_tornChangeLog() throws Exception {
+        SettingsState settingsWriter = getSettingStateObject();
+        settingsWriter.insertSettingLocked("k1", "v1", null, false, TEST_PACKAGE);
+        settingsWriter.persistSyncLocked();
+        settingsWriter.insertSettingLocked("k1", "v2", null, false, TEST_PACKAGE);
+        settingsWriter.persistSyncLocked();
+        final long changeLogLength = mChangeLogFile.length();
+        settingsWriter.insertSettingLocked("k1", "v3", null, false, TEST_PACKAGE);
+        settingsWriter.persistSyncLocked();
+
+        try (RandomAccessFile raf = new RandomAccessFile(mChangeLogFile, "rw")) {
+            raf.setLength(mChangeLogFile.length() - 1);
+        }
+
+        SettingsState settingsReader = getSettingStateObject();
+        assertEquals("v2", settingsReader.getSettingLocked("k1").getValue());
+        assertEquals(changeLogLength, mChangeLogFile.length());
+    }
+
+    /**
+     * Make sure a change log left by a settings file which was replaced isn't replayed.
+     */
+    public void testReadWrite_staleChangeLog() throws Exception {
+        SettingsState settingsWriter = getSettingStateObject();
+        settingsWriter.insertSettingLocked("k1", "v1", null, false, TEST_PACKAGE);
+        settingsWriter.persistSyncLocked();
+        settingsWriter.insertSettingLocked("k1", "v2", null, false, TEST_PACKAGE);
+        settingsWriter.persistSyncLocked();
+
+        mSettingsFile.delete();
+        SettingsState settingsReader = getSettingStateObject();
+        assertTrue(settingsReader.getSettingLocked("k1").isNull());
+        assertFalse(mChangeLogFile.exists());
+    }
+
+    /**
+     * Measures the bytes written to persist a stream of changes to a few settings among many,
+     * as an app repeatedly putting a setting does, against rewriting the settings file each time.
+     */
+    public void testWriteAmplification() {
+        final int settingCount = 300;
+        final int changeCount = 2000;
+
+        SettingsState settingsState = getSettingStateObject();
+        for (int i = 0; i < settingCount; i++) {
+            settingsState.insertSettingLocked("setting_" + i, "value_" + i, null, false,
+                    TEST_PACKAGE);
+        }
+        settingsState.persistSyncLocked();
+        final long settingsFileLength = mSettingsFile.length();
+        final long initialBytesWritten = settingsState.getBytesWrittenLocked();
+
+        long changedBytes = 0;
+        for (int i = 0; i < changeCount; i++) {
+            final String name = "setting_" + (i % 4);
+            final String value = String.valueOf(i);
+            settingsState.insertSettingLocked(name, value, null, false, TEST_PACKAGE);
+            settingsState.persistSyncLocked();
+            changedBytes += name.length() + value.length();
+        }
+        final long bytesWritten = settingsState.getBytesWrittenLocked() - initialBytesWritten;
+        final long fullRewriteBytes = changeCount * settingsFileLength;
+
+        Log.i(TAG, "Persisted " + changeCount + " changes of " + changedBytes
+                + " bytes with " + bytesWritten + " bytes written, "
+                + (bytesWritten / changedBytes) + "x amplification, rewriting the "
+                + settingsFileLength + " bytes settings file would write " + fullRewriteBytes
+                + " bytes, " + (fullRewriteBytes / changedBytes) + "x amplification");
+        assertTrue("Too many bytes written: " + bytesWritten,
+                bytesWritten < fullRewriteBytes / 10);
+
+        SettingsState settingsReader = getSettingStateObject();
+        for (int i = 0; i < 4; i++) {
+            assertEquals(String.valueOf(changeCount - 4 + i),
+                    settingsReader.getSettingLocked("setting_" + i).getValue());
+        }
+    }
+
     private SettingsState getSettingStateObject() {
         SettingsState settingsState = new SettingsState(getContext(), mLock, mSettingsFile, 1,
                 SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
@@ -127,6 +127,7 @@ public class BinderCallsStatsService extends Binder {
         private static final String SETTINGS_TRACK_SCREEN_INTERACTIVE_KEY = "track_screen_state";
         private static final String SETTINGS_TRACK_DIRECT_CALLING_UID_KEY = "track_calling_uid";
         private static final String SETTINGS_MAX_CALL_STATS_KEY = "max_call_stats_count";
+        private static final String SETTINGS_LATENCY_HISTOGRAMS_KEY = "latency_histograms";
 
         private boolean mEnabled;
         private final Uri mUri = Settings.Global.getUriFor(Settings.Global.BINDER_CALLS_STATS);
@@ -180,6 +181,9 @@ public class BinderCallsStatsService extends Binder {
             mBinderCallsStats.setTrackDirectCallerUid(
                     mParser.getBoolean(SETTINGS_TRACK_DIRECT_CALLING_UID_KEY,
                     BinderCallsStats.DEFAULT_TRACK_DIRECT_CALLING_UID));
+            mBinderCallsStats.setLatencyHistograms(
+                    mParser.getBoolean(SETTINGS_LATENCY_HISTOGRAMS_KEY,
+                    BinderCallsStats.DEFAULT_LATENCY_HISTOGRAMS));
 
 
             final boolean enabled =
@@ -329,6 +333,14 @@ public class BinderCallsStatsService extends Binder {
                     mBinderCallsStats.setDetailedTracking(false);
                     pw.println("Detailed tracking disabled");
                     return;
+                } else if ("--enable-latency-histograms".equals(arg)) {
+                    mBinderCallsStats.setLatencyHistograms(true);
+                    pw.println("Latency histograms enabled");
+                    return;
+                } else if ("--disable-latency-histograms".equals(arg)) {
+                    mBinderCallsStats.setLatencyHistograms(false);
+                    pw.println("Latency histograms disabled");
+                    return;
                 } else if ("--dump-worksource-provider".equals(arg)) {
                     mWorkSourceProvider.dump(pw, AppIdToPackageMap.getSnapshot());
                     return;
@@ -340,6 +352,9 @@ public class BinderCallsStatsService extends Binder {
                     pw.println("  --no-sampling: Tracks all calls");
                     pw.println("  --enable-detailed-tracking: Enables detailed tracking");
                     pw.println("  --disable-detailed-tracking: Disables detailed tracking");
+                    pw.println("  --enable-latency-histograms: Records latency histograms");
+                    pw.println("  --disable-latency-histograms: Stops recording latency "
+                            + "histograms");
                     return;
                 } else {
                     pw.println("Unknown option: " + arg);
@@ -31,6 +31,7 @@ import android.util.Printer;
 import android.util.Slog;
 import android.util.proto.ProtoOutputStream;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.FastPrintWriter;
 
 import java.io.PrintWriter;
@@ -38,6 +39,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
@@ -60,6 +62,7 @@ public abstract class IntentResolver<F, R extends Object> {
         }
 
         mFilters.add(f);
+        register_categories(intentFilter);
         int numS = register_intent_filter(f, intentFilter.schemesIterator(),
                 mSchemeToFilter, "      Scheme: ");
         int numT = register_mime_types(f, "      Type: ");
@@ -204,6 +207,7 @@ public abstract class IntentResolver<F, R extends Object> {
             Slog.v(TAG, "    Cleaning Lookup Maps:");
         }
 
+        unregister_categories(intentFilter);
         int numS = unregister_intent_filter(f, intentFilter.schemesIterator(),
                 mSchemeToFilter, "      Scheme: ");
         int numT = unregister_mime_types(f, "      Type: ");
@@ -387,11 +391,12 @@ public abstract class IntentResolver<F, R extends Object> {
                 ((intent.getFlags() & Intent.FLAG_DEBUG_LOG_RESOLUTION) != 0);
 
         FastImmutableArraySet<String> categories = getFastIntentCategories(intent);
+        final long categoryMask = getCategoryMask(categories);
         final String scheme = intent.getScheme();
         int N = listCut.size();
         for (int i = 0; i < N; ++i) {
-            buildResolveList(intent, categories, debug, defaultOnly, resolvedType, scheme,
-                    listCut.get(i), resultList, userId);
+            buildResolveList(intent, categories, categoryMask, debug, defaultOnly, resolvedType,
+                    scheme, listCut.get(i), resultList, userId);
         }
         filterResults(resultList);
         sortResults(resultList);
@@ -471,20 +476,26 @@ public abstract class IntentResolver<F, R extends Object> {
         }
 
         FastImmutableArraySet<String> categories = getFastIntentCategories(intent);
+        if (!areCategoriesRegistered(categories)) {
+            // A filter can only match if it declares every category of the intent.
+            if (debug) Slog.v(TAG, "Intent category not declared by any filter");
+            firstTypeCut = secondTypeCut = thirdTypeCut = schemeCut = null;
+        }
+        final long categoryMask = getCategoryMask(categories);
         if (firstTypeCut != null) {
-            buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
+            buildResolveList(intent, categories, categoryMask, debug, defaultOnly, resolvedType,
                     scheme, firstTypeCut, finalList, userId);
         }
         if (secondTypeCut != null) {
-            buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
+            buildResolveList(intent, categories, categoryMask, debug, defaultOnly, resolvedType,
                     scheme, secondTypeCut, finalList, userId);
         }
         if (thirdTypeCut != null) {
-            buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
+            buildResolveList(intent, categories, categoryMask, debug, defaultOnly, resolvedType,
                     scheme, thirdTypeCut, finalList, userId);
         }
         if (schemeCut != null) {
-            buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
+            buildResolveList(intent, categories, categoryMask, debug, defaultOnly, resolvedType,
                     scheme, schemeCut, finalList, userId);
         }
         filterResults(finalList);
@@ -723,9 +734,98 @@ public abstract class IntentResolver<F, R extends Object> {
         return new FastImmutableArraySet<String>(categories.toArray(new String[categories.size()]));
     }
 
+    /**
+     * Returns whether every category in {@code categories} is declared by at least one
+     * registered filter.
+     */
+    private boolean areCategoriesRegistered(FastImmutableArraySet<String> categories) {
+        if (categories == null || !mCategoryPrefilterEnabled) {
+            return true;
+        }
+        for (String category : categories) {
+            final Integer id = mCategoryIds.get(category);
+            if (id == null || mCategoryFilterCounts[id] == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the category mask of an intent, or 0 if its categories can't be used to reject
+     * filters up-front. See {@link #mFilterCategoryMasks}.
+     */
+    private long getCategoryMask(FastImmutableArraySet<String> categories) {
+        if (categories == null || !mCategoryPrefilterEnabled) {
+            return 0;
+        }
+        long mask = 0;
+        for (String category : categories) {
+            final Integer id = mCategoryIds.get(category);
+            // Categories no filter declared can't be in any registered filter's mask, so they
+            // map to the overflow bit like categories without a bit of their own.
+            mask |= id != null ? categoryBit(id) : CATEGORY_MASK_OVERFLOW;
+        }
+        return mask;
+    }
+
+    private static long categoryBit(int categoryId) {
+        return categoryId < CATEGORY_MASK_OVERFLOW_ID
+                ? 1L << categoryId : CATEGORY_MASK_OVERFLOW;
+    }
+
+    private long computeCategoryMask(IntentFilter intentFilter, boolean register) {
+        long mask = 0;
+        final int count = intentFilter.countCategories();
+        for (int i = 0; i < count; i++) {
+            final String category = intentFilter.getCategory(i);
+            Integer id = mCategoryIds.get(category);
+            if (id == null) {
+                if (!register) {
+                    continue;
+                }
+                id = mCategoryIds.size();
+                mCategoryIds.put(category.intern(), id);
+                if (id == mCategoryFilterCounts.length) {
+                    mCategoryFilterCounts = Arrays.copyOf(mCategoryFilterCounts, id * 2);
+                }
+            }
+            mCategoryFilterCounts[id] += register ? 1 : -1;
+            mask |= categoryBit(id);
+        }
+        return mask;
+    }
+
+    private void register_categories(IntentFilter intentFilter) {
+        if (mFilterCategoryMasks.containsKey(intentFilter)) {
+            return;
+        }
+        mFilterCategoryMasks.put(intentFilter, computeCategoryMask(intentFilter, true));
+    }
+
+    private void unregister_categories(IntentFilter intentFilter) {
+        if (mFilterCategoryMasks.remove(intentFilter) != null) {
+            computeCategoryMask(intentFilter, false);
+        }
+    }
+
+    /**
+     * Returns false if {@code intentFilter} is registered and lacks one of the categories in
+     * {@code categoryMask}, so it can't possibly match.
+     */
+    private boolean mayMatchCategories(IntentFilter intentFilter, long categoryMask) {
+        final Long filterMask = mFilterCategoryMasks.get(intentFilter);
+        return filterMask == null || (filterMask & categoryMask) == categoryMask;
+    }
+
+    @VisibleForTesting
+    public void setCategoryPrefilterEnabled(boolean enabled) {
+        mCategoryPrefilterEnabled = enabled;
+    }
+
     private void buildResolveList(Intent intent, FastImmutableArraySet<String> categories,
-            boolean debug, boolean defaultOnly, String resolvedType, String scheme,
-            F[] src, List<R> dest, int userId) {
+            long categoryMask, boolean debug, boolean defaultOnly, String resolvedType,
+            String scheme, F[] src, List<R> dest, int userId) {
         final String action = intent.getAction();
         final Uri data = intent.getData();
         final String packageName = intent.getPackage();
@@ -765,8 +865,15 @@ public abstract class IntentResolver<F, R extends Object> {
                 continue;
             }
 
-            // Are we verified ?
             IntentFilter intentFilter = getIntentFilter(filter);
+            if (categoryMask != 0 && !mayMatchCategories(intentFilter, categoryMask)) {
+                if (debug) {
+                    Slog.v(TAG, "  Filter is missing an intent category; skipping");
+                }
+                continue;
+            }
+
+            // Are we verified ?
             if (intentFilter.getAutoVerify()) {
                 if (localVerificationLOGV || debug) {
                     Slog.v(TAG, "  Filter verified: " + isFilterVerified(filter));
@@ -882,6 +989,35 @@ public abstract class IntentResolver<F, R extends Object> {
      */
     private final ArrayMap<String, F[]> mTypedActionToFilter = new ArrayMap<String, F[]>();
 
+    /**
+     * Bit of a category mask shared by all categories whose id doesn't fit in the mask, and by
+     * intent categories that no registered filter declares.
+     */
+    private static final int CATEGORY_MASK_OVERFLOW_ID = 63;
+    private static final long CATEGORY_MASK_OVERFLOW = 1L << CATEGORY_MASK_OVERFLOW_ID;
+
+    /**
+     * Interned categories of all filters that have been registered, mapped to a dense id.
+     * Ids are never reused.
+     */
+    private final ArrayMap<String, Integer> mCategoryIds = new ArrayMap<>();
+
+    /**
+     * Number of registered filters declaring each category, indexed by category id.
+     */
+    private int[] mCategoryFilterCounts = new int[16];
+
+    /**
+     * Category mask of each registered filter, keyed by identity: bit n is set if the filter
+     * declares the category with id n, see {@link #categoryBit}. A filter can only match an
+     * intent if its mask contains every bit of the intent's mask, which lets
+     * {@link #buildResolveList} skip it without running {@link IntentFilter#match}.
+     */
+    private final IdentityHashMap<IntentFilter, Long> mFilterCategoryMasks =
+            new IdentityHashMap<>();
+
+    private boolean mCategoryPrefilterEnabled = true;
+
     /**
      * Rather than refactoring the entire class, this allows the input {@link F} to be a type
      * other than {@link IntentFilter}, transforming it whenever necessary. It is valid to use
@@ -34,6 +34,7 @@ import android.util.Slog;
 import com.android.internal.os.AppIdToPackageMap;
 import com.android.internal.os.BackgroundThread;
 import com.android.internal.os.CachedDeviceState;
+import com.android.internal.os.LatencyHistogram;
 import com.android.internal.os.LooperStats;
 import com.android.internal.util.DumpUtils;
 
@@ -52,18 +53,21 @@ public class LooperStatsService extends Binder {
     private static final String SETTINGS_ENABLED_KEY = "enabled";
     private static final String SETTINGS_SAMPLING_INTERVAL_KEY = "sampling_interval";
     private static final String SETTINGS_TRACK_SCREEN_INTERACTIVE_KEY = "track_screen_state";
+    private static final String SETTINGS_LATENCY_HISTOGRAMS_KEY = "latency_histograms";
     private static final String DEBUG_SYS_LOOPER_STATS_ENABLED =
             "debug.sys.looper_stats_enabled";
     private static final int DEFAULT_SAMPLING_INTERVAL = 1000;
     private static final int DEFAULT_ENTRIES_SIZE_CAP = 1500;
     private static final boolean DEFAULT_ENABLED = true;
     private static final boolean DEFAULT_TRACK_SCREEN_INTERACTIVE = false;
+    private static final boolean DEFAULT_LATENCY_HISTOGRAMS = false;
 
     private final Context mContext;
     private final LooperStats mStats;
     // Default should be false so that the first call to #setEnabled installed the looper observer.
     private boolean mEnabled = false;
     private boolean mTrackScreenInteractive = false;
+    private boolean mLatencyHistograms = false;
 
     private LooperStatsService(Context context, LooperStats stats) {
         this.mContext = context;
@@ -85,6 +89,8 @@ public class LooperStatsService extends Binder {
         setTrackScreenInteractive(
                 parser.getBoolean(SETTINGS_TRACK_SCREEN_INTERACTIVE_KEY,
                 DEFAULT_TRACK_SCREEN_INTERACTIVE));
+        setLatencyHistograms(
+                parser.getBoolean(SETTINGS_LATENCY_HISTOGRAMS_KEY, DEFAULT_LATENCY_HISTOGRAMS));
         // Manually specified value takes precedence over Settings.
         setEnabled(SystemProperties.getBoolean(
                 DEBUG_SYS_LOOPER_STATS_ENABLED,
@@ -126,14 +132,18 @@ public class LooperStatsService extends Binder {
                 "recorded_delay_message_count",
                 "total_delay_millis",
                 "max_delay_millis",
-                "exception_count"));
+                "exception_count",
+                "p50_latency_micros",
+                "p99_latency_micros",
+                "p999_latency_micros"));
         pw.println(header);
         for (LooperStats.ExportedEntry entry : entries) {
             if (entry.messageName.startsWith(LooperStats.DEBUG_ENTRY_PREFIX)) {
                 // Do not dump debug entries.
                 continue;
             }
-            pw.printf("%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s\n",
+            final LatencyHistogram histogram = entry.latencyHistogram;
+            pw.printf("%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s\n",
                     packageMap.mapUid(entry.workSourceUid),
                     entry.threadName,
                     entry.handlerClassName,
@@ -148,7 +158,10 @@ public class LooperStatsService extends Binder {
                     entry.recordedDelayMessageCount,
                     entry.delayMillis,
                     entry.maxDelayMillis,
-                    entry.exceptionCount);
+                    entry.exceptionCount,
+                    histogram != null ? histogram.getValueAtPercentile(50) : "_",
+                    histogram != null ? histogram.getValueAtPercentile(99) : "_",
+                    histogram != null ? histogram.getValueAtPercentile(99.9) : "_");
         }
     }
 
@@ -168,6 +181,14 @@ public class LooperStatsService extends Binder {
         }
     }
 
+    private void setLatencyHistograms(boolean enabled) {
+        if (mLatencyHistograms != enabled) {
+            mLatencyHistograms = enabled;
+            mStats.setLatencyHistograms(enabled);
+            mStats.reset();
+        }
+    }
+
     private void setSamplingInterval(int samplingInterval) {
         if (samplingInterval > 0) {
             mStats.setSamplingInterval(samplingInterval);
@@ -240,6 +261,9 @@ public class LooperStatsService extends Binder {
                 int sampling = Integer.parseUnsignedInt(getNextArgRequired());
                 setSamplingInterval(sampling);
                 return 0;
+            } else if ("latency_histograms".equals(cmd)) {
+                setLatencyHistograms(Boolean.parseBoolean(getNextArgRequired()));
+                return 0;
             } else {
                 return handleDefaultCommands(cmd);
             }
@@ -252,6 +276,7 @@ public class LooperStatsService extends Binder {
             pw.println("  enable: Enable collecting stats.");
             pw.println("  disable: Disable collecting stats.");
             pw.println("  sampling_interval: Change the sampling interval.");
+            pw.println("  latency_histograms [true|false]: Record latency histograms.");
             pw.println("  reset: Reset stats.");
         }
     }
@@ -52,5 +52,27 @@ public final class MemoryPressureUtil {
         return contents.toString();
     }
 
+    /**
+     * @return the share of time, in percent, that some tasks were stalled on memory over the last
+     * 60 seconds, or -1 if memory PSI is not available.
+     */
+    public static float getSomeAvg60() {
+        try {
+            for (String line : IoUtils.readFileAsString(FILE).split("\n")) {
+                if (!line.startsWith("some ")) {
+                    continue;
+                }
+                for (String field : line.split(" ")) {
+                    if (field.startsWith("avg60=")) {
+                        return Float.parseFloat(field.substring("avg60=".length()));
+                    }
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Not supported by this kernel
+        }
+        return -1;
+    }
+
     private MemoryPressureUtil(){}
 }
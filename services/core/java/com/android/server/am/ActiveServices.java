@@ -2296,6 +2296,8 @@ public final class ActiveServices {
                 }
 
                 if (r.binding.service.app != null) {
+                    // Only the service lost a client
+                    mAm.enqueueOomAdjTargetLocked(r.binding.service.app);
                     if (r.binding.service.app.whitelistManager) {
                         updateWhitelistManagerLocked(r.binding.service.app);
                     }
@@ -2309,7 +2311,7 @@ public final class ActiveServices {
                 }
             }
 
-            mAm.updateOomAdjLocked(OomAdjuster.OOM_ADJ_REASON_UNBIND_SERVICE);
+            mAm.updateOomAdjPendingTargetsLocked(OomAdjuster.OOM_ADJ_REASON_UNBIND_SERVICE);
 
         } finally {
             Binder.restoreCallingIdentity(origId);
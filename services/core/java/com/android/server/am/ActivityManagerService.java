@@ -612,9 +612,16 @@ public class ActivityManagerService extends IActivityManager.Stub
     BroadcastQueue mFgBroadcastQueue;
     BroadcastQueue mBgBroadcastQueue;
     BroadcastQueue mOffloadBroadcastQueue;
-    // Convenient for easy iteration over the queues. Foreground is first
+    // The lanes of the foreground and background queues. Non-ordered broadcasts to manifest
+    // receivers are split between them by receiving process, see enqueueOnBroadcastLanesLocked.
+    BroadcastQueue[] mFgBroadcastLanes;
+    BroadcastQueue[] mBgBroadcastLanes;
+    // Convenient for easy iteration over the queues, lanes included. Foreground is first
     // so that dispatch of foreground broadcasts gets precedence.
-    final BroadcastQueue[] mBroadcastQueues = new BroadcastQueue[3];
+    final BroadcastQueue[] mBroadcastQueues;
+
+    // Default number of lanes of each of the foreground and background broadcast queues.
+    static final int DEFAULT_BROADCAST_PROCESS_LANES = 4;
 
     BroadcastStats mLastBroadcastStats;
     BroadcastStats mCurBroadcastStats;
@@ -2533,6 +2540,7 @@ public class ActivityManagerService extends IActivityManager.Stub
         mAppErrors = null;
         mPackageWatchdog = null;
         mAppOpsService = mInjector.getAppOpsService(null /* file */, null /* handler */);
+        mBroadcastQueues = new BroadcastQueue[3];
         mBatteryStatsService = null;
         mHandler = hasHandlerThread ? new MainHandler(handlerThread.getLooper()) : null;
         mHandlerThread = handlerThread;
@@ -2621,15 +2629,35 @@ public class ActivityManagerService extends IActivityManager.Stub
         mEnableOffloadQueue = SystemProperties.getBoolean(
                 "persist.device_config.activity_manager_native_boot.offload_queue_enabled", false);
 
+        final int laneCount = Math.max(0, SystemProperties.getInt(
+                "persist.device_config.activity_manager_native_boot.broadcast_process_lanes",
+                DEFAULT_BROADCAST_PROCESS_LANES));
+
         mFgBroadcastQueue = new BroadcastQueue(this, mHandler,
                 "foreground", foreConstants, false);
         mBgBroadcastQueue = new BroadcastQueue(this, mHandler,
                 "background", backConstants, true);
         mOffloadBroadcastQueue = new BroadcastQueue(this, mHandler,
                 "offload", offloadConstants, true);
-        mBroadcastQueues[0] = mFgBroadcastQueue;
-        mBroadcastQueues[1] = mBgBroadcastQueue;
-        mBroadcastQueues[2] = mOffloadBroadcastQueue;
+        mFgBroadcastLanes = new BroadcastQueue[laneCount];
+        mBgBroadcastLanes = new BroadcastQueue[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            mFgBroadcastLanes[i] = new BroadcastQueue(this, mHandler,
+                    "foreground_lane" + i, foreConstants, false, mFgBroadcastQueue);
+            mBgBroadcastLanes[i] = new BroadcastQueue(this, mHandler,
+                    "background_lane" + i, backConstants, true, mBgBroadcastQueue);
+        }
+        mBroadcastQueues = new BroadcastQueue[3 + 2 * laneCount];
+        int queueIndex = 0;
+        mBroadcastQueues[queueIndex++] = mFgBroadcastQueue;
+        for (BroadcastQueue lane : mFgBroadcastLanes) {
+            mBroadcastQueues[queueIndex++] = lane;
+        }
+        mBroadcastQueues[queueIndex++] = mBgBroadcastQueue;
+        for (BroadcastQueue lane : mBgBroadcastLanes) {
+            mBroadcastQueues[queueIndex++] = lane;
+        }
+        mBroadcastQueues[queueIndex] = mOffloadBroadcastQueue;
 
         mServices = new ActiveServices(this);
         mProviderMap = new ProviderMap(this);
@@ -7637,7 +7665,9 @@ public class ActivityManagerService extends IActivityManager.Stub
                     throw new NullPointerException("connection is null");
                 }
                 if (decProviderCountLocked(conn, null, null, stable)) {
-                    updateOomAdjLocked(OomAdjuster.OOM_ADJ_REASON_REMOVE_PROVIDER);
+                    // Only the provider lost a client
+                    enqueueOomAdjTargetLocked(conn.provider.proc);
+                    updateOomAdjPendingTargetsLocked(OomAdjuster.OOM_ADJ_REASON_REMOVE_PROVIDER);
                 }
             }
         } finally {
@@ -7678,7 +7708,8 @@ public class ActivityManagerService extends IActivityManager.Stub
             ContentProviderRecord localCpr = mProviderMap.getProviderByClass(comp, userId);
             if (localCpr.hasExternalProcessHandles()) {
                 if (localCpr.removeExternalProcessHandleLocked(token)) {
-                    updateOomAdjLocked(OomAdjuster.OOM_ADJ_REASON_REMOVE_PROVIDER);
+                    enqueueOomAdjTargetLocked(localCpr.proc);
+                    updateOomAdjPendingTargetsLocked(OomAdjuster.OOM_ADJ_REASON_REMOVE_PROVIDER);
                 } else {
                     Slog.e(TAG, "Attmpt to remove content provider " + localCpr
                             + " with no external reference for token: "
@@ -12123,6 +12154,7 @@ public class ActivityManagerService extends IActivityManager.Stub
 
     boolean dumpLmkLocked(PrintWriter pw) {
         pw.println("ACTIVITY MANAGER LMK KILLS (dumpsys activity lmk)");
+        ProcessList.dumpLmkdCommandQueue(pw);
         Integer cnt = ProcessList.getLmkdKillCount(ProcessList.UNKNOWN_ADJ,
                 ProcessList.UNKNOWN_ADJ);
         if (cnt == null) {
@@ -15498,9 +15530,160 @@ public class ActivityManagerService extends IActivityManager.Stub
     }
 
     boolean isPendingBroadcastProcessLocked(int pid) {
-        return mFgBroadcastQueue.isPendingBroadcastProcessLocked(pid)
-                || mBgBroadcastQueue.isPendingBroadcastProcessLocked(pid)
-                || mOffloadBroadcastQueue.isPendingBroadcastProcessLocked(pid);
+        for (BroadcastQueue queue : mBroadcastQueues) {
+            if (queue.isPendingBroadcastProcessLocked(pid)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether any of {@code queues} is the foreground queue or one of its lanes.
+     */
+    boolean containsForegroundBroadcastQueueLocked(ArraySet<BroadcastQueue> queues) {
+        for (int i = queues.size() - 1; i >= 0; i--) {
+            final BroadcastQueue queue = queues.valueAt(i);
+            if (queue == mFgBroadcastQueue || queue.mParentQueue == mFgBroadcastQueue) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private BroadcastQueue[] getBroadcastLanesLocked(BroadcastQueue queue) {
+        if (queue == mFgBroadcastQueue) {
+            return mFgBroadcastLanes;
+        } else if (queue == mBgBroadcastQueue) {
+            return mBgBroadcastLanes;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the queues sharing the process tokens of {@code queue} for finishReceiver(): its
+     * parent queue and the lanes of that, or null if {@code queue} has no lanes and is not one.
+     */
+    @Nullable
+    private ArrayList<BroadcastQueue> getBroadcastQueueFamilyLocked(BroadcastQueue queue) {
+        final BroadcastQueue parent = queue.mParentQueue != null ? queue.mParentQueue : queue;
+        final BroadcastQueue[] lanes = getBroadcastLanesLocked(parent);
+        if (lanes == null || lanes.length == 0) {
+            return null;
+        }
+        final ArrayList<BroadcastQueue> family = new ArrayList<>(lanes.length + 1);
+        family.add(parent);
+        Collections.addAll(family, lanes);
+        return family;
+    }
+
+    /**
+     * Returns whether another queue of the family of {@code queue} has a receiver in flight in
+     * the process that would run {@code receiver}.
+     */
+    boolean isReceiverInFlightOnSiblingQueueLocked(BroadcastQueue queue, Object receiver) {
+        final ArrayList<BroadcastQueue> family = getBroadcastQueueFamilyLocked(queue);
+        for (int i = 0; family != null && i < family.size(); i++) {
+            final BroadcastQueue sibling = family.get(i);
+            if (sibling != queue && sibling.isReceiverInFlightToProcessOfLocked(receiver)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Schedules the queues of the family of {@code queue} which were waiting for it to finish a
+     * receiver, see {@link #isReceiverInFlightOnSiblingQueueLocked}.
+     */
+    void scheduleBroadcastsBlockedByQueueLocked(BroadcastQueue queue) {
+        final ArrayList<BroadcastQueue> family = getBroadcastQueueFamilyLocked(queue);
+        for (int i = 0; family != null && i < family.size(); i++) {
+            final BroadcastQueue sibling = family.get(i);
+            if (sibling != queue && sibling.mBlockedBySiblingQueue) {
+                sibling.mBlockedBySiblingQueue = false;
+                sibling.scheduleBroadcastsLocked();
+            }
+        }
+    }
+
+    /**
+     * Removes the broadcasts {@code r} replaces from the queues of the family of {@code queue}
+     * it was not enqueued on, and cancels their results.
+     */
+    private void removeReplacedBroadcastsLocked(BroadcastQueue queue,
+            ArraySet<BroadcastQueue> enqueuedOn, BroadcastRecord r) {
+        final ArrayList<BroadcastQueue> family = getBroadcastQueueFamilyLocked(queue);
+        for (int i = 0; family != null && i < family.size(); i++) {
+            final BroadcastQueue sibling = family.get(i);
+            if (enqueuedOn.contains(sibling)) {
+                continue;
+            }
+            final ArrayList<BroadcastRecord> removed =
+                    sibling.removeReplacedOrderedBroadcastsLocked(r);
+            for (int j = 0; j < removed.size(); j++) {
+                cancelReplacedBroadcastResultLocked(removed.get(j));
+            }
+        }
+    }
+
+    /** Fires the result-to receiver of a broadcast which was replaced before it was sent. */
+    private void cancelReplacedBroadcastResultLocked(BroadcastRecord oldRecord) {
+        if (oldRecord.resultTo == null) {
+            return;
+        }
+        final BroadcastQueue oldQueue = broadcastQueueForIntent(oldRecord.intent);
+        try {
+            oldQueue.performReceiveLocked(oldRecord.callerApp, oldRecord.resultTo,
+                    oldRecord.intent,
+                    Activity.RESULT_CANCELED, null, null,
+                    false, false, oldRecord.userId);
+        } catch (RemoteException e) {
+            Slog.w(TAG, "Failure ["
+                    + oldQueue.mQueueName + "] sending broadcast result of "
+                    + oldRecord.intent, e);
+        }
+    }
+
+    /**
+     * Returns the lane of {@code queue} serving the process of every one of {@code receivers},
+     * or null if they are not all in the same lane.
+     */
+    @Nullable
+    private BroadcastQueue getBroadcastLaneLocked(BroadcastQueue queue, List<?> receivers) {
+        final BroadcastQueue[] lanes = getBroadcastLanesLocked(queue);
+        if (lanes == null || lanes.length == 0 || receivers == null || receivers.isEmpty()) {
+            return null;
+        }
+        final int lane = getBroadcastLaneIndex(receivers.get(0), lanes.length);
+        for (int i = 1; lane >= 0 && i < receivers.size(); i++) {
+            if (getBroadcastLaneIndex(receivers.get(i), lanes.length) != lane) {
+                return null;
+            }
+        }
+        return lane >= 0 ? lanes[lane] : null;
+    }
+
+    /**
+     * Returns the lane serving the process of {@code receiver}, a {@link ResolveInfo} or
+     * {@link BroadcastFilter}, or -1 if its process is not known.
+     */
+    private static int getBroadcastLaneIndex(Object receiver, int laneCount) {
+        final String processName;
+        final int uid;
+        if (receiver instanceof ResolveInfo) {
+            final ActivityInfo info = ((ResolveInfo) receiver).activityInfo;
+            processName = info.processName;
+            uid = info.applicationInfo.uid;
+        } else {
+            final ProcessRecord app = ((BroadcastFilter) receiver).receiverList.app;
+            if (app == null) {
+                return -1;
+            }
+            processName = app.processName;
+            uid = app.uid;
+        }
+        return Math.floorMod(31 * processName.hashCode() + uid, laneCount);
     }
 
     void skipPendingBroadcastLocked(int pid) {
@@ -16611,27 +16794,32 @@ public class ActivityManagerService extends IActivityManager.Stub
 
             if (DEBUG_BROADCAST) Slog.v(TAG_BROADCAST, "Enqueueing ordered broadcast " + r);
 
-            final BroadcastRecord oldRecord =
-                    replacePending ? queue.replaceOrderedBroadcastLocked(r) : null;
-            if (oldRecord != null) {
-                // Replaced, fire the result-to receiver.
-                if (oldRecord.resultTo != null) {
-                    final BroadcastQueue oldQueue = broadcastQueueForIntent(oldRecord.intent);
-                    try {
-                        oldQueue.performReceiveLocked(oldRecord.callerApp, oldRecord.resultTo,
-                                oldRecord.intent,
-                                Activity.RESULT_CANCELED, null, null,
-                                false, false, oldRecord.userId);
-                    } catch (RemoteException e) {
-                        Slog.w(TAG, "Failure ["
-                                + queue.mQueueName + "] sending broadcast result of "
-                                + intent, e);
-
-                    }
+            // Nobody waits on the receivers of a non-ordered broadcast in turn, so the lanes
+            // can deliver it to each process without holding up everything else in the queue.
+            if (ordered || resultTo != null
+                    || !enqueueOnBroadcastLanesLocked(queue, r, replacePending)) {
+                // An ordered broadcast to a single process goes through the lane of that process,
+                // to stay in order with the other broadcasts it gets there.
+                final BroadcastQueue lane = getBroadcastLaneLocked(queue, r.receivers);
+                if (lane != null) {
+                    queue = lane;
+                    r = r.splitForLaneLocked(lane, r.receivers);
+                }
+                final BroadcastRecord oldRecord =
+                        replacePending ? queue.replaceOrderedBroadcastLocked(r) : null;
+                if (oldRecord != null) {
+                    // Replaced, fire the result-to receiver.
+                    cancelReplacedBroadcastResultLocked(oldRecord);
+                } else {
+                    queue.enqueueOrderedBroadcastLocked(r);
+                    queue.scheduleBroadcastsLocked();
+                }
+                if (replacePending) {
+                    // The broadcast replaced may be waiting on the parent queue or other lanes
+                    final ArraySet<BroadcastQueue> enqueuedOn = new ArraySet<>(1);
+                    enqueuedOn.add(queue);
+                    removeReplacedBroadcastsLocked(queue, enqueuedOn, r);
                 }
-            } else {
-                queue.enqueueOrderedBroadcastLocked(r);
-                queue.scheduleBroadcastsLocked();
             }
         } else {
             // There was nobody interested in the broadcast, but we still want to record
@@ -16646,6 +16834,61 @@ public class ActivityManagerService extends IActivityManager.Stub
         return ActivityManager.BROADCAST_SUCCESS;
     }
 
+    /**
+     * Splits a non-ordered broadcast to manifest receivers between the lanes of {@code queue} by
+     * receiving process. A process always maps to the same lane, so it still gets broadcasts one
+     * at a time and in the order they were sent, while a slow receiver only delays the processes
+     * sharing its lane.
+     *
+     * <p>Ordered broadcasts to a single process take the lane of that process as a whole, see
+     * {@link #getBroadcastLaneLocked}. Ordered broadcasts to several processes are delivered by
+     * {@code queue} itself, and so are not kept in order with the lane broadcasts to the same
+     * processes: a non-ordered broadcast sent after them may be delivered first, and the other
+     * way around.</p>
+     *
+     * @return whether the broadcast was enqueued on the lanes; if not, it goes to {@code queue}
+     */
+    private boolean enqueueOnBroadcastLanesLocked(BroadcastQueue queue, BroadcastRecord r,
+            boolean replacePending) {
+        final BroadcastQueue[] lanes = getBroadcastLanesLocked(queue);
+        if (lanes == null || lanes.length == 0) {
+            return false;
+        }
+        final SparseArray<List<Object>> laneReceivers = new SparseArray<>(lanes.length);
+        final ArraySet<BroadcastQueue> enqueuedOn = new ArraySet<>(lanes.length);
+        for (int i = 0; i < r.receivers.size(); i++) {
+            final Object receiver = r.receivers.get(i);
+            if (!(receiver instanceof ResolveInfo)) {
+                return false;
+            }
+            final int lane = getBroadcastLaneIndex(receiver, lanes.length);
+            List<Object> receivers = laneReceivers.get(lane);
+            if (receivers == null) {
+                receivers = new ArrayList<>();
+                laneReceivers.put(lane, receivers);
+            }
+            receivers.add(receiver);
+        }
+        for (int i = 0; i < laneReceivers.size(); i++) {
+            final BroadcastQueue lane = lanes[laneReceivers.keyAt(i)];
+            final BroadcastRecord laneRecord =
+                    r.splitForLaneLocked(lane, laneReceivers.valueAt(i));
+            enqueuedOn.add(lane);
+            if (DEBUG_BROADCAST) {
+                Slog.v(TAG_BROADCAST, "Enqueueing on " + lane.mQueueName + ": " + laneRecord);
+            }
+            if (!replacePending || lane.replaceOrderedBroadcastLocked(laneRecord) == null) {
+                lane.enqueueOrderedBroadcastLocked(laneRecord);
+                lane.scheduleBroadcastsLocked();
+            }
+        }
+        if (replacePending) {
+            // The broadcast replaced may be waiting on the parent queue or the other lanes
+            removeReplacedBroadcastsLocked(queue, enqueuedOn, r);
+        }
+        return true;
+    }
+
     /**
      * @return uid from the extra field {@link Intent#EXTRA_UID} if present, Otherwise -1
      */
@@ -16858,6 +17101,12 @@ public class ActivityManagerService extends IActivityManager.Stub
                 }
 
                 r = queue.getMatchingOrderedReceiver(who);
+                // At most one of the queue and its lanes has a receiver in flight in a process,
+                // see isReceiverInFlightOnSiblingQueueLocked(), so the token tells which it is.
+                final BroadcastQueue[] lanes = getBroadcastLanesLocked(queue);
+                for (int i = 0; r == null && lanes != null && i < lanes.length; i++) {
+                    r = lanes[i].getMatchingOrderedReceiver(who);
+                }
                 if (r != null) {
                     doNext = r.queue.finishReceiverLocked(r, resultCode,
                         resultData, resultExtras, resultAbort, true);
@@ -18180,6 +18429,24 @@ public class ActivityManagerService extends IActivityManager.Stub
         mOomAdjuster.updateOomAdjLocked(app, oomAdjReason);
     }
 
+    /*
+     * Enqueue a process whose connections changed for the next
+     * {@link #updateOomAdjPendingTargetsLocked}.
+     */
+    @GuardedBy("this")
+    final void enqueueOomAdjTargetLocked(ProcessRecord app) {
+        mOomAdjuster.enqueueOomAdjTargetLocked(app);
+    }
+
+    /*
+     * Update OomAdj for the enqueued processes and their reachable processes.
+     * @param oomAdjReason
+     */
+    @GuardedBy("this")
+    final void updateOomAdjPendingTargetsLocked(String oomAdjReason) {
+        mOomAdjuster.updateOomAdjPendingTargetsLocked(oomAdjReason);
+    }
+
     @Override
     public void makePackageIdle(String packageName, int userId) {
         if (checkCallingPermission(android.Manifest.permission.FORCE_STOP_PACKAGES)
@@ -0,0 +1,433 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import static com.android.server.am.ActivityManagerDebugConfig.TAG_AM;
+import static com.android.server.am.ActivityManagerDebugConfig.TAG_WITH_CLASS_NAME;
+
+import android.app.ApplicationExitInfo;
+import android.os.FileUtils;
+import android.util.Slog;
+import android.util.proto.ProtoInputStream;
+import android.util.proto.ProtoOutputStream;
+import android.util.proto.WireTypeMismatchException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * An append-only log of {@link ApplicationExitInfo} records, kept in numbered segment files.
+ *
+ * <p>Each entry holds a record of one package and uid, indexed by a small header so that the
+ * log can be loaded without decoding any record: the segments are memory mapped and a record is
+ * only decoded from its segment by {@link #read} when it is needed. A record that changes is
+ * appended again, the entry appended last wins. Records that are removed are only dropped from
+ * the log when it is {@link #compact compacted}, which rewrites the live records into a single
+ * new segment. That segment supersedes all the older ones, which its header records, so that
+ * the records it dropped don't come back if the older segments outlive it.</p>
+ *
+ * <p>Threading: the instance methods, which work on the log, are not thread safe and must be
+ * called one at a time. The static methods, which work on a {@link Record}, must be called one
+ * at a time too, since {@link #relocate} moves a record that {@link #read} and {@link #copy} read
+ * from; they may run concurrently with the instance methods, because the segment a record was
+ * read from stays mapped after the log drops it.</p>
+ */
+final class AppExitInfoStore {
+    private static final String TAG = TAG_WITH_CLASS_NAME ? "AppExitInfoStore" : TAG_AM;
+
+    static final String SEGMENT_FILE_PREFIX = "procexitlog-";
+
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    // Segment header: the magic, and the number of the oldest segment still part of the log when
+    // the segment was created. Compacting creates a segment that is the oldest one itself.
+    private static final int SEGMENT_MAGIC = 0x41455832; // "AEX2"
+    private static final int SEGMENT_HEADER_SIZE = 4 + 4;
+
+    // Entry header: entry length, package name length, trace file name length, uid, pid and
+    // timestamp, followed by the package name, the trace file name and the encoded record.
+    private static final int ENTRY_HEADER_SIZE = 4 + 2 + 2 + 4 + 4 + 8;
+
+    /** A segment is no longer appended to once it is this large. */
+    private static final int MAX_SEGMENT_SIZE = 64 * 1024;
+
+    /** The log should be compacted once it has more segments than this. */
+    private static final int MAX_SEGMENTS = 4;
+
+    /**
+     * A record in the log, not decoded yet.
+     */
+    static final class Record {
+        final String packageName;
+        final int uid;
+        final int pid;
+        final long timestamp;
+        /** The name of the trace file of the record, or {@code null}. */
+        final String traceFileName;
+
+        // Where the encoded record is. It moves when the log is compacted, see the threading
+        // rules of the class.
+        private ByteBuffer mSegment;
+        private int mOffset;
+        private int mLength;
+
+        private Record(String packageName, int uid, int pid, long timestamp,
+                String traceFileName, ByteBuffer segment, int offset, int length) {
+            this.packageName = packageName;
+            this.uid = uid;
+            this.pid = pid;
+            this.timestamp = timestamp;
+            this.traceFileName = traceFileName;
+            mSegment = segment;
+            mOffset = offset;
+            mLength = length;
+        }
+    }
+
+    private final File mDir;
+
+    // The segment files, the oldest first; the last one is appended to.
+    private final ArrayList<File> mSegments = new ArrayList<>();
+    // The number of the oldest segment, which new segments record in their header.
+    private int mFirstSegmentNumber;
+    private int mNextSegmentNumber;
+    private long mActiveSegmentSize;
+
+    AppExitInfoStore(File dir) {
+        mDir = dir;
+    }
+
+    /**
+     * Scans the segments in the order they were written and reports each of their records to
+     * {@code consumer}, without decoding them.
+     */
+    void load(Consumer<Record> consumer) {
+        mSegments.clear();
+        mFirstSegmentNumber = 0;
+        mNextSegmentNumber = 0;
+        mActiveSegmentSize = 0;
+        final File[] files = mDir.listFiles((dir, name) -> name.startsWith(SEGMENT_FILE_PREFIX));
+        if (files == null) {
+            return;
+        }
+        final ArrayList<File> segmentFiles = new ArrayList<>();
+        final ArrayList<ByteBuffer> segments = new ArrayList<>();
+        for (File file : files) {
+            if (parseSegmentNumber(file.getName()) < 0) {
+                // Left over from a compaction that didn't complete
+                file.delete();
+                continue;
+            }
+            final ByteBuffer segment;
+            try {
+                segment = map(file);
+            } catch (IOException e) {
+                Slog.w(TAG, "Unable to map " + file + ": " + e);
+                continue;
+            }
+            segmentFiles.add(file);
+            segments.add(segment);
+            if (segment.limit() >= SEGMENT_HEADER_SIZE && segment.getInt(0) == SEGMENT_MAGIC) {
+                mFirstSegmentNumber = Math.max(mFirstSegmentNumber, segment.getInt(4));
+            }
+        }
+
+        final Integer[] order = new Integer[segmentFiles.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Integer.compare(
+                parseSegmentNumber(segmentFiles.get(a).getName()),
+                parseSegmentNumber(segmentFiles.get(b).getName())));
+        for (int i : order) {
+            final File file = segmentFiles.get(i);
+            final int number = parseSegmentNumber(file.getName());
+            mNextSegmentNumber = Math.max(mNextSegmentNumber, number + 1);
+            if (number < mFirstSegmentNumber) {
+                // Superseded by a compaction that completed, but was interrupted before it could
+                // delete it
+                file.delete();
+                continue;
+            }
+            mSegments.add(file);
+            mActiveSegmentSize = segments.get(i).limit();
+            if (!scan(file, segments.get(i), consumer)) {
+                // Don't append after what may be a partial entry
+                mActiveSegmentSize = MAX_SEGMENT_SIZE;
+            }
+        }
+    }
+
+    /**
+     * @return whether the whole segment could be read
+     */
+    private static boolean scan(File file, ByteBuffer segment, Consumer<Record> consumer) {
+        if (segment.limit() < SEGMENT_HEADER_SIZE || segment.getInt(0) != SEGMENT_MAGIC) {
+            Slog.w(TAG, "Ignoring " + file + ": bad header");
+            return false;
+        }
+        int pos = SEGMENT_HEADER_SIZE;
+        while (pos + ENTRY_HEADER_SIZE <= segment.limit()) {
+            final int entryLength = segment.getInt(pos);
+            final int nameLength = segment.getShort(pos + 4);
+            final int traceNameLength = segment.getShort(pos + 6);
+            final int payloadOffset = pos + ENTRY_HEADER_SIZE + nameLength + traceNameLength;
+            if (entryLength < ENTRY_HEADER_SIZE || nameLength < 0 || traceNameLength < 0
+                    || payloadOffset > pos + entryLength || pos + entryLength > segment.limit()) {
+                // Most likely the tail of an append that didn't complete.
+                Slog.w(TAG, "Ignoring the end of " + file + " from offset " + pos);
+                return false;
+            }
+            final byte[] name = new byte[nameLength];
+            final byte[] traceName = new byte[traceNameLength];
+            final ByteBuffer buf = segment.duplicate();
+            buf.position(pos + ENTRY_HEADER_SIZE);
+            buf.get(name);
+            buf.get(traceName);
+            consumer.accept(new Record(new String(name, StandardCharsets.UTF_8),
+                    segment.getInt(pos + 8), segment.getInt(pos + 12), segment.getLong(pos + 16),
+                    traceNameLength > 0 ? new String(traceName, StandardCharsets.UTF_8) : null,
+                    segment, payloadOffset, pos + entryLength - payloadOffset));
+            pos += entryLength;
+        }
+        return pos == segment.limit();
+    }
+
+    /**
+     * Decodes a record, returns {@code null} if it can't be decoded.
+     */
+    static ApplicationExitInfo read(Record record) {
+        try {
+            final ProtoInputStream proto = new ProtoInputStream(getPayload(record));
+            if (proto.nextField() == (int) AppsExitInfoProto.Package.User.APP_EXIT_INFO) {
+                final ApplicationExitInfo info = new ApplicationExitInfo();
+                info.readFromProto(proto, AppsExitInfoProto.Package.User.APP_EXIT_INFO);
+                return info;
+            }
+        } catch (IOException | IllegalArgumentException | WireTypeMismatchException e) {
+            Slog.w(TAG, "Unable to decode exit info of " + record.packageName + "/"
+                    + record.uid + " pid " + record.pid + ": " + e);
+        }
+        return null;
+    }
+
+    /**
+     * Encodes a record of {@code packageName} and {@code uid} at the end of {@code out}.
+     *
+     * @return the offset in {@code out} of the encoded record, for {@link #relocate}
+     */
+    static int write(ByteArrayOutputStream out, String packageName, int uid,
+            ApplicationExitInfo info) {
+        final ProtoOutputStream proto = new ProtoOutputStream();
+        info.writeToProto(proto, AppsExitInfoProto.Package.User.APP_EXIT_INFO);
+        final File traceFile = info.getTraceFile();
+        return writeEntry(out, packageName, uid, info.getPid(), info.getTimestamp(),
+                traceFile != null ? traceFile.getName() : null, proto.getBytes());
+    }
+
+    /**
+     * Copies a record not decoded yet at the end of {@code out}.
+     *
+     * @return the offset in {@code out} of the encoded record, for {@link #relocate}
+     */
+    static int copy(ByteArrayOutputStream out, Record record) {
+        return writeEntry(out, record.packageName, record.uid, record.pid, record.timestamp,
+                record.traceFileName, getPayload(record));
+    }
+
+    private static byte[] getPayload(Record record) {
+        final byte[] payload = new byte[record.mLength];
+        final ByteBuffer buf = record.mSegment.duplicate();
+        buf.position(record.mOffset);
+        buf.get(payload);
+        return payload;
+    }
+
+    private static int writeEntry(ByteArrayOutputStream out, String packageName, int uid,
+            int pid, long timestamp, String traceFileName, byte[] payload) {
+        final byte[] name = packageName.getBytes(StandardCharsets.UTF_8);
+        final byte[] traceName = traceFileName != null
+                ? traceFileName.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        final ByteBuffer header = ByteBuffer.allocate(ENTRY_HEADER_SIZE);
+        header.putInt(ENTRY_HEADER_SIZE + name.length + traceName.length + payload.length);
+        header.putShort((short) name.length);
+        header.putShort((short) traceName.length);
+        header.putInt(uid);
+        header.putInt(pid);
+        header.putLong(timestamp);
+        out.write(header.array(), 0, ENTRY_HEADER_SIZE);
+        out.write(name, 0, name.length);
+        out.write(traceName, 0, traceName.length);
+        final int payloadOffset = out.size();
+        out.write(payload, 0, payload.length);
+        return payloadOffset;
+    }
+
+    /**
+     * Appends the records encoded in {@code entries} to the log.
+     */
+    void append(ByteArrayOutputStream entries) throws IOException {
+        if (entries.size() == 0) {
+            return;
+        }
+        if (mSegments.isEmpty() || mActiveSegmentSize >= MAX_SEGMENT_SIZE) {
+            final File file = new File(mDir, SEGMENT_FILE_PREFIX + mNextSegmentNumber);
+            if (mSegments.isEmpty()) {
+                mFirstSegmentNumber = mNextSegmentNumber;
+            }
+            try (FileOutputStream out = new FileOutputStream(file)) {
+                out.write(createSegmentHeader(mFirstSegmentNumber));
+                FileUtils.sync(out);
+            } catch (IOException e) {
+                file.delete();
+                throw e;
+            }
+            mSegments.add(file);
+            mNextSegmentNumber++;
+            mActiveSegmentSize = SEGMENT_HEADER_SIZE;
+        }
+        final File file = mSegments.get(mSegments.size() - 1);
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            entries.writeTo(out);
+            FileUtils.sync(out);
+        } catch (IOException e) {
+            // Don't append after what may be a partial entry
+            mActiveSegmentSize = MAX_SEGMENT_SIZE;
+            throw e;
+        }
+        mActiveSegmentSize += entries.size();
+    }
+
+    /**
+     * Whether the log has grown enough to be worth compacting.
+     */
+    boolean shouldCompact() {
+        return mSegments.size() > MAX_SEGMENTS;
+    }
+
+    /**
+     * Replaces the log with a single segment holding the records encoded in {@code entries},
+     * which should be all the live records.
+     *
+     * <p>The new segment is written in full under a temporary name and only then renamed, with
+     * a header saying it supersedes every older segment. If the older segments can't all be
+     * deleted, the next {@link #load} skips and deletes them.</p>
+     *
+     * @return the new segment, to {@link #relocate} the records copied into it, or {@code null}
+     *         if it couldn't be mapped
+     */
+    ByteBuffer compact(ByteArrayOutputStream entries) throws IOException {
+        final int number = mNextSegmentNumber;
+        final File file = new File(mDir, SEGMENT_FILE_PREFIX + number);
+        final File tempFile = new File(mDir, SEGMENT_FILE_PREFIX + number + TEMP_FILE_SUFFIX);
+        try (FileOutputStream out = new FileOutputStream(tempFile)) {
+            out.write(createSegmentHeader(number));
+            entries.writeTo(out);
+            FileUtils.sync(out);
+        } catch (IOException e) {
+            tempFile.delete();
+            throw e;
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Unable to rename " + tempFile + " to " + file);
+        }
+        for (int i = mSegments.size() - 1; i >= 0; i--) {
+            mSegments.get(i).delete();
+        }
+        mSegments.clear();
+        mSegments.add(file);
+        mFirstSegmentNumber = number;
+        mNextSegmentNumber++;
+        mActiveSegmentSize = SEGMENT_HEADER_SIZE + entries.size();
+        try {
+            return map(file);
+        } catch (IOException e) {
+            // The records not decoded yet keep reading from the segments they were loaded from,
+            // which stay mapped even though they are deleted.
+            Slog.w(TAG, "Unable to map " + file + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Points a record not decoded yet to where {@link #compact} copied it.
+     *
+     * @param offset the offset returned by {@link #copy} in the entries given to
+     *               {@link #compact}
+     */
+    static void relocate(Record record, ByteBuffer segment, int offset) {
+        record.mSegment = segment;
+        record.mOffset = SEGMENT_HEADER_SIZE + offset;
+    }
+
+    /**
+     * Deletes the log.
+     */
+    void deleteAll() {
+        final File[] files = mDir.listFiles(
+                (dir, name) -> name.startsWith(SEGMENT_FILE_PREFIX));
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mSegments.clear();
+        mFirstSegmentNumber = mNextSegmentNumber;
+        mActiveSegmentSize = 0;
+    }
+
+    int getSegmentCount() {
+        return mSegments.size();
+    }
+
+    /**
+     * @return the last time the log was written, in ms since epoch, or 0 if it is empty
+     */
+    long getLastModified() {
+        return mSegments.isEmpty() ? 0 : mSegments.get(mSegments.size() - 1).lastModified();
+    }
+
+    private static byte[] createSegmentHeader(int firstSegmentNumber) {
+        return ByteBuffer.allocate(SEGMENT_HEADER_SIZE).putInt(SEGMENT_MAGIC)
+                .putInt(firstSegmentNumber).array();
+    }
+
+    private static ByteBuffer map(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                FileChannel channel = raf.getChannel()) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    private static int parseSegmentNumber(String name) {
+        try {
+            return Integer.parseInt(name.substring(SEGMENT_FILE_PREFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
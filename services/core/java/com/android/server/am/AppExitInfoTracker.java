@@ -49,12 +49,13 @@ import android.text.TextUtils;
 import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.AtomicFile;
+import android.util.IntArray;
 import android.util.Pair;
 import android.util.Pools.SynchronizedPool;
 import android.util.Slog;
 import android.util.SparseArray;
+import android.util.SparseBooleanArray;
 import android.util.proto.ProtoInputStream;
-import android.util.proto.ProtoOutputStream;
 import android.util.proto.WireTypeMismatchException;
 
 import com.android.internal.annotations.GuardedBy;
@@ -68,12 +69,14 @@ import com.android.server.SystemServiceManager;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
@@ -182,11 +185,25 @@ public final class AppExitInfoTracker {
     File mProcExitStoreDir;
 
     /**
-     * The path to the historical proc exit info file, persisted in the storage.
+     * The path to the historical proc exit info file written by previous releases, it's moved
+     * into {@link #mProcExitInfoStore} the first time the records are persisted.
      */
     @VisibleForTesting
     File mProcExitInfoFile;
 
+    /**
+     * The log the historical proc exit info is persisted in, in {@link #mProcExitStoreDir}.
+     */
+    @VisibleForTesting
+    AppExitInfoStore mProcExitInfoStore;
+
+    /**
+     * Whether the whole log should be rewritten the next time the records are persisted, because
+     * records were removed or an earlier write failed.
+     */
+    @GuardedBy("mLock")
+    private boolean mCompactLogOnPersist = false;
+
     /**
      * Mapping between the isolated UID to its application uid.
      */
@@ -252,6 +269,7 @@ public final class AppExitInfoTracker {
             return;
         }
         mProcExitInfoFile = new File(mProcExitStoreDir, APP_EXIT_INFO_FILE);
+        mProcExitInfoStore = new AppExitInfoStore(mProcExitStoreDir);
 
         mAppExitInfoHistoryListSize = service.mContext.getResources().getInteger(
                 com.android.internal.R.integer.config_app_exit_info_history_list_size);
@@ -385,8 +403,10 @@ public final class AppExitInfoTracker {
             if (lmkd != null) {
                 updateExistingExitInfoRecordLocked(info, null,
                         ApplicationExitInfo.REASON_LOW_MEMORY);
+                markDirtyLocked(raw);
             } else if (zygote != null) {
                 updateExistingExitInfoRecordLocked(info, (Integer) zygote.second, null);
+                markDirtyLocked(raw);
             }
         }
     }
@@ -409,7 +429,26 @@ public final class AppExitInfoTracker {
             info.setStatus(0);
             info.setTimestamp(System.currentTimeMillis());
             info.setDescription(raw.getDescription());
+            markDirtyLocked(raw);
+        }
+    }
+
+    /**
+     * Note that the records of the process of {@code raw} changed and need to be persisted again.
+     */
+    @GuardedBy("mLock")
+    private void markDirtyLocked(ApplicationExitInfo raw) {
+        final String[] packages = raw.getPackageList();
+        if (packages == null) {
+            return;
         }
+        for (int i = 0; i < packages.length; i++) {
+            final AppExitInfoContainer container = mData.get(packages[i], raw.getPackageUid());
+            if (container != null) {
+                container.markDirtyLocked(raw.getPid());
+            }
+        }
+        schedulePersistProcessExitInfo(false);
     }
 
     @GuardedBy("mLock")
@@ -491,6 +530,8 @@ public final class AppExitInfoTracker {
             }
             // Okay found it, update its reason.
             updateExistingExitInfoRecordLocked(info, status, reason);
+            container.markDirtyLocked(pid);
+            schedulePersistProcessExitInfo(false);
 
             return FOREACH_ACTION_STOP_ITERATION;
         });
@@ -623,16 +664,42 @@ public final class AppExitInfoTracker {
 
     /**
      * Load the existing {@link android.app.ApplicationExitInfo} records from persistent storage.
+     * Only their index is loaded, the records themselves are decoded when they're first needed.
      */
     @VisibleForTesting
     void loadExistingProcessExitInfo() {
-        if (!mProcExitInfoFile.canRead()) {
+        mProcExitInfoStore.load(record -> {
             synchronized (mLock) {
-                mAppExitInfoLoaded = true;
+                AppExitInfoContainer container = mData.get(record.packageName, record.uid);
+                if (container == null) {
+                    container = new AppExitInfoContainer(mAppExitInfoHistoryListSize);
+                    container.mUid = record.uid;
+                    mData.put(record.packageName, record.uid, container);
+                }
+                container.addPersistedLocked(record);
+            }
+        });
+        if (mProcExitInfoStore.getSegmentCount() == 0 && mProcExitInfoFile.canRead()) {
+            loadLegacyProcessExitInfo();
+            synchronized (mLock) {
+                mCompactLogOnPersist = true;
+            }
+            schedulePersistProcessExitInfo(false);
+        } else {
+            synchronized (mLock) {
+                mLastAppExitInfoPersistTimestamp = mProcExitInfoStore.getLastModified();
             }
-            return;
         }
+        synchronized (mLock) {
+            pruneAnrTracesIfNecessaryLocked();
+            mAppExitInfoLoaded = true;
+        }
+    }
 
+    /**
+     * Load the records from the file written by previous releases.
+     */
+    private void loadLegacyProcessExitInfo() {
         FileInputStream fin = null;
         try {
             AtomicFile af = new AtomicFile(mProcExitInfoFile);
@@ -663,10 +730,6 @@ public final class AppExitInfoTracker {
                 }
             }
         }
-        synchronized (mLock) {
-            pruneAnrTracesIfNecessaryLocked();
-            mAppExitInfoLoaded = true;
-        }
     }
 
     private void loadPackagesFromProto(ProtoInputStream proto, long fieldId)
@@ -694,35 +757,56 @@ public final class AppExitInfoTracker {
     }
 
     /**
-     * Persist the existing {@link android.app.ApplicationExitInfo} records to storage.
+     * Persist the {@link android.app.ApplicationExitInfo} records that changed since they were
+     * last persisted to storage, appending them to the log. The log is rewritten instead when
+     * records were removed or it has grown too much.
      */
     @VisibleForTesting
     void persistProcessExitInfo() {
-        AtomicFile af = new AtomicFile(mProcExitInfoFile);
-        FileOutputStream out = null;
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final ArrayList<AppExitInfoStore.Record> copied = new ArrayList<>();
+        final IntArray copiedOffsets = new IntArray();
+        final boolean compact;
         long now = System.currentTimeMillis();
+        synchronized (mLock) {
+            compact = mCompactLogOnPersist || mProcExitInfoStore.shouldCompact();
+            mCompactLogOnPersist = false;
+            forEachPackageLocked((packageName, records) -> {
+                int uidArraySize = records.size();
+                for (int j = 0; j < uidArraySize; j++) {
+                    records.valueAt(j).writeToLogLocked(packageName, out, compact, copied,
+                            copiedOffsets);
+                }
+                return AppExitInfoTracker.FOREACH_ACTION_NONE;
+            });
+        }
         try {
-            out = af.startWrite();
-            ProtoOutputStream proto = new ProtoOutputStream(out);
-            proto.write(AppsExitInfoProto.LAST_UPDATE_TIMESTAMP, now);
-            synchronized (mLock) {
-                forEachPackageLocked((packageName, records) -> {
-                    long token = proto.start(AppsExitInfoProto.PACKAGES);
-                    proto.write(AppsExitInfoProto.Package.PACKAGE_NAME, packageName);
-                    int uidArraySize = records.size();
-                    for (int j = 0; j < uidArraySize; j++) {
-                        records.valueAt(j).writeToProto(proto, AppsExitInfoProto.Package.USERS);
+            if (compact) {
+                final ByteBuffer segment = mProcExitInfoStore.compact(out);
+                synchronized (mLock) {
+                    if (segment != null) {
+                        for (int i = copied.size() - 1; i >= 0; i--) {
+                            AppExitInfoStore.relocate(copied.get(i), segment,
+                                    copiedOffsets.get(i));
+                        }
                     }
-                    proto.end(token);
-                    return AppExitInfoTracker.FOREACH_ACTION_NONE;
-                });
-                mLastAppExitInfoPersistTimestamp = now;
+                    mLastAppExitInfoPersistTimestamp = now;
+                }
+                if (mProcExitInfoFile.exists()) {
+                    new AtomicFile(mProcExitInfoFile).delete();
+                }
+            } else {
+                mProcExitInfoStore.append(out);
+                synchronized (mLock) {
+                    mLastAppExitInfoPersistTimestamp = now;
+                }
             }
-            proto.flush();
-            af.finishWrite(out);
         } catch (IOException e) {
             Slog.w(TAG, "Unable to write historical app exit info into persistent storage: " + e);
-            af.failWrite(out);
+            synchronized (mLock) {
+                // The records that failed to be written are no longer marked as changed.
+                mCompactLogOnPersist = true;
+            }
         }
         synchronized (mLock) {
             mAppExitInfoPersistTask = null;
@@ -759,6 +843,9 @@ public final class AppExitInfoTracker {
             if (removeFile && mProcExitInfoFile != null) {
                 mProcExitInfoFile.delete();
             }
+            if (removeFile && mProcExitInfoStore != null) {
+                mProcExitInfoStore.deleteAll();
+            }
             mData.getMap().clear();
             mActiveAppStateSummary.clear();
             mActiveAppTraces.clear();
@@ -790,6 +877,14 @@ public final class AppExitInfoTracker {
         synchronized (mLock) {
             pw.println("Last Timestamp of Persistence Into Persistent Storage: "
                     + sdf.format(new Date(mLastAppExitInfoPersistTimestamp)));
+            final int[] notDecoded = new int[1];
+            forEachPackageLocked((name, records) -> {
+                for (int i = records.size() - 1; i >= 0; i--) {
+                    notDecoded[0] += records.valueAt(i).getPersistedCountLocked();
+                }
+                return AppExitInfoTracker.FOREACH_ACTION_NONE;
+            });
+            pw.println("Records not decoded from persistent storage yet: " + notDecoded[0]);
             if (TextUtils.isEmpty(packageName)) {
                 forEachPackageLocked((name, records) -> {
                     dumpHistoryProcessExitInfoLocked(pw, "  ", name, records, sdf);
@@ -861,6 +956,7 @@ public final class AppExitInfoTracker {
 
     @GuardedBy("mLocked")
     private void removePackageLocked(String packageName, int uid, boolean removeUid, int userId) {
+        mCompactLogOnPersist = true;
         if (removeUid) {
             mActiveAppStateSummary.remove(uid);
             final int idx = mActiveAppTraces.indexOfKey(uid);
@@ -898,6 +994,7 @@ public final class AppExitInfoTracker {
 
     @GuardedBy("mLocked")
     private void removeByUserIdLocked(final int userId) {
+        mCompactLogOnPersist = true;
         if (userId == UserHandle.USER_ALL) {
             mData.getMap().clear();
             mActiveAppStateSummary.clear();
@@ -1100,14 +1197,7 @@ public final class AppExitInfoTracker {
         // Find out the owners from the existing records
         forEachPackageLocked((name, records) -> {
             for (int i = records.size() - 1; i >= 0; i--) {
-                final AppExitInfoContainer container = records.valueAt(i);
-                container.forEachRecordLocked((pid, info) -> {
-                    final File traceFile = info.getTraceFile();
-                    if (traceFile != null) {
-                        allFiles.remove(traceFile.getName());
-                    }
-                    return FOREACH_ACTION_NONE;
-                });
+                records.valueAt(i).forEachTraceFileNameLocked(allFiles::remove);
             }
             return AppExitInfoTracker.FOREACH_ACTION_NONE;
         });
@@ -1222,14 +1312,67 @@ public final class AppExitInfoTracker {
         private int mMaxCapacity;
         private int mUid; // Application uid, not isolated uid.
 
+        // The records loaded from persistent storage but not decoded yet, index is pid.
+        private SparseArray<AppExitInfoStore.Record> mPersisted;
+        // The pids of the decoded records changed since they were last persisted.
+        private final SparseBooleanArray mDirty = new SparseBooleanArray();
+
         AppExitInfoContainer(final int maxCapacity) {
             mInfos = new SparseArray<ApplicationExitInfo>();
             mMaxCapacity = maxCapacity;
         }
 
+        @GuardedBy("mLock")
+        void addPersistedLocked(AppExitInfoStore.Record record) {
+            if (mPersisted == null) {
+                mPersisted = new SparseArray<AppExitInfoStore.Record>();
+            }
+            // A later record of the same pid is an update of the earlier one.
+            mPersisted.put(record.pid, record);
+            if (mMaxCapacity > 0 && mPersisted.size() > mMaxCapacity) {
+                int oldestIndex = 0;
+                for (int i = mPersisted.size() - 1; i > 0; i--) {
+                    if (mPersisted.valueAt(i).timestamp
+                            < mPersisted.valueAt(oldestIndex).timestamp) {
+                        oldestIndex = i;
+                    }
+                }
+                mPersisted.removeAt(oldestIndex);
+            }
+        }
+
+        @GuardedBy("mLock")
+        private void ensureDecodedLocked() {
+            if (mPersisted == null) {
+                return;
+            }
+            for (int i = 0, size = mPersisted.size(); i < size; i++) {
+                final int pid = mPersisted.keyAt(i);
+                if (mInfos.get(pid) != null) {
+                    continue;
+                }
+                final ApplicationExitInfo info = AppExitInfoStore.read(mPersisted.valueAt(i));
+                if (info != null) {
+                    mInfos.put(pid, info);
+                }
+            }
+            mPersisted = null;
+        }
+
+        @GuardedBy("mLock")
+        int getPersistedCountLocked() {
+            return mPersisted != null ? mPersisted.size() : 0;
+        }
+
+        @GuardedBy("mLock")
+        void markDirtyLocked(int pid) {
+            mDirty.put(pid, true);
+        }
+
         @GuardedBy("mLock")
         void getExitInfoLocked(final int filterPid, final int maxNum,
                 ArrayList<ApplicationExitInfo> results) {
+            ensureDecodedLocked();
             if (filterPid > 0) {
                 ApplicationExitInfo r = mInfos.get(filterPid);
                 if (r != null) {
@@ -1275,6 +1418,7 @@ public final class AppExitInfoTracker {
 
         @GuardedBy("mLock")
         void addExitInfoLocked(ApplicationExitInfo info) {
+            ensureDecodedLocked();
             int size;
             if ((size = mInfos.size()) >= mMaxCapacity) {
                 int oldestIndex = -1;
@@ -1302,14 +1446,17 @@ public final class AppExitInfoTracker {
             info.setTraceFile(findAndRemoveFromSparse2dArray(mActiveAppTraces, uid, pid));
             info.setAppTraceRetriever(mAppTraceRetriever);
             mInfos.append(pid, info);
+            markDirtyLocked(pid);
         }
 
         @GuardedBy("mLock")
         boolean appendTraceIfNecessaryLocked(final int pid, final File traceFile) {
+            ensureDecodedLocked();
             final ApplicationExitInfo r = mInfos.get(pid);
             if (r != null) {
                 r.setTraceFile(traceFile);
                 r.setAppTraceRetriever(mAppTraceRetriever);
+                markDirtyLocked(pid);
                 return true;
             }
             return false;
@@ -1317,6 +1464,7 @@ public final class AppExitInfoTracker {
 
         @GuardedBy("mLock")
         void destroyLocked() {
+            ensureDecodedLocked();
             for (int i = mInfos.size() - 1; i >= 0; i--) {
                 ApplicationExitInfo ai = mInfos.valueAt(i);
                 final File traceFile = ai.getTraceFile();
@@ -1331,6 +1479,7 @@ public final class AppExitInfoTracker {
         @GuardedBy("mLock")
         void forEachRecordLocked(final BiFunction<Integer, ApplicationExitInfo, Integer> callback) {
             if (callback != null) {
+                ensureDecodedLocked();
                 for (int i = mInfos.size() - 1; i >= 0; i--) {
                     switch (callback.apply(mInfos.keyAt(i), mInfos.valueAt(i))) {
                         case FOREACH_ACTION_REMOVE_ITEM:
@@ -1353,6 +1502,7 @@ public final class AppExitInfoTracker {
 
         @GuardedBy("mLock")
         void dumpLocked(PrintWriter pw, String prefix, SimpleDateFormat sdf) {
+            ensureDecodedLocked();
             ArrayList<ApplicationExitInfo> list = new ArrayList<ApplicationExitInfo>();
             for (int i = mInfos.size() - 1; i >= 0; i--) {
                 list.add(mInfos.valueAt(i));
@@ -1364,15 +1514,52 @@ public final class AppExitInfoTracker {
             }
         }
 
+        /**
+         * Encode the records into {@code out} for {@link AppExitInfoStore}.
+         *
+         * @param all whether to encode all the records, including the ones not decoded yet, or
+         *            only those changed since they were last persisted
+         * @param copied the records not decoded yet that were copied into {@code out}
+         * @param copiedOffsets the offsets in {@code out} of the records in {@code copied}
+         */
         @GuardedBy("mLock")
-        void writeToProto(ProtoOutputStream proto, long fieldId) {
-            long token = proto.start(fieldId);
-            proto.write(AppsExitInfoProto.Package.User.UID, mUid);
-            int size = mInfos.size();
-            for (int i = 0; i < size; i++) {
-                mInfos.valueAt(i).writeToProto(proto, AppsExitInfoProto.Package.User.APP_EXIT_INFO);
+        void writeToLogLocked(String packageName, ByteArrayOutputStream out, boolean all,
+                ArrayList<AppExitInfoStore.Record> copied, IntArray copiedOffsets) {
+            for (int i = 0, size = mInfos.size(); i < size; i++) {
+                if (all || mDirty.get(mInfos.keyAt(i))) {
+                    AppExitInfoStore.write(out, packageName, mUid, mInfos.valueAt(i));
+                }
+            }
+            if (all && mPersisted != null) {
+                for (int i = 0, size = mPersisted.size(); i < size; i++) {
+                    final AppExitInfoStore.Record record = mPersisted.valueAt(i);
+                    copied.add(record);
+                    copiedOffsets.add(AppExitInfoStore.copy(out, record));
+                }
+            }
+            mDirty.clear();
+        }
+
+        /**
+         * Call {@code callback} with the name of the trace file of each record, without decoding
+         * the records not decoded yet.
+         */
+        @GuardedBy("mLock")
+        void forEachTraceFileNameLocked(Consumer<String> callback) {
+            for (int i = mInfos.size() - 1; i >= 0; i--) {
+                final File traceFile = mInfos.valueAt(i).getTraceFile();
+                if (traceFile != null) {
+                    callback.accept(traceFile.getName());
+                }
+            }
+            if (mPersisted != null) {
+                for (int i = mPersisted.size() - 1; i >= 0; i--) {
+                    final String traceFileName = mPersisted.valueAt(i).traceFileName;
+                    if (traceFileName != null && mInfos.get(mPersisted.keyAt(i)) == null) {
+                        callback.accept(traceFileName);
+                    }
+                }
             }
-            proto.end(token);
         }
 
         int readFromProto(ProtoInputStream proto, long fieldId)
@@ -1401,6 +1588,7 @@ public final class AppExitInfoTracker {
             if (list == null) {
                 list = new ArrayList<ApplicationExitInfo>();
             }
+            ensureDecodedLocked();
             for (int i = mInfos.size() - 1; i >= 0; i--) {
                 if (filterPid == 0 || filterPid == mInfos.keyAt(i)) {
                     list.add(mInfos.valueAt(i));
@@ -326,6 +326,40 @@ public class BroadcastDispatcher {
         return old;
     }
 
+    // Removes the pending broadcasts that r would replace, for when r itself is enqueued
+    // elsewhere; returns them, empty if there were none.
+    ArrayList<BroadcastRecord> removeReplacedBroadcastsLocked(BroadcastRecord r,
+            String typeForLogging) {
+        final ArrayList<BroadcastRecord> removed = new ArrayList<>();
+        removeReplacedBroadcastsLocked(mOrderedBroadcasts, r, typeForLogging, removed);
+        for (int i = 0; i < mAlarmBroadcasts.size(); i++) {
+            removeReplacedBroadcastsLocked(mAlarmBroadcasts.get(i).broadcasts, r,
+                    typeForLogging, removed);
+        }
+        for (int i = 0; i < mDeferredBroadcasts.size(); i++) {
+            removeReplacedBroadcastsLocked(mDeferredBroadcasts.get(i).broadcasts, r,
+                    typeForLogging, removed);
+        }
+        return removed;
+    }
+
+    private void removeReplacedBroadcastsLocked(ArrayList<BroadcastRecord> list,
+            BroadcastRecord r, String typeForLogging, ArrayList<BroadcastRecord> removed) {
+        final Intent intent = r.intent;
+        // As with replacement, the in-flight broadcast has already been popped and stays.
+        for (int i = list.size() - 1; i >= 0; i--) {
+            final BroadcastRecord old = list.get(i);
+            if (old.userId == r.userId && intent.filterEquals(old.intent)) {
+                if (DEBUG_BROADCAST) {
+                    Slog.v(TAG, "***** Dropping replaced " + typeForLogging
+                            + " [" + mQueue.mQueueName + "]: " + intent);
+                }
+                list.remove(i);
+                removed.add(old);
+            }
+        }
+    }
+
     private BroadcastRecord replaceDeferredBroadcastLocked(ArrayList<Deferrals> list,
             BroadcastRecord r, String typeForLogging) {
         BroadcastRecord old;
@@ -68,6 +68,11 @@ import java.util.Set;
  * We keep three broadcast queues and associated bookkeeping, one for those at
  * foreground priority, and one for normal (background-priority) broadcasts, and one to
  * offload special broadcasts that we know take a long time, such as BOOT_COMPLETED.
+ *
+ * The foreground and background queues can also have lanes: queues of their own that serialize
+ * delivery to manifest receivers for broadcasts whose receivers don't depend on each other, with
+ * every process always served by the same lane. A slow receiver then only holds up the
+ * broadcasts to the processes sharing its lane, instead of every broadcast in the queue.
  */
 public final class BroadcastQueue {
     private static final String TAG = "BroadcastQueue";
@@ -97,6 +102,11 @@ public final class BroadcastQueue {
      */
     final boolean mDelayBehindServices;
 
+    /**
+     * The queue this is a lane of, or null if it isn't a lane.
+     */
+    final BroadcastQueue mParentQueue;
+
     /**
      * Lists of all active broadcasts that are to be executed immediately
      * (without waiting for another broadcast to finish).  Currently this only
@@ -167,12 +177,26 @@ public final class BroadcastQueue {
      */
     int mPendingBroadcastRecvIndex;
 
+    /**
+     * Set when the next receiver waits for another queue of the family, the parent queue or one
+     * of its lanes, to finish a receiver in the same process.
+     */
+    boolean mBlockedBySiblingQueue = false;
+
     static final int BROADCAST_INTENT_MSG = ActivityManagerService.FIRST_BROADCAST_QUEUE_MSG;
     static final int BROADCAST_TIMEOUT_MSG = ActivityManagerService.FIRST_BROADCAST_QUEUE_MSG + 1;
 
     // log latency metrics for ordered broadcasts during BOOT_COMPLETED processing
     boolean mLogLatencyMetrics = true;
 
+    /**
+     * Serialized broadcasts dispatched so far, and the total and longest time they spent in
+     * this queue before their first receiver was called, in milliseconds.
+     */
+    long mDispatchCount;
+    long mTotalQueueingDelay;
+    long mMaxQueueingDelay;
+
     final BroadcastHandler mHandler;
 
     private final class BroadcastHandler extends Handler {
@@ -200,10 +224,20 @@ public final class BroadcastQueue {
 
     BroadcastQueue(ActivityManagerService service, Handler handler,
             String name, BroadcastConstants constants, boolean allowDelayBehindServices) {
+        this(service, handler, name, constants, allowDelayBehindServices, null);
+    }
+
+    /**
+     * @param parentQueue the queue this is a lane of, whose constants it shares, or null
+     */
+    BroadcastQueue(ActivityManagerService service, Handler handler,
+            String name, BroadcastConstants constants, boolean allowDelayBehindServices,
+            BroadcastQueue parentQueue) {
         mService = service;
         mHandler = new BroadcastHandler(handler.getLooper());
         mQueueName = name;
         mDelayBehindServices = allowDelayBehindServices;
+        mParentQueue = parentQueue;
 
         mConstants = constants;
         mDispatcher = new BroadcastDispatcher(this, mConstants, mHandler, mService);
@@ -211,7 +245,10 @@ public final class BroadcastQueue {
 
     void start(ContentResolver resolver) {
         mDispatcher.start();
-        mConstants.startObserving(mHandler, resolver);
+        // Lanes share the constants of their parent queue, which observes them
+        if (mParentQueue == null) {
+            mConstants.startObserving(mHandler, resolver);
+        }
     }
 
     @Override
@@ -263,6 +300,23 @@ public final class BroadcastQueue {
         return mDispatcher.replaceBroadcastLocked(r, "ORDERED");
     }
 
+    /**
+     * Removes the queued ordered broadcasts of the same intent, for when the new one is
+     * enqueued on another queue of the family, and returns them.
+     */
+    final ArrayList<BroadcastRecord> removeReplacedOrderedBroadcastsLocked(BroadcastRecord r) {
+        return mDispatcher.removeReplacedBroadcastsLocked(r, "ORDERED");
+    }
+
+    /**
+     * Returns whether the broadcast being delivered has a receiver in flight in the process that
+     * would run {@code receiver}.
+     */
+    boolean isReceiverInFlightToProcessOfLocked(Object receiver) {
+        final BroadcastRecord r = mDispatcher.getActiveBroadcastLocked();
+        return r != null && r.isReceiverInFlightToProcessOfLocked(receiver);
+    }
+
     private BroadcastRecord replaceBroadcastLocked(ArrayList<BroadcastRecord> queue,
             BroadcastRecord r, String typeForLogging) {
         final Intent intent = r.intent;
@@ -364,6 +418,7 @@ public final class BroadcastQueue {
             br.nextReceiver = mPendingBroadcastRecvIndex;
             mPendingBroadcast = null;
             scheduleBroadcastsLocked();
+            mService.scheduleBroadcastsBlockedByQueueLocked(this);
         }
     }
 
@@ -509,6 +564,7 @@ public final class BroadcastQueue {
         r.curReceiver = null;
         r.curApp = null;
         mPendingBroadcast = null;
+        mService.scheduleBroadcastsBlockedByQueueLocked(this);
 
         r.resultCode = resultCode;
         r.resultData = resultData;
@@ -1027,6 +1083,7 @@ public final class BroadcastQueue {
                 mPendingBroadcast.state = BroadcastRecord.IDLE;
                 mPendingBroadcast.nextReceiver = mPendingBroadcastRecvIndex;
                 mPendingBroadcast = null;
+                mService.scheduleBroadcastsBlockedByQueueLocked(this);
             }
         }
 
@@ -1244,6 +1301,19 @@ public final class BroadcastQueue {
             }
         } while (r == null);
 
+        // Manifest receivers of a process share its token when they finish, so only one queue
+        // of the family at a time has a receiver in flight there, for finishReceiver() to know
+        // which broadcast finished.
+        if (mService.isReceiverInFlightOnSiblingQueueLocked(this,
+                r.receivers.get(r.nextReceiver))) {
+            if (DEBUG_BROADCAST) Slog.v(TAG_BROADCAST, "Waiting ["
+                    + mQueueName + "] for a sibling queue to finish in the process of "
+                    + r.receivers.get(r.nextReceiver));
+            cancelBroadcastTimeoutLocked();
+            mBlockedBySiblingQueue = true;
+            return;
+        }
+
         // Get the next receiver...
         int recIdx = r.nextReceiver++;
 
@@ -1254,6 +1324,11 @@ public final class BroadcastQueue {
             r.dispatchTime = r.receiverTime;
             r.dispatchClockTime = System.currentTimeMillis();
 
+            final long queueingDelay = Math.max(0, r.dispatchClockTime - r.enqueueClockTime);
+            mDispatchCount++;
+            mTotalQueueingDelay += queueingDelay;
+            mMaxQueueingDelay = Math.max(mMaxQueueingDelay, queueingDelay);
+
             if (mLogLatencyMetrics) {
                 FrameworkStatsLog.write(
                         FrameworkStatsLog.BROADCAST_DISPATCH_LATENCY_REPORTED,
@@ -1999,7 +2074,18 @@ public final class BroadcastQueue {
             }
         }
 
-        mConstants.dump(pw);
+        if (mParentQueue == null) {
+            mConstants.dump(pw);
+        }
+        if (dumpPackage == null && mDispatchCount > 0) {
+            pw.println();
+            pw.print("  Queueing delay ["); pw.print(mQueueName); pw.print("]: dispatched=");
+            pw.print(mDispatchCount);
+            pw.print(" avg="); TimeUtils.formatDuration(mTotalQueueingDelay / mDispatchCount, pw);
+            pw.print(" max="); TimeUtils.formatDuration(mMaxQueueingDelay, pw);
+            pw.println();
+            needSep = true;
+        }
 
         int i;
         boolean printed = false;
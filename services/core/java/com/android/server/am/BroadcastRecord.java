@@ -358,6 +358,54 @@ final class BroadcastRecord extends Binder {
         return split;
     }
 
+    /**
+     * Split off a new BroadcastRecord that clones this one for delivery on {@code lane}, with
+     * only the given receivers and its own copy of the intent, which delivery modifies. Only
+     * valid for a broadcast whose receivers don't depend on each other, or whose receivers all
+     * go to the same lane, since the split records are delivered independently of each other.
+     */
+    BroadcastRecord splitForLaneLocked(BroadcastQueue lane, List<Object> laneReceivers) {
+        return new BroadcastRecord(lane, new Intent(intent), callerApp, callerPackage,
+                callerFeatureId, callingPid, callingUid, callerInstantApp, resolvedType,
+                requiredPermissions, appOp, options, laneReceivers, resultTo, resultCode,
+                resultData, resultExtras, ordered, sticky, initialSticky, userId,
+                allowBackgroundActivityStarts, timeoutExempt);
+    }
+
+    /**
+     * Returns whether a receiver of this broadcast is running, or waiting for its process to
+     * start, in the process that would run {@code receiver}. The uids are compared across users,
+     * as singleton receivers run in the process of the system user.
+     */
+    boolean isReceiverInFlightToProcessOfLocked(Object receiver) {
+        if (state == IDLE) {
+            return false;
+        }
+        final String processName;
+        final int uid;
+        if (receiver instanceof ResolveInfo) {
+            final ActivityInfo info = ((ResolveInfo) receiver).activityInfo;
+            processName = info.processName;
+            uid = info.applicationInfo.uid;
+        } else {
+            final ProcessRecord app = ((BroadcastFilter) receiver).receiverList.app;
+            if (app == null) {
+                return false;
+            }
+            processName = app.processName;
+            uid = app.uid;
+        }
+        if (curReceiver != null) {
+            return UserHandle.isSameApp(curReceiver.applicationInfo.uid, uid)
+                    && curReceiver.processName.equals(processName);
+        }
+        if (curFilter != null && curFilter.receiverList.app != null) {
+            final ProcessRecord app = curFilter.receiverList.app;
+            return UserHandle.isSameApp(app.uid, uid) && app.processName.equals(processName);
+        }
+        return false;
+    }
+
     int getReceiverUid(Object receiver) {
         if (receiver instanceof BroadcastFilter) {
             return ((BroadcastFilter) receiver).owningUid;
@@ -40,6 +40,7 @@ import android.util.Slog;
 import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.FrameworkStatsLog;
+import com.android.server.MemoryPressureUtil;
 import com.android.server.ServiceThread;
 
 import java.io.FileOutputStream;
@@ -77,6 +78,9 @@ public final class CachedAppOptimizer {
             "compact_full_delta_rss_throttle_kb";
     @VisibleForTesting static final String KEY_COMPACT_PROC_STATE_THROTTLE =
             "compact_proc_state_throttle";
+    @VisibleForTesting static final String KEY_COMPACT_MIN_YIELD_KB = "compact_min_yield_kb";
+    @VisibleForTesting static final String KEY_COMPACT_MAX_YIELD_BACKOFF_MS =
+            "compact_max_yield_backoff_ms";
 
     // Phenotype sends int configurations and we map them to the strings we'll use on device,
     // preventing a weird string value entering the kernel.
@@ -107,6 +111,11 @@ public final class CachedAppOptimizer {
     // Format of this string should be a comma separated list of integers.
     @VisibleForTesting static final String DEFAULT_COMPACT_PROC_STATE_THROTTLE =
             String.valueOf(ActivityManager.PROCESS_STATE_RECEIVER);
+    @VisibleForTesting static final long DEFAULT_COMPACT_MIN_YIELD_KB = 1_000L;
+    @VisibleForTesting static final long DEFAULT_COMPACT_MAX_YIELD_BACKOFF_MS = 30 * 60 * 1000;
+
+    // The first backoff after a low yield compaction, doubled after each further one.
+    @VisibleForTesting static final long COMPACT_YIELD_BACKOFF_MS = 60 * 1000;
 
     @VisibleForTesting
     interface PropertyChangedCallbackForTest {
@@ -120,6 +129,8 @@ public final class CachedAppOptimizer {
     interface ProcessDependencies {
         long[] getRss(int pid);
         void performCompaction(String action, int pid) throws IOException;
+        // The "some" memory pressure averaged over 60s, or -1 if it can't be read.
+        float getMemoryPressure();
     }
 
     // Handler constants.
@@ -181,6 +192,10 @@ public final class CachedAppOptimizer {
                                 updateFullDeltaRssThrottle();
                             } else if (KEY_COMPACT_PROC_STATE_THROTTLE.equals(name)) {
                                 updateProcStateThrottle();
+                            } else if (KEY_COMPACT_MIN_YIELD_KB.equals(name)) {
+                                updateMinYield();
+                            } else if (KEY_COMPACT_MAX_YIELD_BACKOFF_MS.equals(name)) {
+                                updateMaxYieldBackoff();
                             }
                         }
                     }
@@ -228,6 +243,11 @@ public final class CachedAppOptimizer {
             DEFAULT_COMPACT_FULL_DELTA_RSS_THROTTLE_KB;
     @GuardedBy("mPhenotypeFlagLock")
     @VisibleForTesting final Set<Integer> mProcStateThrottle;
+    @GuardedBy("mPhenotypeFlagLock")
+    @VisibleForTesting volatile long mCompactMinYieldKb = DEFAULT_COMPACT_MIN_YIELD_KB;
+    @GuardedBy("mPhenotypeFlagLock")
+    @VisibleForTesting volatile long mCompactMaxYieldBackoffMs =
+            DEFAULT_COMPACT_MAX_YIELD_BACKOFF_MS;
 
     // Handler on which compaction runs.
     @VisibleForTesting
@@ -247,10 +267,24 @@ public final class CachedAppOptimizer {
                 }
     };
 
+    // Maps process ID to the memory reclaimed by its compactions, used to compact the processes
+    // that give back the most memory first and to back off from the ones that give back little.
+    @GuardedBy("this")
+    @VisibleForTesting
+    final LinkedHashMap<Integer, CompactionYieldStats> mCompactionYieldStats =
+            new LinkedHashMap<Integer, CompactionYieldStats>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry eldest) {
+                    return size() > 100;
+                }
+    };
+
     private int mSomeCompactionCount;
     private int mFullCompactionCount;
     private int mPersistentCompactionCount;
     private int mBfgsCompactionCount;
+    private int mYieldBackoffSkipCount;
+    private int mNoPressureSkipCount;
     private final ProcessDependencies mProcessDependencies;
 
     public CachedAppOptimizer(ActivityManagerService am) {
@@ -284,6 +318,8 @@ public final class CachedAppOptimizer {
             updateFullRssThrottle();
             updateFullDeltaRssThrottle();
             updateProcStateThrottle();
+            updateMinYield();
+            updateMaxYieldBackoff();
             updateUseFreezer();
         }
     }
@@ -326,10 +362,14 @@ public final class CachedAppOptimizer {
                     + mFullDeltaRssThrottleKb);
             pw.println("  "  + KEY_COMPACT_PROC_STATE_THROTTLE + "="
                     + Arrays.toString(mProcStateThrottle.toArray(new Integer[0])));
+            pw.println("  " + KEY_COMPACT_MIN_YIELD_KB + "=" + mCompactMinYieldKb);
+            pw.println("  " + KEY_COMPACT_MAX_YIELD_BACKOFF_MS + "=" + mCompactMaxYieldBackoffMs);
 
             pw.println("  " + mSomeCompactionCount + " some, " + mFullCompactionCount
                     + " full, " + mPersistentCompactionCount + " persistent, "
                     + mBfgsCompactionCount + " BFGS compactions.");
+            pw.println("  " + mYieldBackoffSkipCount + " skipped after a low yield, "
+                    + mNoPressureSkipCount + " skipped without memory pressure.");
 
             pw.println("  Tracking last compaction stats for " + mLastCompactionStats.size()
                     + " processes.");
@@ -345,47 +385,43 @@ public final class CachedAppOptimizer {
                 }
             }
         }
+        dumpCompactionYieldStats(pw);
+    }
+
+    private void dumpCompactionYieldStats(PrintWriter pw) {
+        synchronized (this) {
+            if (mCompactionYieldStats.isEmpty()) {
+                return;
+            }
+            final ArrayList<CompactionYieldStats> stats =
+                    new ArrayList<>(mCompactionYieldStats.values());
+            stats.sort((a, b) -> Long.compare(b.getExpectedYieldKb(), a.getExpectedYieldKb()));
+            pw.println("  Compaction yield (KB reclaimed), highest expected yield first:");
+            final long now = SystemClock.uptimeMillis();
+            for (int i = 0; i < stats.size(); i++) {
+                stats.get(i).dump(pw, "    ", now);
+            }
+        }
     }
 
     @GuardedBy("mAm")
     void compactAppSome(ProcessRecord app) {
         synchronized (this) {
-            app.reqCompactAction = COMPACT_PROCESS_SOME;
-            if (!app.mPendingCompact) {
-                app.mPendingCompact = true;
-                mPendingCompactionProcesses.add(app);
-                mCompactionHandler.sendMessage(
-                        mCompactionHandler.obtainMessage(
-                        COMPACT_PROCESS_MSG, app.setAdj, app.setProcState));
-            }
+            queueCompactionLocked(app, COMPACT_PROCESS_SOME, app.setAdj);
         }
     }
 
     @GuardedBy("mAm")
     void compactAppFull(ProcessRecord app) {
         synchronized (this) {
-            app.reqCompactAction = COMPACT_PROCESS_FULL;
-            if (!app.mPendingCompact) {
-                app.mPendingCompact = true;
-                mPendingCompactionProcesses.add(app);
-                mCompactionHandler.sendMessage(
-                        mCompactionHandler.obtainMessage(
-                        COMPACT_PROCESS_MSG, app.setAdj, app.setProcState));
-            }
+            queueCompactionLocked(app, COMPACT_PROCESS_FULL, app.setAdj);
         }
     }
 
     @GuardedBy("mAm")
     void compactAppPersistent(ProcessRecord app) {
         synchronized (this) {
-            app.reqCompactAction = COMPACT_PROCESS_PERSISTENT;
-            if (!app.mPendingCompact) {
-                app.mPendingCompact = true;
-                mPendingCompactionProcesses.add(app);
-                mCompactionHandler.sendMessage(
-                        mCompactionHandler.obtainMessage(
-                        COMPACT_PROCESS_MSG, app.curAdj, app.setProcState));
-            }
+            queueCompactionLocked(app, COMPACT_PROCESS_PERSISTENT, app.curAdj);
         }
     }
 
@@ -400,14 +436,7 @@ public final class CachedAppOptimizer {
     @GuardedBy("mAm")
     void compactAppBfgs(ProcessRecord app) {
         synchronized (this) {
-            app.reqCompactAction = COMPACT_PROCESS_BFGS;
-            if (!app.mPendingCompact) {
-                app.mPendingCompact = true;
-                mPendingCompactionProcesses.add(app);
-                mCompactionHandler.sendMessage(
-                        mCompactionHandler.obtainMessage(
-                        COMPACT_PROCESS_MSG, app.curAdj, app.setProcState));
-            }
+            queueCompactionLocked(app, COMPACT_PROCESS_BFGS, app.curAdj);
         }
     }
 
@@ -419,6 +448,42 @@ public final class CachedAppOptimizer {
         }
     }
 
+    @GuardedBy({"mAm", "this"})
+    private void queueCompactionLocked(ProcessRecord app, int action, int adj) {
+        app.reqCompactAction = action;
+        if (!app.mPendingCompact) {
+            app.mPendingCompact = true;
+            app.mReqCompactAdj = adj;
+            app.mReqCompactProcState = app.setProcState;
+            mPendingCompactionProcesses.add(app);
+            mCompactionHandler.sendMessage(
+                    mCompactionHandler.obtainMessage(COMPACT_PROCESS_MSG));
+        }
+    }
+
+    /**
+     * Removes the pending process expected to give back the most memory. Processes that were
+     * never compacted come first, in the order they were queued.
+     */
+    @GuardedBy("this")
+    private ProcessRecord removeNextPendingCompactionLocked() {
+        int next = 0;
+        long nextYieldKb = Long.MIN_VALUE;
+        for (int i = 0, size = mPendingCompactionProcesses.size(); i < size; i++) {
+            final CompactionYieldStats stats =
+                    mCompactionYieldStats.get(mPendingCompactionProcesses.get(i).mPidForCompact);
+            if (stats == null) {
+                next = i;
+                break;
+            }
+            if (stats.getExpectedYieldKb() > nextYieldKb) {
+                next = i;
+                nextYieldKb = stats.getExpectedYieldKb();
+            }
+        }
+        return mPendingCompactionProcesses.remove(next);
+    }
+
     @GuardedBy("mAm")
     void compactAllSystem() {
         if (mUseCompaction) {
@@ -713,6 +778,27 @@ public final class CachedAppOptimizer {
         }
     }
 
+    @GuardedBy("mPhenotypeFlagLock")
+    private void updateMinYield() {
+        mCompactMinYieldKb = DeviceConfig.getLong(DeviceConfig.NAMESPACE_ACTIVITY_MANAGER,
+                KEY_COMPACT_MIN_YIELD_KB, DEFAULT_COMPACT_MIN_YIELD_KB);
+
+        // Don't allow negative values. 0 means never back off.
+        if (mCompactMinYieldKb < 0) {
+            mCompactMinYieldKb = DEFAULT_COMPACT_MIN_YIELD_KB;
+        }
+    }
+
+    @GuardedBy("mPhenotypeFlagLock")
+    private void updateMaxYieldBackoff() {
+        mCompactMaxYieldBackoffMs = DeviceConfig.getLong(DeviceConfig.NAMESPACE_ACTIVITY_MANAGER,
+                KEY_COMPACT_MAX_YIELD_BACKOFF_MS, DEFAULT_COMPACT_MAX_YIELD_BACKOFF_MS);
+
+        if (mCompactMaxYieldBackoffMs < 0) {
+            mCompactMaxYieldBackoffMs = DEFAULT_COMPACT_MAX_YIELD_BACKOFF_MS;
+        }
+    }
+
     private boolean parseProcStateThrottle(String procStateThrottleString) {
         String[] procStates = TextUtils.split(procStateThrottleString, ",");
         mProcStateThrottle.clear();
@@ -859,6 +945,86 @@ public final class CachedAppOptimizer {
         }
     }
 
+    /**
+     * The memory reclaimed by the compactions of a process, that is the drop of its file and anon
+     * RSS, along with how long to back off from it after compactions that reclaimed little.
+     */
+    @VisibleForTesting
+    static final class CompactionYieldStats {
+        // Upper bounds of the histogram buckets, in KB; the last bucket has no bound.
+        private static final long[] BUCKET_LIMITS_KB = { 1, 256, 1024, 4096, 16384, 65536 };
+        private static final String[] BUCKET_NAMES =
+                { "<=0", "<256K", "<1M", "<4M", "<16M", "<64M", ">=64M" };
+
+        private final String mProcessName;
+        private final int[] mHistogram = new int[BUCKET_LIMITS_KB.length + 1];
+        private int mCount;
+        private long mTotalYieldKb;
+        private long mLastYieldKb;
+        private long mExpectedYieldKb;
+        private long mBackoffMs;
+        private long mBackoffUntil;
+
+        CompactionYieldStats(String processName) {
+            mProcessName = processName;
+        }
+
+        /**
+         * Records a compaction that ended at {@code now}, backing off from the process if it
+         * reclaimed less than {@code minYieldKb}.
+         */
+        void record(long yieldKb, long now, long minYieldKb, long maxBackoffMs) {
+            int bucket = 0;
+            while (bucket < BUCKET_LIMITS_KB.length && yieldKb >= BUCKET_LIMITS_KB[bucket]) {
+                bucket++;
+            }
+            mHistogram[bucket]++;
+            mTotalYieldKb += yieldKb;
+            mLastYieldKb = yieldKb;
+            // Weigh the recent compactions the most, the working set of a process changes.
+            mExpectedYieldKb = mCount == 0 ? yieldKb : (mExpectedYieldKb * 3 + yieldKb) / 4;
+            mCount++;
+
+            if (minYieldKb > 0 && yieldKb < minYieldKb) {
+                mBackoffMs = Math.min(mBackoffMs == 0 ? COMPACT_YIELD_BACKOFF_MS : mBackoffMs * 2,
+                        maxBackoffMs);
+                mBackoffUntil = now + mBackoffMs;
+            } else {
+                mBackoffMs = 0;
+                mBackoffUntil = 0;
+            }
+        }
+
+        int getCount() {
+            return mCount;
+        }
+
+        long getExpectedYieldKb() {
+            return mExpectedYieldKb;
+        }
+
+        long getBackoffUntil() {
+            return mBackoffUntil;
+        }
+
+        void dump(PrintWriter pw, String prefix, long now) {
+            pw.print(prefix); pw.print(mProcessName);
+            pw.print(": compactions="); pw.print(mCount);
+            pw.print(" expected="); pw.print(mExpectedYieldKb);
+            pw.print(" last="); pw.print(mLastYieldKb);
+            pw.print(" avg="); pw.print(mTotalYieldKb / mCount);
+            if (mBackoffUntil > now) {
+                pw.print(" backoff="); pw.print(mBackoffUntil - now); pw.print("ms");
+            }
+            pw.println();
+            pw.print(prefix); pw.print("  ");
+            for (int i = 0; i < mHistogram.length; i++) {
+                pw.print(BUCKET_NAMES[i]); pw.print(":"); pw.print(mHistogram[i]); pw.print(" ");
+            }
+            pw.println();
+        }
+    }
+
     private final class MemCompactionHandler extends Handler {
         private MemCompactionHandler() {
             super(mCachedAppOptimizerThread.getLooper());
@@ -876,14 +1042,17 @@ public final class CachedAppOptimizer {
                     int pendingAction, lastCompactAction;
                     long lastCompactTime;
                     LastCompactionStats lastCompactionStats;
-                    int lastOomAdj = msg.arg1;
-                    int procState = msg.arg2;
+                    CompactionYieldStats yieldStats;
+                    int lastOomAdj;
+                    int procState;
                     synchronized (CachedAppOptimizer.this) {
-                        proc = mPendingCompactionProcesses.remove(0);
+                        proc = removeNextPendingCompactionLocked();
 
                         pendingAction = proc.reqCompactAction;
                         pid = proc.mPidForCompact;
                         name = proc.processName;
+                        lastOomAdj = proc.mReqCompactAdj;
+                        procState = proc.mReqCompactProcState;
                         proc.mPendingCompact = false;
 
                         // don't compact if the process has returned to perceptible
@@ -902,6 +1071,7 @@ public final class CachedAppOptimizer {
                         lastCompactAction = proc.lastCompactAction;
                         lastCompactTime = proc.lastCompactTime;
                         lastCompactionStats = mLastCompactionStats.get(pid);
+                        yieldStats = mCompactionYieldStats.get(pid);
                     }
 
                     if (pid == 0) {
@@ -909,6 +1079,31 @@ public final class CachedAppOptimizer {
                         return;
                     }
 
+                    // Back off from processes whose last compaction reclaimed little, and when
+                    // there is no memory pressure, only compact the ones that usually reclaim
+                    // enough to be worth it.
+                    if (yieldStats != null && mCompactMinYieldKb > 0) {
+                        if (start < yieldStats.getBackoffUntil()) {
+                            mYieldBackoffSkipCount++;
+                            if (DEBUG_COMPACTION) {
+                                Slog.d(TAG_AM, "Skipping compaction for " + name
+                                        + ": low yield, backing off for "
+                                        + (yieldStats.getBackoffUntil() - start) + "ms");
+                            }
+                            return;
+                        }
+                        if (yieldStats.getExpectedYieldKb() < mCompactMinYieldKb
+                                && mProcessDependencies.getMemoryPressure() == 0) {
+                            mNoPressureSkipCount++;
+                            if (DEBUG_COMPACTION) {
+                                Slog.d(TAG_AM, "Skipping compaction for " + name
+                                        + ": no memory pressure, expected yield "
+                                        + yieldStats.getExpectedYieldKb() + "KB");
+                            }
+                            return;
+                        }
+                    }
+
                     // basic throttling
                     // use the Phenotype flag knobs to determine whether current/prevous
                     // compaction combo should be throtted or not
@@ -1080,6 +1275,13 @@ public final class CachedAppOptimizer {
                         synchronized (CachedAppOptimizer.this) {
                             proc.lastCompactTime = end;
                             proc.lastCompactAction = pendingAction;
+                            if (yieldStats == null) {
+                                yieldStats = new CompactionYieldStats(name);
+                                mCompactionYieldStats.put(pid, yieldStats);
+                            }
+                            yieldStats.record((rssBefore[1] + rssBefore[2])
+                                    - (rssAfter[1] + rssAfter[2]), end, mCompactMinYieldKb,
+                                    mCompactMaxYieldBackoffMs);
                         }
                         if (action.equals(COMPACT_ACTION_FULL)
                                 || action.equals(COMPACT_ACTION_ANON)) {
@@ -1260,5 +1462,11 @@ public final class CachedAppOptimizer {
                 fos.write(action.getBytes());
             }
         }
+
+        // Get the memory pressure from PSI.
+        @Override
+        public float getMemoryPressure() {
+            return MemoryPressureUtil.getSomeAvg60();
+        }
     }
 }
@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import static com.android.server.am.ActivityManagerDebugConfig.TAG_AM;
+import static com.android.server.am.ActivityManagerDebugConfig.TAG_WITH_CLASS_NAME;
+
+import android.os.SystemClock;
+import android.util.Slog;
+import android.util.SparseIntArray;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Queues the LMK_PROCPRIO and LMK_PROCREMOVE commands for lmkd so that they are written by the
+ * thread calling {@link #flush}, rather than by whoever changed the process, which usually holds
+ * the activity manager lock. A process whose priority changes several times before the queue is
+ * flushed only gets its latest priority written, and a process removed before the queue is
+ * flushed doesn't get its priority written at all. Commands are otherwise written in the order
+ * they were queued, so a removal and a later registration reusing the same pid stay ordered.
+ * Commands that couldn't be written, e.g. while lmkd restarts, stay queued for the next flush.
+ */
+final class LmkdCommandQueue {
+    private static final String TAG = TAG_WITH_CLASS_NAME ? "LmkdCommandQueue" : TAG_AM;
+
+    /** Writes taking longer than this are logged. */
+    private static final long SLOW_WRITE_MS = 250;
+
+    // Each command takes COMMAND_SIZE ints: the command code, pid, uid and priority
+    private static final int COMMAND_SIZE = 4;
+    private static final int INITIAL_CAPACITY = 32;
+
+    /** Writes one packet to lmkd, returning false if it could not be written. */
+    interface Writer {
+        boolean write(ByteBuffer buf);
+    }
+
+    private final Writer mWriter;
+
+    private final Object mLock = new Object();
+
+    @GuardedBy("mLock")
+    private int[] mCommands = new int[INITIAL_CAPACITY * COMMAND_SIZE];
+    @GuardedBy("mLock")
+    private int mCommandCount;
+    /** Index of the queued LMK_PROCPRIO command of each pid. */
+    @GuardedBy("mLock")
+    private final SparseIntArray mQueuedPrio = new SparseIntArray();
+
+    /** The commands being written by {@link #flush}, swapped with {@link #mCommands}. */
+    private int[] mFlushCommands = new int[INITIAL_CAPACITY * COMMAND_SIZE];
+    private final ByteBuffer mBuf = ByteBuffer.allocate(4 * COMMAND_SIZE);
+
+    // Statistics, since boot
+    @GuardedBy("mLock")
+    private long mQueuedCount;
+    @GuardedBy("mLock")
+    private long mCoalescedCount;
+    @GuardedBy("mLock")
+    private long mFlushCount;
+    @GuardedBy("mLock")
+    private long mWrittenCount;
+    @GuardedBy("mLock")
+    private long mFailedCount;
+    @GuardedBy("mLock")
+    private long mRequeuedCount;
+    @GuardedBy("mLock")
+    private long mTotalFlushTimeUs;
+    @GuardedBy("mLock")
+    private long mMaxFlushTimeUs;
+
+    LmkdCommandQueue(Writer writer) {
+        mWriter = writer;
+    }
+
+    /**
+     * Queue setting the priority of a process.
+     *
+     * @return whether the queue was empty, in which case a {@link #flush} needs to be scheduled
+     */
+    boolean queueProcPrio(int pid, int uid, int amt) {
+        synchronized (mLock) {
+            mQueuedCount++;
+            final int index = mQueuedPrio.get(pid, -1);
+            if (index >= 0) {
+                mCoalescedCount++;
+                mCommands[index * COMMAND_SIZE + 2] = uid;
+                mCommands[index * COMMAND_SIZE + 3] = amt;
+                return false;
+            }
+            mQueuedPrio.put(pid, mCommandCount);
+            return addLocked(ProcessList.LMK_PROCPRIO, pid, uid, amt);
+        }
+    }
+
+    /**
+     * Queue removing a process, dropping its queued priority if any.
+     *
+     * @return whether the queue was empty, in which case a {@link #flush} needs to be scheduled
+     */
+    boolean queueProcRemove(int pid) {
+        synchronized (mLock) {
+            mQueuedCount++;
+            final int index = mQueuedPrio.get(pid, -1);
+            if (index >= 0) {
+                // Never written, so there is nothing for lmkd to forget; the removal itself
+                // is still written in case an earlier flush registered the pid.
+                mCoalescedCount++;
+                mCommands[index * COMMAND_SIZE] = -1;
+                mQueuedPrio.delete(pid);
+            }
+            return addLocked(ProcessList.LMK_PROCREMOVE, pid, 0, 0);
+        }
+    }
+
+    @GuardedBy("mLock")
+    private boolean addLocked(int cmd, int pid, int uid, int amt) {
+        final int offset = mCommandCount * COMMAND_SIZE;
+        if (offset == mCommands.length) {
+            mCommands = Arrays.copyOf(mCommands, mCommands.length * 2);
+        }
+        mCommands[offset] = cmd;
+        mCommands[offset + 1] = pid;
+        mCommands[offset + 2] = uid;
+        mCommands[offset + 3] = amt;
+        return mCommandCount++ == 0;
+    }
+
+    /**
+     * Write the queued commands to lmkd, one packet each as lmkd expects. Must only be called
+     * from one thread at a time. Stops at the first packet that can't be written: it and the
+     * ones after it are put back in front of the commands queued since, for the next flush.
+     *
+     * @return the number of packets written
+     */
+    int flush() {
+        final int count;
+        final int[] commands;
+        synchronized (mLock) {
+            count = mCommandCount;
+            if (count == 0) {
+                return 0;
+            }
+            commands = mCommands;
+            if (mFlushCommands.length < commands.length) {
+                mFlushCommands = new int[commands.length];
+            }
+            mCommands = mFlushCommands;
+            mFlushCommands = commands;
+            mCommandCount = 0;
+            mQueuedPrio.clear();
+        }
+
+        final long startUs = SystemClock.uptimeMicros();
+        int written = 0;
+        int failed = 0;
+        int i = 0;
+        for (; i < count; i++) {
+            final int offset = i * COMMAND_SIZE;
+            final int cmd = commands[offset];
+            if (cmd < 0) {
+                continue;
+            }
+            mBuf.clear();
+            mBuf.putInt(cmd);
+            mBuf.putInt(commands[offset + 1]);
+            if (cmd == ProcessList.LMK_PROCPRIO) {
+                mBuf.putInt(commands[offset + 2]);
+                mBuf.putInt(commands[offset + 3]);
+            }
+            if (!mWriter.write(mBuf)) {
+                failed++;
+                break;
+            }
+            written++;
+        }
+        final long durationUs = SystemClock.uptimeMicros() - startUs;
+        if (durationUs > SLOW_WRITE_MS * 1000) {
+            Slog.w(TAG, "SLOW LMKD WRITE: " + (durationUs / 1000) + "ms for " + written
+                    + " commands");
+        }
+
+        synchronized (mLock) {
+            if (i < count) {
+                requeueLocked(commands, i, count);
+            }
+            mFlushCount++;
+            mWrittenCount += written;
+            mFailedCount += failed;
+            mTotalFlushTimeUs += durationUs;
+            mMaxFlushTimeUs = Math.max(mMaxFlushTimeUs, durationUs);
+        }
+        return written;
+    }
+
+    /**
+     * Puts the commands {@code from} to {@code to} of a failed flush back in front of the queue.
+     * A priority is dropped if a newer one was queued for the pid since.
+     */
+    @GuardedBy("mLock")
+    private void requeueLocked(int[] failedCommands, int from, int to) {
+        final int[] queued = mCommands;
+        final int queuedCount = mCommandCount;
+        mCommands = new int[queued.length];
+        mCommandCount = 0;
+        final SparseIntArray newerPrio = mQueuedPrio.clone();
+        mQueuedPrio.clear();
+        for (int i = from; i < to; i++) {
+            final int offset = i * COMMAND_SIZE;
+            final int cmd = failedCommands[offset];
+            if (cmd < 0) {
+                continue;
+            }
+            if (cmd == ProcessList.LMK_PROCPRIO
+                    && newerPrio.indexOfKey(failedCommands[offset + 1]) >= 0) {
+                mCoalescedCount++;
+                continue;
+            }
+            mRequeuedCount++;
+            requeueCommandLocked(failedCommands, offset);
+        }
+        for (int i = 0; i < queuedCount; i++) {
+            final int offset = i * COMMAND_SIZE;
+            if (queued[offset] >= 0) {
+                requeueCommandLocked(queued, offset);
+            }
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void requeueCommandLocked(int[] commands, int offset) {
+        final int cmd = commands[offset];
+        final int pid = commands[offset + 1];
+        if (cmd == ProcessList.LMK_PROCPRIO) {
+            mQueuedPrio.put(pid, mCommandCount);
+        } else {
+            // A priority queued after the removal must not be merged into one queued before it
+            mQueuedPrio.delete(pid);
+        }
+        addLocked(cmd, pid, commands[offset + 2], commands[offset + 3]);
+    }
+
+    void dump(PrintWriter pw) {
+        synchronized (mLock) {
+            pw.println("  lmkd commands since boot:");
+            pw.print("    queued="); pw.print(mQueuedCount);
+            pw.print(" coalesced="); pw.print(mCoalescedCount);
+            pw.print(" written="); pw.print(mWrittenCount);
+            pw.print(" failed="); pw.print(mFailedCount);
+            pw.print(" requeued="); pw.println(mRequeuedCount);
+            pw.print("    flushes="); pw.print(mFlushCount);
+            if (mFlushCount > 0) {
+                pw.print(" avg packets="); pw.print(mWrittenCount / mFlushCount);
+                pw.print(" avg time="); pw.print(mTotalFlushTimeUs / mFlushCount);
+                pw.print("us max time="); pw.print(mMaxFlushTimeUs); pw.print("us");
+            }
+            pw.println();
+        }
+    }
+}
@@ -28,6 +28,7 @@ import android.os.MessageQueue;
 import android.util.Slog;
 
 import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
 
 import libcore.io.IoUtils;
 
@@ -75,6 +76,9 @@ public class LmkdConnection {
 
     private final MessageQueue mMsgQueue;
 
+    // address of the lmkd socket
+    private final LocalSocketAddress mAddress;
+
     // lmkd connection listener
     private final LmkdConnectionListener mListener;
 
@@ -105,8 +109,19 @@ public class LmkdConnection {
     ////////////////////  END FIELDS  ////////////////////
 
     LmkdConnection(MessageQueue msgQueue, LmkdConnectionListener listener) {
+        this(msgQueue, listener,
+                new LocalSocketAddress("lmkd", LocalSocketAddress.Namespace.RESERVED));
+    }
+
+    /**
+     * @param address The socket to connect to instead of lmkd's, e.g. a fake lmkd in tests
+     */
+    @VisibleForTesting
+    LmkdConnection(MessageQueue msgQueue, LmkdConnectionListener listener,
+            LocalSocketAddress address) {
         mMsgQueue = msgQueue;
         mListener = listener;
+        mAddress = address;
     }
 
     public boolean connect() {
@@ -235,9 +250,7 @@ public class LmkdConnection {
 
         try {
             socket = new LocalSocket(LocalSocket.SOCKET_SEQPACKET);
-            socket.connect(
-                new LocalSocketAddress("lmkd",
-                        LocalSocketAddress.Namespace.RESERVED));
+            socket.connect(mAddress);
         } catch (IOException ex) {
             Slog.e(TAG, "Connection failed: " + ex.toString());
             return null;
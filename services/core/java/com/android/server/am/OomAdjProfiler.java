@@ -20,6 +20,7 @@ import android.os.Message;
 import android.os.PowerManagerInternal;
 import android.os.Process;
 import android.os.SystemClock;
+import android.util.ArrayMap;
 
 import com.android.internal.annotations.GuardedBy;
 import com.android.internal.os.BackgroundThread;
@@ -48,6 +49,8 @@ public class OomAdjProfiler {
     private long mOomAdjStartTimeUs;
     @GuardedBy("this")
     private boolean mOomAdjStarted;
+    @GuardedBy("this")
+    private String mOomAdjReason;
 
     @GuardedBy("this")
     private CpuTimes mOomAdjRunTime = new CpuTimes();
@@ -70,6 +73,10 @@ public class OomAdjProfiler {
     @GuardedBy("this")
     private int mTotalOomAdjCalls;
 
+    /** The oomAdj updates since boot, by reason. */
+    @GuardedBy("this")
+    private final ArrayMap<String, ReasonStats> mReasonStats = new ArrayMap<>();
+
     void batteryPowerChanged(boolean onBattery) {
         synchronized (this) {
             scheduleSystemServerCpuTimeUpdate();
@@ -84,14 +91,19 @@ public class OomAdjProfiler {
         }
     }
 
-    void oomAdjStarted() {
+    void oomAdjStarted(String reason) {
         synchronized (this) {
             mOomAdjStartTimeUs = SystemClock.currentThreadTimeMicro();
             mOomAdjStarted = true;
+            mOomAdjReason = reason;
         }
     }
 
-    void oomAdjEnded() {
+    /**
+     * @param processesEvaluated number of times a process had its oomAdj computed by the update,
+     *                           more than one for processes revisited to resolve cycles
+     */
+    void oomAdjEnded(int processesEvaluated) {
         synchronized (this) {
             if (!mOomAdjStarted) {
                 return;
@@ -100,6 +112,16 @@ public class OomAdjProfiler {
             mOomAdjRunTime.addCpuTimeUs(elapsedUs);
             mTotalOomAdjRunTimeUs += elapsedUs;
             mTotalOomAdjCalls++;
+
+            ReasonStats stats = mReasonStats.get(mOomAdjReason);
+            if (stats == null) {
+                stats = new ReasonStats();
+                mReasonStats.put(mOomAdjReason, stats);
+            }
+            stats.mCalls++;
+            stats.mProcessesEvaluated += processesEvaluated;
+            stats.mCpuTimeUs += elapsedUs;
+            stats.mMaxCpuTimeUs = Math.max(stats.mMaxCpuTimeUs, elapsedUs);
         }
     }
 
@@ -185,10 +207,36 @@ public class OomAdjProfiler {
                 pw.print(mTotalOomAdjCalls);
                 pw.print("  average=");
                 pw.println(mTotalOomAdjRunTimeUs / mTotalOomAdjCalls);
+                pw.println("System server oomAdj runtimes (us) by reason since boot:");
+                for (int i = 0; i < mReasonStats.size(); i++) {
+                    final ReasonStats stats = mReasonStats.valueAt(i);
+                    pw.print("  ");
+                    pw.print(mReasonStats.keyAt(i));
+                    pw.print(": number of calls=");
+                    pw.print(stats.mCalls);
+                    pw.print("  processes evaluated=");
+                    pw.print(stats.mProcessesEvaluated);
+                    pw.print(" (average=");
+                    pw.print(stats.mProcessesEvaluated / stats.mCalls);
+                    pw.print(")  cpu time spent=");
+                    pw.print(stats.mCpuTimeUs);
+                    pw.print(" (average=");
+                    pw.print(stats.mCpuTimeUs / stats.mCalls);
+                    pw.print(" max=");
+                    pw.print(stats.mMaxCpuTimeUs);
+                    pw.println(")");
+                }
             }
         }
     }
 
+    private static class ReasonStats {
+        private long mCalls;
+        private long mProcessesEvaluated;
+        private long mCpuTimeUs;
+        private long mMaxCpuTimeUs;
+    }
+
     private class CpuTimes {
         private long mOnBatteryTimeUs;
         private long mOnBatteryScreenOffTimeUs;
@@ -213,6 +213,18 @@ public final class OomAdjuster {
     private ArrayList<UidRecord> mTmpBecameIdle = new ArrayList<UidRecord>();
     private ActiveUids mTmpUidRecords;
     private ArrayDeque<ProcessRecord> mTmpQueue;
+    private final ArraySet<ProcessRecord> mTmpProcessSet = new ArraySet<>();
+
+    /**
+     * Processes whose client, service or provider connections changed since the last update,
+     * see {@link #enqueueOomAdjTargetLocked}.
+     */
+    @GuardedBy("mService")
+    private final ArraySet<ProcessRecord> mPendingProcessSet = new ArraySet<>();
+
+    /** Number of processes evaluated by the update currently running, for the profiler. */
+    @GuardedBy("mService")
+    private int mNumProcessesEvaluated;
 
     private final IPlatformCompat mPlatformCompat;
 
@@ -401,9 +413,60 @@ public final class OomAdjuster {
     @GuardedBy("mService")
     void updateOomAdjLocked(String oomAdjReason) {
         final ProcessRecord topApp = mService.getTopAppLocked();
+        // Everything is evaluated, including what's pending
+        mPendingProcessSet.clear();
         updateOomAdjLockedInner(oomAdjReason, topApp , null, null, true, true);
     }
 
+    /**
+     * Enqueue a process whose connections changed, to update it and its reachable processes in
+     * the next {@link #updateOomAdjPendingTargetsLocked} rather than updating every process.
+     */
+    @GuardedBy("mService")
+    void enqueueOomAdjTargetLocked(ProcessRecord app) {
+        if (app != null) {
+            mPendingProcessSet.add(app);
+        }
+    }
+
+    /**
+     * Update OomAdj for the processes enqueued by {@link #enqueueOomAdjTargetLocked} and the
+     * processes reachable from them in a single pass; the clients of these processes aren't
+     * affected by their connections changing, so they aren't evaluated again.
+     */
+    @GuardedBy("mService")
+    void updateOomAdjPendingTargetsLocked(String oomAdjReason) {
+        if (mPendingProcessSet.isEmpty()) {
+            return;
+        }
+        if (!mConstants.OOMADJ_UPDATE_QUICK) {
+            updateOomAdjLocked(oomAdjReason);
+            return;
+        }
+        if (mPendingProcessSet.size() == 1) {
+            final ProcessRecord app = mPendingProcessSet.valueAt(0);
+            mPendingProcessSet.clear();
+            updateOomAdjLocked(app, oomAdjReason);
+            return;
+        }
+
+        final ProcessRecord topApp = mService.getTopAppLocked();
+
+        Trace.traceBegin(Trace.TRACE_TAG_ACTIVITY_MANAGER, oomAdjReason);
+        mNumProcessesEvaluated = 0;
+        mService.mOomAdjProfiler.oomAdjStarted(oomAdjReason);
+
+        final ArrayList<ProcessRecord> processes = mTmpProcessList;
+        final ActiveUids uids = mTmpUidRecords;
+        final boolean containsCycle = collectReachableProcessesLocked(mPendingProcessSet,
+                processes, uids);
+        mPendingProcessSet.clear();
+        updateOomAdjLockedInner(oomAdjReason, topApp, processes, uids, containsCycle, false);
+
+        mService.mOomAdjProfiler.oomAdjEnded(mNumProcessesEvaluated);
+        Trace.traceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER);
+    }
+
     /**
      * Update OomAdj for specific process and its reachable processes (with direction/indirect
      * bindings from this process); Note its clients' proc state won't be re-evaluated if this proc
@@ -422,7 +485,8 @@ public final class OomAdjuster {
         final ProcessRecord topApp = mService.getTopAppLocked();
 
         Trace.traceBegin(Trace.TRACE_TAG_ACTIVITY_MANAGER, oomAdjReason);
-        mService.mOomAdjProfiler.oomAdjStarted();
+        mNumProcessesEvaluated = 0;
+        mService.mOomAdjProfiler.oomAdjStarted(oomAdjReason);
         mAdjSeq++;
 
         // Firstly, try to see if the importance of itself gets changed
@@ -442,28 +506,70 @@ public final class OomAdjuster {
             if (DEBUG_OOM_ADJ) {
                 Slog.i(TAG_OOM_ADJ, "No oomadj changes for " + app);
             }
-            mService.mOomAdjProfiler.oomAdjEnded();
+            mService.mOomAdjProfiler.oomAdjEnded(mNumProcessesEvaluated);
             Trace.traceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER);
             return success;
         }
 
         // Next to find out all its reachable processes
-        ArrayList<ProcessRecord> processes = mTmpProcessList;
-        ActiveUids uids = mTmpUidRecords;
-        ArrayDeque<ProcessRecord> queue = mTmpQueue;
+        final ArrayList<ProcessRecord> processes = mTmpProcessList;
+        final ActiveUids uids = mTmpUidRecords;
+        final ArraySet<ProcessRecord> apps = mTmpProcessSet;
+        apps.clear();
+        apps.add(app);
+        final boolean containsCycle = collectReachableProcessesLocked(apps, processes, uids);
+        apps.clear();
+        // The app itself has been updated already
+        processes.remove(app);
 
+        // Reset the flag
+        app.mReachable = false;
+        if (processes.size() > 0) {
+            mAdjSeq--;
+            // Update these reachable processes
+            updateOomAdjLockedInner(oomAdjReason, topApp, processes, uids, containsCycle, false);
+        } else if (app.getCurRawAdj() == ProcessList.UNKNOWN_ADJ) {
+            // In case the app goes from non-cached to cached but it doesn't have other reachable
+            // processes, its adj could be still unknown as of now, assign one.
+            processes.add(app);
+            assignCachedAdjIfNecessary(processes);
+            applyOomAdjLocked(app, false, SystemClock.uptimeMillis(),
+                    SystemClock.elapsedRealtime());
+        }
+        mService.mOomAdjProfiler.oomAdjEnded(mNumProcessesEvaluated);
+        Trace.traceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER);
+        return true;
+    }
+
+    /**
+     * Collect the given processes and all the processes reachable from them through their
+     * service bindings and provider connections, along with their uid records.
+     *
+     * @param apps The processes to start from
+     * @param processes Output, the collected processes, ordered so that
+     *                  updateOomAdjLockedInner visits them breadth first from {@code apps}
+     * @param uids Output, the uid records of the collected processes
+     * @return whether the collected processes could include a cycle
+     */
+    @GuardedBy("mService")
+    private boolean collectReachableProcessesLocked(ArraySet<ProcessRecord> apps,
+            ArrayList<ProcessRecord> processes, ActiveUids uids) {
+        final ArrayDeque<ProcessRecord> queue = mTmpQueue;
         processes.clear();
         uids.clear();
         queue.clear();
 
+        for (int i = apps.size() - 1; i >= 0; i--) {
+            final ProcessRecord app = apps.valueAt(i);
+            app.mReachable = true;
+            queue.offer(app);
+        }
+
         // Track if any of them reachables could include a cycle
         boolean containsCycle = false;
-        // Scan downstreams of the process record
-        app.mReachable = true;
-        for (ProcessRecord pr = app; pr != null; pr = queue.poll()) {
-            if (pr != app) {
-                processes.add(pr);
-            }
+        // Scan downstreams of the process records
+        for (ProcessRecord pr = queue.poll(); pr != null; pr = queue.poll()) {
+            processes.add(pr);
             if (pr.uidRecord != null) {
                 uids.put(pr.uidRecord.uid, pr.uidRecord);
             }
@@ -502,30 +608,13 @@ public final class OomAdjuster {
             }
         }
 
-        // Reset the flag
-        app.mReachable = false;
-        int size = processes.size();
-        if (size > 0) {
-            // Reverse the process list, since the updateOomAdjLockedInner scans from the end of it.
-            for (int l = 0, r = size - 1; l < r; l++, r--) {
-                ProcessRecord t = processes.get(l);
-                processes.set(l, processes.get(r));
-                processes.set(r, t);
-            }
-            mAdjSeq--;
-            // Update these reachable processes
-            updateOomAdjLockedInner(oomAdjReason, topApp, processes, uids, containsCycle, false);
-        } else if (app.getCurRawAdj() == ProcessList.UNKNOWN_ADJ) {
-            // In case the app goes from non-cached to cached but it doesn't have other reachable
-            // processes, its adj could be still unknown as of now, assign one.
-            processes.add(app);
-            assignCachedAdjIfNecessary(processes);
-            applyOomAdjLocked(app, false, SystemClock.uptimeMillis(),
-                    SystemClock.elapsedRealtime());
+        // Reverse the process list, since the updateOomAdjLockedInner scans from the end of it.
+        for (int l = 0, r = processes.size() - 1; l < r; l++, r--) {
+            final ProcessRecord t = processes.get(l);
+            processes.set(l, processes.get(r));
+            processes.set(r, t);
         }
-        mService.mOomAdjProfiler.oomAdjEnded();
-        Trace.traceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER);
-        return true;
+        return containsCycle;
     }
 
     /**
@@ -539,7 +628,8 @@ public final class OomAdjuster {
             boolean startProfiling) {
         if (startProfiling) {
             Trace.traceBegin(Trace.TRACE_TAG_ACTIVITY_MANAGER, oomAdjReason);
-            mService.mOomAdjProfiler.oomAdjStarted();
+            mNumProcessesEvaluated = 0;
+            mService.mOomAdjProfiler.oomAdjStarted(oomAdjReason);
         }
         final long now = SystemClock.uptimeMillis();
         final long nowElapsed = SystemClock.elapsedRealtime();
@@ -677,7 +767,7 @@ public final class OomAdjuster {
             }
         }
         if (startProfiling) {
-            mService.mOomAdjProfiler.oomAdjEnded();
+            mService.mOomAdjProfiler.oomAdjEnded(mNumProcessesEvaluated);
             Trace.traceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER);
         }
     }
@@ -1159,6 +1249,7 @@ public final class OomAdjuster {
             return false;
         }
 
+        mNumProcessesEvaluated++;
         app.adjTypeCode = ActivityManager.RunningAppProcessInfo.REASON_UNKNOWN;
         app.adjSource = null;
         app.adjTarget = null;
@@ -1266,7 +1357,7 @@ public final class OomAdjuster {
             // It's placed in a sched group based on the nature of the
             // broadcast as reflected by which queue it's active in.
             adj = ProcessList.FOREGROUND_APP_ADJ;
-            schedGroup = (mTmpBroadcastQueue.contains(mService.mFgBroadcastQueue))
+            schedGroup = mService.containsForegroundBroadcastQueueLocked(mTmpBroadcastQueue)
                     ? ProcessList.SCHED_GROUP_DEFAULT : ProcessList.SCHED_GROUP_BACKGROUND;
             app.adjType = "broadcast";
             procState = ActivityManager.PROCESS_STATE_RECEIVER;
@@ -1598,8 +1689,10 @@ public final class OomAdjuster {
                         computeOomAdjLocked(client, cachedAdj, topApp, doingAll, now,
                                 cycleReEval, true);
                     } else {
-                        client.setCurRawAdj(client.setAdj);
-                        client.setCurRawProcState(client.setProcState);
+                        // Use the latest computed state: a client updated earlier in this pass
+                        // hasn't had it applied yet.
+                        client.setCurRawAdj(client.curAdj);
+                        client.setCurRawProcState(client.getCurProcState());
                     }
 
                     int clientAdj = client.getCurRawAdj();
@@ -1872,8 +1965,8 @@ public final class OomAdjuster {
                     computeOomAdjLocked(client, cachedAdj, topApp, doingAll, now, cycleReEval,
                             true);
                 } else {
-                    client.setCurRawAdj(client.setAdj);
-                    client.setCurRawProcState(client.setProcState);
+                    client.setCurRawAdj(client.curAdj);
+                    client.setCurRawProcState(client.getCurProcState());
                 }
 
                 if (shouldSkipDueToCycle(app, client, procState, adj, cycleReEval)) {
@@ -25,6 +25,7 @@ import static android.net.NetworkPolicyManager.isProcStateAllowedWhileOnRestrict
 import static android.os.MessageQueue.OnFileDescriptorEventListener.EVENT_INPUT;
 import static android.os.Process.SYSTEM_UID;
 import static android.os.Process.THREAD_PRIORITY_BACKGROUND;
+import static android.os.Process.THREAD_PRIORITY_FOREGROUND;
 import static android.os.Process.ZYGOTE_POLICY_FLAG_EMPTY;
 import static android.os.Process.getFreeMemory;
 import static android.os.Process.getTotalMemory;
@@ -373,6 +374,9 @@ public final class ProcessList {
     static KillHandler sKillHandler = null;
     static ServiceThread sKillThread = null;
 
+    // To write the queued lmkd commands without waiting behind process group kills
+    private static Handler sLmkdFlushHandler = null;
+
     // These are the various interesting memory levels that we will give to
     // the OOM killer.  Note that the OOM killer only supports 6 slots, so we
     // can't give it a different value for every possible kind of process.
@@ -403,6 +407,13 @@ public final class ProcessList {
 
     private static LmkdConnection sLmkdConnection = null;
 
+    /**
+     * The priority and removal commands for lmkd, written by the lmkd flush thread so that they
+     * are written off the activity manager lock, all those of an oom adj pass together.
+     */
+    private static final LmkdCommandQueue sLmkdCommandQueue =
+            new LmkdCommandQueue(ProcessList::writeLmkdOrReconnect);
+
     private boolean mOomLevelsSet = false;
 
     private boolean mAppDataIsolationEnabled = false;
@@ -683,6 +694,9 @@ public final class ProcessList {
                         // retry after LMKD_RECONNECT_DELAY_MS
                         sKillHandler.sendMessageDelayed(sKillHandler.obtainMessage(
                                 KillHandler.LMKD_RECONNECT_MSG), LMKD_RECONNECT_DELAY_MS);
+                    } else {
+                        // Send what couldn't be written while disconnected
+                        scheduleLmkdFlush();
                     }
                     break;
                 default:
@@ -729,6 +743,10 @@ public final class ProcessList {
                     THREAD_PRIORITY_BACKGROUND, true /* allowIo */);
             sKillThread.start();
             sKillHandler = new KillHandler(sKillThread.getLooper());
+            final ServiceThread lmkdFlushThread = new ServiceThread(TAG + ":lmkd",
+                    THREAD_PRIORITY_FOREGROUND, true /* allowIo */);
+            lmkdFlushThread.start();
+            sLmkdFlushHandler = new Handler(lmkdFlushThread.getLooper());
             sLmkdConnection = new LmkdConnection(sKillThread.getLooper().getQueue(),
                     new LmkdConnection.LmkdConnectionListener() {
                         @Override
@@ -783,6 +801,8 @@ public final class ProcessList {
             }
             mAppExitInfoTracker.init(mService);
             mImperceptibleKillRunner = new ImperceptibleKillRunner(sKillThread.getLooper());
+            // Connects to lmkd if commands were queued before
+            scheduleLmkdFlush();
         }
     }
 
@@ -1400,6 +1420,9 @@ public final class ProcessList {
      * Set the out-of-memory badness adjustment for a process.
      * If {@code pid <= 0}, this method will be a no-op.
      *
+     * The adjustment is sent to lmkd asynchronously, together with the other adjustments and
+     * removals made before the kill thread gets to send them.
+     *
      * @param pid The process identifier to set.
      * @param uid The uid of the app
      * @param amt Adjustment value -- lmkd allows -1000 to +1000
@@ -1414,17 +1437,8 @@ public final class ProcessList {
         if (amt == UNKNOWN_ADJ)
             return;
 
-        long start = SystemClock.elapsedRealtime();
-        ByteBuffer buf = ByteBuffer.allocate(4 * 4);
-        buf.putInt(LMK_PROCPRIO);
-        buf.putInt(pid);
-        buf.putInt(uid);
-        buf.putInt(amt);
-        writeLmkd(buf, null);
-        long now = SystemClock.elapsedRealtime();
-        if ((now-start) > 250) {
-            Slog.w("ActivityManager", "SLOW OOM ADJ: " + (now-start) + "ms for pid " + pid
-                    + " = " + amt);
+        if (sLmkdCommandQueue.queueProcPrio(pid, uid, amt)) {
+            scheduleLmkdFlush();
         }
     }
 
@@ -1436,10 +1450,27 @@ public final class ProcessList {
         if (pid <= 0) {
             return;
         }
-        ByteBuffer buf = ByteBuffer.allocate(4 * 2);
-        buf.putInt(LMK_PROCREMOVE);
-        buf.putInt(pid);
-        writeLmkd(buf, null);
+        if (sLmkdCommandQueue.queueProcRemove(pid)) {
+            scheduleLmkdFlush();
+        }
+    }
+
+    private static void scheduleLmkdFlush() {
+        if (sLmkdFlushHandler != null) {
+            sLmkdFlushHandler.post(ProcessList::flushLmkdCommands);
+        } else {
+            sLmkdCommandQueue.flush();
+        }
+    }
+
+    private static void flushLmkdCommands() {
+        Trace.traceBegin(Trace.TRACE_TAG_ACTIVITY_MANAGER, "flushLmkd");
+        sLmkdCommandQueue.flush();
+        Trace.traceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER);
+    }
+
+    static void dumpLmkdCommandQueue(PrintWriter pw) {
+        sLmkdCommandQueue.dump(pw);
     }
 
     /*
@@ -1502,6 +1533,27 @@ public final class ProcessList {
         return sLmkdConnection.exchange(buf, repl);
     }
 
+    /**
+     * Writes to lmkd without waiting for a connection, for the queued commands. If the write
+     * fails the commands stay queued, and the queue is flushed again once lmkd is reconnected.
+     */
+    private static boolean writeLmkdOrReconnect(ByteBuffer buf) {
+        if (sLmkdConnection == null) {
+            return false;
+        }
+        final boolean connected = sLmkdConnection.isConnected();
+        if (connected && sLmkdConnection.exchange(buf, null)) {
+            return true;
+        }
+        if (!sKillHandler.hasMessages(KillHandler.LMKD_RECONNECT_MSG)) {
+            // A broken connection is only dropped once its error is handled, give it time
+            sKillHandler.sendMessageDelayed(
+                    sKillHandler.obtainMessage(KillHandler.LMKD_RECONNECT_MSG),
+                    connected ? LMKD_RECONNECT_DELAY_MS : 0);
+        }
+        return false;
+    }
+
     static void killProcessGroup(int uid, int pid) {
         /* static; one-time init here */
         if (sKillHandler != null) {
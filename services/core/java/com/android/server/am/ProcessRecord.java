@@ -374,6 +374,18 @@ class ProcessRecord implements WindowProcessListener {
     @GuardedBy("mService.mOomAdjuster.mCachedAppOptimizer")
     boolean mPendingCompact;
 
+    /**
+     * The adj of this process when its pending compaction was requested.
+     */
+    @GuardedBy("mService.mOomAdjuster.mCachedAppOptimizer")
+    int mReqCompactAdj;
+
+    /**
+     * The {@link #setProcState} of this process when its pending compaction was requested.
+     */
+    @GuardedBy("mService.mOomAdjuster.mCachedAppOptimizer")
+    int mReqCompactProcState;
+
     void setStartParams(int startUid, HostingRecord hostingRecord, String seInfo,
             long startTime) {
         this.startUid = startUid;
@@ -1914,7 +1926,7 @@ class ProcessRecord implements WindowProcessListener {
             mCachedIsReceivingBroadcast = mService.isReceivingBroadcastLocked(this, tmpQueue)
                     ? VALUE_TRUE : VALUE_FALSE;
             if (mCachedIsReceivingBroadcast == VALUE_TRUE) {
-                mCachedSchedGroup = tmpQueue.contains(mService.mFgBroadcastQueue)
+                mCachedSchedGroup = mService.containsForegroundBroadcastQueueLocked(tmpQueue)
                         ? ProcessList.SCHED_GROUP_DEFAULT : ProcessList.SCHED_GROUP_BACKGROUND;
             }
         }
@@ -0,0 +1,406 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.server.appop;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.FileUtils;
+import android.util.Slog;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead journal of the changes to the persisted app ops state since the last snapshot
+ * written to appops.xml.
+ *
+ * <p>Each change is appended as a record holding its length, a CRC32 and the change, so a record
+ * torn by a crash ends the replay. Records set absolute values, so replaying a change already in
+ * the snapshot is harmless.
+ *
+ * <p>Before writing a snapshot, the journal is rotated: the records written so far are moved to a
+ * separate file, deleted once the snapshot is committed. Changes which aren't journaled, e.g. the
+ * removal of a package, {@link #block} the journal until the next rotation, as the later records
+ * could only be replayed on top of a snapshot including the change.
+ */
+final class AppOpsJournal {
+    private static final String TAG = "AppOpsJournal";
+
+    private static final int TYPE_UID_MODE = 1;
+    private static final int TYPE_PACKAGE_MODE = 2;
+    private static final int TYPE_ACCESS = 3;
+    private static final int TYPE_REJECT = 4;
+
+    // Records larger than this are considered corrupted.
+    private static final int MAX_RECORD_SIZE = 64 * 1024;
+
+    /** Applies the replayed changes. */
+    interface Replayer {
+        void onUidMode(int uid, int code, int mode);
+
+        void onPackageMode(int uid, @NonNull String packageName, int code, int mode);
+
+        void onAccess(int uid, @NonNull String packageName, int code,
+                @Nullable String attributionTag, int uidState, int flags, long time,
+                long duration, int proxyUid, @Nullable String proxyPackageName,
+                @Nullable String proxyAttributionTag);
+
+        void onReject(int uid, @NonNull String packageName, int code,
+                @Nullable String attributionTag, int uidState, int flags, long time);
+    }
+
+    private final File mFile;
+    private final File mRotatedFile;
+
+    /** Serializes the file operations, always acquired before {@link #mLock}. */
+    private final Object mFileLock = new Object();
+    private final Object mLock = new Object();
+
+    @GuardedBy("mLock")
+    private final RecordBuffer mRecord = new RecordBuffer();
+    @GuardedBy("mLock")
+    private final DataOutputStream mRecordOut = new DataOutputStream(mRecord);
+    @GuardedBy("mLock")
+    private final ByteArrayOutputStream mPending = new ByteArrayOutputStream();
+    @GuardedBy("mLock")
+    private final DataOutputStream mPendingOut = new DataOutputStream(mPending);
+    @GuardedBy("mLock")
+    private final CRC32 mCrc = new CRC32();
+    @GuardedBy("mLock")
+    private boolean mBlocked = true;
+    @GuardedBy("mLock")
+    private long mSize;
+
+    AppOpsJournal(@NonNull File file) {
+        mFile = file;
+        mRotatedFile = new File(file.getPath() + ".old");
+    }
+
+    void writeUidMode(int uid, int code, int mode) {
+        synchronized (mLock) {
+            if (mBlocked) {
+                return;
+            }
+            try {
+                mRecordOut.writeByte(TYPE_UID_MODE);
+                mRecordOut.writeInt(uid);
+                mRecordOut.writeInt(code);
+                mRecordOut.writeInt(mode);
+                commitRecordLocked();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    void writePackageMode(int uid, @NonNull String packageName, int code, int mode) {
+        synchronized (mLock) {
+            if (mBlocked) {
+                return;
+            }
+            try {
+                mRecordOut.writeByte(TYPE_PACKAGE_MODE);
+                mRecordOut.writeInt(uid);
+                mRecordOut.writeUTF(packageName);
+                mRecordOut.writeInt(code);
+                mRecordOut.writeInt(mode);
+                commitRecordLocked();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    void writeAccess(int uid, @NonNull String packageName, int code,
+            @Nullable String attributionTag, int uidState, int flags, long time, long duration,
+            int proxyUid, @Nullable String proxyPackageName,
+            @Nullable String proxyAttributionTag) {
+        synchronized (mLock) {
+            if (mBlocked) {
+                return;
+            }
+            try {
+                mRecordOut.writeByte(TYPE_ACCESS);
+                writeOpLocked(uid, packageName, code, attributionTag, uidState, flags, time);
+                mRecordOut.writeLong(duration);
+                mRecordOut.writeInt(proxyUid);
+                writeStringLocked(proxyPackageName);
+                writeStringLocked(proxyAttributionTag);
+                commitRecordLocked();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    void writeReject(int uid, @NonNull String packageName, int code,
+            @Nullable String attributionTag, int uidState, int flags, long time) {
+        synchronized (mLock) {
+            if (mBlocked) {
+                return;
+            }
+            try {
+                mRecordOut.writeByte(TYPE_REJECT);
+                writeOpLocked(uid, packageName, code, attributionTag, uidState, flags, time);
+                commitRecordLocked();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /** Drops the changes until the next {@link #rotate}. */
+    void block() {
+        synchronized (mLock) {
+            mBlocked = true;
+        }
+    }
+
+    /** Returns the size of the records which the next snapshot would make obsolete. */
+    long getSize() {
+        synchronized (mLock) {
+            return mSize;
+        }
+    }
+
+    /** Appends the pending records to the journal file. */
+    void flush() {
+        synchronized (mFileLock) {
+            final byte[] data;
+            synchronized (mLock) {
+                if (mPending.size() == 0) {
+                    return;
+                }
+                data = mPending.toByteArray();
+                mPending.reset();
+            }
+            append(mFile, data);
+        }
+    }
+
+    /**
+     * Moves the records written so far aside, before writing a snapshot including them. Also
+     * accepts the changes again if the journal was blocked.
+     */
+    void rotate() {
+        synchronized (mFileLock) {
+            final byte[] data;
+            synchronized (mLock) {
+                data = mPending.toByteArray();
+                mPending.reset();
+                mSize = 0;
+                mBlocked = false;
+            }
+            if (data.length > 0) {
+                append(mFile, data);
+            }
+            if (!mFile.exists()) {
+                return;
+            }
+            if (!mRotatedFile.exists()) {
+                if (mFile.renameTo(mRotatedFile)) {
+                    return;
+                }
+                Slog.w(TAG, "Failed to rename " + mFile);
+            }
+            // The previous snapshot wasn't committed, so keep both sets of records.
+            try {
+                append(mRotatedFile, Files.readAllBytes(mFile.toPath()));
+            } catch (IOException e) {
+                Slog.w(TAG, "Failed to read " + mFile, e);
+            }
+            mFile.delete();
+        }
+    }
+
+    /** Deletes the records moved aside by {@link #rotate} once a snapshot includes them. */
+    void discardRotated() {
+        synchronized (mFileLock) {
+            mRotatedFile.delete();
+        }
+    }
+
+    /**
+     * Replays the journaled changes, then accepts new changes again.
+     *
+     * @return the number of changes replayed
+     */
+    int replay(@NonNull Replayer replayer) {
+        synchronized (mFileLock) {
+            synchronized (mLock) {
+                mPending.reset();
+                mSize = 0;
+            }
+            final int count = replay(mRotatedFile, replayer) + replay(mFile, replayer);
+            synchronized (mLock) {
+                mSize = mRotatedFile.length() + mFile.length();
+                mBlocked = false;
+            }
+            return count;
+        }
+    }
+
+    private int replay(File file, Replayer replayer) {
+        final DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        } catch (FileNotFoundException e) {
+            return 0;
+        }
+        final CRC32 crc = new CRC32();
+        int count = 0;
+        long validLength = 0;
+        try {
+            while (true) {
+                final int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                final int expectedCrc = in.readInt();
+                if (length <= 0 || length > MAX_RECORD_SIZE) {
+                    Slog.w(TAG, "Invalid record length " + length + " in " + file);
+                    break;
+                }
+                final byte[] record = new byte[length];
+                in.readFully(record);
+                crc.reset();
+                crc.update(record, 0, length);
+                if ((int) crc.getValue() != expectedCrc) {
+                    Slog.w(TAG, "Corrupted record in " + file);
+                    break;
+                }
+                try {
+                    replayRecord(new DataInputStream(new ByteArrayInputStream(record)),
+                            replayer);
+                } catch (RuntimeException e) {
+                    // E.g. an op which doesn't exist anymore
+                    Slog.w(TAG, "Skipping invalid record in " + file, e);
+                }
+                validLength += 8 + length;
+                count++;
+            }
+        } catch (EOFException e) {
+            Slog.w(TAG, "Truncated record in " + file);
+        } catch (IOException e) {
+            Slog.w(TAG, "Failed to read " + file, e);
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+            }
+        }
+        if (validLength < file.length()) {
+            // Drop the torn records, so that the next records are appended after valid ones.
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(validLength);
+            } catch (IOException e) {
+                Slog.w(TAG, "Failed to truncate " + file, e);
+            }
+        }
+        return count;
+    }
+
+    private static void replayRecord(DataInputStream in, Replayer replayer) throws IOException {
+        final int type = in.readByte();
+        switch (type) {
+            case TYPE_UID_MODE:
+                replayer.onUidMode(in.readInt(), in.readInt(), in.readInt());
+                break;
+            case TYPE_PACKAGE_MODE:
+                replayer.onPackageMode(in.readInt(), in.readUTF(), in.readInt(), in.readInt());
+                break;
+            case TYPE_ACCESS:
+                replayer.onAccess(in.readInt(), in.readUTF(), in.readInt(), readString(in),
+                        in.readInt(), in.readInt(), in.readLong(), in.readLong(), in.readInt(),
+                        readString(in), readString(in));
+                break;
+            case TYPE_REJECT:
+                replayer.onReject(in.readInt(), in.readUTF(), in.readInt(), readString(in),
+                        in.readInt(), in.readInt(), in.readLong());
+                break;
+            default:
+                Slog.w(TAG, "Skipping record of unknown type " + type);
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void writeOpLocked(int uid, String packageName, int code, String attributionTag,
+            int uidState, int flags, long time) throws IOException {
+        mRecordOut.writeInt(uid);
+        mRecordOut.writeUTF(packageName);
+        mRecordOut.writeInt(code);
+        writeStringLocked(attributionTag);
+        mRecordOut.writeInt(uidState);
+        mRecordOut.writeInt(flags);
+        mRecordOut.writeLong(time);
+    }
+
+    @GuardedBy("mLock")
+    private void writeStringLocked(@Nullable String value) throws IOException {
+        mRecordOut.writeBoolean(value != null);
+        if (value != null) {
+            mRecordOut.writeUTF(value);
+        }
+    }
+
+    private static @Nullable String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    @GuardedBy("mLock")
+    private void commitRecordLocked() throws IOException {
+        final int length = mRecord.size();
+        mCrc.reset();
+        mCrc.update(mRecord.getBuffer(), 0, length);
+        mPendingOut.writeInt(length);
+        mPendingOut.writeInt((int) mCrc.getValue());
+        mPendingOut.write(mRecord.getBuffer(), 0, length);
+        mRecord.reset();
+        mSize += 8 + length;
+    }
+
+    private static void append(File file, byte[] data) {
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(data);
+            FileUtils.sync(out);
+        } catch (IOException e) {
+            Slog.w(TAG, "Failed to write " + file, e);
+        }
+    }
+
+    /** Gives access to the bytes of the record being written without copying them. */
+    private static final class RecordBuffer extends ByteArrayOutputStream {
+        byte[] getBuffer() {
+            return buf;
+        }
+    }
+}
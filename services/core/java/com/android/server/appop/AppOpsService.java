@@ -213,6 +213,13 @@ public class AppOpsService extends IAppOpsService.Stub {
     // Write at most every 30 minutes.
     static final long WRITE_DELAY = DEBUG ? 1000 : 30*60*1000;
 
+    // Delay before the journaled changes are written to disk.
+    private static final long JOURNAL_FLUSH_DELAY = DEBUG ? 100 : 1000;
+
+    // Size of the journal over which it is compacted into a new snapshot without waiting for
+    // WRITE_DELAY.
+    private static final long MAX_JOURNAL_SIZE = 512 * 1024;
+
     // Constant meaning that any UID should be matched when dispatching callbacks
     private static final int UID_ANY = -2;
 
@@ -258,6 +265,10 @@ public class AppOpsService extends IAppOpsService.Stub {
 
     final Context mContext;
     final AtomicFile mFile;
+
+    /** The changes since {@link #mFile} was last written. */
+    @VisibleForTesting
+    final AppOpsJournal mJournal;
     private final @Nullable File mNoteOpCallerStacktracesFile;
     final Handler mHandler;
 
@@ -318,6 +329,16 @@ public class AppOpsService extends IAppOpsService.Stub {
         }
     };
 
+    boolean mJournalFlushScheduled;
+    final Runnable mJournalFlushRunner = new Runnable() {
+        public void run() {
+            synchronized (AppOpsService.this) {
+                mJournalFlushScheduled = false;
+            }
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(mJournal::flush);
+        }
+    };
+
     @GuardedBy("this")
     @VisibleForTesting
     final SparseArray<UidState> mUidStates = new SparseArray<>();
@@ -333,8 +354,20 @@ public class AppOpsService extends IAppOpsService.Stub {
 
     SparseIntArray mProfileOwners;
 
-    @GuardedBy("this")
-    private CheckOpsDelegate mCheckOpsDelegate;
+    // Read without the lock on every op check.
+    private volatile CheckOpsDelegate mCheckOpsDelegate;
+
+    /** The packages verified by {@link #verifyAndGetBypass}. */
+    private final VerifiedPackageCache mVerifiedPackages = new VerifiedPackageCache();
+
+    /** The modes read by {@link #checkOperationUnchecked} without the lock. */
+    private final UidModeCache mUidModes = new UidModeCache();
+
+    /**
+     * The ops restricted for any user by any client, which are never checked without the lock.
+     * Replaced, never modified, under the lock.
+     */
+    private volatile boolean[] mRestrictedOps = new boolean[AppOpsManager._NUM_OP];
 
     /**
       * Reverse lookup for {@link AppOpsManager#opToSwitch(int)}. Initialized once and never
@@ -818,8 +851,12 @@ public class AppOpsService extends IAppOpsService.Stub {
         public void accessed(int proxyUid, @Nullable String proxyPackageName,
                 @Nullable String proxyAttributionTag, @AppOpsManager.UidState int uidState,
                 @OpFlags int flags) {
-            accessed(System.currentTimeMillis(), -1, proxyUid, proxyPackageName,
-                    proxyAttributionTag, uidState, flags);
+            final long noteTime = System.currentTimeMillis();
+            accessed(noteTime, -1, proxyUid, proxyPackageName, proxyAttributionTag, uidState,
+                    flags);
+            mJournal.writeAccess(parent.uid, parent.packageName, parent.op, tag, uidState, flags,
+                    noteTime, -1, proxyUid, proxyPackageName, proxyAttributionTag);
+            scheduleJournalFlushLocked();
 
             mHistoricalRegistry.incrementOpAccessedCount(parent.op, parent.uid, parent.packageName,
                     tag, uidState, flags);
@@ -866,7 +903,11 @@ public class AppOpsService extends IAppOpsService.Stub {
          * @param flags OpFlags of the call
          */
         public void rejected(@AppOpsManager.UidState int uidState, @OpFlags int flags) {
-            rejected(System.currentTimeMillis(), uidState, flags);
+            final long noteTime = System.currentTimeMillis();
+            rejected(noteTime, uidState, flags);
+            mJournal.writeReject(parent.uid, parent.packageName, parent.op, tag, uidState, flags,
+                    noteTime);
+            scheduleJournalFlushLocked();
 
             mHistoricalRegistry.incrementOpRejected(parent.op, parent.uid, parent.packageName,
                     tag, uidState, flags);
@@ -973,6 +1014,10 @@ public class AppOpsService extends IAppOpsService.Stub {
                 NoteOpEvent finishedEvent = new NoteOpEvent(event.getStartTime(),
                         SystemClock.elapsedRealtime() - event.getStartElapsedTime(), null);
                 mAccessEvents.put(makeKey(event.getUidState(), OP_FLAG_SELF), finishedEvent);
+                mJournal.writeAccess(parent.uid, parent.packageName, parent.op, tag,
+                        event.getUidState(), OP_FLAG_SELF, finishedEvent.getNoteTime(),
+                        finishedEvent.getDuration(), Process.INVALID_UID, null, null);
+                scheduleJournalFlushLocked();
 
                 mHistoricalRegistry.increaseOpAccessDuration(parent.op, parent.uid,
                         parent.packageName, tag, event.getUidState(),
@@ -1490,6 +1535,7 @@ public class AppOpsService extends IAppOpsService.Stub {
 
         LockGuard.installLock(this, LockGuard.INDEX_APP_OPS);
         mFile = new AtomicFile(storagePath, "appops");
+        mJournal = new AppOpsJournal(new File(storagePath.getPath() + ".journal"));
         if (AppOpsManager.NOTE_OP_COLLECTION_ENABLED) {
             mNoteOpCallerStacktracesFile = new File(SystemServiceManager.ensureSystemDir(),
                     "noteOpStackTraces.json");
@@ -1530,6 +1576,8 @@ public class AppOpsService extends IAppOpsService.Stub {
 
                     Ops removedOps = uidState.pkgOps.remove(pkgName);
                     if (removedOps != null) {
+                        mVerifiedPackages.invalidate(uid);
+                        mUidModes.invalidate(uid);
                         scheduleFastWriteLocked();
                     }
                 }
@@ -1573,6 +1621,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                     // Reset cached package properties to re-initialize when needed
                     ops.bypass = null;
                     ops.knownAttributionTags.clear();
+                    mVerifiedPackages.invalidate(uid);
 
                     // Merge data collected for removed attributions into their successor
                     // attributions
@@ -1626,6 +1675,8 @@ public class AppOpsService extends IAppOpsService.Stub {
                 if (ArrayUtils.isEmpty(pkgsInUid)) {
                     uidState.clear();
                     mUidStates.removeAt(uidNum);
+                    mVerifiedPackages.invalidate(uid);
+                    mUidModes.invalidate(uid);
                     scheduleFastWriteLocked();
                     continue;
                 }
@@ -1777,6 +1828,8 @@ public class AppOpsService extends IAppOpsService.Stub {
             // Remove any package state if such.
             if (uidState.pkgOps != null) {
                 ops = uidState.pkgOps.remove(packageName);
+                mVerifiedPackages.invalidate(uid);
+                mUidModes.invalidate(uid);
             }
 
             // If we just nuked the last package state check if the UID is valid.
@@ -1812,6 +1865,8 @@ public class AppOpsService extends IAppOpsService.Stub {
         synchronized (this) {
             if (mUidStates.indexOfKey(uid) >= 0) {
                 mUidStates.remove(uid);
+                mVerifiedPackages.invalidate(uid);
+                mUidModes.invalidate(uid);
                 scheduleFastWriteLocked();
             }
         }
@@ -1863,6 +1918,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                     }
                     final long commitTime = SystemClock.elapsedRealtime() + settleTime;
                     uidState.pendingStateCommitTime = commitTime;
+                    mUidModes.invalidate(uid);
 
                     mHandler.sendMessageDelayed(
                             PooledLambda.obtainMessage(AppOpsService::updatePendingState, this,
@@ -1895,6 +1951,7 @@ public class AppOpsService extends IAppOpsService.Stub {
 
     public void shutdown() {
         Slog.w(TAG, "Writing app ops before shutdown...");
+        mJournal.flush();
         boolean doWrite = false;
         synchronized (this) {
             if (mWriteScheduled) {
@@ -2160,11 +2217,13 @@ public class AppOpsService extends IAppOpsService.Stub {
             Ops ops = getOpsLocked(uid, packageName, null, null, false /* edit */);
             if (ops != null) {
                 ops.remove(op.op);
+                mUidModes.invalidate(uid);
                 if (ops.size() <= 0) {
                     UidState uidState = ops.uidState;
                     ArrayMap<String, Ops> pkgOps = uidState.pkgOps;
                     if (pkgOps != null) {
                         pkgOps.remove(ops.packageName);
+                        mVerifiedPackages.invalidate(uid);
                         if (pkgOps.isEmpty()) {
                             uidState.pkgOps = null;
                         }
@@ -2252,6 +2311,9 @@ public class AppOpsService extends IAppOpsService.Stub {
                 }
                 scheduleWriteLocked();
             }
+            mUidModes.invalidate(uid);
+            mJournal.writeUidMode(uid, code, mode);
+            scheduleJournalFlushLocked();
             uidState.evalForegroundOps(mOpModeWatchers);
         }
 
@@ -2480,6 +2542,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                 if (op.mode != mode) {
                     previousMode = op.mode;
                     op.mode = mode;
+                    mUidModes.invalidate(uid);
                     if (uidState != null) {
                         uidState.evalForegroundOps(mOpModeWatchers);
                     }
@@ -2505,7 +2568,9 @@ public class AppOpsService extends IAppOpsService.Stub {
                         // if there is nothing else interesting in it.
                         pruneOpLocked(op, uid, packageName);
                     }
-                    scheduleFastWriteLocked();
+                    mJournal.writePackageMode(uid, packageName, code, mode);
+                    scheduleJournalFlushLocked();
+                    scheduleWriteLocked();
                 }
             }
         }
@@ -2636,6 +2701,7 @@ public class AppOpsService extends IAppOpsService.Stub {
         HashMap<ModeCallback, ArrayList<ChangeRec>> callbacks = null;
         ArrayList<ChangeRec> allChanges = new ArrayList<>();
         synchronized (this) {
+            mUidModes.invalidateAll();
             boolean changed = false;
             for (int i = mUidStates.size() - 1; i >= 0; i--) {
                 UidState uidState = mUidStates.valueAt(i);
@@ -2713,6 +2779,8 @@ public class AppOpsService extends IAppOpsService.Stub {
                     }
                     if (pkgOps.size() == 0) {
                         it.remove();
+                        mVerifiedPackages.invalidate(uidState.uid);
+                        mUidModes.invalidate(uidState.uid);
                     }
                 }
                 if (uidState.isDefault()) {
@@ -2859,15 +2927,11 @@ public class AppOpsService extends IAppOpsService.Stub {
     }
 
     public CheckOpsDelegate getAppOpsServiceDelegate() {
-        synchronized (this) {
-            return mCheckOpsDelegate;
-        }
+        return mCheckOpsDelegate;
     }
 
     public void setAppOpsServiceDelegate(CheckOpsDelegate delegate) {
-        synchronized (this) {
-            mCheckOpsDelegate = delegate;
-        }
+        mCheckOpsDelegate = delegate;
     }
 
     @Override
@@ -2881,10 +2945,7 @@ public class AppOpsService extends IAppOpsService.Stub {
     }
 
     private int checkOperationInternal(int code, int uid, String packageName, boolean raw) {
-        final CheckOpsDelegate delegate;
-        synchronized (this) {
-            delegate = mCheckOpsDelegate;
-        }
+        final CheckOpsDelegate delegate = mCheckOpsDelegate;
         if (delegate == null) {
             return checkOperationImpl(code, uid, packageName, raw);
         }
@@ -2925,12 +2986,18 @@ public class AppOpsService extends IAppOpsService.Stub {
         if (isOpRestrictedDueToSuspend(code, packageName, uid)) {
             return AppOpsManager.MODE_IGNORED;
         }
+        // Unless the op is restricted, the modes published for the uid answer without the lock
+        final UidModeCache.Modes modes = mRestrictedOps[code] ? null : mUidModes.get(uid);
+        if (modes != null) {
+            return modes.checkOperation(AppOpsManager.opToSwitch(code), packageName, raw);
+        }
         synchronized (this) {
             if (isOpRestrictedLocked(uid, code, packageName, bypass)) {
                 return AppOpsManager.MODE_IGNORED;
             }
             code = AppOpsManager.opToSwitch(code);
             UidState uidState = getUidStateLocked(uid, false);
+            publishUidModesLocked(uidState);
             if (uidState != null && uidState.opModes != null
                     && uidState.opModes.indexOfKey(code) >= 0) {
                 final int rawMode = uidState.opModes.get(code);
@@ -2944,12 +3011,37 @@ public class AppOpsService extends IAppOpsService.Stub {
         }
     }
 
+    /**
+     * Publishes the modes of a uid for {@link #checkOperationUnchecked}, unless a state change of
+     * the uid is pending, as reading it under the lock would commit the change once due.
+     */
+    @GuardedBy("this")
+    private void publishUidModesLocked(@Nullable UidState uidState) {
+        if (uidState == null || uidState.pendingStateCommitTime != 0
+                || mUidModes.get(uidState.uid) != null) {
+            return;
+        }
+        final UidState state = new UidState(uidState.uid);
+        state.state = uidState.state;
+        state.capability = uidState.capability;
+        state.appWidgetVisible = uidState.appWidgetVisible;
+        final int pkgCount = uidState.pkgOps == null ? 0 : uidState.pkgOps.size();
+        final ArrayMap<String, SparseIntArray> packageModes = new ArrayMap<>(pkgCount);
+        for (int i = 0; i < pkgCount; i++) {
+            final Ops ops = uidState.pkgOps.valueAt(i);
+            final SparseIntArray modes = new SparseIntArray(ops.size());
+            for (int j = 0; j < ops.size(); j++) {
+                modes.put(ops.keyAt(j), ops.valueAt(j).mode);
+            }
+            packageModes.put(uidState.pkgOps.keyAt(i), modes);
+        }
+        mUidModes.put(uidState.uid, new UidModeCache.Modes(state,
+                uidState.opModes == null ? null : uidState.opModes.clone(), packageModes));
+    }
+
     @Override
     public int checkAudioOperation(int code, int usage, int uid, String packageName) {
-        final CheckOpsDelegate delegate;
-        synchronized (this) {
-            delegate = mCheckOpsDelegate;
-        }
+        final CheckOpsDelegate delegate = mCheckOpsDelegate;
         if (delegate == null) {
             return checkAudioOperationImpl(code, usage, uid, packageName);
         }
@@ -3052,10 +3144,7 @@ public class AppOpsService extends IAppOpsService.Stub {
     @Override
     public int noteOperation(int code, int uid, String packageName, String attributionTag,
             boolean shouldCollectAsyncNotedOp, String message, boolean shouldCollectMessage) {
-        final CheckOpsDelegate delegate;
-        synchronized (this) {
-            delegate = mCheckOpsDelegate;
-        }
+        final CheckOpsDelegate delegate = mCheckOpsDelegate;
         if (delegate == null) {
             return noteOperationImpl(code, uid, packageName, attributionTag,
                     shouldCollectAsyncNotedOp, message, shouldCollectMessage);
@@ -3846,6 +3935,7 @@ public class AppOpsService extends IAppOpsService.Stub {
         uidState.capability = uidState.pendingCapability;
         uidState.appWidgetVisible = uidState.pendingAppWidgetVisible;
         uidState.pendingStateCommitTime = 0;
+        mUidModes.invalidate(uidState.uid);
     }
 
     private void updateAppWidgetVisibility(SparseArray<String> uidPackageNames, boolean visible) {
@@ -3895,16 +3985,10 @@ public class AppOpsService extends IAppOpsService.Stub {
         }
 
         // Do not check if uid/packageName/attributionTag is already known
-        synchronized (this) {
-            UidState uidState = mUidStates.get(uid);
-            if (uidState != null && uidState.pkgOps != null) {
-                Ops ops = uidState.pkgOps.get(packageName);
-
-                if (ops != null && (attributionTag == null || ops.knownAttributionTags.contains(
-                        attributionTag)) && ops.bypass != null) {
-                    return ops.bypass;
-                }
-            }
+        final RestrictionBypass knownBypass = mVerifiedPackages.get(uid, packageName,
+                attributionTag);
+        if (knownBypass != null) {
+            return knownBypass;
         }
 
         RestrictionBypass bypass = null;
@@ -3993,12 +4077,18 @@ public class AppOpsService extends IAppOpsService.Stub {
         }
 
         if (edit) {
-            if (bypass != null) {
+            boolean changed = false;
+            if (bypass != null && bypass != ops.bypass) {
                 ops.bypass = bypass;
+                changed = true;
             }
 
             if (attributionTag != null) {
-                ops.knownAttributionTags.add(attributionTag);
+                changed |= ops.knownAttributionTags.add(attributionTag);
+            }
+
+            if (changed && ops.bypass != null) {
+                mVerifiedPackages.put(uid, packageName, ops.bypass, ops.knownAttributionTags);
             }
         }
 
@@ -4012,7 +4102,16 @@ public class AppOpsService extends IAppOpsService.Stub {
         }
     }
 
+    /**
+     * Schedules a write of the state soon, for changes which aren't journaled. The journal can
+     * only record the next changes on top of a state including them.
+     */
     private void scheduleFastWriteLocked() {
+        mJournal.block();
+        scheduleCompactionLocked();
+    }
+
+    private void scheduleCompactionLocked() {
         if (!mFastWriteScheduled) {
             mWriteScheduled = true;
             mFastWriteScheduled = true;
@@ -4021,6 +4120,17 @@ public class AppOpsService extends IAppOpsService.Stub {
         }
     }
 
+    @GuardedBy("this")
+    private void scheduleJournalFlushLocked() {
+        if (!mJournalFlushScheduled) {
+            mJournalFlushScheduled = true;
+            mHandler.postDelayed(mJournalFlushRunner, JOURNAL_FLUSH_DELAY);
+        }
+        if (mJournal.getSize() > MAX_JOURNAL_SIZE) {
+            scheduleCompactionLocked();
+        }
+    }
+
     /**
      * Get the state of an op for a uid.
      *
@@ -4050,6 +4160,7 @@ public class AppOpsService extends IAppOpsService.Stub {
             }
             op = new Op(ops.uidState, ops.packageName, code, uid);
             ops.put(code, op);
+            mUidModes.invalidate(uid);
         }
         if (edit) {
             scheduleWriteLocked();
@@ -4098,15 +4209,20 @@ public class AppOpsService extends IAppOpsService.Stub {
         int oldVersion = NO_VERSION;
         synchronized (mFile) {
             synchronized (this) {
+                // The journal only applies on top of the state read below
+                mJournal.block();
+                mUidModes.invalidateAll();
                 FileInputStream stream;
                 try {
                     stream = mFile.openRead();
                 } catch (FileNotFoundException e) {
                     Slog.i(TAG, "No existing app ops " + mFile.getBaseFile() + "; starting empty");
+                    replayJournalLocked();
                     return;
                 }
                 boolean success = false;
                 mUidStates.clear();
+                mVerifiedPackages.invalidateAll();
                 try {
                     XmlPullParser parser = Xml.newPullParser();
                     parser.setInput(stream, StandardCharsets.UTF_8.name());
@@ -4165,6 +4281,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                     } catch (IOException e) {
                     }
                 }
+                replayJournalLocked();
             }
         }
         synchronized (this) {
@@ -4172,6 +4289,84 @@ public class AppOpsService extends IAppOpsService.Stub {
         }
     }
 
+    /**
+     * Applies the changes journaled since the state was last written, and schedules writing a
+     * state including them.
+     */
+    @GuardedBy("this")
+    private void replayJournalLocked() {
+        final int count = mJournal.replay(new AppOpsJournal.Replayer() {
+            @Override
+            public void onUidMode(int uid, int code, int mode) {
+                final UidState uidState = getUidStateLocked(uid, true);
+                if (mode == AppOpsManager.opToDefaultMode(code)) {
+                    if (uidState.opModes != null) {
+                        uidState.opModes.delete(code);
+                        if (uidState.opModes.size() <= 0) {
+                            uidState.opModes = null;
+                        }
+                    }
+                } else {
+                    if (uidState.opModes == null) {
+                        uidState.opModes = new SparseIntArray();
+                    }
+                    uidState.opModes.put(code, mode);
+                }
+                uidState.evalForegroundOps(mOpModeWatchers);
+            }
+
+            @Override
+            public void onPackageMode(int uid, String packageName, int code, int mode) {
+                final Op op = getOrCreateOpLocked(uid, packageName, code);
+                op.mode = mode;
+                op.uidState.evalForegroundOps(mOpModeWatchers);
+                if (mode == AppOpsManager.opToDefaultMode(code)) {
+                    pruneOpLocked(op, uid, packageName);
+                }
+            }
+
+            @Override
+            public void onAccess(int uid, String packageName, int code, String attributionTag,
+                    int uidState, int flags, long time, long duration, int proxyUid,
+                    String proxyPackageName, String proxyAttributionTag) {
+                final Op op = getOrCreateOpLocked(uid, packageName, code);
+                op.getOrCreateAttribution(op, attributionTag).accessed(time, duration, proxyUid,
+                        proxyPackageName, proxyAttributionTag, uidState, flags);
+            }
+
+            @Override
+            public void onReject(int uid, String packageName, int code, String attributionTag,
+                    int uidState, int flags, long time) {
+                final Op op = getOrCreateOpLocked(uid, packageName, code);
+                op.getOrCreateAttribution(op, attributionTag).rejected(time, uidState, flags);
+            }
+        });
+        if (count > 0) {
+            Slog.i(TAG, "Replayed " + count + " journaled app ops changes");
+            scheduleCompactionLocked();
+        }
+    }
+
+    /** Like {@link #readOp}, for the ops restored from the journal. */
+    @GuardedBy("this")
+    private @NonNull Op getOrCreateOpLocked(int uid, @NonNull String packageName, int code) {
+        final UidState uidState = getUidStateLocked(uid, true);
+        if (uidState.pkgOps == null) {
+            uidState.pkgOps = new ArrayMap<>();
+        }
+        Ops ops = uidState.pkgOps.get(packageName);
+        if (ops == null) {
+            ops = new Ops(packageName, uidState);
+            uidState.pkgOps.put(packageName, ops);
+        }
+        Op op = ops.get(code);
+        if (op == null) {
+            op = new Op(uidState, packageName, code, uid);
+            ops.put(code, op);
+        }
+        return op;
+    }
+
     private void upgradeRunAnyInBackgroundLocked() {
         for (int i = 0; i < mUidStates.size(); i++) {
             final UidState uidState = mUidStates.valueAt(i);
@@ -4213,6 +4408,7 @@ public class AppOpsService extends IAppOpsService.Stub {
             return;
         }
         Slog.d(TAG, "Upgrading app-ops xml from version " + oldVersion + " to " + CURRENT_VERSION);
+        mUidModes.invalidateAll();
         switch (oldVersion) {
             case NO_VERSION:
                 upgradeRunAnyInBackgroundLocked();
@@ -4356,6 +4552,9 @@ public class AppOpsService extends IAppOpsService.Stub {
 
     void writeState() {
         synchronized (mFile) {
+            // Everything journaled so far is in the state written below, and the next changes
+            // are journaled on top of it.
+            mJournal.rotate();
             FileOutputStream stream;
             try {
                 stream = mFile.startWrite();
@@ -4515,6 +4714,9 @@ public class AppOpsService extends IAppOpsService.Stub {
                 out.endTag(null, "app-ops");
                 out.endDocument();
                 mFile.finishWrite(stream);
+                // The records moved aside are in the committed state now. Replaying them on
+                // top of a later state would undo the changes which aren't journaled.
+                mJournal.discardRotated();
             } catch (IOException e) {
                 Slog.w(TAG, "Failed to write state, restoring backup.", e);
                 mFile.failWrite(stream);
@@ -5777,7 +5979,28 @@ public class AppOpsService extends IAppOpsService.Stub {
                 mOpUserRestrictions.remove(token);
                 restrictionState.destroy();
             }
+            updateRestrictedOpsLocked();
+        }
+    }
+
+    /** Updates the ops restricted for any user by any client after a restriction changed. */
+    @GuardedBy("this")
+    private void updateRestrictedOpsLocked() {
+        final boolean[] restrictedOps = new boolean[AppOpsManager._NUM_OP];
+        for (int i = mOpUserRestrictions.size() - 1; i >= 0; i--) {
+            final SparseArray<boolean[]> perUserRestrictions =
+                    mOpUserRestrictions.valueAt(i).perUserRestrictions;
+            if (perUserRestrictions == null) {
+                continue;
+            }
+            for (int j = perUserRestrictions.size() - 1; j >= 0; j--) {
+                final boolean[] restrictions = perUserRestrictions.valueAt(j);
+                for (int code = 0; code < restrictions.length; code++) {
+                    restrictedOps[code] |= restrictions[code];
+                }
+            }
         }
+        mRestrictedOps = restrictedOps;
     }
 
     private void notifyWatchersOfChange(int code, int uid) {
@@ -5802,6 +6025,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                 ClientRestrictionState opRestrictions = mOpUserRestrictions.valueAt(i);
                 opRestrictions.removeUser(userHandle);
             }
+            updateRestrictedOpsLocked();
             removeUidsForUserLocked(userHandle);
         }
     }
@@ -6137,6 +6361,8 @@ public class AppOpsService extends IAppOpsService.Stub {
             final int uid = mUidStates.keyAt(i);
             if (UserHandle.getUserId(uid) == userHandle) {
                 mUidStates.removeAt(i);
+                mVerifiedPackages.invalidate(uid);
+                mUidModes.invalidate(uid);
             }
         }
     }
@@ -6321,6 +6547,7 @@ public class AppOpsService extends IAppOpsService.Stub {
         public void binderDied() {
             synchronized (AppOpsService.this) {
                 mOpUserRestrictions.remove(token);
+                updateRestrictedOpsLocked();
                 if (perUserRestrictions == null) {
                     return;
                 }
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.appop;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.app.AppOpsManager;
+import android.util.ArrayMap;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+
+/**
+ * The op modes of the uids {@link AppOpsService} published for reading without the service lock,
+ * so that checking an op doesn't wait on the ops being noted and started.
+ *
+ * <p>Lookups don't lock. The uids are split in stripes, each publishing an immutable copy of its
+ * uids which is replaced under the lock of the stripe only. The modes are published under the
+ * service lock, from the {@link AppOpsService.UidState} of the uid, so the uid must be
+ * invalidated under the service lock too, whenever anything its modes are evaluated from
+ * changes.
+ */
+final class UidModeCache {
+    private static final int STRIPE_COUNT = 16;
+
+    private final Stripe[] mStripes = new Stripe[STRIPE_COUNT];
+
+    UidModeCache() {
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            mStripes[i] = new Stripe();
+        }
+    }
+
+    /** Returns the modes published for the uid, {@code null} if they need to be read again. */
+    @Nullable Modes get(int uid) {
+        return getStripe(uid).mUids.get(uid);
+    }
+
+    /** Publishes the modes of a uid. */
+    void put(int uid, @NonNull Modes modes) {
+        final Stripe stripe = getStripe(uid);
+        synchronized (stripe) {
+            final SparseArray<Modes> uids = stripe.mUids.clone();
+            uids.put(uid, modes);
+            stripe.mUids = uids;
+        }
+    }
+
+    /** Forgets the modes of a uid, which are published again on its next check. */
+    void invalidate(int uid) {
+        final Stripe stripe = getStripe(uid);
+        synchronized (stripe) {
+            if (stripe.mUids.get(uid) == null) {
+                return;
+            }
+            final SparseArray<Modes> uids = stripe.mUids.clone();
+            uids.remove(uid);
+            stripe.mUids = uids;
+        }
+    }
+
+    /** Forgets the modes of all the uids. */
+    void invalidateAll() {
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            synchronized (mStripes[i]) {
+                mStripes[i].mUids = new SparseArray<>();
+            }
+        }
+    }
+
+    private Stripe getStripe(int uid) {
+        return mStripes[uid & (STRIPE_COUNT - 1)];
+    }
+
+    private static final class Stripe {
+        /** Written under the stripe lock, and never modified once published. */
+        volatile SparseArray<Modes> mUids = new SparseArray<>();
+    }
+
+    /** The modes of a uid and of its packages' ops, as the service lock would read them. */
+    static final class Modes {
+        /** A detached copy of the uid state, only used to evaluate the modes. */
+        private final @NonNull AppOpsService.UidState mUidState;
+        private final @Nullable SparseIntArray mUidModes;
+        /** The modes of the ops of each package, for the ops which have an {@code Op}. */
+        private final @NonNull ArrayMap<String, SparseIntArray> mPackageModes;
+
+        Modes(@NonNull AppOpsService.UidState uidState, @Nullable SparseIntArray uidModes,
+                @NonNull ArrayMap<String, SparseIntArray> packageModes) {
+            mUidState = uidState;
+            mUidModes = uidModes;
+            mPackageModes = packageModes;
+        }
+
+        /**
+         * Returns the mode of an op of a package of the uid, as
+         * {@code AppOpsService#checkOperationUnchecked} does once the op isn't restricted.
+         *
+         * @param switchCode The switch op of the op checked
+         * @param raw If the raw state of eval-ed state should be checked.
+         */
+        int checkOperation(int switchCode, @NonNull String packageName, boolean raw) {
+            if (mUidModes != null && mUidModes.indexOfKey(switchCode) >= 0) {
+                final int rawMode = mUidModes.get(switchCode);
+                return raw ? rawMode : mUidState.evalMode(switchCode, rawMode);
+            }
+            final SparseIntArray modes = mPackageModes.get(packageName);
+            if (modes == null || modes.indexOfKey(switchCode) < 0) {
+                return AppOpsManager.opToDefaultMode(switchCode);
+            }
+            final int mode = modes.get(switchCode);
+            return raw ? mode : mUidState.evalMode(switchCode, mode);
+        }
+    }
+}
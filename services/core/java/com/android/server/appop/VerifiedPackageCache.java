@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.appop;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.app.AppOpsManager.RestrictionBypass;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.SparseArray;
+
+/**
+ * The packages whose uid {@link AppOpsService} already verified, with their restriction bypass
+ * and the attribution tags seen for them, so that checking, noting and starting an op doesn't
+ * take the service lock just to skip the package manager lookup.
+ *
+ * <p>Lookups don't lock. The uids are split in stripes, each publishing an immutable copy of its
+ * packages which is replaced under the lock of the stripe only, when a package is verified or
+ * invalidated. The cache mirrors the {@code bypass} and {@code knownAttributionTags} of the
+ * {@link AppOpsService.Ops}, so the uid must be invalidated whenever they are reset or removed.
+ */
+final class VerifiedPackageCache {
+    private static final int STRIPE_COUNT = 16;
+
+    private final Stripe[] mStripes = new Stripe[STRIPE_COUNT];
+
+    VerifiedPackageCache() {
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            mStripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Returns the restriction bypass of a package if it was verified to belong to the uid and the
+     * attribution tag was already seen, {@code null} otherwise.
+     */
+    @Nullable RestrictionBypass get(int uid, @NonNull String packageName,
+            @Nullable String attributionTag) {
+        final ArrayMap<String, Entry> packages = getStripe(uid).mUids.get(uid);
+        if (packages == null) {
+            return null;
+        }
+        final Entry entry = packages.get(packageName);
+        if (entry == null
+                || (attributionTag != null && !entry.attributionTags.contains(attributionTag))) {
+            return null;
+        }
+        return entry.bypass;
+    }
+
+    /** Records a package verified to belong to the uid. */
+    void put(int uid, @NonNull String packageName, @NonNull RestrictionBypass bypass,
+            @NonNull ArraySet<String> attributionTags) {
+        final Stripe stripe = getStripe(uid);
+        synchronized (stripe) {
+            final SparseArray<ArrayMap<String, Entry>> uids = stripe.mUids.clone();
+            final ArrayMap<String, Entry> oldPackages = uids.get(uid);
+            final ArrayMap<String, Entry> packages = oldPackages == null
+                    ? new ArrayMap<>(1) : new ArrayMap<>(oldPackages);
+            packages.put(packageName, new Entry(bypass, new ArraySet<>(attributionTags)));
+            uids.put(uid, packages);
+            stripe.mUids = uids;
+        }
+    }
+
+    /** Forgets the packages of a uid, which are verified again on their next op. */
+    void invalidate(int uid) {
+        final Stripe stripe = getStripe(uid);
+        synchronized (stripe) {
+            if (stripe.mUids.get(uid) == null) {
+                return;
+            }
+            final SparseArray<ArrayMap<String, Entry>> uids = stripe.mUids.clone();
+            uids.remove(uid);
+            stripe.mUids = uids;
+        }
+    }
+
+    /** Forgets all the packages. */
+    void invalidateAll() {
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            synchronized (mStripes[i]) {
+                mStripes[i].mUids = new SparseArray<>();
+            }
+        }
+    }
+
+    private Stripe getStripe(int uid) {
+        return mStripes[uid & (STRIPE_COUNT - 1)];
+    }
+
+    private static final class Stripe {
+        /** Written under the stripe lock, and never modified once published. */
+        volatile SparseArray<ArrayMap<String, Entry>> mUids = new SparseArray<>();
+    }
+
+    private static final class Entry {
+        final @NonNull RestrictionBypass bypass;
+        final @NonNull ArraySet<String> attributionTags;
+
+        Entry(@NonNull RestrictionBypass bypass, @NonNull ArraySet<String> attributionTags) {
+            this.bypass = bypass;
+            this.attributionTags = attributionTags;
+        }
+    }
+}
@@ -58,6 +58,7 @@ import com.android.server.FgThread;
 import com.android.server.compat.CompatChange;
 import com.android.server.om.OverlayReferenceMapper;
 import com.android.server.pm.parsing.pkg.AndroidPackage;
+import com.android.server.utils.SparseBooleanMatrix;
 
 import java.io.PrintWriter;
 import java.util.Arrays;
@@ -142,12 +143,13 @@ public class AppsFilter {
     /**
      * This structure maps uid -> uid and indicates whether access from the first should be
      * filtered to the second. It's essentially a cache of the
-     * {@link #shouldFilterApplicationInternal(int, SettingBase, PackageSetting, int)} call.
+     * {@link #shouldFilterApplicationInternal(int, SettingBase, PackageSetting, int)} call, kept
+     * as a bit-matrix so that a package change only rewrites the rows and columns of its own uids.
      * NOTE: It can only be relied upon after the system is ready to avoid unnecessary update on
      * initial scam and is null until {@link #onSystemReady()} is called.
      */
     @GuardedBy("mCacheLock")
-    private volatile SparseArray<SparseBooleanArray> mShouldFilterCache;
+    private volatile SparseBooleanMatrix mShouldFilterCache;
 
     @VisibleForTesting(visibility = PRIVATE)
     AppsFilter(StateProvider stateProvider,
@@ -493,15 +495,12 @@ public class AppsFilter {
                 Slog.i(TAG, "implicit access granted: " + recipientUid + " -> " + visibleUid);
             }
             synchronized (mCacheLock) {
-                if (mShouldFilterCache != null) {
-                    // update the cache in a one-off manner since we've got all the information we
-                    // need.
-                    SparseBooleanArray visibleUids = mShouldFilterCache.get(recipientUid);
-                    if (visibleUids == null) {
-                        visibleUids = new SparseBooleanArray();
-                        mShouldFilterCache.put(recipientUid, visibleUids);
-                    }
-                    visibleUids.put(visibleUid, false);
+                // update the cache in a one-off manner since we've got all the information we
+                // need. A uid without cached rules must not be added here, as it would get an
+                // all-false row and column and become visible to everyone.
+                if (mShouldFilterCache != null && mShouldFilterCache.contains(recipientUid)
+                        && mShouldFilterCache.contains(visibleUid)) {
+                    mShouldFilterCache.put(recipientUid, visibleUid, false);
                 }
             }
         }
@@ -632,36 +631,33 @@ public class AppsFilter {
             return;
         }
         for (int i = mShouldFilterCache.size() - 1; i >= 0; i--) {
-            if (UserHandle.getAppId(mShouldFilterCache.keyAt(i)) == appId) {
-                mShouldFilterCache.removeAt(i);
-                continue;
-            }
-            SparseBooleanArray targetSparseArray = mShouldFilterCache.valueAt(i);
-            for (int j = targetSparseArray.size() - 1; j >= 0; j--) {
-                if (UserHandle.getAppId(targetSparseArray.keyAt(j)) == appId) {
-                    targetSparseArray.removeAt(j);
-                }
+            final int uid = mShouldFilterCache.keyAt(i);
+            if (UserHandle.getAppId(uid) == appId) {
+                mShouldFilterCache.removeKey(uid);
             }
         }
     }
 
     private void updateEntireShouldFilterCache() {
         mStateProvider.runWithState((settings, users) -> {
-            SparseArray<SparseBooleanArray> cache =
-                    updateEntireShouldFilterCacheInner(settings, users);
+            SparseBooleanMatrix cache = updateEntireShouldFilterCacheInner(settings, users);
             synchronized (mCacheLock) {
                 mShouldFilterCache = cache;
             }
         });
     }
 
-    private SparseArray<SparseBooleanArray> updateEntireShouldFilterCacheInner(
+    private SparseBooleanMatrix updateEntireShouldFilterCacheInner(
             Map<String, PackageSetting> settings, UserInfo[] users) {
-        SparseArray<SparseBooleanArray> cache =
-                new SparseArray<>(users.length * settings.size());
-        for (PackageSetting ps : settings.values()) {
-            updateShouldFilterCacheForPackage(cache,
-                    null /*skipPackage*/, ps, settings, users);
+        SparseBooleanMatrix cache = new SparseBooleanMatrix(users.length * settings.size());
+        final PackageSetting[] allSettings = settings.values().toArray(new PackageSetting[0]);
+        for (int i = 0; i < allSettings.length; i++) {
+            addUidsToCache(cache, allSettings[i], users);
+            // each pair is evaluated in both directions, so only visit it once
+            for (int j = i + 1; j < allSettings.length; j++) {
+                updateShouldFilterCacheForPair(cache, allSettings[i], allSettings[j], users,
+                        users);
+            }
         }
         return cache;
     }
@@ -682,7 +678,7 @@ public class AppsFilter {
                     packagesCache.put(entry.getKey(), pkg);
                 }
             });
-            SparseArray<SparseBooleanArray> cache =
+            SparseBooleanMatrix cache =
                     updateEntireShouldFilterCacheInner(settingsCopy, usersRef[0]);
             boolean[] changed = new boolean[1];
             // We have a cache, let's make sure the world hasn't changed out from under us.
@@ -713,12 +709,47 @@ public class AppsFilter {
         });
     }
 
+    /**
+     * Updates the cache after users have been added or removed. Only the rows and columns of uids
+     * belonging to those users are touched.
+     */
     public void onUsersChanged() {
-        synchronized (mCacheLock) {
-            if (mShouldFilterCache != null) {
-                updateEntireShouldFilterCache();
+        mStateProvider.runWithState((settings, users) -> {
+            synchronized (mCacheLock) {
+                if (mShouldFilterCache == null) {
+                    return;
+                }
+                final SparseBooleanArray cachedUserIds = new SparseBooleanArray(users.length);
+                for (int i = mShouldFilterCache.size() - 1; i >= 0; i--) {
+                    final int uid = mShouldFilterCache.keyAt(i);
+                    final int userId = UserHandle.getUserId(uid);
+                    if (ArrayUtils.find(users, user -> user.id == userId) == null) {
+                        mShouldFilterCache.removeKey(uid);
+                    } else {
+                        cachedUserIds.put(userId, true);
+                    }
+                }
+                final PackageSetting[] allSettings =
+                        settings.values().toArray(new PackageSetting[0]);
+                for (UserInfo user : users) {
+                    if (cachedUserIds.get(user.id)) {
+                        continue;
+                    }
+                    final UserInfo[] addedUser = new UserInfo[] { user };
+                    for (int i = 0; i < allSettings.length; i++) {
+                        addUidsToCache(mShouldFilterCache, allSettings[i], addedUser);
+                        for (int j = i + 1; j < allSettings.length; j++) {
+                            // pairs within the new user, and between it and every other user
+                            updateShouldFilterCacheForPair(mShouldFilterCache, allSettings[i],
+                                    allSettings[j], addedUser, users);
+                            updateShouldFilterCacheForPair(mShouldFilterCache, allSettings[i],
+                                    allSettings[j], users, addedUser);
+                        }
+                    }
+                    cachedUserIds.put(user.id, true);
+                }
             }
-        }
+        });
     }
 
     private void updateShouldFilterCacheForPackage(String packageName) {
@@ -732,38 +763,47 @@ public class AppsFilter {
         }
     }
 
-    private void updateShouldFilterCacheForPackage(SparseArray<SparseBooleanArray> cache,
+    private void updateShouldFilterCacheForPackage(SparseBooleanMatrix cache,
             @Nullable String skipPackageName, PackageSetting subjectSetting, Map<String,
             PackageSetting> allSettings, UserInfo[] allUsers) {
+        addUidsToCache(cache, subjectSetting, allUsers);
         for (PackageSetting otherSetting : allSettings.values()) {
-            if (subjectSetting.appId == otherSetting.appId) {
-                continue;
-            }
             //noinspection StringEquality
             if (subjectSetting.name == skipPackageName || otherSetting.name == skipPackageName) {
                 continue;
             }
-            final int userCount = allUsers.length;
-            final int appxUidCount = userCount * allSettings.size();
-            for (int su = 0; su < userCount; su++) {
-                int subjectUser = allUsers[su].id;
-                for (int ou = 0; ou < userCount; ou++) {
-                    int otherUser = allUsers[ou].id;
-                    int subjectUid = UserHandle.getUid(subjectUser, subjectSetting.appId);
-                    if (!cache.contains(subjectUid)) {
-                        cache.put(subjectUid, new SparseBooleanArray(appxUidCount));
-                    }
-                    int otherUid = UserHandle.getUid(otherUser, otherSetting.appId);
-                    if (!cache.contains(otherUid)) {
-                        cache.put(otherUid, new SparseBooleanArray(appxUidCount));
-                    }
-                    cache.get(subjectUid).put(otherUid,
-                            shouldFilterApplicationInternal(
-                                    subjectUid, subjectSetting, otherSetting, otherUser));
-                    cache.get(otherUid).put(subjectUid,
-                            shouldFilterApplicationInternal(
-                                    otherUid, otherSetting, subjectSetting, subjectUser));
-                }
+            updateShouldFilterCacheForPair(cache, subjectSetting, otherSetting, allUsers,
+                    allUsers);
+        }
+    }
+
+    private static void addUidsToCache(SparseBooleanMatrix cache, PackageSetting setting,
+            UserInfo[] users) {
+        for (int u = 0; u < users.length; u++) {
+            cache.addKey(UserHandle.getUid(users[u].id, setting.appId));
+        }
+    }
+
+    /**
+     * Evaluates visibility in both directions between the uids of {@code subjectSetting} in
+     * {@code subjectUsers} and the uids of {@code otherSetting} in {@code otherUsers}.
+     */
+    private void updateShouldFilterCacheForPair(SparseBooleanMatrix cache,
+            PackageSetting subjectSetting, PackageSetting otherSetting, UserInfo[] subjectUsers,
+            UserInfo[] otherUsers) {
+        if (subjectSetting.appId == otherSetting.appId) {
+            return;
+        }
+        for (int su = 0; su < subjectUsers.length; su++) {
+            final int subjectUser = subjectUsers[su].id;
+            final int subjectUid = UserHandle.getUid(subjectUser, subjectSetting.appId);
+            for (int ou = 0; ou < otherUsers.length; ou++) {
+                final int otherUser = otherUsers[ou].id;
+                final int otherUid = UserHandle.getUid(otherUser, otherSetting.appId);
+                cache.put(subjectUid, otherUid, shouldFilterApplicationInternal(
+                        subjectUid, subjectSetting, otherSetting, otherUser));
+                cache.put(otherUid, subjectUid, shouldFilterApplicationInternal(
+                        otherUid, otherSetting, subjectSetting, subjectUser));
             }
         }
     }
@@ -949,6 +989,16 @@ public class AppsFilter {
         });
     }
 
+    /**
+     * Returns whether {@link #shouldFilterApplication} is answered from the cache, which only
+     * looks at the app ids of the settings it is given.
+     */
+    public boolean isCacheReady() {
+        synchronized (mCacheLock) {
+            return mShouldFilterCache != null;
+        }
+    }
+
     /**
      * Returns true if the calling package should not be able to see the target package, false if no
      * filtering should be done.
@@ -971,20 +1021,18 @@ public class AppsFilter {
             }
             synchronized (mCacheLock) {
                 if (mShouldFilterCache != null) { // use cache
-                    SparseBooleanArray shouldFilterTargets = mShouldFilterCache.get(callingUid);
                     final int targetUid = UserHandle.getUid(userId, targetPkgSetting.appId);
-                    if (shouldFilterTargets == null) {
+                    if (!mShouldFilterCache.contains(callingUid)) {
                         Slog.wtf(TAG, "Encountered calling uid with no cached rules: "
                                 + callingUid);
                         return true;
                     }
-                    int indexOfTargetUid = shouldFilterTargets.indexOfKey(targetUid);
-                    if (indexOfTargetUid < 0) {
+                    if (!mShouldFilterCache.contains(targetUid)) {
                         Slog.w(TAG, "Encountered calling -> target with no cached rules: "
                                 + callingUid + " -> " + targetUid);
                         return true;
                     }
-                    if (!shouldFilterTargets.valueAt(indexOfTargetUid)) {
+                    if (!mShouldFilterCache.get(callingUid, targetUid, true /*valueIfMissing*/)) {
                         return false;
                     }
                 } else {
@@ -49,8 +49,10 @@ import android.util.ArraySet;
 import android.util.DebugUtils;
 import android.util.Log;
 import android.util.LogPrinter;
+import android.util.LruCache;
 import android.util.Pair;
 import android.util.Slog;
+import android.util.SparseArray;
 
 import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
@@ -69,6 +71,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
 
 /** Resolves all Android component types [activities, services, providers and receivers]. */
@@ -198,6 +201,36 @@ public class ComponentResolver {
      */
     private List<Pair<ParsedMainComponent, ParsedIntentInfo>> mProtectedFilters;
 
+    /** Maximum number of cached query results per user, across all component types. */
+    private static final int QUERY_CACHE_SIZE = 128;
+
+    private static final int QUERY_ACTIVITIES = 0;
+    private static final int QUERY_RECEIVERS = 1;
+    private static final int QUERY_SERVICES = 2;
+
+    /**
+     * Bumped by {@link #invalidateQueryCaches()} whenever package state that query results
+     * depend on, such as enabled, stopped or installed state, changes.
+     */
+    private static final AtomicLong sPackageStateGeneration = new AtomicLong();
+
+    /**
+     * Bumped whenever a component or intent filter is added, removed or changes priority.
+     */
+    @GuardedBy("mLock")
+    private long mComponentGeneration;
+
+    /** Per-user caches of implicit intent query results. */
+    @GuardedBy("mLock")
+    private final SparseArray<LruCache<QueryKey, CachedQuery>> mQueryCaches =
+            new SparseArray<>();
+
+    @GuardedBy("mLock")
+    private long mQueryCacheHits;
+
+    @GuardedBy("mLock")
+    private long mQueryCacheMisses;
+
     ComponentResolver(UserManagerService userManager,
             PackageManagerInternal packageManagerInternal,
             Object lock) {
@@ -262,7 +295,14 @@ public class ComponentResolver {
     List<ResolveInfo> queryActivities(Intent intent, String resolvedType, int flags,
             int userId) {
         synchronized (mLock) {
-            return mActivities.queryIntent(intent, resolvedType, flags, userId);
+            final QueryKey key =
+                    getQueryKeyLocked(QUERY_ACTIVITIES, intent, resolvedType, flags, userId);
+            List<ResolveInfo> result = getCachedQueryLocked(key, userId);
+            if (result == null) {
+                result = mActivities.queryIntent(intent, resolvedType, flags, userId);
+                putCachedQueryLocked(key, userId, result);
+            }
+            return result;
         }
     }
 
@@ -425,7 +465,14 @@ public class ComponentResolver {
     @Nullable
     List<ResolveInfo> queryReceivers(Intent intent, String resolvedType, int flags, int userId) {
         synchronized (mLock) {
-            return mReceivers.queryIntent(intent, resolvedType, flags, userId);
+            final QueryKey key =
+                    getQueryKeyLocked(QUERY_RECEIVERS, intent, resolvedType, flags, userId);
+            List<ResolveInfo> result = getCachedQueryLocked(key, userId);
+            if (result == null) {
+                result = mReceivers.queryIntent(intent, resolvedType, flags, userId);
+                putCachedQueryLocked(key, userId, result);
+            }
+            return result;
         }
     }
 
@@ -440,7 +487,14 @@ public class ComponentResolver {
     @Nullable
     List<ResolveInfo> queryServices(Intent intent, String resolvedType, int flags, int userId) {
         synchronized (mLock) {
-            return mServices.queryIntent(intent, resolvedType, flags, userId);
+            final QueryKey key =
+                    getQueryKeyLocked(QUERY_SERVICES, intent, resolvedType, flags, userId);
+            List<ResolveInfo> result = getCachedQueryLocked(key, userId);
+            if (result == null) {
+                result = mServices.queryIntent(intent, resolvedType, flags, userId);
+                putCachedQueryLocked(key, userId, result);
+            }
+            return result;
         }
     }
 
@@ -470,6 +524,7 @@ public class ComponentResolver {
     void addAllComponents(AndroidPackage pkg, boolean chatty) {
         final ArrayList<Pair<ParsedActivity, ParsedIntentInfo>> newIntents = new ArrayList<>();
         synchronized (mLock) {
+            mComponentGeneration++;
             addActivitiesLocked(pkg, newIntents, chatty);
             addReceiversLocked(pkg, chatty);
             addProvidersLocked(pkg, chatty);
@@ -490,11 +545,16 @@ public class ComponentResolver {
                     disabledPkg != null ? disabledPkg.getActivities() : null;
             adjustPriority(systemActivities, pair.first, pair.second, setupWizardPackage);
         }
+        synchronized (mLock) {
+            // Priorities may have been adjusted above.
+            mComponentGeneration++;
+        }
     }
 
     /** Removes all components defined in the given package from the internal structures. */
     void removeAllComponents(AndroidPackage pkg, boolean chatty) {
         synchronized (mLock) {
+            mComponentGeneration++;
             removeAllComponentsLocked(pkg, chatty);
         }
     }
@@ -550,6 +610,9 @@ public class ComponentResolver {
             }
             filter.setPriority(0);
         }
+        synchronized (mLock) {
+            mComponentGeneration++;
+        }
     }
 
     void dumpActivityResolvers(PrintWriter pw, DumpState dumpState, String packageName) {
@@ -2218,6 +2281,176 @@ public class ComponentResolver {
         hasChanges |= mReceivers.updateMimeGroup(packageName, group);
         hasChanges |= mServices.updateMimeGroup(packageName, group);
 
+        if (hasChanges) {
+            synchronized (mLock) {
+                mComponentGeneration++;
+            }
+        }
         return hasChanges;
     }
+
+    /**
+     * Invalidates the cached query results of all users. Must be called whenever package state
+     * that query results depend on changes, e.g. alongside
+     * {@link PackageManager#invalidatePackageInfoCache()}.
+     */
+    static void invalidateQueryCaches() {
+        sPackageStateGeneration.incrementAndGet();
+    }
+
+    /**
+     * Returns the cache key for an implicit query, or {@code null} if the query must not be
+     * cached.
+     */
+    @GuardedBy("mLock")
+    @Nullable
+    private QueryKey getQueryKeyLocked(int queryType, Intent intent, String resolvedType,
+            int flags, int userId) {
+        if ((intent.getFlags() & Intent.FLAG_DEBUG_LOG_RESOLUTION) != 0
+                || !sUserManager.exists(userId)) {
+            return null;
+        }
+        return new QueryKey(queryType, intent, resolvedType, flags);
+    }
+
+    /**
+     * Returns a copy of the cached result for {@code key}, or {@code null} if there is none or
+     * it was computed before the last component or package state change.
+     */
+    @GuardedBy("mLock")
+    @Nullable
+    private List<ResolveInfo> getCachedQueryLocked(@Nullable QueryKey key, int userId) {
+        if (key == null) {
+            return null;
+        }
+        final LruCache<QueryKey, CachedQuery> cache = mQueryCaches.get(userId);
+        final CachedQuery cached = cache != null ? cache.get(key) : null;
+        if (cached == null || cached.componentGeneration != mComponentGeneration
+                || cached.packageStateGeneration != sPackageStateGeneration.get()) {
+            mQueryCacheMisses++;
+            return null;
+        }
+        mQueryCacheHits++;
+        return copyQueryResult(cached.result);
+    }
+
+    @GuardedBy("mLock")
+    private void putCachedQueryLocked(@Nullable QueryKey key, int userId,
+            @Nullable List<ResolveInfo> result) {
+        if (key == null || result == null) {
+            return;
+        }
+        LruCache<QueryKey, CachedQuery> cache = mQueryCaches.get(userId);
+        if (cache == null) {
+            cache = new LruCache<>(QUERY_CACHE_SIZE);
+            mQueryCaches.put(userId, cache);
+        }
+        cache.put(key, new CachedQuery(copyQueryResult(result), mComponentGeneration,
+                sPackageStateGeneration.get()));
+    }
+
+    /**
+     * Copies a query result deep enough that callers are free to modify the list, its entries
+     * and their component and application infos without affecting the cache.
+     */
+    private static List<ResolveInfo> copyQueryResult(List<ResolveInfo> result) {
+        final int size = result.size();
+        final List<ResolveInfo> copy = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            final ResolveInfo info = new ResolveInfo(result.get(i));
+            if (info.activityInfo != null) {
+                info.activityInfo = new ActivityInfo(info.activityInfo);
+                info.activityInfo.applicationInfo =
+                        new ApplicationInfo(info.activityInfo.applicationInfo);
+            }
+            if (info.serviceInfo != null) {
+                info.serviceInfo = new ServiceInfo(info.serviceInfo);
+                info.serviceInfo.applicationInfo =
+                        new ApplicationInfo(info.serviceInfo.applicationInfo);
+            }
+            copy.add(info);
+        }
+        return copy;
+    }
+
+    void dumpQueryCacheStats(PrintWriter pw, DumpState dumpState) {
+        synchronized (mLock) {
+            if (dumpState.onTitlePrinted()) {
+                pw.println();
+            }
+            final long total = mQueryCacheHits + mQueryCacheMisses;
+            pw.println("Query result cache:");
+            pw.print("  hits="); pw.print(mQueryCacheHits);
+            pw.print(" misses="); pw.print(mQueryCacheMisses);
+            pw.print(" hitRate=");
+            pw.print(total == 0 ? 0 : (mQueryCacheHits * 100 / total)); pw.println("%");
+            for (int i = 0; i < mQueryCaches.size(); i++) {
+                final LruCache<QueryKey, CachedQuery> cache = mQueryCaches.valueAt(i);
+                pw.print("  User "); pw.print(mQueryCaches.keyAt(i));
+                pw.print(": size="); pw.print(cache.size());
+                pw.print(" evictions="); pw.println(cache.evictionCount());
+            }
+        }
+    }
+
+    /**
+     * Key of a cached query: the query type and flags plus every part of the intent that
+     * {@link IntentResolver} matches on.
+     */
+    private static final class QueryKey {
+        private final int mQueryType;
+        private final Intent mIntent;
+        private final boolean mExcludingStopped;
+        private final String mResolvedType;
+        private final int mFlags;
+        private final int mHashCode;
+
+        QueryKey(int queryType, Intent intent, String resolvedType, int flags) {
+            mQueryType = queryType;
+            mIntent = intent.cloneFilter();
+            mExcludingStopped = intent.isExcludingStopped();
+            mResolvedType = resolvedType;
+            mFlags = flags;
+            int hashCode = mIntent.filterHashCode();
+            hashCode = 31 * hashCode + mQueryType;
+            hashCode = 31 * hashCode + (mExcludingStopped ? 1 : 0);
+            hashCode = 31 * hashCode + Objects.hashCode(mResolvedType);
+            hashCode = 31 * hashCode + mFlags;
+            mHashCode = hashCode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof QueryKey)) {
+                return false;
+            }
+            final QueryKey other = (QueryKey) o;
+            return mQueryType == other.mQueryType
+                    && mExcludingStopped == other.mExcludingStopped
+                    && mFlags == other.mFlags
+                    && Objects.equals(mResolvedType, other.mResolvedType)
+                    && mIntent.filterEquals(other.mIntent);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+    }
+
+    private static final class CachedQuery {
+        final List<ResolveInfo> result;
+        final long componentGeneration;
+        final long packageStateGeneration;
+
+        CachedQuery(List<ResolveInfo> result, long componentGeneration,
+                long packageStateGeneration) {
+            this.result = result;
+            this.componentGeneration = componentGeneration;
+            this.packageStateGeneration = packageStateGeneration;
+        }
+    }
 }
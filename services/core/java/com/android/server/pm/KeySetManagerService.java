@@ -716,6 +716,15 @@ public class KeySetManagerService {
         serializer.endTag(null, "keysets");
     }
 
+    /** Forgets the key sets read so far, before the settings are read again from another file. */
+    void clearLPw() {
+        mKeySets.clear();
+        mPublicKeys.clear();
+        mKeySetMapping.clear();
+        lastIssuedKeySetId = 0;
+        lastIssuedKeyId = 0;
+    }
+
     void readKeySetsLPw(XmlPullParser parser, ArrayMap<Long, Integer> keySetRefCounts)
             throws XmlPullParserException, IOException {
         int type;
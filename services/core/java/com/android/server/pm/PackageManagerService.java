@@ -503,6 +503,16 @@ public class PackageManagerService extends IPackageManager.Stub
     private static final boolean ENABLE_FREE_CACHE_V2 =
             SystemProperties.getBoolean("fw.free_cache_v2", true);
 
+    /**
+     * Whether package and application info queries are answered from a
+     * {@link PackageStateSnapshot} instead of under {@link #mLock}.
+     */
+    private static final boolean USE_PACKAGE_STATE_SNAPSHOT =
+            SystemProperties.getBoolean("persist.pm.package_state_snapshot", true);
+
+    /** Largest page of packages {@link #getInstalledPackagesPage} returns. */
+    private static final int MAX_INSTALLED_PACKAGES_PAGE_SIZE = 500;
+
     private static final String PRECOMPILE_LAYOUTS = "pm.precompile_layouts";
 
     private static final int RADIO_UID = Process.PHONE_UID;
@@ -1181,6 +1191,11 @@ public class PackageManagerService extends IPackageManager.Stub
     volatile boolean mSafeMode;
     volatile boolean mHasSystemUidErrors;
     private volatile SparseBooleanArray mWebInstantAppsDisabled = new SparseBooleanArray();
+    /** The latest package state snapshot, which may be stale; see getPackageStateSnapshot(). */
+    private volatile PackageStateSnapshot mPackageStateSnapshot;
+
+    /** Costs of the queries listing every installed package, by caller. */
+    private final PackageQueryCostTracker mQueryCostTracker = new PackageQueryCostTracker();
 
     ApplicationInfo mAndroidApplication;
     final ActivityInfo mResolveActivity = new ActivityInfo();
@@ -2539,6 +2554,8 @@ public class PackageManagerService extends IPackageManager.Stub
         // coalesce settings writes, this strategy would have us invalidate the cache too late.
         // Invalidating on schedule addresses this problem.
         PackageManager.invalidatePackageInfoCache();
+        ComponentResolver.invalidateQueryCaches();
+        PackageStateSnapshot.invalidate();
         if (!mHandler.hasMessages(WRITE_SETTINGS)) {
             mHandler.sendEmptyMessageDelayed(WRITE_SETTINGS, WRITE_SETTINGS_DELAY);
         }
@@ -2546,6 +2563,8 @@ public class PackageManagerService extends IPackageManager.Stub
 
     void scheduleWritePackageListLocked(int userId) {
         PackageManager.invalidatePackageInfoCache();
+        ComponentResolver.invalidateQueryCaches();
+        PackageStateSnapshot.invalidate();
         if (!mHandler.hasMessages(WRITE_PACKAGE_LIST)) {
             Message msg = mHandler.obtainMessage(WRITE_PACKAGE_LIST);
             msg.arg1 = userId;
@@ -2560,6 +2579,8 @@ public class PackageManagerService extends IPackageManager.Stub
 
     void scheduleWritePackageRestrictionsLocked(int userId) {
         PackageManager.invalidatePackageInfoCache();
+        ComponentResolver.invalidateQueryCaches();
+        PackageStateSnapshot.invalidate();
         final int[] userIds = (userId == UserHandle.USER_ALL)
                 ? mUserManager.getUserIds() : new int[]{userId};
         for (int nextUserId : userIds) {
@@ -4423,7 +4444,14 @@ public class PackageManagerService extends IPackageManager.Stub
         if (shouldFilterApplicationLocked(ps, callingUid, userId)) {
             return null;
         }
+        return generatePackageInfoUnfiltered(ps, flags, userId);
+    }
 
+    /**
+     * Generates the package info of a package the caller is known to be allowed to see. Only
+     * reads {@code ps}, so it can either be live state under {@link #mLock} or a snapshot copy.
+     */
+    private PackageInfo generatePackageInfoUnfiltered(PackageSetting ps, int flags, int userId) {
         if ((flags & MATCH_UNINSTALLED_PACKAGES) != 0
                 && ps.isSystem()) {
             flags |= MATCH_ANY_USER;
@@ -4466,7 +4494,7 @@ public class PackageManagerService extends IPackageManager.Stub
             }
 
             packageInfo.packageName = packageInfo.applicationInfo.packageName =
-                    resolveExternalPackageNameLPr(p);
+                    resolveExternalPackageName(p);
 
             return packageInfo;
         } else if ((flags & MATCH_UNINSTALLED_PACKAGES) != 0 && state.isAvailable(flags)) {
@@ -4513,6 +4541,146 @@ public class PackageManagerService extends IPackageManager.Stub
         return pi;
     }
 
+    /**
+     * Returns a snapshot to answer a query from without {@link #mLock}, taking a new one if
+     * package state changed since the last, or {@code null} if the query must be answered under
+     * the lock. That is the case before the system is ready and for queries that depend on state
+     * the snapshot does not copy: factory, APEX and static library queries, isolated callers, and
+     * anything involving instant apps.
+     */
+    @Nullable
+    private PackageStateSnapshot getPackageStateSnapshot(int filterCallingUid, int userId,
+            int flags) {
+        if (!USE_PACKAGE_STATE_SNAPSHOT || !mSystemReady || !mAppsFilter.isCacheReady()) {
+            return null;
+        }
+        if ((flags & (MATCH_FACTORY_ONLY | MATCH_APEX
+                | PackageManager.MATCH_STATIC_SHARED_LIBRARIES)) != 0) {
+            return null;
+        }
+        final int callingUid = Binder.getCallingUid();
+        if (Process.isIsolated(callingUid) || Process.isIsolated(filterCallingUid)) {
+            return null;
+        }
+        PackageStateSnapshot snapshot = mPackageStateSnapshot;
+        if (snapshot == null || !snapshot.isCurrent()) {
+            synchronized (mLock) {
+                snapshot = mPackageStateSnapshot;
+                if (snapshot == null || !snapshot.isCurrent()) {
+                    snapshot = PackageStateSnapshot.takeLocked(snapshot, mPackages, mSettings,
+                            mSharedLibraries, mStaticLibsByDeclaringPackage,
+                            mUserManager.getUserIds());
+                    mPackageStateSnapshot = snapshot;
+                }
+            }
+        }
+        if (snapshot.hasInstantApps(userId) || snapshot.isInstantApp(callingUid)
+                || snapshot.isInstantApp(filterCallingUid)) {
+            return null;
+        }
+        return snapshot;
+    }
+
+    /**
+     * {@link #shouldFilterApplicationLocked(PackageSetting, int, int)} against a snapshot, which
+     * never involves instant apps.
+     */
+    private boolean shouldFilterApplication(PackageStateSnapshot snapshot,
+            @Nullable PackageSetting ps, int callingUid, int userId) {
+        if (ps == null) {
+            return false;
+        }
+        // if the target and caller are the same application, don't filter
+        final AndroidPackage pkg = snapshot.getPackage(ps.name);
+        if (pkg != null && UserHandle.getAppId(callingUid) == pkg.getUid()) {
+            return false;
+        }
+        final SettingBase callingSetting =
+                snapshot.getSettingForAppId(UserHandle.getAppId(callingUid));
+        return mAppsFilter.shouldFilterApplication(callingUid, callingSetting, ps, userId);
+    }
+
+    /**
+     * {@link #filterSharedLibPackageLPr} against a snapshot, for queries without
+     * {@link PackageManager#MATCH_STATIC_SHARED_LIBRARIES}.
+     */
+    private boolean filterSharedLibPackage(PackageStateSnapshot snapshot,
+            @Nullable PackageSetting ps, int uid, int userId) {
+        if (ps == null || ps.pkg == null || !ps.pkg.isStaticSharedLibrary()) {
+            return false;
+        }
+        final SharedLibraryInfo libraryInfo = snapshot.getStaticLibForPackage(ps.name);
+        if (libraryInfo == null) {
+            return false;
+        }
+
+        final int resolvedUid = UserHandle.getUid(userId, UserHandle.getAppId(uid));
+        final String[] uidPackageNames = getPackagesForUid(snapshot, resolvedUid);
+        if (uidPackageNames == null) {
+            return true;
+        }
+
+        for (String uidPackageName : uidPackageNames) {
+            if (ps.name.equals(uidPackageName)) {
+                return false;
+            }
+            final PackageSetting uidPs = snapshot.getPackageSetting(uidPackageName);
+            if (uidPs != null) {
+                final int index = ArrayUtils.indexOf(uidPs.usesStaticLibraries,
+                        libraryInfo.getName());
+                if (index < 0) {
+                    continue;
+                }
+                if (uidPs.pkg.getUsesStaticLibrariesVersions()[index]
+                        == libraryInfo.getLongVersion()) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /** {@link #getPackagesForUid} against a snapshot. */
+    @Nullable
+    private String[] getPackagesForUid(PackageStateSnapshot snapshot, int uid) {
+        final int userId = UserHandle.getUserId(uid);
+        final int appId = UserHandle.getAppId(uid);
+        final SettingBase setting = snapshot.getSettingForAppId(appId);
+        if (setting instanceof SharedUserSetting) {
+            final ArrayList<PackageSetting> packages = snapshot.getSharedUserPackages(appId);
+            final int packageCount = packages != null ? packages.size() : 0;
+            final String[] res = new String[packageCount];
+            int i = 0;
+            for (int j = 0; j < packageCount; j++) {
+                final PackageSetting ps = packages.get(j);
+                if (ps.getInstalled(userId)) {
+                    res[i++] = ps.name;
+                }
+            }
+            return ArrayUtils.trimToSize(res, i);
+        } else if (setting instanceof PackageSetting) {
+            final PackageSetting ps = (PackageSetting) setting;
+            if (ps.getInstalled(userId) && !shouldFilterApplication(
+                    snapshot, ps, Binder.getCallingUid(), userId)) {
+                return new String[]{ps.name};
+            }
+        }
+        return null;
+    }
+
+    /** {@link #generatePackageInfo} against a snapshot. */
+    private PackageInfo generatePackageInfo(PackageStateSnapshot snapshot,
+            @Nullable PackageSetting ps, int flags, int userId) {
+        if (!mUserManager.exists(userId)) return null;
+        if (ps == null) {
+            return null;
+        }
+        if (shouldFilterApplication(snapshot, ps, Binder.getCallingUid(), userId)) {
+            return null;
+        }
+        return generatePackageInfoUnfiltered(ps, flags, userId);
+    }
+
     @Override
     public void checkPackageStartable(String packageName, int userId) {
         final int callingUid = Binder.getCallingUid();
@@ -4600,6 +4768,23 @@ public class PackageManagerService extends IPackageManager.Stub
         mPermissionManager.enforceCrossUserPermission(Binder.getCallingUid(), userId,
                 false /* requireFullPermission */, false /* checkShell */, "get package info");
 
+        final PackageStateSnapshot snapshot =
+                getPackageStateSnapshot(filterCallingUid, userId, flags);
+        if (snapshot != null && !snapshot.needsNameResolution(packageName)) {
+            if (snapshot.getPackage(packageName) == null
+                    && (flags & MATCH_KNOWN_PACKAGES) == 0) {
+                return null;
+            }
+            final PackageSetting ps = snapshot.getPackageSetting(packageName);
+            if (filterSharedLibPackage(snapshot, ps, filterCallingUid, userId)) {
+                return null;
+            }
+            if (shouldFilterApplication(snapshot, ps, filterCallingUid, userId)) {
+                return null;
+            }
+            return generatePackageInfo(snapshot, ps, flags, userId);
+        }
+
         // reader
         synchronized (mLock) {
             // Normalize package name to handle renamed packages and static libs
@@ -4992,7 +5177,7 @@ public class PackageManagerService extends IPackageManager.Stub
             ApplicationInfo ai = PackageInfoUtils.generateApplicationInfo(ps.pkg, flags,
                     ps.readUserState(userId), userId, ps);
             if (ai != null) {
-                ai.packageName = resolveExternalPackageNameLPr(ps.pkg);
+                ai.packageName = resolveExternalPackageName(ps.pkg);
             }
             return ai;
         }
@@ -5021,6 +5206,33 @@ public class PackageManagerService extends IPackageManager.Stub
                     "get application info");
         }
 
+        final PackageStateSnapshot snapshot =
+                getPackageStateSnapshot(filterCallingUid, userId, flags);
+        if (snapshot != null && !snapshot.needsNameResolution(packageName)) {
+            final AndroidPackage p = snapshot.getPackage(packageName);
+            if (p != null) {
+                final PackageSetting ps = snapshot.getPackageSetting(packageName);
+                if (ps == null) return null;
+                if (filterSharedLibPackage(snapshot, ps, filterCallingUid, userId)) {
+                    return null;
+                }
+                if (shouldFilterApplication(snapshot, ps, filterCallingUid, userId)) {
+                    return null;
+                }
+                final ApplicationInfo ai = PackageInfoUtils.generateApplicationInfo(
+                        p, flags, ps.readUserState(userId), userId, ps);
+                if (ai != null) {
+                    ai.packageName = resolveExternalPackageName(p);
+                }
+                return ai;
+            }
+            // The platform and packages only known to settings are looked up under the lock
+            if ((flags & MATCH_KNOWN_PACKAGES) == 0 && !"android".equals(packageName)
+                    && !"system".equals(packageName)) {
+                return null;
+            }
+        }
+
         // writer
         synchronized (mLock) {
             // Normalize package name to handle renamed packages and static libs
@@ -5044,7 +5256,7 @@ public class PackageManagerService extends IPackageManager.Stub
                 ApplicationInfo ai = PackageInfoUtils.generateApplicationInfo(
                         p, flags, ps.readUserState(userId), userId, ps);
                 if (ai != null) {
-                    ai.packageName = resolveExternalPackageNameLPr(p);
+                    ai.packageName = resolveExternalPackageName(p);
                 }
                 return ai;
             }
@@ -8624,8 +8836,18 @@ public class PackageManagerService extends IPackageManager.Stub
 
     @Override
     public ParceledListSlice<PackageInfo> getInstalledPackages(int flags, int userId) {
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
+        final ParceledListSlice<PackageInfo> list = getInstalledPackagesInternal(flags, userId);
+        mQueryCostTracker.record(Binder.getCallingUid(),
+                PackageQueryCostTracker.GET_INSTALLED_PACKAGES, list.getList().size(), startNanos);
+        return list;
+    }
+
+    private ParceledListSlice<PackageInfo> getInstalledPackagesInternal(int flags, int userId) {
         final int callingUid = Binder.getCallingUid();
-        if (getInstantAppPackageName(callingUid) != null) {
+        // A snapshot is never handed out to instant apps
+        final PackageStateSnapshot snapshot = getPackageStateSnapshot(callingUid, userId, flags);
+        if (snapshot == null && getInstantAppPackageName(callingUid) != null) {
             return ParceledListSlice.emptyList();
         }
         if (!mUserManager.exists(userId)) return ParceledListSlice.emptyList();
@@ -8638,6 +8860,24 @@ public class PackageManagerService extends IPackageManager.Stub
                 false /* requireFullPermission */, false /* checkShell */,
                 "get installed packages");
 
+        if (snapshot != null) {
+            final ArrayList<PackageInfo> list;
+            if (listUninstalled) {
+                list = new ArrayList<>(snapshot.getPackageSettings().size());
+                for (PackageSetting ps : snapshot.getPackageSettings()) {
+                    addInstalledPackage(list, snapshot, ps, flags, callingUid, userId);
+                }
+            } else {
+                list = new ArrayList<>(snapshot.getPackages().size());
+                for (AndroidPackage p : snapshot.getPackages()) {
+                    addInstalledPackage(list, snapshot,
+                            snapshot.getPackageSetting(p.getPackageName()), flags, callingUid,
+                            userId);
+                }
+            }
+            return new ParceledListSlice<>(list);
+        }
+
         // writer
         synchronized (mLock) {
             ArrayList<PackageInfo> list;
@@ -8685,6 +8925,168 @@ public class PackageManagerService extends IPackageManager.Stub
         }
     }
 
+    @Override
+    public ParceledListSlice<PackageInfo> getInstalledPackagesPage(int flags, int fields,
+            String afterPackageName, int maxCount, int userId) {
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
+        if (maxCount <= 0 || maxCount > MAX_INSTALLED_PACKAGES_PAGE_SIZE) {
+            throw new IllegalArgumentException("maxCount must be between 1 and "
+                    + MAX_INSTALLED_PACKAGES_PAGE_SIZE);
+        }
+        if ((flags & (MATCH_APEX | PackageManager.MATCH_STATIC_SHARED_LIBRARIES)) != 0) {
+            throw new IllegalArgumentException(
+                    "APEX and static shared library packages can't be listed in pages");
+        }
+        final int callingUid = Binder.getCallingUid();
+        // A snapshot is never handed out to instant apps
+        final PackageStateSnapshot snapshot = getPackageStateSnapshot(callingUid, userId, flags);
+        if (snapshot == null && getInstantAppPackageName(callingUid) != null) {
+            return ParceledListSlice.emptyList();
+        }
+        if (!mUserManager.exists(userId)) return ParceledListSlice.emptyList();
+        flags = updateFlagsForPackage(flags, userId);
+
+        mPermissionManager.enforceCrossUserPermission(callingUid, userId,
+                false /* requireFullPermission */, false /* checkShell */,
+                "get installed packages");
+
+        final ArrayList<PackageInfo> list;
+        if (snapshot != null) {
+            // Sorted once per snapshot, so each page is a binary search and a walk
+            final PackageStateSnapshot.SortedPackages sorted =
+                    snapshot.getSortedPackages((flags & MATCH_KNOWN_PACKAGES) != 0);
+            list = getInstalledPackagesPage(snapshot, sorted, flags, fields, afterPackageName,
+                    maxCount, callingUid, userId);
+        } else {
+            synchronized (mLock) {
+                list = getInstalledPackagesPage(null, getSortedPackagesLPr(flags), flags, fields,
+                        afterPackageName, maxCount, callingUid, userId);
+            }
+        }
+        mQueryCostTracker.record(callingUid, PackageQueryCostTracker.GET_INSTALLED_PACKAGES_PAGE,
+                list.size(), startNanos);
+        return new ParceledListSlice<>(list);
+    }
+
+    /**
+     * Sorts the live package settings {@link #getInstalledPackagesPage} pages through, for when
+     * there is no snapshot to keep them sorted in.
+     */
+    @GuardedBy("mLock")
+    private PackageStateSnapshot.SortedPackages getSortedPackagesLPr(int flags) {
+        if ((flags & MATCH_KNOWN_PACKAGES) != 0) {
+            return new PackageStateSnapshot.SortedPackages(mSettings.mPackages.values());
+        }
+        final ArrayList<PackageSetting> candidates = new ArrayList<>(mPackages.size());
+        for (AndroidPackage p : mPackages.values()) {
+            final PackageSetting ps = getPackageSetting(p.getPackageName());
+            if (ps != null) {
+                candidates.add(ps);
+            }
+        }
+        return new PackageStateSnapshot.SortedPackages(candidates);
+    }
+
+    /**
+     * Lists a page of {@link #getInstalledPackagesPage} from {@code sorted}, filtering against
+     * {@code snapshot}, or against live state if it is {@code null}, in which case {@link #mLock}
+     * must be held.
+     */
+    private ArrayList<PackageInfo> getInstalledPackagesPage(
+            @Nullable PackageStateSnapshot snapshot, PackageStateSnapshot.SortedPackages sorted,
+            int flags, int fields, @Nullable String afterPackageName, int maxCount,
+            int callingUid, int userId) {
+        final ArrayList<PackageInfo> list = new ArrayList<>(maxCount);
+        for (int i = sorted.indexAfter(afterPackageName);
+                i < sorted.size() && list.size() < maxCount; i++) {
+            final PackageSetting ps = sorted.getSetting(i);
+            if (snapshot != null) {
+                if (filterSharedLibPackage(snapshot, ps, callingUid, userId)
+                        || shouldFilterApplication(snapshot, ps, callingUid, userId)) {
+                    continue;
+                }
+            } else if (filterSharedLibPackageLPr(ps, callingUid, userId, flags)
+                    || shouldFilterApplicationLocked(ps, callingUid, userId)) {
+                continue;
+            }
+            final PackageInfo pi = generateProjectedPackageInfo(ps, flags, fields, userId);
+            if (pi != null) {
+                list.add(pi);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Generates the package info of a package the caller is known to be allowed to see, with
+     * only the given {@code PackageManager.PACKAGE_INFO_FIELD_} fields and the package name
+     * filled in. Like {@link #generatePackageInfoUnfiltered}, only reads {@code ps}.
+     */
+    @Nullable
+    private PackageInfo generateProjectedPackageInfo(PackageSetting ps, int flags, int fields,
+            int userId) {
+        if ((fields & PackageManager.PACKAGE_INFO_FIELD_ALL) != 0) {
+            return generatePackageInfoUnfiltered(ps, flags, userId);
+        }
+        if ((flags & MATCH_UNINSTALLED_PACKAGES) != 0 && ps.isSystem()) {
+            flags |= MATCH_ANY_USER;
+        }
+
+        final PackageUserState state = ps.readUserState(userId);
+        final AndroidPackage p = ps.pkg;
+        final PackageInfo pi = new PackageInfo();
+        if (p != null) {
+            if (!PackageInfoUtils.isMatch(p, ps, state, flags)) {
+                return null;
+            }
+            pi.packageName = resolveExternalPackageName(p);
+        } else if ((flags & MATCH_UNINSTALLED_PACKAGES) != 0 && state.isAvailable(flags)) {
+            pi.packageName = ps.name;
+        } else {
+            return null;
+        }
+
+        if ((fields & PackageManager.PACKAGE_INFO_FIELD_VERSION) != 0) {
+            if (p != null) {
+                pi.versionCode = p.getVersionCode();
+                pi.versionCodeMajor = p.getVersionCodeMajor();
+                pi.versionName = p.getVersionName();
+            } else {
+                pi.setLongVersionCode(ps.versionCode);
+            }
+        }
+        if ((fields & PackageManager.PACKAGE_INFO_FIELD_INSTALL_TIMES) != 0) {
+            pi.firstInstallTime = ps.firstInstallTime;
+            pi.lastUpdateTime = ps.lastUpdateTime;
+        }
+        if ((fields & PackageManager.PACKAGE_INFO_FIELD_APPLICATION_INFO) != 0) {
+            if (p != null) {
+                pi.applicationInfo = PackageInfoUtils.generateApplicationInfo(p, flags, state,
+                        userId, ps);
+                pi.applicationInfo.packageName = pi.packageName;
+            } else {
+                // Only the minimal info known for uninstalled packages; cheap to generate
+                pi.applicationInfo = generatePackageInfoUnfiltered(ps, flags, userId)
+                        .applicationInfo;
+            }
+        }
+        return pi;
+    }
+
+    private void addInstalledPackage(ArrayList<PackageInfo> list, PackageStateSnapshot snapshot,
+            @Nullable PackageSetting ps, int flags, int callingUid, int userId) {
+        if (filterSharedLibPackage(snapshot, ps, callingUid, userId)) {
+            return;
+        }
+        if (shouldFilterApplication(snapshot, ps, callingUid, userId)) {
+            return;
+        }
+        final PackageInfo pi = generatePackageInfo(snapshot, ps, flags, userId);
+        if (pi != null) {
+            list.add(pi);
+        }
+    }
+
     private void addPackageHoldingPermissions(ArrayList<PackageInfo> list, PackageSetting ps,
             String[] permissions, boolean[] tmp, int flags, int userId) {
         int numMatch = 0;
@@ -8758,9 +9160,13 @@ public class PackageManagerService extends IPackageManager.Stub
 
     @Override
     public ParceledListSlice<ApplicationInfo> getInstalledApplications(int flags, int userId) {
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
         final int callingUid = Binder.getCallingUid();
-        return new ParceledListSlice<>(
-                getInstalledApplicationsListInternal(flags, userId, callingUid));
+        final List<ApplicationInfo> list =
+                getInstalledApplicationsListInternal(flags, userId, callingUid);
+        mQueryCostTracker.record(callingUid, PackageQueryCostTracker.GET_INSTALLED_APPLICATIONS,
+                list.size(), startNanos);
+        return new ParceledListSlice<>(list);
     }
 
     private List<ApplicationInfo> getInstalledApplicationsListInternal(int flags, int userId,
@@ -8800,7 +9206,7 @@ public class PackageManagerService extends IPackageManager.Stub
                         ai = PackageInfoUtils.generateApplicationInfo(ps.pkg, effectiveFlags,
                                 ps.readUserState(userId), userId, ps);
                         if (ai != null) {
-                            ai.packageName = resolveExternalPackageNameLPr(ps.pkg);
+                            ai.packageName = resolveExternalPackageName(ps.pkg);
                         }
                     } else {
                         // Shared lib filtering done in generateApplicationInfoFromSettingsLPw
@@ -8826,7 +9232,7 @@ public class PackageManagerService extends IPackageManager.Stub
                         ApplicationInfo ai = PackageInfoUtils.generateApplicationInfo(p, flags,
                                 ps.readUserState(userId), userId, ps);
                         if (ai != null) {
-                            ai.packageName = resolveExternalPackageNameLPr(p);
+                            ai.packageName = resolveExternalPackageName(p);
                             list.add(ai);
                         }
                     }
@@ -9176,8 +9582,8 @@ public class PackageManagerService extends IPackageManager.Stub
         ParallelPackageParser parallelPackageParser =
                 new ParallelPackageParser(packageParser, executorService);
 
-        // Submit files for parsing in parallel
-        int fileCount = 0;
+        // Submit files for parsing in parallel, biggest packages first
+        final List<File> packageFiles = new ArrayList<>(files.length);
         for (File file : files) {
             final boolean isPackage = (isApkFile(file) || file.isDirectory())
                     && !PackageInstallerService.isStageName(file.getName());
@@ -9185,9 +9591,10 @@ public class PackageManagerService extends IPackageManager.Stub
                 // Ignore entries which are not packages
                 continue;
             }
-            parallelPackageParser.submit(file, parseFlags);
-            fileCount++;
+            packageFiles.add(file);
         }
+        parallelPackageParser.submitAll(packageFiles, parseFlags);
+        int fileCount = packageFiles.size();
 
         // Process results one by one
         for (; fileCount > 0; fileCount--) {
@@ -10364,6 +10771,8 @@ public class PackageManagerService extends IPackageManager.Stub
                 mDirtyUsers.clear();
             }
         }
+        // Settings snapshots are written on the I/O thread; make sure the last one lands.
+        mSettings.flushPendingWrites();
     }
 
     @Override
@@ -16332,6 +16741,7 @@ public class PackageManagerService extends IPackageManager.Stub
             res.setReturnCode(PackageManager.INSTALL_SUCCEEDED);
             //to update install status
             Trace.traceBegin(TRACE_TAG_PACKAGE_MANAGER, "writeSettings");
+            // Only the snapshot is taken here; installPackagesLI waits for it outside the lock.
             mSettings.writeLPr();
             Trace.traceEnd(TRACE_TAG_PACKAGE_MANAGER);
         }
@@ -17040,6 +17450,11 @@ public class PackageManagerService extends IPackageManager.Stub
                     Trace.traceEnd(TRACE_TAG_PACKAGE_MANAGER);
                 }
             }
+            // packages.list must list the new packages before their installers are told about
+            // them.
+            Trace.traceBegin(TRACE_TAG_PACKAGE_MANAGER, "awaitSettingsWrite");
+            mSettings.awaitScheduledWrites();
+            Trace.traceEnd(TRACE_TAG_PACKAGE_MANAGER);
             executePostCommitSteps(commitRequest);
         } finally {
             if (success) {
@@ -18420,7 +18835,8 @@ public class PackageManagerService extends IPackageManager.Stub
         });
     }
 
-    private String resolveExternalPackageNameLPr(AndroidPackage pkg) {
+    /** Returns the package name apps know {@code pkg} by, which only depends on {@code pkg}. */
+    static String resolveExternalPackageName(AndroidPackage pkg) {
         if (pkg.getStaticSharedLibName() != null) {
             return pkg.getManifestPackageName();
         }
@@ -21844,6 +22260,7 @@ public class PackageManagerService extends IPackageManager.Stub
                 pw.println("    prov[iders]: dump content providers");
                 pw.println("    p[ackages]: dump installed packages");
                 pw.println("    q[ueries]: dump app queryability calculations");
+                pw.println("    query-costs: dump callers of installed package queries by cost");
                 pw.println("    s[hared-users]: dump shared user IDs");
                 pw.println("    m[essages]: print collected runtime messages");
                 pw.println("    v[erifiers]: print package verifier info");
@@ -21968,6 +22385,8 @@ public class PackageManagerService extends IPackageManager.Stub
                 dumpState.setDump(DumpState.DUMP_PACKAGES);
             } else if ("q".equals(cmd) || "queries".equals(cmd)) {
                 dumpState.setDump(DumpState.DUMP_QUERIES);
+            } else if ("query-costs".equals(cmd)) {
+                dumpState.setDump(DumpState.DUMP_QUERY_COSTS);
             } else if ("s".equals(cmd) || "shared-users".equals(cmd)) {
                 dumpState.setDump(DumpState.DUMP_SHARED_USERS);
                 if (opti < args.length && "noperm".equals(args[opti])) {
@@ -22151,6 +22570,10 @@ public class PackageManagerService extends IPackageManager.Stub
             if (!checkin && dumpState.isDumping(DumpState.DUMP_CONTENT_RESOLVERS)) {
                 mComponentResolver.dumpProviderResolvers(pw, dumpState, packageName);
             }
+            if (!checkin && packageName == null
+                    && dumpState.isDumping(DumpState.DUMP_ACTIVITY_RESOLVERS)) {
+                mComponentResolver.dumpQueryCacheStats(pw, dumpState);
+            }
 
             if (!checkin && dumpState.isDumping(DumpState.DUMP_PREFERRED)) {
                 for (int i=0; i<mSettings.mPreferredActivities.size(); i++) {
@@ -22274,6 +22697,20 @@ public class PackageManagerService extends IPackageManager.Stub
                 mSettings.dumpSharedUsersLPr(pw, packageName, permissionNames, dumpState, checkin);
             }
 
+            if (!checkin && packageName == null
+                    && dumpState.isDumping(DumpState.DUMP_QUERY_COSTS)) {
+                if (dumpState.onTitlePrinted()) pw.println();
+                mQueryCostTracker.dump(new IndentingPrintWriter(pw, "  "), uid -> {
+                    final Object setting = mSettings.getSettingLPr(UserHandle.getAppId(uid));
+                    if (setting instanceof PackageSetting) {
+                        return ((PackageSetting) setting).name;
+                    } else if (setting instanceof SharedUserSetting) {
+                        return ((SharedUserSetting) setting).name;
+                    }
+                    return null;
+                });
+            }
+
             if (dumpState.isDumping(DumpState.DUMP_CHANGES)) {
                 if (dumpState.onTitlePrinted()) pw.println();
                 pw.println("Package Changes:");
@@ -22354,6 +22791,9 @@ public class PackageManagerService extends IPackageManager.Stub
                 if (dumpState.onTitlePrinted()) pw.println();
                 mSettings.dumpReadMessagesLPr(pw, dumpState);
 
+                pw.println();
+                mSettings.dumpWriteStats(pw);
+
                 pw.println();
                 pw.println("Package warning messages:");
                 dumpCriticalInfo(pw, null);
@@ -23645,14 +24085,18 @@ public class PackageManagerService extends IPackageManager.Stub
 
     /** Called by UserManagerService */
     void cleanUpUser(UserManagerService userManager, @UserIdInt int userId) {
+        final long writeId;
         synchronized (mLock) {
             mDirtyUsers.remove(userId);
             mUserNeedsBadging.delete(userId);
-            mSettings.removeUserLPw(userId);
+            writeId = mSettings.removeUserLPw(userId);
             mPendingBroadcasts.remove(userId);
             mInstantAppRegistry.onUserRemovedLPw(userId);
             removeUnusedPackagesLPw(userManager, userId);
         }
+        // The user must be gone from packages.list and the kernel mappings before its storage is
+        // destroyed
+        mSettings.awaitWrite(writeId);
     }
 
     /**
@@ -24910,6 +25354,8 @@ public class PackageManagerService extends IPackageManager.Stub
             }
 
             PackageManager.invalidatePackageInfoCache();
+            ComponentResolver.invalidateQueryCaches();
+            PackageStateSnapshot.invalidate();
             return true;
         }
 
@@ -25185,22 +25631,29 @@ public class PackageManagerService extends IPackageManager.Stub
 
         @Override
         public void writeSettings(boolean async) {
+            final long writeId;
             synchronized (mLock) {
                 if (async) {
                     scheduleWriteSettingsLocked();
-                } else {
-                    mSettings.writeLPr();
+                    return;
                 }
+                writeId = mSettings.writeLPr();
             }
+            mSettings.awaitWrite(writeId);
         }
 
         @Override
         public void writePermissionSettings(int[] userIds, boolean async) {
+            long writeId = 0;
             synchronized (mLock) {
                 for (int userId : userIds) {
-                    mSettings.writeRuntimePermissionsForUserLPr(userId, !async);
+                    writeId = Math.max(writeId,
+                            mSettings.writeRuntimePermissionsForUserLPr(userId, !async));
                 }
             }
+            if (!async) {
+                mSettings.awaitWrite(writeId);
+            }
         }
 
         @Override
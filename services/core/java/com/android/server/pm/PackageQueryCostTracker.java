@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.util.ArrayMap;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.Arrays;
+import java.util.function.IntFunction;
+
+/**
+ * Accounts the cost of the queries that list every installed package to the uid making them, so
+ * that {@code dumpsys package query-costs} can show who the heavy callers are.
+ */
+class PackageQueryCostTracker {
+    static final String GET_INSTALLED_PACKAGES = "getInstalledPackages";
+    static final String GET_INSTALLED_PACKAGES_PAGE = "getInstalledPackagesPage";
+    static final String GET_INSTALLED_APPLICATIONS = "getInstalledApplications";
+
+    /** Number of callers printed by {@link #dump}. */
+    private static final int MAX_DUMPED_CALLERS = 20;
+
+    private final Object mLock = new Object();
+
+    /** The costs of each query, by calling uid. */
+    @GuardedBy("mLock")
+    private final SparseArray<ArrayMap<String, Cost>> mCosts = new SparseArray<>();
+
+    private static final class Cost {
+        long calls;
+        long packages;
+        long totalNanos;
+        long maxNanos;
+    }
+
+    /**
+     * Records a call of {@code query} by {@code callingUid} that returned {@code packageCount}
+     * packages and started at {@code startNanos}, a {@link SystemClock#elapsedRealtimeNanos()}.
+     */
+    void record(int callingUid, String query, int packageCount, long startNanos) {
+        final long durationNanos = SystemClock.elapsedRealtimeNanos() - startNanos;
+        synchronized (mLock) {
+            ArrayMap<String, Cost> costs = mCosts.get(callingUid);
+            if (costs == null) {
+                costs = new ArrayMap<>();
+                mCosts.put(callingUid, costs);
+            }
+            Cost cost = costs.get(query);
+            if (cost == null) {
+                cost = new Cost();
+                costs.put(query, cost);
+            }
+            cost.calls++;
+            cost.packages += packageCount;
+            cost.totalNanos += durationNanos;
+            cost.maxNanos = Math.max(cost.maxNanos, durationNanos);
+        }
+    }
+
+    /**
+     * Prints the callers with the highest total query time first.
+     *
+     * @param nameForUid gives a readable name for a calling uid, or {@code null}
+     */
+    void dump(IndentingPrintWriter pw, IntFunction<String> nameForUid) {
+        synchronized (mLock) {
+            pw.println("Installed package query costs (by calling uid):");
+            pw.increaseIndent();
+            final int callerCount = mCosts.size();
+            final long[] totalNanos = new long[callerCount];
+            final Integer[] order = new Integer[callerCount];
+            for (int i = 0; i < callerCount; i++) {
+                final ArrayMap<String, Cost> costs = mCosts.valueAt(i);
+                for (int j = 0; j < costs.size(); j++) {
+                    totalNanos[i] += costs.valueAt(j).totalNanos;
+                }
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> Long.compare(totalNanos[b], totalNanos[a]));
+
+            final int dumpedCount = Math.min(callerCount, MAX_DUMPED_CALLERS);
+            for (int i = 0; i < dumpedCount; i++) {
+                final int index = order[i];
+                final int uid = mCosts.keyAt(index);
+                final String name = nameForUid.apply(uid);
+                pw.print(UserHandle.formatUid(uid));
+                if (name != null) {
+                    pw.print(" ("); pw.print(name); pw.print(")");
+                }
+                pw.print(": total="); pw.print(totalNanos[index] / 1000000); pw.println("ms");
+                pw.increaseIndent();
+                final ArrayMap<String, Cost> costs = mCosts.valueAt(index);
+                for (int j = 0; j < costs.size(); j++) {
+                    final Cost cost = costs.valueAt(j);
+                    pw.print(costs.keyAt(j));
+                    pw.print(": calls="); pw.print(cost.calls);
+                    pw.print(" packages="); pw.print(cost.packages);
+                    pw.print(" total="); pw.print(cost.totalNanos / 1000000); pw.print("ms");
+                    pw.print(" avg="); pw.print(cost.totalNanos / cost.calls / 1000);
+                    pw.print("us");
+                    pw.print(" max="); pw.print(cost.maxNanos / 1000); pw.println("us");
+                }
+                pw.decreaseIndent();
+            }
+            if (callerCount > dumpedCount) {
+                pw.print("... "); pw.print(callerCount - dumpedCount); pw.println(" more callers");
+            }
+            pw.decreaseIndent();
+        }
+    }
+}
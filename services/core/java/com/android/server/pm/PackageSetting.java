@@ -104,6 +104,17 @@ public class PackageSetting extends PackageSettingBase {
         doCopy(orig);
     }
 
+    /**
+     * Returns a copy that does not change along with this setting, for readers that don't hold
+     * the package lock. The package itself is shared; it does not change once scanned.
+     */
+    PackageSetting snapshot() {
+        final PackageSetting copy = new PackageSetting(this);
+        copy.copyUserStates();
+        copy.pkgState.updateFrom(pkgState);
+        return copy;
+    }
+
     public int getSharedUserId() {
         if (sharedUser != null) {
             return sharedUser.userId;
@@ -349,6 +349,16 @@ public abstract class PackageSettingBase extends SettingBase {
         return readUserState(userId).getSharedLibraryOverlayPaths();
     }
 
+    /**
+     * Replaces the per-user states, which {@link #copyFrom} shares with the original, with
+     * private copies.
+     */
+    void copyUserStates() {
+        for (int i = mUserState.size() - 1; i >= 0; i--) {
+            mUserState.setValueAt(i, new PackageUserState(mUserState.valueAt(i)));
+        }
+    }
+
     /** Only use for testing. Do NOT use in production code. */
     @VisibleForTesting
     SparseArray<PackageUserState> getUserState() {
@@ -0,0 +1,681 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import android.annotation.Nullable;
+import android.os.FileUtils;
+import android.util.ArrayMap;
+import android.util.AtomicFile;
+import android.util.Slog;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.BinaryXmlPullParser;
+import com.android.internal.util.BinaryXmlSerializer;
+
+import libcore.io.IoUtils;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Persists the package manager settings document (what used to be packages.xml) in binary XML,
+ * as one record per top level element: a package, a shared user, the permission list and so on.
+ * Records are kept in a base file plus an append-only journal. A write only appends the records
+ * whose bytes differ from what is already on disk, so the amount of I/O follows the size of the
+ * change rather than the number of installed packages. Once the journal grows past a fraction of
+ * the base, the next write compacts both into a new base.
+ *
+ * <p>Both files start with a magic number, the format version and a generation. A journal only
+ * applies to the base with the same generation, which makes compaction safe against a crash
+ * between writing the new base and resetting the journal. Every journal entry is checksummed and
+ * a torn tail is ignored on read.</p>
+ *
+ * <p>Record order is part of the state, as some elements refer back to earlier ones (for example
+ * signatures are written in full once and then by index), so an entry carries the full key order
+ * whenever it changed.</p>
+ */
+class PackageSettingsStore {
+    private static final String TAG = "PackageSettingsStore";
+
+    private static final int BASE_MAGIC = 0x504b4753; // PKGS
+    private static final int JOURNAL_MAGIC = 0x504b474a; // PKGJ
+    @VisibleForTesting
+    static final int FORMAT_VERSION = 1;
+
+    /** Key of the record holding the start tag of the document element. */
+    private static final String ROOT_KEY = "";
+
+    /** Compact once the journal is larger than this fraction of the base... */
+    private static final int COMPACTION_BASE_DIVISOR = 2;
+    /** ...but never over a journal smaller than this. */
+    private static final long MIN_COMPACTION_BYTES = 64 * 1024;
+    /** Compact after this many journal entries regardless of their size. */
+    private static final int MAX_JOURNAL_ENTRIES = 256;
+
+    private final AtomicFile mBaseFile;
+    private final File mJournalFile;
+
+    /** Records as of the last successful read or commit, by key. */
+    private final ArrayMap<String, byte[]> mRecords = new ArrayMap<>();
+    /** Order of the records in {@link #mRecords}, not including the root. */
+    private final ArrayList<String> mOrder = new ArrayList<>();
+    /** True when the in-memory records mirror what is on disk. */
+    private boolean mInSync;
+    private long mGeneration;
+    private long mBaseBytes;
+    private long mJournalBytes;
+    private int mJournalEntries;
+
+    private long mBytesWritten;
+
+    PackageSettingsStore(File baseFile, File journalFile) {
+        mBaseFile = new AtomicFile(baseFile);
+        mJournalFile = journalFile;
+    }
+
+    /** Returns true if there is a binary settings file to read from. */
+    boolean exists() {
+        return mBaseFile.exists();
+    }
+
+    /** Deletes both files, for when settings are persisted in another format. */
+    void delete() {
+        mBaseFile.delete();
+        mJournalFile.delete();
+        resetState();
+    }
+
+    /** Returns the total number of bytes written to disk by this instance. */
+    @VisibleForTesting
+    long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * Reads the base and the journal and returns a parser over the resulting document, or
+     * {@code null} if there is no binary settings file or it can't be read.
+     */
+    @Nullable
+    XmlPullParser openParser() {
+        if (!mBaseFile.exists()) {
+            return null;
+        }
+        resetState();
+        try {
+            readBase();
+            readJournal();
+        } catch (IOException e) {
+            Slog.w(TAG, "Unable to read " + mBaseFile.getBaseFile(), e);
+            resetState();
+            return null;
+        }
+
+        final ByteArrayOutputStream document = new ByteArrayOutputStream((int) mBaseBytes);
+        final byte[] root = mRecords.get(ROOT_KEY);
+        if (root == null) {
+            Slog.w(TAG, "No document element in " + mBaseFile.getBaseFile());
+            resetState();
+            return null;
+        }
+        document.write(root, 0, root.length);
+        for (int i = 0; i < mOrder.size(); i++) {
+            final byte[] record = mRecords.get(mOrder.get(i));
+            document.write(BinaryXmlSerializer.TOKEN_RESET);
+            document.write(record, 0, record.length);
+        }
+        document.write(BinaryXmlSerializer.TOKEN_END_TAG);
+
+        final XmlPullParser parser = new BinaryXmlPullParser();
+        try {
+            parser.setInput(new ByteArrayInputStream(document.toByteArray()), null);
+        } catch (XmlPullParserException e) {
+            throw new IllegalStateException(e);
+        }
+        mInSync = true;
+        return parser;
+    }
+
+    /**
+     * Returns a serializer that splits the document written to it into records, to be passed to
+     * {@link #commit(RecordSerializer)} once the document is complete.
+     */
+    RecordSerializer newSerializer() {
+        return new RecordSerializer();
+    }
+
+    /**
+     * Persists the document collected by the given serializer, appending only the records that
+     * changed since the last commit, or compacting everything into a new base when due.
+     */
+    void commit(RecordSerializer document) throws IOException {
+        final ArrayMap<String, byte[]> records = document.mRecords;
+        final ArrayList<String> order = document.mOrder;
+        if (!mInSync || mJournalEntries >= MAX_JOURNAL_ENTRIES) {
+            writeBase(records, order);
+            return;
+        }
+
+        final ArrayMap<String, byte[]> changed = new ArrayMap<>();
+        for (int i = 0; i < records.size(); i++) {
+            final String key = records.keyAt(i);
+            if (!Arrays.equals(records.valueAt(i), mRecords.get(key))) {
+                changed.put(key, records.valueAt(i));
+            }
+        }
+        final boolean orderChanged = !order.equals(mOrder);
+        if (changed.isEmpty() && !orderChanged) {
+            return;
+        }
+
+        final byte[] entry = encodeFrame(changed, orderChanged ? order : null);
+        final long maxJournalBytes = Math.max(MIN_COMPACTION_BYTES,
+                mBaseBytes / COMPACTION_BASE_DIVISOR);
+        if (mJournalBytes + entry.length > maxJournalBytes) {
+            writeBase(records, order);
+            return;
+        }
+        try {
+            appendJournal(entry);
+        } catch (IOException e) {
+            Slog.w(TAG, "Unable to append to " + mJournalFile + ", compacting", e);
+            writeBase(records, order);
+            return;
+        }
+        for (int i = 0; i < changed.size(); i++) {
+            mRecords.put(changed.keyAt(i), changed.valueAt(i));
+        }
+        if (orderChanged) {
+            retainOnly(order);
+        }
+    }
+
+    private void writeBase(ArrayMap<String, byte[]> records, List<String> order)
+            throws IOException {
+        if (!mInSync) {
+            // Whatever is on disk was not read by this instance; make sure the new generation
+            // can't be mistaken for one of the files already there.
+            mGeneration = Math.max(mGeneration, Math.max(
+                    readGeneration(mBaseFile.getBaseFile(), BASE_MAGIC),
+                    readGeneration(mJournalFile, JOURNAL_MAGIC)));
+        }
+        final long generation = mGeneration + 1;
+        final byte[] frame = encodeFrame(records, order);
+        FileOutputStream out = null;
+        try {
+            out = mBaseFile.startWrite();
+            final DataOutputStream data = new DataOutputStream(out);
+            data.writeInt(BASE_MAGIC);
+            data.writeInt(FORMAT_VERSION);
+            data.writeLong(generation);
+            data.write(frame);
+            data.flush();
+            mBaseFile.finishWrite(out);
+        } catch (IOException e) {
+            mBaseFile.failWrite(out);
+            mInSync = false;
+            throw e;
+        }
+        setPermissions(mBaseFile.getBaseFile());
+        final long baseBytes = 16 + frame.length;
+        mBytesWritten += baseBytes;
+
+        // The new base is durable; an older journal is now ignored because of its generation.
+        resetState();
+        mGeneration = generation;
+        mBaseBytes = baseBytes;
+        mRecords.putAll(records);
+        mOrder.addAll(order);
+        try {
+            resetJournal();
+            mInSync = true;
+        } catch (IOException e) {
+            // Leave mInSync false so that the next write compacts again.
+            Slog.w(TAG, "Unable to reset " + mJournalFile, e);
+        }
+    }
+
+    private void resetJournal() throws IOException {
+        try (FileOutputStream out = new FileOutputStream(mJournalFile, false)) {
+            final DataOutputStream data = new DataOutputStream(out);
+            data.writeInt(JOURNAL_MAGIC);
+            data.writeInt(FORMAT_VERSION);
+            data.writeLong(mGeneration);
+            data.flush();
+            FileUtils.sync(out);
+        }
+        setPermissions(mJournalFile);
+        mBytesWritten += 16;
+        mJournalBytes = 0;
+        mJournalEntries = 0;
+    }
+
+    private void appendJournal(byte[] entry) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(mJournalFile, true)) {
+            out.write(entry);
+            out.flush();
+            if (!FileUtils.sync(out)) {
+                throw new IOException("fsync failed");
+            }
+        }
+        mBytesWritten += entry.length;
+        mJournalBytes += entry.length;
+        mJournalEntries++;
+    }
+
+    private void readBase() throws IOException {
+        final DataInputStream in = new DataInputStream(
+                new BufferedInputStream(mBaseFile.openRead()));
+        try {
+            if (in.readInt() != BASE_MAGIC) {
+                throw new IOException("Bad magic");
+            }
+            final int version = in.readInt();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("Unsupported version " + version);
+            }
+            mGeneration = in.readLong();
+            if (!readFrame(in)) {
+                throw new IOException("Truncated or corrupt base");
+            }
+            mBaseBytes = mBaseFile.getBaseFile().length();
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+    }
+
+    private void readJournal() throws IOException {
+        if (!mJournalFile.exists()) {
+            return;
+        }
+        final DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(mJournalFile)));
+        try {
+            if (in.readInt() != JOURNAL_MAGIC || in.readInt() != FORMAT_VERSION
+                    || in.readLong() != mGeneration) {
+                // Left over from before a compaction, or unreadable; the base is complete.
+                Slog.i(TAG, "Ignoring stale journal " + mJournalFile);
+                mJournalEntries = MAX_JOURNAL_ENTRIES;
+                return;
+            }
+            final long length = mJournalFile.length();
+            while (readFrame(in)) {
+                mJournalEntries++;
+            }
+            mJournalBytes = length - 16;
+        } catch (EOFException e) {
+            mJournalEntries = MAX_JOURNAL_ENTRIES;
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+    }
+
+    /** Returns the generation in the header of the given file, or 0 if it can't be read. */
+    private static long readGeneration(File file, int magic) {
+        if (!file.exists()) {
+            return 0;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            if (in.readInt() == magic && in.readInt() == FORMAT_VERSION) {
+                return in.readLong();
+            }
+        } catch (IOException e) {
+            // Treat as absent.
+        }
+        return 0;
+    }
+
+    /**
+     * Reads one frame and applies it to the in-memory records. Returns false at the end of the
+     * input or at a torn or corrupt frame, in which case the next commit will compact so that
+     * nothing is ever appended after bad data.
+     */
+    private boolean readFrame(DataInputStream in) throws IOException {
+        final int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            // Clean end of the input.
+            return false;
+        }
+        final byte[] frame;
+        final long crc;
+        try {
+            if (length < 0) {
+                throw new EOFException();
+            }
+            frame = new byte[length];
+            in.readFully(frame);
+            crc = in.readLong();
+        } catch (EOFException e) {
+            Slog.w(TAG, "Dropping torn settings entry");
+            mJournalEntries = MAX_JOURNAL_ENTRIES;
+            return false;
+        }
+        final CRC32 checksum = new CRC32();
+        checksum.update(frame);
+        if (checksum.getValue() != crc) {
+            Slog.w(TAG, "Dropping corrupt settings entry of " + length + " bytes");
+            mJournalEntries = MAX_JOURNAL_ENTRIES;
+            return false;
+        }
+
+        final DataInputStream data = new DataInputStream(new ByteArrayInputStream(frame));
+        final int recordCount = data.readInt();
+        for (int i = 0; i < recordCount; i++) {
+            final String key = data.readUTF();
+            final byte[] record = new byte[data.readInt()];
+            data.readFully(record);
+            mRecords.put(key, record);
+        }
+        // An entry that adds records always carries the new order as well.
+        if (data.readBoolean()) {
+            final int orderCount = data.readInt();
+            final ArrayList<String> order = new ArrayList<>(orderCount);
+            for (int i = 0; i < orderCount; i++) {
+                order.add(data.readUTF());
+            }
+            try {
+                retainOnly(order);
+            } catch (IllegalStateException e) {
+                throw new IOException(e);
+            }
+        }
+        return true;
+    }
+
+    /** Makes {@code order} the record order, dropping records that are no longer in it. */
+    private void retainOnly(List<String> order) {
+        final ArrayMap<String, byte[]> retained = new ArrayMap<>(order.size() + 1);
+        final byte[] root = mRecords.get(ROOT_KEY);
+        if (root != null) {
+            retained.put(ROOT_KEY, root);
+        }
+        for (int i = 0; i < order.size(); i++) {
+            final String key = order.get(i);
+            final byte[] record = mRecords.get(key);
+            if (record == null) {
+                throw new IllegalStateException("No record for " + key);
+            }
+            retained.put(key, record);
+        }
+        mRecords.clear();
+        mRecords.putAll(retained);
+        mOrder.clear();
+        mOrder.addAll(order);
+    }
+
+    private static byte[] encodeFrame(ArrayMap<String, byte[]> records,
+            @Nullable List<String> order) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream data = new DataOutputStream(bytes);
+        data.writeInt(records.size());
+        for (int i = 0; i < records.size(); i++) {
+            final byte[] record = records.valueAt(i);
+            data.writeUTF(records.keyAt(i));
+            data.writeInt(record.length);
+            data.write(record);
+        }
+        data.writeBoolean(order != null);
+        if (order != null) {
+            data.writeInt(order.size());
+            for (int i = 0; i < order.size(); i++) {
+                data.writeUTF(order.get(i));
+            }
+        }
+        data.flush();
+
+        final byte[] payload = bytes.toByteArray();
+        final CRC32 checksum = new CRC32();
+        checksum.update(payload);
+        final ByteArrayOutputStream frame = new ByteArrayOutputStream(payload.length + 12);
+        final DataOutputStream out = new DataOutputStream(frame);
+        out.writeInt(payload.length);
+        out.write(payload);
+        out.writeLong(checksum.getValue());
+        out.flush();
+        return frame.toByteArray();
+    }
+
+    private void resetState() {
+        mRecords.clear();
+        mOrder.clear();
+        mInSync = false;
+        mBaseBytes = 0;
+        mJournalBytes = 0;
+        mJournalEntries = 0;
+    }
+
+    private static void setPermissions(File file) {
+        FileUtils.setPermissions(file.toString(),
+                FileUtils.S_IRUSR | FileUtils.S_IWUSR | FileUtils.S_IRGRP | FileUtils.S_IWGRP,
+                -1, -1);
+    }
+
+    /**
+     * Serializer handed to the settings writer. Each child of the document element is encoded
+     * into its own record with a fresh string table, so records can be replaced independently.
+     * Records are keyed by tag and {@code name} attribute when there is one, otherwise by tag and
+     * position among elements with the same tag.
+     */
+    static class RecordSerializer implements XmlSerializer {
+        private final ArrayMap<String, byte[]> mRecords = new ArrayMap<>();
+        private final ArrayList<String> mOrder = new ArrayList<>();
+        private final ArrayMap<String, Integer> mTagCounts = new ArrayMap<>();
+
+        private final BinaryXmlSerializer mRecord = new BinaryXmlSerializer();
+        private final ByteArrayOutputStream mRecordBytes = new ByteArrayOutputStream();
+        private int mDepth;
+        private String mRootName;
+        private final ArrayList<String> mRootAttributes = new ArrayList<>();
+        private String mRecordTag;
+        private String mRecordName;
+
+        @Override
+        public XmlSerializer startTag(String namespace, String name) throws IOException {
+            if (mDepth == 0) {
+                mRootName = name;
+            } else if (mDepth == 1) {
+                mRecordBytes.reset();
+                mRecord.setOutput(mRecordBytes, null);
+                mRecordTag = name;
+                mRecordName = null;
+            }
+            if (mDepth >= 1) {
+                mRecord.startTag(namespace, name);
+            }
+            mDepth++;
+            return this;
+        }
+
+        @Override
+        public XmlSerializer attribute(String namespace, String name, String value)
+                throws IOException {
+            if (mDepth == 1) {
+                mRootAttributes.add(name);
+                mRootAttributes.add(value);
+                return this;
+            }
+            if (mDepth == 2 && mRecordName == null && "name".equals(name)) {
+                mRecordName = value;
+            }
+            mRecord.attribute(namespace, name, value);
+            return this;
+        }
+
+        @Override
+        public XmlSerializer endTag(String namespace, String name) throws IOException {
+            mDepth--;
+            if (mDepth >= 1) {
+                mRecord.endTag(namespace, name);
+            }
+            if (mDepth == 1) {
+                mRecord.flush();
+                final String key = nextKey();
+                mRecords.put(key, mRecordBytes.toByteArray());
+                mOrder.add(key);
+            } else if (mDepth == 0) {
+                final ByteArrayOutputStream root = new ByteArrayOutputStream();
+                mRecord.setOutput(root, null);
+                mRecord.startTag(null, mRootName);
+                for (int i = 0; i < mRootAttributes.size(); i += 2) {
+                    mRecord.attribute(null, mRootAttributes.get(i), mRootAttributes.get(i + 1));
+                }
+                mRecord.flush();
+                mRecords.put(ROOT_KEY, root.toByteArray());
+            }
+            return this;
+        }
+
+        private String nextKey() {
+            final String base = mRecordName != null
+                    ? mRecordTag + "/" + mRecordName : mRecordTag;
+            final Integer count = mTagCounts.get(base);
+            mTagCounts.put(base, count == null ? 1 : count + 1);
+            if (count == null && mRecordName != null) {
+                return base;
+            }
+            return base + "#" + (count == null ? 0 : count);
+        }
+
+        @Override
+        public XmlSerializer text(String text) throws IOException {
+            // Whitespace between top level elements carries no state.
+            if (mDepth >= 2) {
+                mRecord.text(text);
+            }
+            return this;
+        }
+
+        @Override
+        public XmlSerializer text(char[] buf, int start, int len) throws IOException {
+            return text(new String(buf, start, len));
+        }
+
+        @Override
+        public void cdsect(String text) throws IOException {
+            text(text);
+        }
+
+        @Override
+        public void setOutput(OutputStream os, String encoding) {
+            throw new UnsupportedOperationException("Records are committed to the store");
+        }
+
+        @Override
+        public void setOutput(Writer writer) {
+            throw new UnsupportedOperationException("Records are committed to the store");
+        }
+
+        @Override
+        public void startDocument(String encoding, Boolean standalone) {
+        }
+
+        @Override
+        public void endDocument() {
+            if (mDepth != 0) {
+                throw new IllegalStateException("Unclosed tags at end of document");
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public int getDepth() {
+            return mDepth;
+        }
+
+        @Override
+        public String getName() {
+            return mDepth <= 1 ? mRootName : mRecord.getName();
+        }
+
+        @Override
+        public String getNamespace() {
+            return null;
+        }
+
+        @Override
+        public String getPrefix(String namespace, boolean generatePrefix) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setPrefix(String prefix, String namespace) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setFeature(String name, boolean state) {
+        }
+
+        @Override
+        public boolean getFeature(String name) {
+            return false;
+        }
+
+        @Override
+        public void setProperty(String name, Object value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Object getProperty(String name) {
+            return null;
+        }
+
+        @Override
+        public void ignorableWhitespace(String text) {
+        }
+
+        @Override
+        public void comment(String text) {
+        }
+
+        @Override
+        public void processingInstruction(String text) {
+        }
+
+        @Override
+        public void docdecl(String text) {
+        }
+
+        @Override
+        public void entityRef(String text) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
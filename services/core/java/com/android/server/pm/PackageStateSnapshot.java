@@ -0,0 +1,413 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import android.annotation.Nullable;
+import android.content.pm.PackageManager;
+import android.content.pm.SharedLibraryInfo;
+import android.os.Process;
+import android.os.UserHandle;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.LongSparseArray;
+import android.util.Pair;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.server.pm.parsing.pkg.AndroidPackage;
+import com.android.server.pm.permission.PermissionsState;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An immutable copy of the package state read by the package and application info queries of
+ * {@link PackageManagerService}, so that they can be answered without the package lock. A
+ * snapshot is taken under the lock and stays valid until {@link #invalidate()} or
+ * {@link #invalidatePermissions(PermissionsState)} is called.
+ *
+ * <p>Everything that changes package state must call {@link #invalidate()}. The client side
+ * caches of the same queries need the same, so it is called alongside
+ * {@link PackageManager#invalidatePackageInfoCache()}. Permission changes, which are by far the
+ * most frequent, call {@link #invalidatePermissions(PermissionsState)} instead, so that the next
+ * snapshot only copies the settings whose permissions changed again and shares the rest with
+ * the previous one.</p>
+ */
+public final class PackageStateSnapshot {
+    /**
+     * Past this many changed permission states, the next snapshot copies everything rather than
+     * tracking them one by one.
+     */
+    private static final int MAX_CHANGED_PERMISSIONS = 64;
+
+    private static final AtomicInteger sGeneration = new AtomicInteger();
+
+    private static final Object sChangesLock = new Object();
+    /** Whether anything but permissions changed since the last snapshot was taken. */
+    @GuardedBy("sChangesLock")
+    private static boolean sFullCopyNeeded = true;
+    /** The permission states changed since the last snapshot was taken, by identity. */
+    @GuardedBy("sChangesLock")
+    private static final Set<PermissionsState> sChangedPermissions =
+            Collections.newSetFromMap(new IdentityHashMap<>());
+
+    /** The value of {@link #sGeneration} when this snapshot was taken. */
+    private final int mGeneration;
+    private final int[] mUserIds;
+
+    private final ArrayMap<String, AndroidPackage> mPackages;
+    /** Copies of every package setting, by package name. */
+    private final ArrayMap<String, PackageSetting> mSettings;
+    /** The package setting or shared user copy of each app id. */
+    private final SparseArray<SettingBase> mSettingsByAppId = new SparseArray<>();
+    /** The package setting copies sharing each shared user app id. */
+    private final SparseArray<ArrayList<PackageSetting>> mSharedUserPackages =
+            new SparseArray<>();
+    /** The static shared library declared by each static library package, by package name. */
+    private final ArrayMap<String, SharedLibraryInfo> mStaticLibsByPackage = new ArrayMap<>();
+    /**
+     * Names that are resolved to another package before a lookup: renamed packages and packages
+     * declaring static shared libraries.
+     */
+    private final ArraySet<String> mResolvedNames;
+    private final SparseBooleanArray mUsersWithInstantApps = new SparseBooleanArray();
+
+    /** The scanned packages sorted for paging, built on first use. */
+    private volatile SortedPackages mSortedPackages;
+    /** All package settings sorted for paging, built on first use. */
+    private volatile SortedPackages mSortedKnownPackages;
+
+    /**
+     * Invalidates every snapshot taken so far. Must be called whenever package state they copy
+     * changes.
+     */
+    public static void invalidate() {
+        synchronized (sChangesLock) {
+            sFullCopyNeeded = true;
+            sChangedPermissions.clear();
+            sGeneration.incrementAndGet();
+        }
+    }
+
+    /**
+     * Invalidates every snapshot taken so far because {@code permissionsState} changed, and
+     * nothing else.
+     */
+    public static void invalidatePermissions(PermissionsState permissionsState) {
+        synchronized (sChangesLock) {
+            if (!sFullCopyNeeded) {
+                if (sChangedPermissions.size() < MAX_CHANGED_PERMISSIONS) {
+                    sChangedPermissions.add(permissionsState);
+                } else {
+                    sFullCopyNeeded = true;
+                    sChangedPermissions.clear();
+                }
+            }
+            sGeneration.incrementAndGet();
+        }
+    }
+
+    /**
+     * Takes a snapshot of the given state for the given users, sharing the copies of settings
+     * that did not change with {@code previous}.
+     */
+    @GuardedBy("PackageManagerService.mLock")
+    static PackageStateSnapshot takeLocked(@Nullable PackageStateSnapshot previous,
+            ArrayMap<String, AndroidPackage> packages, Settings settings,
+            ArrayMap<String, LongSparseArray<SharedLibraryInfo>> sharedLibraries,
+            ArrayMap<String, LongSparseArray<SharedLibraryInfo>> staticLibsByDeclaringPackage,
+            int[] userIds) {
+        // Read the generation and changes first: a change made while copying then makes the
+        // snapshot stale rather than letting it pass for current, and is copied by the next one.
+        final int generation;
+        Set<PermissionsState> changedPermissions = null;
+        synchronized (sChangesLock) {
+            generation = sGeneration.get();
+            if (!sFullCopyNeeded && previous != null
+                    && Arrays.equals(previous.mUserIds, userIds)) {
+                changedPermissions = Collections.newSetFromMap(new IdentityHashMap<>());
+                changedPermissions.addAll(sChangedPermissions);
+            }
+            sFullCopyNeeded = false;
+            sChangedPermissions.clear();
+        }
+        return new PackageStateSnapshot(generation,
+                changedPermissions != null ? previous : null, changedPermissions, packages,
+                settings, sharedLibraries, staticLibsByDeclaringPackage, userIds);
+    }
+
+    private PackageStateSnapshot(int generation, @Nullable PackageStateSnapshot previous,
+            @Nullable Set<PermissionsState> changedPermissions,
+            ArrayMap<String, AndroidPackage> packages, Settings settings,
+            ArrayMap<String, LongSparseArray<SharedLibraryInfo>> sharedLibraries,
+            ArrayMap<String, LongSparseArray<SharedLibraryInfo>> staticLibsByDeclaringPackage,
+            int[] userIds) {
+        mGeneration = generation;
+        mUserIds = userIds;
+        mPackages = new ArrayMap<>(packages);
+
+        final int settingCount = settings.mPackages.size();
+        mSettings = new ArrayMap<>(settingCount);
+        for (int i = 0; i < settingCount; i++) {
+            final PackageSetting ps = settings.mPackages.valueAt(i);
+            if (ps.sharedUser != null) {
+                // Every package of the shared user is added with it
+                if (mSettingsByAppId.get(ps.appId) == null) {
+                    addSharedUser(ps.appId, copySharedUser(previous, changedPermissions,
+                            ps.appId, ps.sharedUser), sharedLibraries, userIds);
+                }
+                continue;
+            }
+
+            PackageSetting copy = null;
+            if (previous != null && !changedPermissions.contains(ps.mPermissionsState)) {
+                copy = previous.mSettings.get(ps.name);
+            }
+            if (copy == null || copy.sharedUser != null) {
+                copy = ps.snapshot();
+            }
+            mSettingsByAppId.put(copy.appId, copy);
+            addPackageSetting(copy, sharedLibraries, userIds);
+        }
+
+        mResolvedNames = settings.getRenamedPackageNamesLPr();
+        mResolvedNames.addAll(staticLibsByDeclaringPackage.keySet());
+    }
+
+    /**
+     * Returns a copy of {@code sharedUser} and its packages, which is the one of {@code previous}
+     * unless any of their permissions changed.
+     */
+    private static SharedUserSetting copySharedUser(@Nullable PackageStateSnapshot previous,
+            @Nullable Set<PermissionsState> changedPermissions, int appId,
+            SharedUserSetting sharedUser) {
+        if (previous != null) {
+            final SettingBase previousCopy = previous.mSettingsByAppId.get(appId);
+            boolean changed = !(previousCopy instanceof SharedUserSetting)
+                    || ((SharedUserSetting) previousCopy).packages.size()
+                            != sharedUser.packages.size()
+                    || changedPermissions.contains(sharedUser.mPermissionsState);
+            for (int i = sharedUser.packages.size() - 1; i >= 0 && !changed; i--) {
+                changed = changedPermissions.contains(sharedUser.packages.valueAt(i)
+                        .mPermissionsState);
+            }
+            if (!changed) {
+                return (SharedUserSetting) previousCopy;
+            }
+        }
+
+        final SharedUserSetting copy = sharedUser.snapshot();
+        final int packageCount = sharedUser.packages.size();
+        for (int i = 0; i < packageCount; i++) {
+            final PackageSetting packageCopy = sharedUser.packages.valueAt(i).snapshot();
+            packageCopy.sharedUser = copy;
+            copy.packages.add(packageCopy);
+        }
+        return copy;
+    }
+
+    private void addSharedUser(int appId, SharedUserSetting sharedUser,
+            ArrayMap<String, LongSparseArray<SharedLibraryInfo>> sharedLibraries,
+            int[] userIds) {
+        mSettingsByAppId.put(appId, sharedUser);
+        final int packageCount = sharedUser.packages.size();
+        final ArrayList<PackageSetting> sharedUserPackages = new ArrayList<>(packageCount);
+        for (int i = 0; i < packageCount; i++) {
+            final PackageSetting ps = sharedUser.packages.valueAt(i);
+            sharedUserPackages.add(ps);
+            addPackageSetting(ps, sharedLibraries, userIds);
+        }
+        mSharedUserPackages.put(appId, sharedUserPackages);
+    }
+
+    private void addPackageSetting(PackageSetting ps,
+            ArrayMap<String, LongSparseArray<SharedLibraryInfo>> sharedLibraries,
+            int[] userIds) {
+        mSettings.put(ps.name, ps);
+
+        if (ps.pkg != null && ps.pkg.isStaticSharedLibrary()) {
+            final LongSparseArray<SharedLibraryInfo> versions =
+                    sharedLibraries.get(ps.pkg.getStaticSharedLibName());
+            final SharedLibraryInfo libraryInfo = versions != null
+                    ? versions.get(ps.pkg.getStaticSharedLibVersion()) : null;
+            if (libraryInfo != null) {
+                mStaticLibsByPackage.put(ps.name, libraryInfo);
+            }
+        }
+
+        for (int userId : userIds) {
+            if (ps.getInstantApp(userId)) {
+                mUsersWithInstantApps.put(userId, true);
+            }
+        }
+    }
+
+    /** Returns whether nothing changed since this snapshot was taken. */
+    boolean isCurrent() {
+        return mGeneration == sGeneration.get();
+    }
+
+    /** Returns the scanned packages. */
+    Collection<AndroidPackage> getPackages() {
+        return mPackages.values();
+    }
+
+    @Nullable
+    AndroidPackage getPackage(String packageName) {
+        return mPackages.get(packageName);
+    }
+
+    /** Returns the package settings, scanned or not. */
+    Collection<PackageSetting> getPackageSettings() {
+        return mSettings.values();
+    }
+
+    @Nullable
+    PackageSetting getPackageSetting(String packageName) {
+        return mSettings.get(packageName);
+    }
+
+    /**
+     * Returns the package settings of the scanned packages, or of all packages if
+     * {@code includeUnscanned}, sorted by the package name apps know them by. Sorted once per
+     * snapshot, on first use.
+     */
+    SortedPackages getSortedPackages(boolean includeUnscanned) {
+        SortedPackages sorted = includeUnscanned ? mSortedKnownPackages : mSortedPackages;
+        if (sorted != null) {
+            return sorted;
+        }
+        if (includeUnscanned) {
+            sorted = new SortedPackages(mSettings.values());
+            mSortedKnownPackages = sorted;
+        } else {
+            final ArrayList<PackageSetting> scanned = new ArrayList<>(mPackages.size());
+            for (int i = mPackages.size() - 1; i >= 0; i--) {
+                final PackageSetting ps = mSettings.get(mPackages.keyAt(i));
+                if (ps != null) {
+                    scanned.add(ps);
+                }
+            }
+            sorted = new SortedPackages(scanned);
+            mSortedPackages = sorted;
+        }
+        return sorted;
+    }
+
+    /** Returns the package setting or shared user owning {@code appId}. */
+    @Nullable
+    SettingBase getSettingForAppId(int appId) {
+        return mSettingsByAppId.get(appId);
+    }
+
+    /** Returns the packages of a shared user. */
+    @Nullable
+    ArrayList<PackageSetting> getSharedUserPackages(int appId) {
+        return mSharedUserPackages.get(appId);
+    }
+
+    /** Returns the static shared library {@code packageName} declares, if any. */
+    @Nullable
+    SharedLibraryInfo getStaticLibForPackage(String packageName) {
+        return mStaticLibsByPackage.get(packageName);
+    }
+
+    /**
+     * Returns whether {@code packageName} may stand for a different package, which is worked out
+     * under the package lock.
+     */
+    boolean needsNameResolution(String packageName) {
+        return mResolvedNames.contains(packageName);
+    }
+
+    /** Returns whether any package is installed as an instant app for {@code userId}. */
+    boolean hasInstantApps(int userId) {
+        return mUsersWithInstantApps.get(userId);
+    }
+
+    /** Returns whether {@code uid} belongs to an instant app. */
+    boolean isInstantApp(int uid) {
+        if (UserHandle.getAppId(uid) < Process.FIRST_APPLICATION_UID) {
+            return false;
+        }
+        final SettingBase setting = mSettingsByAppId.get(UserHandle.getAppId(uid));
+        return setting instanceof PackageSetting
+                && ((PackageSetting) setting).getInstantApp(UserHandle.getUserId(uid));
+    }
+
+    /**
+     * Package settings sorted by the package name apps know them by, to page through them with
+     * that name as the cursor.
+     */
+    static final class SortedPackages {
+        private final String[] mNames;
+        private final PackageSetting[] mSettings;
+
+        SortedPackages(Collection<PackageSetting> settings) {
+            final ArrayList<Pair<String, PackageSetting>> named = new ArrayList<>(settings.size());
+            for (PackageSetting ps : settings) {
+                named.add(Pair.create(ps.pkg != null
+                        ? PackageManagerService.resolveExternalPackageName(ps.pkg)
+                        : ps.name, ps));
+            }
+            named.sort((a, b) -> a.first.compareTo(b.first));
+
+            final int count = named.size();
+            mNames = new String[count];
+            mSettings = new PackageSetting[count];
+            for (int i = 0; i < count; i++) {
+                mNames[i] = named.get(i).first;
+                mSettings[i] = named.get(i).second;
+            }
+        }
+
+        int size() {
+            return mSettings.length;
+        }
+
+        PackageSetting getSetting(int index) {
+            return mSettings[index];
+        }
+
+        /**
+         * Returns the index of the first package named after {@code packageName}, or 0 if it is
+         * {@code null}.
+         */
+        int indexAfter(@Nullable String packageName) {
+            if (packageName == null) {
+                return 0;
+            }
+            int low = 0;
+            int high = mNames.length;
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                if (mNames[mid].compareTo(packageName) <= 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+}
@@ -21,6 +21,7 @@ import static android.os.Trace.TRACE_TAG_PACKAGE_MANAGER;
 import android.content.pm.PackageParser;
 import android.os.Process;
 import android.os.Trace;
+import android.util.ArrayMap;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.ConcurrentUtils;
@@ -28,29 +29,41 @@ import com.android.server.pm.parsing.PackageParser2;
 import com.android.server.pm.parsing.pkg.ParsedPackage;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 
 /**
  * Helper class for parallel parsing of packages using {@link PackageParser}.
- * <p>Parsing requests are processed by a thread-pool of {@link #MAX_THREADS}.
+ * <p>Parsing requests are processed by a thread-pool sized to the number of available cores,
+ * clamped to [{@link #MIN_THREADS}, {@link #MAX_THREADS}]. All workers pull from one shared
+ * queue, so an idle worker always picks up the next pending package.
  * At any time, at most {@link #QUEUE_CAPACITY} results are kept in RAM</p>
  */
 class ParallelPackageParser {
 
     private static final int QUEUE_CAPACITY = 30;
-    private static final int MAX_THREADS = 4;
+    private static final int MIN_THREADS = 4;
+    private static final int MAX_THREADS = 8;
 
     private volatile String mInterruptedInThread;
 
     private final BlockingQueue<ParseResult> mQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
 
     static ExecutorService makeExecutorService() {
-        return ConcurrentUtils.newFixedThreadPool(MAX_THREADS, "package-parsing-thread",
+        return ConcurrentUtils.newFixedThreadPool(getThreadCount(), "package-parsing-thread",
                 Process.THREAD_PRIORITY_FOREGROUND);
     }
 
+    @VisibleForTesting
+    static int getThreadCount() {
+        final int cores = Runtime.getRuntime().availableProcessors();
+        return Math.max(MIN_THREADS, Math.min(MAX_THREADS, cores));
+    }
+
     private final PackageParser2 mPackageParser;
 
     private final ExecutorService mExecutorService;
@@ -94,6 +107,49 @@ class ParallelPackageParser {
         }
     }
 
+    /**
+     * Submits the files for parsing, the most expensive ones first. Parsing the biggest packages
+     * up-front keeps a single large APK from being picked up last and leaving the other workers
+     * idle while it finishes.
+     * @param scanFiles files to scan
+     * @param parseFlags parse flags
+     */
+    public void submitAll(List<File> scanFiles, int parseFlags) {
+        final ArrayMap<File, Long> costs = new ArrayMap<>(scanFiles.size());
+        for (int i = 0; i < scanFiles.size(); i++) {
+            final File scanFile = scanFiles.get(i);
+            costs.put(scanFile, estimateParseCost(scanFile));
+        }
+        final List<File> ordered = new ArrayList<>(scanFiles);
+        // List.sort is stable, so packages of equal cost keep their directory order.
+        ordered.sort(Comparator.comparingLong((File f) -> costs.get(f)).reversed());
+        for (int i = 0; i < ordered.size(); i++) {
+            submit(ordered.get(i), parseFlags);
+        }
+    }
+
+    /**
+     * Returns an estimate of how expensive it is to parse the given package: the on-disk size of
+     * the APK, or the summed size of all APKs for a cluster package directory.
+     */
+    @VisibleForTesting
+    static long estimateParseCost(File scanFile) {
+        if (!scanFile.isDirectory()) {
+            return scanFile.length();
+        }
+        final File[] files = scanFile.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        long cost = 0;
+        for (File file : files) {
+            if (PackageParser.isApkFile(file)) {
+                cost += file.length();
+            }
+        }
+        return cost;
+    }
+
     /**
      * Submits the file for parsing
      * @param scanFile file to scan
@@ -70,6 +70,7 @@ import android.os.PersistableBundle;
 import android.os.Process;
 import android.os.SELinux;
 import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.os.Trace;
 import android.os.UserHandle;
 import android.os.UserManager;
@@ -101,6 +102,7 @@ import com.android.internal.util.JournaledFile;
 import com.android.internal.util.XmlUtils;
 import com.android.permission.persistence.RuntimePermissionsPersistence;
 import com.android.permission.persistence.RuntimePermissionsState;
+import com.android.server.IoThread;
 import com.android.server.LocalServices;
 import com.android.server.pm.Installer.InstallerException;
 import com.android.server.pm.parsing.PackageInfoUtils;
@@ -121,6 +123,7 @@ import org.xmlpull.v1.XmlSerializer;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -192,6 +195,22 @@ public final class Settings {
     private static final boolean DEBUG_KERNEL = false;
     private static final boolean DEBUG_PARSER = false;
 
+    /**
+     * Whether settings are persisted through {@link PackageSettingsStore} rather than as a full
+     * packages.xml rewrite. Either format is read back regardless of this flag, so it can be
+     * turned off to migrate a device back to XML.
+     */
+    private static final boolean USE_BINARY_SETTINGS =
+            SystemProperties.getBoolean("persist.pm.binary_settings", true);
+
+    /**
+     * Whether {@link #writeLPr()} only takes a snapshot under the package lock and leaves the disk
+     * I/O to the I/O thread. When false, the snapshot is written before returning, which is useful
+     * to compare lock hold times in {@code dumpsys package messages}.
+     */
+    private static final boolean ASYNC_SETTINGS_WRITES =
+            SystemProperties.getBoolean("persist.pm.async_settings_write", true);
+
     private static final String RUNTIME_PERMISSIONS_FILE_NAME = "runtime-permissions.xml";
 
     private static final String TAG_READ_EXTERNAL_STORAGE = "read-external-storage";
@@ -288,6 +307,28 @@ public final class Settings {
 
     private final File mSettingsFilename;
     private final File mBackupSettingsFilename;
+    private final PackageSettingsStore mSettingsStore;
+
+    /** Held while settings files are written, so snapshots reach the disk in order. */
+    private final Object mWriteLock = new Object();
+    private final Object mPendingWriteLock = new Object();
+    /** The newest snapshot that has not been handed to the disk yet. */
+    @GuardedBy("mPendingWriteLock")
+    private SettingsWrite mPendingWrite;
+    /** The id of the last write scheduled, see {@link #awaitWrite}. */
+    @GuardedBy("mPendingWriteLock")
+    private long mLastWriteId;
+    /** The id of the last write on disk. */
+    @GuardedBy("mPendingWriteLock")
+    private long mPersistedWriteId;
+    @GuardedBy("mPendingWriteLock")
+    private final WriteStats mWriteStats = new WriteStats();
+    /**
+     * Whether the settings were read back from the binary store. Until then the legacy XML files
+     * are kept, as the fallback for a binary store that turns out to be unreadable.
+     */
+    @GuardedBy("mWriteLock")
+    private boolean mBinarySettingsRead;
     private final File mPackageListFilename;
     private final File mStoppedPackagesFilename;
     private final File mBackupStoppedPackagesFilename;
@@ -429,6 +470,7 @@ public final class Settings {
         mRuntimePermissionsPersistence = null;
         mSettingsFilename = null;
         mBackupSettingsFilename = null;
+        mSettingsStore = null;
         mPackageListFilename = null;
         mStoppedPackagesFilename = null;
         mBackupStoppedPackagesFilename = null;
@@ -449,6 +491,8 @@ public final class Settings {
                 -1, -1);
         mSettingsFilename = new File(mSystemDir, "packages.xml");
         mBackupSettingsFilename = new File(mSystemDir, "packages-backup.xml");
+        mSettingsStore = new PackageSettingsStore(new File(mSystemDir, "packages.bin"),
+                new File(mSystemDir, "packages-journal.bin"));
         mPackageListFilename = new File(mSystemDir, "packages.list");
         FileUtils.setPermissions(mPackageListFilename, 0640, SYSTEM_UID, PACKAGE_INFO_GID);
 
@@ -463,6 +507,8 @@ public final class Settings {
     private static void invalidatePackageCache() {
         PackageManager.invalidatePackageInfoCache();
         ChangeIdStateCache.invalidate();
+        ComponentResolver.invalidateQueryCaches();
+        PackageStateSnapshot.invalidate();
     }
 
     PackageSetting getPackageLPr(String pkgName) {
@@ -473,6 +519,10 @@ public final class Settings {
         return mRenamedPackages.get(pkgName);
     }
 
+    ArraySet<String> getRenamedPackageNamesLPr() {
+        return new ArraySet<>(mRenamedPackages.keySet());
+    }
+
     String addRenamedPackageLPw(String pkgName, String origPkgName) {
         return mRenamedPackages.put(pkgName, origPkgName);
     }
@@ -2018,49 +2068,26 @@ public final class Settings {
         }
     }
 
-    void writePackageRestrictionsLPr(int userId) {
+    /**
+     * Writes the package restrictions of a user. Only a snapshot is taken under the lock, the
+     * file is written on the I/O thread.
+     *
+     * @return the id of the write, see {@link #awaitWrite}
+     */
+    long writePackageRestrictionsLPr(int userId) {
         invalidatePackageCache();
 
         if (DEBUG_MU) {
             Log.i(TAG, "Writing package restrictions for user=" + userId);
         }
-        final long startTime = SystemClock.uptimeMillis();
-
-        // Keep the old stopped packages around until we know the new ones have
-        // been successfully written.
-        File userPackagesStateFile = getUserPackagesStateFile(userId);
-        File backupFile = getUserPackagesStateBackupFile(userId);
-        new File(userPackagesStateFile.getParent()).mkdirs();
-        if (userPackagesStateFile.exists()) {
-            // Presence of backup settings file indicates that we failed
-            // to persist packages earlier. So preserve the older
-            // backup for future reference since the current packages
-            // might have been corrupted.
-            if (!backupFile.exists()) {
-                if (!userPackagesStateFile.renameTo(backupFile)) {
-                    Slog.wtf(PackageManagerService.TAG,
-                            "Unable to backup user packages state file, "
-                            + "current changes will be lost at reboot");
-                    return;
-                }
-            } else {
-                userPackagesStateFile.delete();
-                Slog.w(PackageManagerService.TAG, "Preserving older stopped packages backup");
-            }
-        }
-
+        final SettingsWrite write = new SettingsWrite(SystemClock.uptimeMillis());
+        final XmlEventRecorder serializer = new XmlEventRecorder();
         try {
-            final FileOutputStream fstr = new FileOutputStream(userPackagesStateFile);
-            final BufferedOutputStream str = new BufferedOutputStream(fstr);
-
-            final XmlSerializer serializer = new FastXmlSerializer();
-            serializer.setOutput(str, StandardCharsets.UTF_8.name());
             serializer.startDocument(null, true);
             serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
 
             serializer.startTag(null, TAG_PACKAGE_RESTRICTIONS);
 
-            if (DEBUG_MU) Log.i(TAG, "Writing " + userPackagesStateFile);
             for (final PackageSetting pkg : mPackages.values()) {
                 final PackageUserState ustate = pkg.readUserState(userId);
                 if (DEBUG_MU) {
@@ -2171,6 +2198,51 @@ public final class Settings {
             serializer.endTag(null, TAG_PACKAGE_RESTRICTIONS);
 
             serializer.endDocument();
+        } catch (IOException e) {
+            Slog.wtf(PackageManagerService.TAG,
+                    "Unable to write package manager user packages state, "
+                    + " current changes will be lost at reboot", e);
+            return 0;
+        }
+        write.packageRestrictions = new SparseArray<>(1);
+        write.packageRestrictions.put(userId, serializer);
+        return scheduleWrite(write);
+    }
+
+    @GuardedBy("mWriteLock")
+    private void persistPackageRestrictions(int userId, XmlEventRecorder document,
+            long startTime) {
+        // Keep the old stopped packages around until we know the new ones have
+        // been successfully written.
+        File userPackagesStateFile = getUserPackagesStateFile(userId);
+        File backupFile = getUserPackagesStateBackupFile(userId);
+        new File(userPackagesStateFile.getParent()).mkdirs();
+        if (userPackagesStateFile.exists()) {
+            // Presence of backup settings file indicates that we failed
+            // to persist packages earlier. So preserve the older
+            // backup for future reference since the current packages
+            // might have been corrupted.
+            if (!backupFile.exists()) {
+                if (!userPackagesStateFile.renameTo(backupFile)) {
+                    Slog.wtf(PackageManagerService.TAG,
+                            "Unable to backup user packages state file, "
+                            + "current changes will be lost at reboot");
+                    return;
+                }
+            } else {
+                userPackagesStateFile.delete();
+                Slog.w(PackageManagerService.TAG, "Preserving older stopped packages backup");
+            }
+        }
+
+        try {
+            final FileOutputStream fstr = new FileOutputStream(userPackagesStateFile);
+            final BufferedOutputStream str = new BufferedOutputStream(fstr);
+
+            if (DEBUG_MU) Log.i(TAG, "Writing " + userPackagesStateFile);
+            final XmlSerializer serializer = new FastXmlSerializer();
+            serializer.setOutput(str, StandardCharsets.UTF_8.name());
+            document.replay(serializer);
 
             str.flush();
             FileUtils.sync(fstr);
@@ -2431,7 +2503,14 @@ public final class Settings {
         }
     }
 
-    void writeLPr() {
+    /**
+     * Writes the settings, and packages.list with them. Only a snapshot is taken under the lock,
+     * the files are written on the I/O thread.
+     *
+     * @return the id of the write, for the callers which must wait for it to be on disk, such as
+     *         those changing what native readers of packages.list see, see {@link #awaitWrite}
+     */
+    long writeLPr() {
         //Debug.startMethodTracing("/data/system/packageprof", 8 * 1024 * 1024);
 
         final long startTime = SystemClock.uptimeMillis();
@@ -2442,127 +2521,218 @@ public final class Settings {
         // right time.
         invalidatePackageCache();
 
-        // Keep the old settings around until we know the new ones have
-        // been successfully written.
-        if (mSettingsFilename.exists()) {
-            // Presence of backup settings file indicates that we failed
-            // to persist settings earlier. So preserve the older
-            // backup for future reference since the current settings
-            // might have been corrupted.
-            if (!mBackupSettingsFilename.exists()) {
-                if (!mSettingsFilename.renameTo(mBackupSettingsFilename)) {
-                    Slog.wtf(PackageManagerService.TAG,
-                            "Unable to backup package manager settings, "
-                            + " current changes will be lost at reboot");
-                    return;
-                }
-            } else {
-                mSettingsFilename.delete();
-                Slog.w(PackageManagerService.TAG, "Preserving older settings backup");
-            }
-        }
-
+        // Record everything while the state can't change; the snapshot is encoded and written to
+        // disk later, without the lock.
+        final SettingsWrite write = new SettingsWrite(startTime);
         mPastSignatures.clear();
-
         try {
-            FileOutputStream fstr = new FileOutputStream(mSettingsFilename);
-            BufferedOutputStream str = new BufferedOutputStream(fstr);
-
-            //XmlSerializer serializer = XmlUtils.serializerInstance();
-            XmlSerializer serializer = new FastXmlSerializer();
-            serializer.setOutput(str, StandardCharsets.UTF_8.name());
-            serializer.startDocument(null, true);
-            serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
+            write.document = new XmlEventRecorder();
+            writeSettingsLPr(write.document);
+        } catch (IOException e) {
+            Slog.wtf(PackageManagerService.TAG, "Unable to write package manager settings, "
+                    + "current changes will be lost at reboot", e);
+            return 0;
+        }
+        write.packageList = buildPackageListLPr(-1);
 
-            serializer.startTag(null, "packages");
+        writeKernelMappingLPr();
+        writeAllUsersPackageRestrictionsLPr();
+        writeAllRuntimePermissionsLPr();
 
-            for (int i = 0; i < mVersion.size(); i++) {
-                final String volumeUuid = mVersion.keyAt(i);
-                final VersionInfo ver = mVersion.valueAt(i);
+        final long writeId = scheduleWrite(write);
+        synchronized (mPendingWriteLock) {
+            mWriteStats.onLockHeld(SystemClock.uptimeMillis() - startTime);
+        }
+        //Debug.stopMethodTracing();
+        return writeId;
+    }
 
-                serializer.startTag(null, TAG_VERSION);
-                XmlUtils.writeStringAttribute(serializer, ATTR_VOLUME_UUID, volumeUuid);
-                XmlUtils.writeIntAttribute(serializer, ATTR_SDK_VERSION, ver.sdkVersion);
-                XmlUtils.writeIntAttribute(serializer, ATTR_DATABASE_VERSION, ver.databaseVersion);
-                XmlUtils.writeStringAttribute(serializer, ATTR_FINGERPRINT, ver.fingerprint);
-                serializer.endTag(null, TAG_VERSION);
+    /**
+     * Hands a snapshot to the I/O thread, merging it into a snapshot that is still waiting so that
+     * back to back changes only cost one write. With async writes turned off the snapshot is
+     * written before returning, as it used to be.
+     *
+     * @return the id of the write, see {@link #awaitWrite}
+     */
+    private long scheduleWrite(SettingsWrite write) {
+        final long writeId;
+        synchronized (mPendingWriteLock) {
+            writeId = ++mLastWriteId;
+            write.id = writeId;
+            final boolean scheduled = mPendingWrite != null;
+            if (scheduled) {
+                mPendingWrite.mergeNewer(write);
+                mWriteStats.coalesced++;
+            } else {
+                mPendingWrite = write;
             }
-
-            if (mVerifierDeviceIdentity != null) {
-                serializer.startTag(null, "verifier");
-                serializer.attribute(null, "device", mVerifierDeviceIdentity.toString());
-                serializer.endTag(null, "verifier");
+            if (!scheduled && ASYNC_SETTINGS_WRITES) {
+                IoThread.getHandler().post(this::flushPendingWrites);
             }
+        }
+        if (!ASYNC_SETTINGS_WRITES) {
+            flushPendingWrites();
+        }
+        return writeId;
+    }
 
-            if (mReadExternalStorageEnforced != null) {
-                serializer.startTag(null, TAG_READ_EXTERNAL_STORAGE);
-                serializer.attribute(
-                        null, ATTR_ENFORCEMENT, mReadExternalStorageEnforced ? "1" : "0");
-                serializer.endTag(null, TAG_READ_EXTERNAL_STORAGE);
+    /**
+     * Waits until the write {@code writeId}, and those scheduled before it, are on disk. Must be
+     * called without the package lock: the I/O thread doesn't need it, but everything else that
+     * would wait behind the disk does.
+     */
+    void awaitWrite(long writeId) {
+        if (Thread.holdsLock(mLock)) {
+            Slog.wtf(TAG, "Waiting for a settings write with the package lock held");
+        }
+        boolean interrupted = false;
+        synchronized (mPendingWriteLock) {
+            while (mPersistedWriteId < writeId) {
+                try {
+                    mPendingWriteLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
             }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-            serializer.startTag(null, "permission-trees");
-            mPermissions.writePermissionTrees(serializer);
-            serializer.endTag(null, "permission-trees");
-
-            serializer.startTag(null, "permissions");
-            mPermissions.writePermissions(serializer);
-            serializer.endTag(null, "permissions");
+    /** Waits until all the writes scheduled so far are on disk, see {@link #awaitWrite}. */
+    void awaitScheduledWrites() {
+        final long writeId;
+        synchronized (mPendingWriteLock) {
+            writeId = mLastWriteId;
+        }
+        awaitWrite(writeId);
+    }
 
-            for (final PackageSetting pkg : mPackages.values()) {
-                writePackageLPr(serializer, pkg);
+    /**
+     * Writes out any snapshot that has not been persisted yet and waits for it. May be called with
+     * or without the package lock held; it never takes it.
+     */
+    void flushPendingWrites() {
+        synchronized (mWriteLock) {
+            final SettingsWrite write;
+            synchronized (mPendingWriteLock) {
+                write = mPendingWrite;
+                mPendingWrite = null;
+            }
+            if (write == null) {
+                return;
             }
-
-            for (final PackageSetting pkg : mDisabledSysPackages.values()) {
-                writeDisabledSysPackageLPr(serializer, pkg);
+            final long ioStartTime = SystemClock.uptimeMillis();
+            if (write.fileOps != null) {
+                for (int i = 0; i < write.fileOps.size(); i++) {
+                    write.fileOps.get(i).run();
+                }
             }
-
-            for (final SharedUserSetting usr : mSharedUsers.values()) {
-                serializer.startTag(null, "shared-user");
-                serializer.attribute(null, ATTR_NAME, usr.name);
-                serializer.attribute(null, "userId",
-                        Integer.toString(usr.userId));
-                usr.signatures.writeXml(serializer, "sigs", mPastSignatures);
-                writePermissionsLPr(serializer, usr.getPermissionsState()
-                        .getInstallPermissionStates());
-                serializer.endTag(null, "shared-user");
+            boolean written = true;
+            if (write.document != null) {
+                written = persistSettings(write.document);
             }
-
-            if (mRenamedPackages.size() > 0) {
-                for (Map.Entry<String, String> e : mRenamedPackages.entrySet()) {
-                    serializer.startTag(null, "renamed-package");
-                    serializer.attribute(null, "new", e.getKey());
-                    serializer.attribute(null, "old", e.getValue());
-                    serializer.endTag(null, "renamed-package");
-                }
+            if (written && write.packageList != null) {
+                writePackageListFile(write.packageList);
             }
-
-            final int numIVIs = mRestoredIntentFilterVerifications.size();
-            if (numIVIs > 0) {
-                if (DEBUG_DOMAIN_VERIFICATION) {
-                    Slog.i(TAG, "Writing restored-ivi entries to packages.xml");
-                }
-                serializer.startTag(null, "restored-ivi");
-                for (int i = 0; i < numIVIs; i++) {
-                    IntentFilterVerificationInfo ivi = mRestoredIntentFilterVerifications.valueAt(i);
-                    writeDomainVerificationsLPr(serializer, ivi);
+            if (write.packageRestrictions != null) {
+                for (int i = 0; i < write.packageRestrictions.size(); i++) {
+                    persistPackageRestrictions(write.packageRestrictions.keyAt(i),
+                            write.packageRestrictions.valueAt(i), write.startTime);
                 }
-                serializer.endTag(null, "restored-ivi");
-            } else {
-                if (DEBUG_DOMAIN_VERIFICATION) {
-                    Slog.i(TAG, "  no restored IVI entries to write");
+            }
+            if (write.runtimePermissions != null) {
+                for (int i = 0; i < write.runtimePermissions.size(); i++) {
+                    mRuntimePermissionsPersistence.persistPermissions(
+                            write.runtimePermissions.keyAt(i),
+                            write.runtimePermissions.valueAt(i));
                 }
             }
+            final long now = SystemClock.uptimeMillis();
+            synchronized (mPendingWriteLock) {
+                mWriteStats.onPersisted(now - ioStartTime);
+                mPersistedWriteId = write.id;
+                mPendingWriteLock.notifyAll();
+            }
+            if (written && write.document != null) {
+                com.android.internal.logging.EventLogTags.writeCommitSysConfigFile(
+                        "package", now - write.startTime);
+            }
+        }
+    }
 
-            mKeySetManagerService.writeKeySetManagerServiceLPr(serializer);
+    /** Encodes the recorded settings in the configured format and writes them. */
+    @GuardedBy("mWriteLock")
+    private boolean persistSettings(XmlEventRecorder document) {
+        try {
+            if (USE_BINARY_SETTINGS) {
+                final PackageSettingsStore.RecordSerializer records =
+                        mSettingsStore.newSerializer();
+                document.replay(records);
+                return persistBinarySettings(records);
+            }
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final XmlSerializer serializer = new FastXmlSerializer();
+            serializer.setOutput(bytes, StandardCharsets.UTF_8.name());
+            document.replay(serializer);
+            return persistXmlSettings(bytes.toByteArray());
+        } catch (IOException e) {
+            Slog.wtf(PackageManagerService.TAG, "Unable to write package manager settings, "
+                    + "current changes will be lost at reboot", e);
+            return false;
+        }
+    }
 
-            serializer.endTag(null, "packages");
+    /**
+     * Writes settings to the binary store, which only appends the parts that changed since the
+     * last write. Any legacy packages.xml is only removed once the binary store has been read
+     * back successfully, so that a corrupt store falls back to the last good XML rather than to
+     * no settings at all.
+     */
+    @GuardedBy("mWriteLock")
+    private boolean persistBinarySettings(PackageSettingsStore.RecordSerializer records) {
+        try {
+            mSettingsStore.commit(records);
+        } catch (IOException e) {
+            Slog.wtf(PackageManagerService.TAG, "Unable to write package manager settings, "
+                    + "current changes will be lost at reboot", e);
+            return false;
+        }
+        if (mBinarySettingsRead) {
+            mSettingsFilename.delete();
+            mBackupSettingsFilename.delete();
+        }
+        return true;
+    }
 
-            serializer.endDocument();
+    @GuardedBy("mWriteLock")
+    private boolean persistXmlSettings(byte[] xml) {
+        // Keep the old settings around until we know the new ones have
+        // been successfully written.
+        if (mSettingsFilename.exists()) {
+            // Presence of backup settings file indicates that we failed
+            // to persist settings earlier. So preserve the older
+            // backup for future reference since the current settings
+            // might have been corrupted.
+            if (!mBackupSettingsFilename.exists()) {
+                if (!mSettingsFilename.renameTo(mBackupSettingsFilename)) {
+                    Slog.wtf(PackageManagerService.TAG,
+                            "Unable to backup package manager settings, "
+                            + " current changes will be lost at reboot");
+                    return false;
+                }
+            } else {
+                mSettingsFilename.delete();
+                Slog.w(PackageManagerService.TAG, "Preserving older settings backup");
+            }
+        }
 
-            str.flush();
+        try {
+            FileOutputStream fstr = new FileOutputStream(mSettingsFilename);
+            fstr.write(xml);
             FileUtils.sync(fstr);
-            str.close();
+            fstr.close();
 
             // New settings successfully written, old ones are no longer
             // needed.
@@ -2571,14 +2741,9 @@ public final class Settings {
                     FileUtils.S_IRUSR|FileUtils.S_IWUSR
                     |FileUtils.S_IRGRP|FileUtils.S_IWGRP,
                     -1, -1);
-
-            writeKernelMappingLPr();
-            writePackageListLPr();
-            writeAllUsersPackageRestrictionsLPr();
-            writeAllRuntimePermissionsLPr();
-            com.android.internal.logging.EventLogTags.writeCommitSysConfigFile(
-                    "package", SystemClock.uptimeMillis() - startTime);
-            return;
+            // Binary settings take precedence when reading, so they must not outlive this write.
+            mSettingsStore.delete();
+            return true;
 
         } catch(java.io.IOException e) {
             Slog.wtf(PackageManagerService.TAG, "Unable to write package manager settings, "
@@ -2591,7 +2756,98 @@ public final class Settings {
                         + mSettingsFilename);
             }
         }
-        //Debug.stopMethodTracing();
+        return false;
+    }
+
+    private void writeSettingsLPr(XmlSerializer serializer) throws IOException {
+        serializer.startDocument(null, true);
+        serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
+
+        serializer.startTag(null, "packages");
+
+        for (int i = 0; i < mVersion.size(); i++) {
+            final String volumeUuid = mVersion.keyAt(i);
+            final VersionInfo ver = mVersion.valueAt(i);
+
+            serializer.startTag(null, TAG_VERSION);
+            XmlUtils.writeStringAttribute(serializer, ATTR_VOLUME_UUID, volumeUuid);
+            XmlUtils.writeIntAttribute(serializer, ATTR_SDK_VERSION, ver.sdkVersion);
+            XmlUtils.writeIntAttribute(serializer, ATTR_DATABASE_VERSION, ver.databaseVersion);
+            XmlUtils.writeStringAttribute(serializer, ATTR_FINGERPRINT, ver.fingerprint);
+            serializer.endTag(null, TAG_VERSION);
+        }
+
+        if (mVerifierDeviceIdentity != null) {
+            serializer.startTag(null, "verifier");
+            serializer.attribute(null, "device", mVerifierDeviceIdentity.toString());
+            serializer.endTag(null, "verifier");
+        }
+
+        if (mReadExternalStorageEnforced != null) {
+            serializer.startTag(null, TAG_READ_EXTERNAL_STORAGE);
+            serializer.attribute(
+                    null, ATTR_ENFORCEMENT, mReadExternalStorageEnforced ? "1" : "0");
+            serializer.endTag(null, TAG_READ_EXTERNAL_STORAGE);
+        }
+
+        serializer.startTag(null, "permission-trees");
+        mPermissions.writePermissionTrees(serializer);
+        serializer.endTag(null, "permission-trees");
+
+        serializer.startTag(null, "permissions");
+        mPermissions.writePermissions(serializer);
+        serializer.endTag(null, "permissions");
+
+        for (final PackageSetting pkg : mPackages.values()) {
+            writePackageLPr(serializer, pkg);
+        }
+
+        for (final PackageSetting pkg : mDisabledSysPackages.values()) {
+            writeDisabledSysPackageLPr(serializer, pkg);
+        }
+
+        for (final SharedUserSetting usr : mSharedUsers.values()) {
+            serializer.startTag(null, "shared-user");
+            serializer.attribute(null, ATTR_NAME, usr.name);
+            serializer.attribute(null, "userId",
+                    Integer.toString(usr.userId));
+            usr.signatures.writeXml(serializer, "sigs", mPastSignatures);
+            writePermissionsLPr(serializer, usr.getPermissionsState()
+                    .getInstallPermissionStates());
+            serializer.endTag(null, "shared-user");
+        }
+
+        if (mRenamedPackages.size() > 0) {
+            for (Map.Entry<String, String> e : mRenamedPackages.entrySet()) {
+                serializer.startTag(null, "renamed-package");
+                serializer.attribute(null, "new", e.getKey());
+                serializer.attribute(null, "old", e.getValue());
+                serializer.endTag(null, "renamed-package");
+            }
+        }
+
+        final int numIVIs = mRestoredIntentFilterVerifications.size();
+        if (numIVIs > 0) {
+            if (DEBUG_DOMAIN_VERIFICATION) {
+                Slog.i(TAG, "Writing restored-ivi entries to packages.xml");
+            }
+            serializer.startTag(null, "restored-ivi");
+            for (int i = 0; i < numIVIs; i++) {
+                IntentFilterVerificationInfo ivi = mRestoredIntentFilterVerifications.valueAt(i);
+                writeDomainVerificationsLPr(serializer, ivi);
+            }
+            serializer.endTag(null, "restored-ivi");
+        } else {
+            if (DEBUG_DOMAIN_VERIFICATION) {
+                Slog.i(TAG, "  no restored IVI entries to write");
+            }
+        }
+
+        mKeySetManagerService.writeKeySetManagerServiceLPr(serializer);
+
+        serializer.endTag(null, "packages");
+
+        serializer.endDocument();
     }
 
     private void writeKernelRemoveUserLPr(int userId) {
@@ -2606,26 +2862,28 @@ public final class Settings {
     void writeKernelMappingLPr() {
         if (mKernelMappingFilename == null) return;
 
-        final String[] known = mKernelMappingFilename.list();
-        final ArraySet<String> knownSet = new ArraySet<>(known.length);
-        for (String name : known) {
-            knownSet.add(name);
-        }
-
+        final ArraySet<String> claimed = new ArraySet<>(mPackages.size());
         for (final PackageSetting ps : mPackages.values()) {
             // Package is actively claimed
-            knownSet.remove(ps.name);
+            claimed.add(ps.name);
             writeKernelMappingLPr(ps);
         }
+        for (int i = mKernelMapping.size() - 1; i >= 0; i--) {
+            if (!claimed.contains(mKernelMapping.keyAt(i))) {
+                mKernelMapping.removeAt(i);
+            }
+        }
 
         // Remove any unclaimed mappings
-        for (int i = 0; i < knownSet.size(); i++) {
-            final String name = knownSet.valueAt(i);
-            if (DEBUG_KERNEL) Slog.d(TAG, "Dropping mapping " + name);
-
-            mKernelMapping.remove(name);
-            new File(mKernelMappingFilename, name).delete();
-        }
+        scheduleFileOpLPr(() -> {
+            final String[] known = mKernelMappingFilename.list();
+            for (int i = 0; known != null && i < known.length; i++) {
+                if (!claimed.contains(known[i])) {
+                    if (DEBUG_KERNEL) Slog.d(TAG, "Dropping mapping " + known[i]);
+                    new File(mKernelMappingFilename, known[i]).delete();
+                }
+            }
+        });
     }
 
     void writeKernelMappingLPr(PackageSetting ps) {
@@ -2644,7 +2902,7 @@ public final class Settings {
         final File dir = new File(mKernelMappingFilename, name);
 
         if (firstTime) {
-            dir.mkdir();
+            scheduleFileOpLPr(dir::mkdir);
             // Create a new mapping state
             cur = new KernelPackageState();
             mKernelMapping.put(name, cur);
@@ -2683,20 +2941,44 @@ public final class Settings {
         }
     }
 
+    /** Writes the value to the kernel file on the I/O thread, after the changes before it. */
     private void writeIntToFile(File file, int value) {
-        try {
-            FileUtils.bytesToFile(file.getAbsolutePath(),
-                    Integer.toString(value).getBytes(StandardCharsets.US_ASCII));
-        } catch (IOException ignored) {
-            Slog.w(TAG, "Couldn't write " + value + " to " + file.getAbsolutePath());
-        }
+        scheduleFileOpLPr(() -> {
+            try {
+                FileUtils.bytesToFile(file.getAbsolutePath(),
+                        Integer.toString(value).getBytes(StandardCharsets.US_ASCII));
+            } catch (IOException ignored) {
+                Slog.w(TAG, "Couldn't write " + value + " to " + file.getAbsolutePath());
+            }
+        });
+    }
+
+    /** Runs a change to a file on the I/O thread, in order with the other settings writes. */
+    private long scheduleFileOpLPr(Runnable op) {
+        final SettingsWrite write = new SettingsWrite(SystemClock.uptimeMillis());
+        write.fileOps = new ArrayList<>(1);
+        write.fileOps.add(op);
+        return scheduleWrite(write);
+    }
+
+    long writePackageListLPr() {
+        return writePackageListLPr(-1);
     }
 
-    void writePackageListLPr() {
-        writePackageListLPr(-1);
+    /**
+     * Writes packages.list on the I/O thread. Its native readers expect it to be up to date once
+     * a user is created or removed, so the callers wait for it outside the lock.
+     *
+     * @return the id of the write, see {@link #awaitWrite}
+     */
+    long writePackageListLPr(int creatingUserId) {
+        final SettingsWrite write = new SettingsWrite(SystemClock.uptimeMillis());
+        write.packageList = buildPackageListLPr(creatingUserId);
+        return scheduleWrite(write);
     }
 
-    void writePackageListLPr(int creatingUserId) {
+    @GuardedBy("mWriteLock")
+    private void writePackageListFile(String packageList) {
         String filename = mPackageListFilename.getAbsolutePath();
         String ctx = SELinux.fileSelabelLookup(filename);
         if (ctx == null) {
@@ -2708,23 +2990,13 @@ public final class Settings {
             Slog.wtf(TAG, "Failed to set packages.list SELinux context");
         }
         try {
-            writePackageListLPrInternal(creatingUserId);
+            writePackageListFileInternal(packageList);
         } finally {
             SELinux.setFSCreateContext(null);
         }
     }
 
-    private void writePackageListLPrInternal(int creatingUserId) {
-        // Only derive GIDs for active users (not dying)
-        final List<UserInfo> users = getActiveUsers(UserManagerService.getInstance(), true);
-        int[] userIds = new int[users.size()];
-        for (int i = 0; i < userIds.length; i++) {
-            userIds[i] = users.get(i).id;
-        }
-        if (creatingUserId != -1) {
-            userIds = ArrayUtils.appendInt(userIds, creatingUserId);
-        }
-
+    private void writePackageListFileInternal(String packageList) {
         // Write package list file now, use a JournaledFile.
         File tempFile = new File(mPackageListFilename.getAbsolutePath() + ".tmp");
         JournaledFile journal = new JournaledFile(mPackageListFilename, tempFile);
@@ -2736,70 +3008,7 @@ public final class Settings {
             fstr = new FileOutputStream(writeTarget);
             writer = new BufferedWriter(new OutputStreamWriter(fstr, Charset.defaultCharset()));
             FileUtils.setPermissions(fstr.getFD(), 0640, SYSTEM_UID, PACKAGE_INFO_GID);
-
-            StringBuilder sb = new StringBuilder();
-            for (final PackageSetting pkg : mPackages.values()) {
-                // TODO(b/135203078): This doesn't handle multiple users
-                final String dataPath = pkg.pkg == null ? null :
-                        PackageInfoWithoutStateUtils.getDataDir(pkg.pkg,
-                                UserHandle.USER_SYSTEM).getAbsolutePath();
-
-                if (pkg.pkg == null || dataPath == null) {
-                    if (!"android".equals(pkg.name)) {
-                        Slog.w(TAG, "Skipping " + pkg + " due to missing metadata");
-                    }
-                    continue;
-                }
-
-                final boolean isDebug = pkg.pkg.isDebuggable();
-                final int[] gids = pkg.getPermissionsState().computeGids(userIds);
-
-                // Avoid any application that has a space in its path.
-                if (dataPath.indexOf(' ') >= 0)
-                    continue;
-
-                // we store on each line the following information for now:
-                //
-                // pkgName    - package name
-                // userId     - application-specific user id
-                // debugFlag  - 0 or 1 if the package is debuggable.
-                // dataPath   - path to package's data path
-                // seinfo     - seinfo label for the app (assigned at install time)
-                // gids       - supplementary gids this app launches with
-                // profileableFromShellFlag  - 0 or 1 if the package is profileable from shell.
-                // longVersionCode - integer version of the package.
-                //
-                // NOTE: We prefer not to expose all ApplicationInfo flags for now.
-                //
-                // DO NOT MODIFY THIS FORMAT UNLESS YOU CAN ALSO MODIFY ITS USERS
-                // FROM NATIVE CODE. AT THE MOMENT, LOOK AT THE FOLLOWING SOURCES:
-                //   system/core/libpackagelistparser
-                //
-                sb.setLength(0);
-                sb.append(pkg.pkg.getPackageName());
-                sb.append(" ");
-                sb.append(pkg.pkg.getUid());
-                sb.append(isDebug ? " 1 " : " 0 ");
-                sb.append(dataPath);
-                sb.append(" ");
-                sb.append(AndroidPackageUtils.getSeInfo(pkg.pkg, pkg));
-                sb.append(" ");
-                if (gids != null && gids.length > 0) {
-                    sb.append(gids[0]);
-                    for (int i = 1; i < gids.length; i++) {
-                        sb.append(",");
-                        sb.append(gids[i]);
-                    }
-                } else {
-                    sb.append("none");
-                }
-                sb.append(" ");
-                sb.append(pkg.pkg.isProfileableByShell() ? "1" : "0");
-                sb.append(" ");
-                sb.append(pkg.pkg.getLongVersionCode());
-                sb.append("\n");
-                writer.append(sb);
-            }
+            writer.append(packageList);
             writer.flush();
             FileUtils.sync(fstr);
             writer.close();
@@ -2811,6 +3020,81 @@ public final class Settings {
         }
     }
 
+    private String buildPackageListLPr(int creatingUserId) {
+        // Only derive GIDs for active users (not dying)
+        final List<UserInfo> users = getActiveUsers(UserManagerService.getInstance(), true);
+        int[] userIds = new int[users.size()];
+        for (int i = 0; i < userIds.length; i++) {
+            userIds[i] = users.get(i).id;
+        }
+        if (creatingUserId != -1) {
+            userIds = ArrayUtils.appendInt(userIds, creatingUserId);
+        }
+
+        final StringBuilder sb = new StringBuilder();
+        for (final PackageSetting pkg : mPackages.values()) {
+            // TODO(b/135203078): This doesn't handle multiple users
+            final String dataPath = pkg.pkg == null ? null :
+                    PackageInfoWithoutStateUtils.getDataDir(pkg.pkg,
+                            UserHandle.USER_SYSTEM).getAbsolutePath();
+
+            if (pkg.pkg == null || dataPath == null) {
+                if (!"android".equals(pkg.name)) {
+                    Slog.w(TAG, "Skipping " + pkg + " due to missing metadata");
+                }
+                continue;
+            }
+
+            final boolean isDebug = pkg.pkg.isDebuggable();
+            final int[] gids = pkg.getPermissionsState().computeGids(userIds);
+
+            // Avoid any application that has a space in its path.
+            if (dataPath.indexOf(' ') >= 0)
+                continue;
+
+            // we store on each line the following information for now:
+            //
+            // pkgName    - package name
+            // userId     - application-specific user id
+            // debugFlag  - 0 or 1 if the package is debuggable.
+            // dataPath   - path to package's data path
+            // seinfo     - seinfo label for the app (assigned at install time)
+            // gids       - supplementary gids this app launches with
+            // profileableFromShellFlag  - 0 or 1 if the package is profileable from shell.
+            // longVersionCode - integer version of the package.
+            //
+            // NOTE: We prefer not to expose all ApplicationInfo flags for now.
+            //
+            // DO NOT MODIFY THIS FORMAT UNLESS YOU CAN ALSO MODIFY ITS USERS
+            // FROM NATIVE CODE. AT THE MOMENT, LOOK AT THE FOLLOWING SOURCES:
+            //   system/core/libpackagelistparser
+            //
+            sb.append(pkg.pkg.getPackageName());
+            sb.append(" ");
+            sb.append(pkg.pkg.getUid());
+            sb.append(isDebug ? " 1 " : " 0 ");
+            sb.append(dataPath);
+            sb.append(" ");
+            sb.append(AndroidPackageUtils.getSeInfo(pkg.pkg, pkg));
+            sb.append(" ");
+            if (gids != null && gids.length > 0) {
+                sb.append(gids[0]);
+                for (int i = 1; i < gids.length; i++) {
+                    sb.append(",");
+                    sb.append(gids[i]);
+                }
+            } else {
+                sb.append("none");
+            }
+            sb.append(" ");
+            sb.append(pkg.pkg.isProfileableByShell() ? "1" : "0");
+            sb.append(" ");
+            sb.append(pkg.pkg.getLongVersionCode());
+            sb.append("\n");
+        }
+        return sb.toString();
+    }
+
     void writeDisabledSysPackageLPr(XmlSerializer serializer, final PackageSetting pkg)
             throws java.io.IOException {
         serializer.startTag(null, "updated-package");
@@ -2977,9 +3261,204 @@ public final class Settings {
         bp.writeLPr(serializer);
     }
 
+    /**
+     * Reads the binary settings. If they can't be parsed, what was read of them is dropped so
+     * that the XML settings can be read instead.
+     *
+     * @return whether the binary settings were read
+     */
+    private boolean readBinarySettingsLPw(XmlPullParser parser) {
+        mPendingPackages.clear();
+        mPastSignatures.clear();
+        mKeySetRefs.clear();
+        mInstallerPackages.clear();
+        // The shared users of the system are added before the settings are read
+        final ArrayMap<String, SharedUserSetting> sharedUsers = new ArrayMap<>(mSharedUsers);
+        final ArrayList<SettingBase> appIds = new ArrayList<>(mAppIds);
+        final SparseArray<SettingBase> otherAppIds = mOtherAppIds.clone();
+        final int firstAvailableUid = mFirstAvailableUid;
+
+        String error;
+        try {
+            if (readSettingsLPw(parser)) {
+                synchronized (mWriteLock) {
+                    mBinarySettingsRead = true;
+                }
+                return true;
+            }
+            error = "No start tag found";
+        } catch (XmlPullParserException | java.io.IOException | RuntimeException e) {
+            error = e.toString();
+        }
+        mReadMessages.append("Error reading binary settings: " + error
+                + ", falling back to XML\n");
+        PackageManagerService.reportSettingsProblem(Log.ERROR,
+                "Error reading binary settings, falling back to XML: " + error);
+        Slog.wtf(PackageManagerService.TAG, "Error reading binary package manager settings: "
+                + error);
+        clearReadSettingsLPw();
+        mSharedUsers.clear();
+        mSharedUsers.putAll(sharedUsers);
+        mAppIds.clear();
+        mAppIds.addAll(appIds);
+        mOtherAppIds.clear();
+        for (int i = 0; i < otherAppIds.size(); i++) {
+            mOtherAppIds.put(otherAppIds.keyAt(i), otherAppIds.valueAt(i));
+        }
+        mFirstAvailableUid = firstAvailableUid;
+        return false;
+    }
+
+    /**
+     * Drops the state read from a settings file which turned out to be unreadable, except for
+     * the shared users and app ids, which the caller restores.
+     */
+    private void clearReadSettingsLPw() {
+        mPackages.clear();
+        mDisabledSysPackages.clear();
+        mRenamedPackages.clear();
+        mRestoredIntentFilterVerifications.clear();
+        mVersion.clear();
+        mVerifierDeviceIdentity = null;
+        mReadExternalStorageEnforced = null;
+        mPreferredActivities.remove(UserHandle.USER_SYSTEM);
+        mPersistentPreferredActivities.remove(UserHandle.USER_SYSTEM);
+        mCrossProfileIntentResolvers.remove(UserHandle.USER_SYSTEM);
+        mDefaultBrowserApp.remove(UserHandle.USER_SYSTEM);
+        mKeySetManagerService.clearLPw();
+        mPendingPackages.clear();
+        mPastSignatures.clear();
+        mKeySetRefs.clear();
+        mInstallerPackages.clear();
+        // Permissions defined by packages are overwritten by the XML read, and those of packages
+        // which turn out to be gone are pruned with them once the packages are scanned.
+    }
+
+    /**
+     * Reads the settings document into the package lists and the other settings.
+     *
+     * @return false if the document has no start tag
+     */
+    private boolean readSettingsLPw(XmlPullParser parser)
+            throws XmlPullParserException, java.io.IOException {
+        int type;
+        while ((type = parser.next()) != XmlPullParser.START_TAG
+                && type != XmlPullParser.END_DOCUMENT) {
+            ;
+        }
+
+        if (type != XmlPullParser.START_TAG) {
+            return false;
+        }
+
+        int outerDepth = parser.getDepth();
+        while ((type = parser.next()) != XmlPullParser.END_DOCUMENT
+                && (type != XmlPullParser.END_TAG || parser.getDepth() > outerDepth)) {
+            if (type == XmlPullParser.END_TAG || type == XmlPullParser.TEXT) {
+                continue;
+            }
+
+            String tagName = parser.getName();
+            if (tagName.equals("package")) {
+                readPackageLPw(parser);
+            } else if (tagName.equals("permissions")) {
+                mPermissions.readPermissions(parser);
+            } else if (tagName.equals("permission-trees")) {
+                mPermissions.readPermissionTrees(parser);
+            } else if (tagName.equals("shared-user")) {
+                readSharedUserLPw(parser);
+            } else if (tagName.equals("preferred-packages")) {
+                // no longer used.
+            } else if (tagName.equals("preferred-activities")) {
+                // Upgrading from old single-user implementation;
+                // these are the preferred activities for user 0.
+                readPreferredActivitiesLPw(parser, 0);
+            } else if (tagName.equals(TAG_PERSISTENT_PREFERRED_ACTIVITIES)) {
+                // TODO: check whether this is okay! as it is very
+                // similar to how preferred-activities are treated
+                readPersistentPreferredActivitiesLPw(parser, 0);
+            } else if (tagName.equals(TAG_CROSS_PROFILE_INTENT_FILTERS)) {
+                // TODO: check whether this is okay! as it is very
+                // similar to how preferred-activities are treated
+                readCrossProfileIntentFiltersLPw(parser, 0);
+            } else if (tagName.equals(TAG_DEFAULT_BROWSER)) {
+                readDefaultAppsLPw(parser, 0);
+            } else if (tagName.equals("updated-package")) {
+                readDisabledSysPackageLPw(parser);
+            } else if (tagName.equals("renamed-package")) {
+                String nname = parser.getAttributeValue(null, "new");
+                String oname = parser.getAttributeValue(null, "old");
+                if (nname != null && oname != null) {
+                    mRenamedPackages.put(nname, oname);
+                }
+            } else if (tagName.equals("restored-ivi")) {
+                readRestoredIntentFilterVerifications(parser);
+            } else if (tagName.equals("last-platform-version")) {
+                // Upgrade from older XML schema
+                final VersionInfo internal = findOrCreateVersion(
+                        StorageManager.UUID_PRIVATE_INTERNAL);
+                final VersionInfo external = findOrCreateVersion(
+                        StorageManager.UUID_PRIMARY_PHYSICAL);
+
+                internal.sdkVersion = XmlUtils.readIntAttribute(parser, "internal", 0);
+                external.sdkVersion = XmlUtils.readIntAttribute(parser, "external", 0);
+                internal.fingerprint = external.fingerprint =
+                        XmlUtils.readStringAttribute(parser, "fingerprint");
+
+            } else if (tagName.equals("database-version")) {
+                // Upgrade from older XML schema
+                final VersionInfo internal = findOrCreateVersion(
+                        StorageManager.UUID_PRIVATE_INTERNAL);
+                final VersionInfo external = findOrCreateVersion(
+                        StorageManager.UUID_PRIMARY_PHYSICAL);
+
+                internal.databaseVersion = XmlUtils.readIntAttribute(parser, "internal", 0);
+                external.databaseVersion = XmlUtils.readIntAttribute(parser, "external", 0);
+
+            } else if (tagName.equals("verifier")) {
+                final String deviceIdentity = parser.getAttributeValue(null, "device");
+                try {
+                    mVerifierDeviceIdentity = VerifierDeviceIdentity.parse(deviceIdentity);
+                } catch (IllegalArgumentException e) {
+                    Slog.w(PackageManagerService.TAG, "Discard invalid verifier device id: "
+                            + e.getMessage());
+                }
+            } else if (TAG_READ_EXTERNAL_STORAGE.equals(tagName)) {
+                final String enforcement = parser.getAttributeValue(null, ATTR_ENFORCEMENT);
+                mReadExternalStorageEnforced =
+                        "1".equals(enforcement) ? Boolean.TRUE : Boolean.FALSE;
+            } else if (tagName.equals("keyset-settings")) {
+                mKeySetManagerService.readKeySetsLPw(parser, mKeySetRefs);
+            } else if (TAG_VERSION.equals(tagName)) {
+                final String volumeUuid = XmlUtils.readStringAttribute(parser,
+                        ATTR_VOLUME_UUID);
+                final VersionInfo ver = findOrCreateVersion(volumeUuid);
+                ver.sdkVersion = XmlUtils.readIntAttribute(parser, ATTR_SDK_VERSION);
+                ver.databaseVersion = XmlUtils.readIntAttribute(parser, ATTR_DATABASE_VERSION);
+                ver.fingerprint = XmlUtils.readStringAttribute(parser, ATTR_FINGERPRINT);
+            } else {
+                Slog.w(PackageManagerService.TAG, "Unknown element under <packages>: "
+                        + parser.getName());
+                XmlUtils.skipCurrentTag(parser);
+            }
+        }
+        return true;
+    }
+
     boolean readLPw(@NonNull List<UserInfo> users) {
         FileInputStream str = null;
-        if (mBackupSettingsFilename.exists()) {
+        // Binary settings are only left on disk while they are the most recent copy.
+        XmlPullParser binaryParser;
+        synchronized (mWriteLock) {
+            // Don't read the store while a write is committing to it.
+            binaryParser = mSettingsStore.openParser();
+        }
+        if (binaryParser != null && !readBinarySettingsLPw(binaryParser)) {
+            // packages.xml is only deleted once binary settings have been read back, so it is
+            // still there for binary settings which have never been read successfully.
+            binaryParser = null;
+        }
+        if (binaryParser == null && mBackupSettingsFilename.exists()) {
             try {
                 str = new FileInputStream(mBackupSettingsFilename);
                 mReadMessages.append("Reading from backup settings file\n");
@@ -2998,14 +3477,14 @@ public final class Settings {
             }
         }
 
-        mPendingPackages.clear();
-        mPastSignatures.clear();
-        mKeySetRefs.clear();
-        mInstallerPackages.clear();
+        if (binaryParser == null) {
+            mPendingPackages.clear();
+            mPastSignatures.clear();
+            mKeySetRefs.clear();
+            mInstallerPackages.clear();
 
-        try {
-            if (str == null) {
-                if (!mSettingsFilename.exists()) {
+            try {
+                if (str == null && !mSettingsFilename.exists()) {
                     mReadMessages.append("No settings file found\n");
                     PackageManagerService.reportSettingsProblem(Log.INFO,
                             "No settings file; creating initial state");
@@ -3015,129 +3494,34 @@ public final class Settings {
                     findOrCreateVersion(StorageManager.UUID_PRIMARY_PHYSICAL).forceCurrent();
                     return false;
                 }
-                str = new FileInputStream(mSettingsFilename);
-            }
-            XmlPullParser parser = Xml.newPullParser();
-            parser.setInput(str, StandardCharsets.UTF_8.name());
-
-            int type;
-            while ((type = parser.next()) != XmlPullParser.START_TAG
-                    && type != XmlPullParser.END_DOCUMENT) {
-                ;
-            }
-
-            if (type != XmlPullParser.START_TAG) {
-                mReadMessages.append("No start tag found in settings file\n");
-                PackageManagerService.reportSettingsProblem(Log.WARN,
-                        "No start tag found in package manager settings");
-                Slog.wtf(PackageManagerService.TAG,
-                        "No start tag found in package manager settings");
-                return false;
-            }
-
-            int outerDepth = parser.getDepth();
-            while ((type = parser.next()) != XmlPullParser.END_DOCUMENT
-                    && (type != XmlPullParser.END_TAG || parser.getDepth() > outerDepth)) {
-                if (type == XmlPullParser.END_TAG || type == XmlPullParser.TEXT) {
-                    continue;
+                if (str == null) {
+                    str = new FileInputStream(mSettingsFilename);
                 }
+                final XmlPullParser parser = Xml.newPullParser();
+                parser.setInput(str, StandardCharsets.UTF_8.name());
 
-                String tagName = parser.getName();
-                if (tagName.equals("package")) {
-                    readPackageLPw(parser);
-                } else if (tagName.equals("permissions")) {
-                    mPermissions.readPermissions(parser);
-                } else if (tagName.equals("permission-trees")) {
-                    mPermissions.readPermissionTrees(parser);
-                } else if (tagName.equals("shared-user")) {
-                    readSharedUserLPw(parser);
-                } else if (tagName.equals("preferred-packages")) {
-                    // no longer used.
-                } else if (tagName.equals("preferred-activities")) {
-                    // Upgrading from old single-user implementation;
-                    // these are the preferred activities for user 0.
-                    readPreferredActivitiesLPw(parser, 0);
-                } else if (tagName.equals(TAG_PERSISTENT_PREFERRED_ACTIVITIES)) {
-                    // TODO: check whether this is okay! as it is very
-                    // similar to how preferred-activities are treated
-                    readPersistentPreferredActivitiesLPw(parser, 0);
-                } else if (tagName.equals(TAG_CROSS_PROFILE_INTENT_FILTERS)) {
-                    // TODO: check whether this is okay! as it is very
-                    // similar to how preferred-activities are treated
-                    readCrossProfileIntentFiltersLPw(parser, 0);
-                } else if (tagName.equals(TAG_DEFAULT_BROWSER)) {
-                    readDefaultAppsLPw(parser, 0);
-                } else if (tagName.equals("updated-package")) {
-                    readDisabledSysPackageLPw(parser);
-                } else if (tagName.equals("renamed-package")) {
-                    String nname = parser.getAttributeValue(null, "new");
-                    String oname = parser.getAttributeValue(null, "old");
-                    if (nname != null && oname != null) {
-                        mRenamedPackages.put(nname, oname);
-                    }
-                } else if (tagName.equals("restored-ivi")) {
-                    readRestoredIntentFilterVerifications(parser);
-                } else if (tagName.equals("last-platform-version")) {
-                    // Upgrade from older XML schema
-                    final VersionInfo internal = findOrCreateVersion(
-                            StorageManager.UUID_PRIVATE_INTERNAL);
-                    final VersionInfo external = findOrCreateVersion(
-                            StorageManager.UUID_PRIMARY_PHYSICAL);
-
-                    internal.sdkVersion = XmlUtils.readIntAttribute(parser, "internal", 0);
-                    external.sdkVersion = XmlUtils.readIntAttribute(parser, "external", 0);
-                    internal.fingerprint = external.fingerprint =
-                            XmlUtils.readStringAttribute(parser, "fingerprint");
-
-                } else if (tagName.equals("database-version")) {
-                    // Upgrade from older XML schema
-                    final VersionInfo internal = findOrCreateVersion(
-                            StorageManager.UUID_PRIVATE_INTERNAL);
-                    final VersionInfo external = findOrCreateVersion(
-                            StorageManager.UUID_PRIMARY_PHYSICAL);
-
-                    internal.databaseVersion = XmlUtils.readIntAttribute(parser, "internal", 0);
-                    external.databaseVersion = XmlUtils.readIntAttribute(parser, "external", 0);
-
-                } else if (tagName.equals("verifier")) {
-                    final String deviceIdentity = parser.getAttributeValue(null, "device");
-                    try {
-                        mVerifierDeviceIdentity = VerifierDeviceIdentity.parse(deviceIdentity);
-                    } catch (IllegalArgumentException e) {
-                        Slog.w(PackageManagerService.TAG, "Discard invalid verifier device id: "
-                                + e.getMessage());
-                    }
-                } else if (TAG_READ_EXTERNAL_STORAGE.equals(tagName)) {
-                    final String enforcement = parser.getAttributeValue(null, ATTR_ENFORCEMENT);
-                    mReadExternalStorageEnforced =
-                            "1".equals(enforcement) ? Boolean.TRUE : Boolean.FALSE;
-                } else if (tagName.equals("keyset-settings")) {
-                    mKeySetManagerService.readKeySetsLPw(parser, mKeySetRefs);
-                } else if (TAG_VERSION.equals(tagName)) {
-                    final String volumeUuid = XmlUtils.readStringAttribute(parser,
-                            ATTR_VOLUME_UUID);
-                    final VersionInfo ver = findOrCreateVersion(volumeUuid);
-                    ver.sdkVersion = XmlUtils.readIntAttribute(parser, ATTR_SDK_VERSION);
-                    ver.databaseVersion = XmlUtils.readIntAttribute(parser, ATTR_DATABASE_VERSION);
-                    ver.fingerprint = XmlUtils.readStringAttribute(parser, ATTR_FINGERPRINT);
-                } else {
-                    Slog.w(PackageManagerService.TAG, "Unknown element under <packages>: "
-                            + parser.getName());
-                    XmlUtils.skipCurrentTag(parser);
+                if (!readSettingsLPw(parser)) {
+                    mReadMessages.append("No start tag found in settings file\n");
+                    PackageManagerService.reportSettingsProblem(Log.WARN,
+                            "No start tag found in package manager settings");
+                    Slog.wtf(PackageManagerService.TAG,
+                            "No start tag found in package manager settings");
+                    return false;
                 }
-            }
-
-            str.close();
 
-        } catch (XmlPullParserException e) {
-            mReadMessages.append("Error reading: " + e.toString());
-            PackageManagerService.reportSettingsProblem(Log.ERROR, "Error reading settings: " + e);
-            Slog.wtf(PackageManagerService.TAG, "Error reading package manager settings", e);
+                str.close();
+            } catch (XmlPullParserException e) {
+                mReadMessages.append("Error reading: " + e.toString());
+                PackageManagerService.reportSettingsProblem(Log.ERROR,
+                        "Error reading settings: " + e);
+                Slog.wtf(PackageManagerService.TAG, "Error reading package manager settings", e);
 
-        } catch (java.io.IOException e) {
-            mReadMessages.append("Error reading: " + e.toString());
-            PackageManagerService.reportSettingsProblem(Log.ERROR, "Error reading settings: " + e);
-            Slog.wtf(PackageManagerService.TAG, "Error reading package manager settings", e);
+            } catch (java.io.IOException e) {
+                mReadMessages.append("Error reading: " + e.toString());
+                PackageManagerService.reportSettingsProblem(Log.ERROR,
+                        "Error reading settings: " + e);
+                Slog.wtf(PackageManagerService.TAG, "Error reading package manager settings", e);
+            }
         }
 
         // If the build is setup to drop runtime permissions
@@ -4242,16 +4626,28 @@ public final class Settings {
         t.traceEnd(); // createNewUser
     }
 
-    void removeUserLPw(int userId) {
+    /**
+     * @return the id of the write of packages.list and the kernel mappings without the user, see
+     *         {@link #awaitWrite}
+     */
+    long removeUserLPw(int userId) {
         Set<Entry<String, PackageSetting>> entries = mPackages.entrySet();
         for (Entry<String, PackageSetting> entry : entries) {
             entry.getValue().removeUser(userId);
         }
         mPreferredActivities.remove(userId);
-        File file = getUserPackagesStateFile(userId);
-        file.delete();
-        file = getUserPackagesStateBackupFile(userId);
-        file.delete();
+        // The files of the user still waiting to be written would come back after the deletion
+        synchronized (mPendingWriteLock) {
+            if (mPendingWrite != null) {
+                mPendingWrite.removeUser(userId);
+            }
+        }
+        final File stateFile = getUserPackagesStateFile(userId);
+        final File stateBackupFile = getUserPackagesStateBackupFile(userId);
+        scheduleFileOpLPr(() -> {
+            stateFile.delete();
+            stateBackupFile.delete();
+        });
         removeCrossProfileIntentFiltersLPw(userId);
 
         mRuntimePermissionsPersistence.onUserRemovedLPw(userId);
@@ -4261,6 +4657,7 @@ public final class Settings {
         // Inform kernel that the user was removed, so that packages are marked uninstalled
         // for sdcardfs
         writeKernelRemoveUserLPr(userId);
+        return scheduleFileOpLPr(() -> { });
     }
 
     void removeCrossProfileIntentFiltersLPw(int userId) {
@@ -5171,6 +5568,14 @@ public final class Settings {
         pw.print(mReadMessages.toString());
     }
 
+    void dumpWriteStats(PrintWriter pw) {
+        synchronized (mPendingWriteLock) {
+            pw.print("Settings writes (async="); pw.print(ASYNC_SETTINGS_WRITES);
+                    pw.println("):");
+            mWriteStats.dump(pw, "  ");
+        }
+    }
+
     private static void dumpSplitNames(PrintWriter pw, AndroidPackage pkg) {
         if (pkg == null) {
             pw.print("unknown");
@@ -5286,11 +5691,15 @@ public final class Settings {
         }
     }
 
-    public void writeRuntimePermissionsForUserLPr(int userId, boolean sync) {
+    /**
+     * @return the id of the write when {@code sync}, see {@link #awaitWrite}; 0 otherwise
+     */
+    public long writeRuntimePermissionsForUserLPr(int userId, boolean sync) {
         if (sync) {
-            mRuntimePermissionsPersistence.writePermissionsForUserSyncLPr(userId);
+            return mRuntimePermissionsPersistence.writePermissionsForUserSyncLPr(userId);
         } else {
             mRuntimePermissionsPersistence.writePermissionsForUserAsyncLPr(userId);
+            return 0;
         }
     }
 
@@ -5446,9 +5855,14 @@ public final class Settings {
             return Build.FINGERPRINT + "?pc_version=" + version;
         }
 
-        public void writePermissionsForUserSyncLPr(int userId) {
+        /**
+         * Snapshots the permissions of the user right away instead of after the usual delay.
+         *
+         * @return the id of the write, see {@link Settings#awaitWrite}
+         */
+        public long writePermissionsForUserSyncLPr(int userId) {
             mHandler.removeMessages(userId);
-            writePermissionsSync(userId);
+            return writePermissions(userId);
         }
 
         @GuardedBy("Settings.this.mLock")
@@ -5484,8 +5898,11 @@ public final class Settings {
             }
         }
 
-        private void writePermissionsSync(int userId) {
-            RuntimePermissionsState runtimePermissions;
+        /**
+         * Snapshots the permissions of the user and hands them to the settings writer, which
+         * writes them out without the lock.
+         */
+        private long writePermissions(int userId) {
             synchronized (mPersistenceLock) {
                 mWriteScheduled.delete(userId);
 
@@ -5518,10 +5935,17 @@ public final class Settings {
                     sharedUserPermissions.put(sharedUserName, permissions);
                 }
 
-                runtimePermissions = new RuntimePermissionsState(version, fingerprint,
-                        packagePermissions, sharedUserPermissions);
+                final SettingsWrite write = new SettingsWrite(SystemClock.uptimeMillis());
+                write.runtimePermissions = new SparseArray<>(1);
+                write.runtimePermissions.put(userId, new RuntimePermissionsState(version,
+                        fingerprint, packagePermissions, sharedUserPermissions));
+                // Scheduled with the lock held so the snapshots reach the disk in order
+                return scheduleWrite(write);
             }
+        }
 
+        @GuardedBy("Settings.this.mWriteLock")
+        void persistPermissions(int userId, RuntimePermissionsState runtimePermissions) {
             mPersistence.writeForUser(runtimePermissions, UserHandle.of(userId));
         }
 
@@ -5794,11 +6218,119 @@ public final class Settings {
             public void handleMessage(Message message) {
                 final int userId = message.what;
                 Runnable callback = (Runnable) message.obj;
-                writePermissionsSync(userId);
+                final long writeId = writePermissions(userId);
                 if (callback != null) {
+                    // The callback expects the permissions to be on disk
+                    awaitWrite(writeId);
                     callback.run();
                 }
             }
         }
     }
+
+    /**
+     * Serialized settings state, taken under the package lock and written out later. Any part may
+     * be null when it doesn't need writing.
+     */
+    private static final class SettingsWrite {
+        /** When the oldest snapshot folded into this one was taken. */
+        final long startTime;
+        /** The id of the newest snapshot folded into this one. */
+        long id;
+        /** The settings document, encoded when it is written. */
+        XmlEventRecorder document;
+        String packageList;
+        /** The package restrictions documents, by user. */
+        SparseArray<XmlEventRecorder> packageRestrictions;
+        /** The runtime permissions, by user. */
+        SparseArray<RuntimePermissionsState> runtimePermissions;
+        /** Changes to other files, such as the kernel package mappings, run first and in order. */
+        ArrayList<Runnable> fileOps;
+
+        SettingsWrite(long startTime) {
+            this.startTime = startTime;
+        }
+
+        /**
+         * Takes every part that {@code newer} has; keeps the parts it doesn't. The file changes of
+         * both are kept.
+         */
+        void mergeNewer(SettingsWrite newer) {
+            id = newer.id;
+            if (newer.document != null) {
+                document = newer.document;
+            }
+            if (newer.packageList != null) {
+                packageList = newer.packageList;
+            }
+            packageRestrictions = mergeNewer(packageRestrictions, newer.packageRestrictions);
+            runtimePermissions = mergeNewer(runtimePermissions, newer.runtimePermissions);
+            if (newer.fileOps != null) {
+                if (fileOps == null) {
+                    fileOps = newer.fileOps;
+                } else {
+                    fileOps.addAll(newer.fileOps);
+                }
+            }
+        }
+
+        /** Drops the files of a removed user which are still waiting to be written. */
+        void removeUser(int userId) {
+            if (packageRestrictions != null) {
+                packageRestrictions.remove(userId);
+            }
+            if (runtimePermissions != null) {
+                runtimePermissions.remove(userId);
+            }
+        }
+
+        private static <T> SparseArray<T> mergeNewer(SparseArray<T> older, SparseArray<T> newer) {
+            if (older == null || newer == null) {
+                return newer != null ? newer : older;
+            }
+            for (int i = 0; i < newer.size(); i++) {
+                older.put(newer.keyAt(i), newer.valueAt(i));
+            }
+            return older;
+        }
+    }
+
+    /**
+     * How long writes keep the package lock, and how long the I/O behind them takes.
+     */
+    private static final class WriteStats {
+        int requested;
+        int coalesced;
+        int persisted;
+        long lastLockHeldMs;
+        long totalLockHeldMs;
+        long maxLockHeldMs;
+        long totalIoMs;
+        long maxIoMs;
+
+        void onLockHeld(long durationMs) {
+            requested++;
+            lastLockHeldMs = durationMs;
+            totalLockHeldMs += durationMs;
+            maxLockHeldMs = Math.max(maxLockHeldMs, durationMs);
+        }
+
+        void onPersisted(long durationMs) {
+            persisted++;
+            totalIoMs += durationMs;
+            maxIoMs = Math.max(maxIoMs, durationMs);
+        }
+
+        void dump(PrintWriter pw, String prefix) {
+            pw.print(prefix); pw.print("requested="); pw.print(requested);
+                    pw.print(" coalesced="); pw.print(coalesced);
+                    pw.print(" persisted="); pw.println(persisted);
+            pw.print(prefix); pw.print("lock held: last="); pw.print(lastLockHeldMs);
+                    pw.print("ms avg="); pw.print(requested == 0 ? 0 : totalLockHeldMs / requested);
+                    pw.print("ms max="); pw.print(maxLockHeldMs); pw.println("ms");
+            pw.print(prefix); pw.print("i/o: avg=");
+                    pw.print(persisted == 0 ? 0 : totalIoMs / persisted);
+                    pw.print("ms max="); pw.print(maxIoMs); pw.println("ms");
+        }
+    }
 }
@@ -213,6 +213,21 @@ public final class SharedUserSetting extends SettingBase {
         return excludedUserIds == null ? EmptyArray.INT : excludedUserIds;
     }
 
+    /**
+     * Returns a copy of this shared user for a {@link PackageStateSnapshot}, with its own
+     * permission state. The copy has no packages; the snapshot adds its copies of them.
+     */
+    SharedUserSetting snapshot() {
+        final SharedUserSetting copy = new SharedUserSetting(name, pkgFlags, pkgPrivateFlags);
+        copy.copyFrom(this);
+        copy.userId = userId;
+        copy.uidFlags = uidFlags;
+        copy.uidPrivateFlags = uidPrivateFlags;
+        copy.seInfoTargetSdkVersion = seInfoTargetSdkVersion;
+        copy.signatures.mSigningDetails = signatures.mSigningDetails;
+        return copy;
+    }
+
     /** Updates all fields in this shared user setting from another. */
     public SharedUserSetting updateFrom(SharedUserSetting sharedUser) {
         copyFrom(sharedUser);
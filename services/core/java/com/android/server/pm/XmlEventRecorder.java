@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * An {@link XmlSerializer} that only records the events written to it, to be replayed into
+ * another serializer later. Lets the settings be walked under the package lock, while encoding
+ * them, which is most of the cost of a write, happens on the I/O thread without it.
+ *
+ * <p>Only documents, tags, attributes, text and features are recorded. Comments, processing
+ * instructions, doctype declarations and ignorable whitespace are dropped, and namespace
+ * prefixes, properties and entity references are not supported.</p>
+ */
+final class XmlEventRecorder implements XmlSerializer {
+    private static final byte EVENT_START_DOCUMENT = 0;
+    private static final byte EVENT_END_DOCUMENT = 1;
+    private static final byte EVENT_START_TAG = 2;
+    private static final byte EVENT_END_TAG = 3;
+    private static final byte EVENT_ATTRIBUTE = 4;
+    private static final byte EVENT_TEXT = 5;
+    private static final byte EVENT_FEATURE = 6;
+
+    private byte[] mEvents = new byte[1024];
+    private int mEventCount;
+    private String[] mArgs = new String[2048];
+    private int mArgCount;
+
+    private final ArrayList<String> mTagStack = new ArrayList<>();
+
+    /** Writes the recorded events to {@code out}, in order. */
+    void replay(XmlSerializer out) throws IOException {
+        int arg = 0;
+        for (int i = 0; i < mEventCount; i++) {
+            switch (mEvents[i]) {
+                case EVENT_START_DOCUMENT: {
+                    final String standalone = mArgs[arg + 1];
+                    out.startDocument(mArgs[arg],
+                            standalone == null ? null : Boolean.valueOf(standalone));
+                    arg += 2;
+                    break;
+                }
+                case EVENT_END_DOCUMENT:
+                    out.endDocument();
+                    break;
+                case EVENT_START_TAG:
+                    out.startTag(mArgs[arg], mArgs[arg + 1]);
+                    arg += 2;
+                    break;
+                case EVENT_END_TAG:
+                    out.endTag(mArgs[arg], mArgs[arg + 1]);
+                    arg += 2;
+                    break;
+                case EVENT_ATTRIBUTE:
+                    out.attribute(mArgs[arg], mArgs[arg + 1], mArgs[arg + 2]);
+                    arg += 3;
+                    break;
+                case EVENT_TEXT:
+                    out.text(mArgs[arg]);
+                    arg += 1;
+                    break;
+                case EVENT_FEATURE:
+                    out.setFeature(mArgs[arg], Boolean.parseBoolean(mArgs[arg + 1]));
+                    arg += 2;
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown event " + mEvents[i]);
+            }
+        }
+        out.flush();
+    }
+
+    private void record(byte event, String... args) {
+        if (mEventCount == mEvents.length) {
+            mEvents = Arrays.copyOf(mEvents, mEventCount * 2);
+        }
+        mEvents[mEventCount++] = event;
+        if (mArgCount + args.length > mArgs.length) {
+            mArgs = Arrays.copyOf(mArgs, Math.max(mArgs.length * 2, mArgCount + args.length));
+        }
+        for (String arg : args) {
+            mArgs[mArgCount++] = arg;
+        }
+    }
+
+    @Override
+    public void startDocument(String encoding, Boolean standalone) {
+        record(EVENT_START_DOCUMENT, encoding, standalone == null ? null : standalone.toString());
+    }
+
+    @Override
+    public void endDocument() {
+        if (!mTagStack.isEmpty()) {
+            throw new IllegalStateException("Unclosed tags at end of document");
+        }
+        record(EVENT_END_DOCUMENT);
+    }
+
+    @Override
+    public XmlSerializer startTag(String namespace, String name) {
+        mTagStack.add(name);
+        record(EVENT_START_TAG, namespace, name);
+        return this;
+    }
+
+    @Override
+    public XmlSerializer endTag(String namespace, String name) {
+        if (mTagStack.isEmpty()) {
+            throw new IllegalStateException("No open tag to close: " + name);
+        }
+        mTagStack.remove(mTagStack.size() - 1);
+        record(EVENT_END_TAG, namespace, name);
+        return this;
+    }
+
+    @Override
+    public XmlSerializer attribute(String namespace, String name, String value) {
+        record(EVENT_ATTRIBUTE, namespace, name, value);
+        return this;
+    }
+
+    @Override
+    public XmlSerializer text(String text) {
+        record(EVENT_TEXT, text);
+        return this;
+    }
+
+    @Override
+    public XmlSerializer text(char[] buf, int start, int len) {
+        return text(new String(buf, start, len));
+    }
+
+    @Override
+    public void cdsect(String text) {
+        text(text);
+    }
+
+    @Override
+    public void setFeature(String name, boolean state) {
+        record(EVENT_FEATURE, name, Boolean.toString(state));
+    }
+
+    @Override
+    public boolean getFeature(String name) {
+        return false;
+    }
+
+    @Override
+    public int getDepth() {
+        return mTagStack.size();
+    }
+
+    @Override
+    public String getName() {
+        return mTagStack.isEmpty() ? null : mTagStack.get(mTagStack.size() - 1);
+    }
+
+    @Override
+    public String getNamespace() {
+        return null;
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void setOutput(OutputStream os, String encoding) {
+        throw new UnsupportedOperationException("Recorded events are replayed instead");
+    }
+
+    @Override
+    public void setOutput(Writer writer) {
+        throw new UnsupportedOperationException("Recorded events are replayed instead");
+    }
+
+    @Override
+    public String getPrefix(String namespace, boolean generatePrefix) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setPrefix(String prefix, String namespace) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setProperty(String name, Object value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Object getProperty(String name) {
+        return null;
+    }
+
+    @Override
+    public void ignorableWhitespace(String text) {
+    }
+
+    @Override
+    public void comment(String text) {
+    }
+
+    @Override
+    public void processingInstruction(String text) {
+    }
+
+    @Override
+    public void docdecl(String text) {
+    }
+
+    @Override
+    public void entityRef(String text) {
+        throw new UnsupportedOperationException();
+    }
+}
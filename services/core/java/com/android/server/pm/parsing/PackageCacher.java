@@ -41,6 +41,18 @@ public class PackageCacher {
 
     private static final String TAG = "PackageCacher";
 
+    /**
+     * Leading magic of every cache entry, followed by {@link #CACHE_FORMAT_VERSION}.
+     */
+    private static final int CACHE_MAGIC = 0x50434348; // "PCCH"
+
+    /**
+     * Version of the cache entry layout. Bump whenever the parcelled form of a package changes,
+     * so that stale entries are discarded instead of being misread.
+     */
+    @VisibleForTesting
+    public static final int CACHE_FORMAT_VERSION = 2;
+
     /**
      * Total number of packages that were read from the cache.  We use it only for logging.
      */
@@ -76,11 +88,22 @@ public class PackageCacher {
         p.unmarshall(bytes, 0, bytes.length);
         p.setDataPosition(0);
 
+        final int magic = p.readInt();
+        final int version = p.readInt();
+        if (magic != CACHE_MAGIC || version != CACHE_FORMAT_VERSION) {
+            p.recycle();
+            throw new IllegalStateException("Unsupported cache entry: magic=0x"
+                    + Integer.toHexString(magic) + " version=" + version);
+        }
+
         final PackageParserCacheHelper.ReadHelper helper = new PackageParserCacheHelper.ReadHelper(p);
         helper.startAndInstall();
 
+        // Components, permissions and intent filters make up most of an entry, but aren't needed
+        // for packages that are superseded or only inspected for their metadata. Decode them
+        // the first time they are accessed.
         // TODO(b/135203078): Hide PackageImpl constructor?
-        ParsedPackage pkg = new PackageImpl(p);
+        ParsedPackage pkg = new PackageImpl(p, helper);
 
         p.recycle();
 
@@ -99,6 +122,8 @@ public class PackageCacher {
     @VisibleForTesting
     public static byte[] toCacheEntryStatic(ParsedPackage pkg) {
         final Parcel p = Parcel.obtain();
+        p.writeInt(CACHE_MAGIC);
+        p.writeInt(CACHE_FORMAT_VERSION);
         final PackageParserCacheHelper.WriteHelper helper = new PackageParserCacheHelper.WriteHelper(p);
 
         pkg.writeToParcel(p, 0 /* flags */);
@@ -212,8 +212,7 @@ public class PackageInfoUtils {
             return null;
         }
 
-        if (!checkUseInstalledOrHidden(pkg, pkgSetting, state, flags)
-                || !AndroidPackageUtils.isMatchForSystemOnly(pkg, flags)) {
+        if (!isMatch(pkg, pkgSetting, state, flags)) {
             return null;
         }
 
@@ -241,6 +240,18 @@ public class PackageInfoUtils {
         return info;
     }
 
+    /**
+     * Returns whether {@link #generate} and {@link #generateApplicationInfo} generate anything
+     * for the given package and flags, without generating it.
+     *
+     * @param pkgSetting See {@link PackageInfoUtils} for description of pkgSetting usage.
+     */
+    public static boolean isMatch(AndroidPackage pkg, @Nullable PackageSetting pkgSetting,
+            PackageUserState state, @PackageManager.PackageInfoFlags int flags) {
+        return checkUseInstalledOrHidden(pkg, pkgSetting, state, flags)
+                && AndroidPackageUtils.isMatchForSystemOnly(pkg, flags);
+    }
+
     /**
      * @param pkgSetting See {@link PackageInfoUtils} for description of pkgSetting usage.
      */
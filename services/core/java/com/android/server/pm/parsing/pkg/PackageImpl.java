@@ -161,6 +161,7 @@ public final class PackageImpl extends ParsingPackageImpl implements ParsedPacka
 
     @Override
     public PackageImpl removePermission(int index) {
+        materializeComponents();
         this.permissions.remove(index);
         return this;
     }
@@ -256,6 +257,7 @@ public final class PackageImpl extends ParsingPackageImpl implements ParsedPacka
     @Override
     public PackageImpl setPackageName(@NonNull String packageName) {
         this.packageName = TextUtils.safeIntern(packageName);
+        materializeComponents();
 
         int permissionsSize = permissions.size();
         for (int index = 0; index < permissionsSize; index++) {
@@ -297,6 +299,7 @@ public final class PackageImpl extends ParsingPackageImpl implements ParsedPacka
 
     @Override
     public PackageImpl setAllComponentsDirectBootAware(boolean allComponentsDirectBootAware) {
+        materializeComponents();
         int activitiesSize = activities.size();
         for (int index = 0; index < activitiesSize; index++) {
             activities.get(index).setDirectBootAware(allComponentsDirectBootAware);
@@ -382,6 +385,7 @@ public final class PackageImpl extends ParsingPackageImpl implements ParsedPacka
 
     @Override
     public PackageImpl capPermissionPriorities() {
+        materializeComponents();
         int size = permissionGroups.size();
         for (int index = size - 1; index >= 0; --index) {
             // TODO(b/135203078): Builder/immutability
@@ -392,6 +396,7 @@ public final class PackageImpl extends ParsingPackageImpl implements ParsedPacka
 
     @Override
     public PackageImpl markNotActivitiesAsNotExportedIfSingleUser() {
+        materializeComponents();
         // ignore export request for single user receivers
         int receiversSize = receivers.size();
         for (int index = 0; index < receiversSize; index++) {
@@ -502,7 +507,15 @@ public final class PackageImpl extends ParsingPackageImpl implements ParsedPacka
     }
 
     public PackageImpl(Parcel in) {
-        super(in);
+        this(in, null /* lazyComponentsHelper */);
+    }
+
+    /**
+     * Reads a package whose components are decoded on first access.
+     * See {@link ParsingPackageImpl#ParsingPackageImpl(Parcel, Parcel.ReadWriteHelper)}.
+     */
+    public PackageImpl(Parcel in, @Nullable Parcel.ReadWriteHelper lazyComponentsHelper) {
+        super(in, lazyComponentsHelper);
         this.manifestPackageName = sForInternedString.unparcel(in);
         this.stub = in.readBoolean();
         this.nativeLibraryDir = in.readString();
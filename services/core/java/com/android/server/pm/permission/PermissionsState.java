@@ -27,6 +27,7 @@ import android.util.SparseBooleanArray;
 
 import com.android.internal.annotations.GuardedBy;
 import com.android.internal.util.ArrayUtils;
+import com.android.server.pm.PackageStateSnapshot;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -97,8 +98,9 @@ public final class PermissionsState {
         }
     }
 
-    private static void invalidateCache() {
+    private void invalidateCache() {
         PackageManager.invalidatePackageInfoCache();
+        PackageStateSnapshot.invalidatePermissions(this);
     }
 
     /**
@@ -127,7 +129,7 @@ public final class PermissionsState {
                 for (int i = 0; i < permissionCount; i++) {
                     String name = other.mPermissions.keyAt(i);
                     PermissionData permissionData = other.mPermissions.valueAt(i);
-                    mPermissions.put(name, new PermissionData(permissionData));
+                    mPermissions.put(name, new PermissionData(this, permissionData));
                 }
             }
         }
@@ -748,7 +750,7 @@ public final class PermissionsState {
             }
             PermissionData permissionData = mPermissions.get(permName);
             if (permissionData == null) {
-                permissionData = new PermissionData(permission);
+                permissionData = new PermissionData(this, permission);
                 mPermissions.put(permName, permissionData);
             }
             return permissionData;
@@ -773,16 +775,19 @@ public final class PermissionsState {
 
         private final Object mLock = new Object();
 
+        /** The permissions state this belongs to, which changes are reported against. */
+        private final PermissionsState mOwner;
         private final BasePermission mPerm;
         @GuardedBy("mLock")
         private SparseArray<PermissionState> mUserStates = new SparseArray<>();
 
-        public PermissionData(BasePermission perm) {
+        public PermissionData(PermissionsState owner, BasePermission perm) {
+            mOwner = owner;
             mPerm = perm;
         }
 
-        public PermissionData(PermissionData other) {
-            this(other.mPerm);
+        public PermissionData(PermissionsState owner, PermissionData other) {
+            this(owner, other.mPerm);
 
             synchronized (mLock) {
                 final int otherStateCount = other.mUserStates.size();
@@ -831,7 +836,7 @@ public final class PermissionsState {
 
                 userState.mGranted = true;
 
-                invalidateCache();
+                mOwner.invalidateCache();
                 return true;
             }
         }
@@ -853,7 +858,7 @@ public final class PermissionsState {
                     mUserStates.remove(userId);
                 }
 
-                invalidateCache();
+                mOwner.invalidateCache();
                 return true;
             }
         }
@@ -897,7 +902,7 @@ public final class PermissionsState {
                 final int newFlags = flagValues & flagMask;
 
                 // Okay to do before the modification because we hold the lock.
-                invalidateCache();
+                mOwner.invalidateCache();
 
                 PermissionState userState = mUserStates.get(userId);
                 if (userState != null) {
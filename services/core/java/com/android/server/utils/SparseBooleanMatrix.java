@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.utils;
+
+import android.util.SparseIntArray;
+
+import java.util.Arrays;
+
+/**
+ * A square matrix of booleans indexed on both axes by the same set of sparse integer keys, such as
+ * uids. Each key is mapped to a dense index and values are packed one bit per cell, so a matrix
+ * of N keys costs N * N / 8 bytes no matter how many cells have been written.
+ *
+ * <p>Every pair of keys present in the matrix has a value; cells start out {@code false} when a
+ * key is added. Indices of removed keys are recycled. This class is not thread safe.</p>
+ */
+public class SparseBooleanMatrix {
+    private static final int MIN_CAPACITY = 64;
+
+    /** Maps keys to their row / column index. */
+    private final SparseIntArray mKeyToIndex;
+
+    /** Indices released by {@link #removeKey(int)}, to be handed out again before growing. */
+    private int[] mFreeIndices = new int[0];
+    private int mFreeCount;
+
+    /** The number of indices ever handed out; every index below this is in use or free. */
+    private int mHighWaterMark;
+
+    private int mCapacity;
+    private int mWordsPerRow;
+    private long[] mBits;
+
+    public SparseBooleanMatrix() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * @param initialCapacity the number of keys to reserve space for.
+     */
+    public SparseBooleanMatrix(int initialCapacity) {
+        mKeyToIndex = new SparseIntArray(initialCapacity);
+        allocate(Math.max(MIN_CAPACITY, initialCapacity));
+    }
+
+    /** Returns the number of keys in the matrix. */
+    public int size() {
+        return mKeyToIndex.size();
+    }
+
+    /** Returns the key at the given position, in ascending key order, for {@code 0..size()-1}. */
+    public int keyAt(int position) {
+        return mKeyToIndex.keyAt(position);
+    }
+
+    public boolean contains(int key) {
+        return mKeyToIndex.indexOfKey(key) >= 0;
+    }
+
+    /**
+     * Adds a key to the matrix if it is not already present. A new key starts with a row and column
+     * of {@code false}.
+     */
+    public void addKey(int key) {
+        indexOfKeyOrAdd(key);
+    }
+
+    /**
+     * Returns the value stored for {@code (row, col)}, or {@code valueIfMissing} if either key is
+     * not in the matrix.
+     */
+    public boolean get(int row, int col, boolean valueIfMissing) {
+        final int rowIndex = mKeyToIndex.get(row, -1);
+        final int colIndex = mKeyToIndex.get(col, -1);
+        if (rowIndex < 0 || colIndex < 0) {
+            return valueIfMissing;
+        }
+        return getAtIndex(rowIndex, colIndex);
+    }
+
+    /**
+     * Stores a value for {@code (row, col)}, adding either key to the matrix if needed.
+     */
+    public void put(int row, int col, boolean value) {
+        final int rowIndex = indexOfKeyOrAdd(row);
+        final int colIndex = indexOfKeyOrAdd(col);
+        final int word = rowIndex * mWordsPerRow + (colIndex >>> 6);
+        final long bit = 1L << (colIndex & 63);
+        if (value) {
+            mBits[word] |= bit;
+        } else {
+            mBits[word] &= ~bit;
+        }
+    }
+
+    /**
+     * Removes a key together with its row and column.
+     */
+    public void removeKey(int key) {
+        final int position = mKeyToIndex.indexOfKey(key);
+        if (position < 0) {
+            return;
+        }
+        final int index = mKeyToIndex.valueAt(position);
+        mKeyToIndex.removeAt(position);
+        // Clear the row and column so the index can be handed out again as a blank slate.
+        Arrays.fill(mBits, index * mWordsPerRow, (index + 1) * mWordsPerRow, 0);
+        final int colWord = index >>> 6;
+        final long colMask = ~(1L << (index & 63));
+        for (int r = 0; r < mHighWaterMark; r++) {
+            mBits[r * mWordsPerRow + colWord] &= colMask;
+        }
+        if (mFreeCount == mFreeIndices.length) {
+            mFreeIndices = Arrays.copyOf(mFreeIndices, Math.max(8, mFreeCount * 2));
+        }
+        mFreeIndices[mFreeCount++] = index;
+    }
+
+    /** Removes all keys. */
+    public void clear() {
+        mKeyToIndex.clear();
+        mFreeCount = 0;
+        mHighWaterMark = 0;
+        Arrays.fill(mBits, 0);
+    }
+
+    private boolean getAtIndex(int rowIndex, int colIndex) {
+        return (mBits[rowIndex * mWordsPerRow + (colIndex >>> 6)] & (1L << (colIndex & 63))) != 0;
+    }
+
+    private int indexOfKeyOrAdd(int key) {
+        int index = mKeyToIndex.get(key, -1);
+        if (index >= 0) {
+            return index;
+        }
+        if (mFreeCount > 0) {
+            index = mFreeIndices[--mFreeCount];
+        } else {
+            if (mHighWaterMark == mCapacity) {
+                grow(mCapacity * 2);
+            }
+            index = mHighWaterMark++;
+        }
+        mKeyToIndex.put(key, index);
+        return index;
+    }
+
+    private void allocate(int capacity) {
+        mCapacity = capacity;
+        mWordsPerRow = (capacity + 63) >>> 6;
+        mBits = new long[capacity * mWordsPerRow];
+    }
+
+    private void grow(int capacity) {
+        final long[] oldBits = mBits;
+        final int oldWordsPerRow = mWordsPerRow;
+        allocate(capacity);
+        for (int r = 0; r < mHighWaterMark; r++) {
+            System.arraycopy(oldBits, r * oldWordsPerRow, mBits, r * mWordsPerRow,
+                    oldWordsPerRow);
+        }
+    }
+}
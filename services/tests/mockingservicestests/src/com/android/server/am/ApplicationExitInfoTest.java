@@ -31,6 +31,7 @@ import static androidx.test.platform.app.InstrumentationRegistry.getInstrumentat
 import static com.android.server.am.ActivityManagerService.Injector;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
@@ -55,6 +56,7 @@ import android.platform.test.annotations.Presubmit;
 import android.system.OsConstants;
 import android.text.TextUtils;
 import android.util.Pair;
+import android.util.proto.ProtoOutputStream;
 
 import com.android.internal.util.ArrayUtils;
 import com.android.server.LocalServices;
@@ -79,6 +81,8 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
@@ -185,6 +189,9 @@ public class ApplicationExitInfoTest {
         assertTrue(FileUtils.createDir(mAppExitInfoTracker.mProcExitStoreDir));
         mAppExitInfoTracker.mProcExitInfoFile = new File(mAppExitInfoTracker.mProcExitStoreDir,
                 AppExitInfoTracker.APP_EXIT_INFO_FILE);
+        mAppExitInfoTracker.mProcExitInfoStore = new AppExitInfoStore(
+                mAppExitInfoTracker.mProcExitStoreDir);
+        mAppExitInfoTracker.mProcExitInfoStore.deleteAll();
 
         // Test application calls System.exit()
         doNothing().when(mAppExitInfoTracker).schedulePersistProcessExitInfo(anyBoolean());
@@ -855,7 +862,7 @@ public class ApplicationExitInfoTest {
         assertTrue(original.size() > 0);
 
         mAppExitInfoTracker.persistProcessExitInfo();
-        assertTrue(mAppExitInfoTracker.mProcExitInfoFile.exists());
+        assertTrue(mAppExitInfoTracker.mProcExitInfoStore.getSegmentCount() > 0);
 
         mAppExitInfoTracker.clearProcessExitInfo(false);
         list.clear();
@@ -872,6 +879,74 @@ public class ApplicationExitInfoTest {
         }
     }
 
+    @Test
+    public void testLegacyProcessExitInfoMigration() throws Exception {
+        mAppExitInfoTracker.clearProcessExitInfo(true);
+        mAppExitInfoTracker.mProcExitStoreDir = new File(mContext.getFilesDir(),
+                AppExitInfoTracker.APP_EXIT_STORE_DIR);
+        assertTrue(FileUtils.createDir(mAppExitInfoTracker.mProcExitStoreDir));
+        mAppExitInfoTracker.mProcExitInfoFile = new File(mAppExitInfoTracker.mProcExitStoreDir,
+                AppExitInfoTracker.APP_EXIT_INFO_FILE);
+        mAppExitInfoTracker.mProcExitInfoStore = new AppExitInfoStore(
+                mAppExitInfoTracker.mProcExitStoreDir);
+        mAppExitInfoTracker.mProcExitInfoStore.deleteAll();
+        doNothing().when(mAppExitInfoTracker).schedulePersistProcessExitInfo(anyBoolean());
+
+        final String packageName = "com.android.test.legacy";
+        final int uid = 10125;
+        final ApplicationExitInfo info = new ApplicationExitInfo();
+        info.setPid(12347);
+        info.setRealUid(uid);
+        info.setPackageUid(uid);
+        info.setPackageName(packageName);
+        info.setProcessName(packageName);
+        info.setReason(ApplicationExitInfo.REASON_CRASH);
+        info.setTimestamp(System.currentTimeMillis());
+
+        // The file written by earlier releases
+        final ProtoOutputStream proto = new ProtoOutputStream();
+        proto.write(AppsExitInfoProto.LAST_UPDATE_TIMESTAMP, info.getTimestamp());
+        final long packageToken = proto.start(AppsExitInfoProto.PACKAGES);
+        proto.write(AppsExitInfoProto.Package.PACKAGE_NAME, packageName);
+        final long userToken = proto.start(AppsExitInfoProto.Package.USERS);
+        proto.write(AppsExitInfoProto.Package.User.UID, uid);
+        info.writeToProto(proto, AppsExitInfoProto.Package.User.APP_EXIT_INFO);
+        proto.end(userToken);
+        proto.end(packageToken);
+        try (FileOutputStream out = new FileOutputStream(mAppExitInfoTracker.mProcExitInfoFile)) {
+            out.write(proto.getBytes());
+        }
+
+        mAppExitInfoTracker.loadExistingProcessExitInfo();
+        final ArrayList<ApplicationExitInfo> list = new ArrayList<ApplicationExitInfo>();
+        mAppExitInfoTracker.getExitInfo(packageName, uid, 0, 0, list);
+        assertEquals(1, list.size());
+        assertTrue(list.get(0).equals(info));
+
+        // Migrated into the log on the first persist
+        mAppExitInfoTracker.persistProcessExitInfo();
+        assertFalse(mAppExitInfoTracker.mProcExitInfoFile.exists());
+        assertEquals(1, mAppExitInfoTracker.mProcExitInfoStore.getSegmentCount());
+
+        mAppExitInfoTracker.clearProcessExitInfo(false);
+        mAppExitInfoTracker.loadExistingProcessExitInfo();
+        // Only indexed on load, decoded by the first query
+        assertTrue(dumpExitInfo().contains("Records not decoded from persistent storage yet: 1"));
+        list.clear();
+        mAppExitInfoTracker.getExitInfo(packageName, uid, 0, 0, list);
+        assertEquals(1, list.size());
+        assertTrue(list.get(0).equals(info));
+        assertTrue(dumpExitInfo().contains("Records not decoded from persistent storage yet: 0"));
+    }
+
+    private String dumpExitInfo() {
+        final StringWriter writer = new StringWriter();
+        final PrintWriter pw = new PrintWriter(writer);
+        mAppExitInfoTracker.dumpHistoryProcessExitInfo(pw, null);
+        pw.flush();
+        return writer.toString();
+    }
+
     private static int makeExitStatus(int exitCode) {
         return (exitCode << 8) & 0xff00;
     }
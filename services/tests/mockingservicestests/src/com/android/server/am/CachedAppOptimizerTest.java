@@ -57,7 +57,9 @@ import org.mockito.junit.MockitoJUnitRunner;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
@@ -173,6 +175,10 @@ public final class CachedAppOptimizerTest {
                 CachedAppOptimizer.DEFAULT_COMPACT_FULL_RSS_THROTTLE_KB);
         assertThat(mCachedAppOptimizerUnderTest.mFullDeltaRssThrottleKb).isEqualTo(
                 CachedAppOptimizer.DEFAULT_COMPACT_FULL_DELTA_RSS_THROTTLE_KB);
+        assertThat(mCachedAppOptimizerUnderTest.mCompactMinYieldKb).isEqualTo(
+                CachedAppOptimizer.DEFAULT_COMPACT_MIN_YIELD_KB);
+        assertThat(mCachedAppOptimizerUnderTest.mCompactMaxYieldBackoffMs).isEqualTo(
+                CachedAppOptimizer.DEFAULT_COMPACT_MAX_YIELD_BACKOFF_MS);
         assertThat(mCachedAppOptimizerUnderTest.useFreezer()).isEqualTo(
                 CachedAppOptimizer.DEFAULT_USE_FREEZER);
 
@@ -951,6 +957,148 @@ public final class CachedAppOptimizerTest {
         assertThat(valuesAfter).isEqualTo(rssAboveThresholdAfter);
     }
 
+    @Test
+    public void processWithLowYield_backsOff() throws Exception {
+        // Initialize CachedAppOptimizer and set flags to (1) enable compaction, (2) back off when
+        // less than 5000KB are reclaimed.
+        mCachedAppOptimizerUnderTest.init();
+        setFlag(CachedAppOptimizer.KEY_USE_COMPACTION, "true", true);
+        setFlag(CachedAppOptimizer.KEY_COMPACT_MIN_YIELD_KB, "5000", false);
+        initActivityManagerService();
+
+        // Reclaims 2000KB.
+        long[] rssBefore1 =
+                new long[]{/*totalRSS*/ 25000, /*fileRSS*/ 10000, /*anonRSS*/ 15000, /*swap*/ 0};
+        long[] rssAfter1 =
+                new long[]{/*totalRSS*/ 23000, /*fileRSS*/ 9000, /*anonRSS*/ 14000, /*swap*/ 0};
+        // Well above the delta RSS throttle.
+        long[] rssBefore2 =
+                new long[]{/*totalRSS*/ 45000, /*fileRSS*/ 20000, /*anonRSS*/ 25000, /*swap*/ 0};
+        int pid = 1;
+        ProcessRecord processRecord = makeProcessRecord(pid, 2, 3, "p1", "app1");
+
+        // GIVEN the first compaction of 'p1' reclaims less than the minimum yield.
+        mProcessDependencies.setRss(rssBefore1);
+        mProcessDependencies.setRssAfterCompaction(rssAfter1);
+        mCachedAppOptimizerUnderTest.compactAppFull(processRecord);
+        waitForHandler();
+        assertThat(getYieldStats(pid).getCount()).isEqualTo(1);
+        assertThat(getYieldStats(pid).getExpectedYieldKb()).isEqualTo(2000);
+        assertThat(getYieldStats(pid).getBackoffUntil()).isGreaterThan(0L);
+
+        // WHEN we try to compact it again once the throttles have passed.
+        mProcessDependencies.setRss(rssBefore2);
+        processRecord.lastCompactTime = processRecord.lastCompactTime - 10_000;
+        mCachedAppOptimizerUnderTest.compactAppFull(processRecord);
+        waitForHandler();
+        // THEN process IS NOT compacted, it is backed off from.
+        assertThat(getYieldStats(pid).getCount()).isEqualTo(1);
+        assertThat(mCachedAppOptimizerUnderTest.mLastCompactionStats.get(pid)
+                .getRssAfterCompaction()).isEqualTo(rssAfter1);
+    }
+
+    @Test
+    public void processWithLowYield_compactedOnlyUnderMemoryPressure() throws Exception {
+        // Initialize CachedAppOptimizer and set flags to (1) enable compaction, (2) consider
+        // yields under 5000KB low, (3) not back off in time after a low yield.
+        mCachedAppOptimizerUnderTest.init();
+        setFlag(CachedAppOptimizer.KEY_USE_COMPACTION, "true", true);
+        setFlag(CachedAppOptimizer.KEY_COMPACT_MIN_YIELD_KB, "5000", false);
+        setFlag(CachedAppOptimizer.KEY_COMPACT_MAX_YIELD_BACKOFF_MS, "0", false);
+        initActivityManagerService();
+
+        long[] rssBefore1 =
+                new long[]{/*totalRSS*/ 25000, /*fileRSS*/ 10000, /*anonRSS*/ 15000, /*swap*/ 0};
+        long[] rssAfter1 =
+                new long[]{/*totalRSS*/ 23000, /*fileRSS*/ 9000, /*anonRSS*/ 14000, /*swap*/ 0};
+        long[] rssBefore2 =
+                new long[]{/*totalRSS*/ 45000, /*fileRSS*/ 20000, /*anonRSS*/ 25000, /*swap*/ 0};
+        long[] rssAfter2 =
+                new long[]{/*totalRSS*/ 44000, /*fileRSS*/ 20000, /*anonRSS*/ 24000, /*swap*/ 0};
+        int pid = 1;
+        ProcessRecord processRecord = makeProcessRecord(pid, 2, 3, "p1", "app1");
+
+        // GIVEN the first compaction of 'p1' reclaims less than the minimum yield.
+        mProcessDependencies.setRss(rssBefore1);
+        mProcessDependencies.setRssAfterCompaction(rssAfter1);
+        mCachedAppOptimizerUnderTest.compactAppFull(processRecord);
+        waitForHandler();
+        assertThat(getYieldStats(pid).getCount()).isEqualTo(1);
+
+        // WHEN there is no memory pressure.
+        mProcessDependencies.setMemoryPressure(0);
+        mProcessDependencies.setRss(rssBefore2);
+        mProcessDependencies.setRssAfterCompaction(rssAfter2);
+        processRecord.lastCompactTime = processRecord.lastCompactTime - 10_000;
+        mCachedAppOptimizerUnderTest.compactAppFull(processRecord);
+        waitForHandler();
+        // THEN process IS NOT compacted.
+        assertThat(getYieldStats(pid).getCount()).isEqualTo(1);
+
+        // WHEN there is memory pressure.
+        mProcessDependencies.setMemoryPressure(2.5f);
+        mCachedAppOptimizerUnderTest.compactAppFull(processRecord);
+        waitForHandler();
+        // THEN process IS compacted.
+        assertThat(getYieldStats(pid).getCount()).isEqualTo(2);
+        assertThat(mCachedAppOptimizerUnderTest.mLastCompactionStats.get(pid)
+                .getRssAfterCompaction()).isEqualTo(rssAfter2);
+    }
+
+    @Test
+    public void pendingProcesses_compactedByExpectedYield() throws Exception {
+        mCachedAppOptimizerUnderTest.init();
+        setFlag(CachedAppOptimizer.KEY_USE_COMPACTION, "true", true);
+        initActivityManagerService();
+
+        long[] rssBefore =
+                new long[]{/*totalRSS*/ 45000, /*fileRSS*/ 20000, /*anonRSS*/ 25000, /*swap*/ 0};
+        // Reclaims 2000KB.
+        long[] rssAfterLow =
+                new long[]{/*totalRSS*/ 43000, /*fileRSS*/ 19000, /*anonRSS*/ 24000, /*swap*/ 0};
+        // Reclaims 20000KB.
+        long[] rssAfterHigh =
+                new long[]{/*totalRSS*/ 25000, /*fileRSS*/ 10000, /*anonRSS*/ 15000, /*swap*/ 0};
+        ProcessRecord lowYield = makeProcessRecord(1, 2, 3, "p1", "app1");
+        ProcessRecord highYield = makeProcessRecord(4, 5, 6, "p2", "app2");
+
+        // GIVEN 'p1' reclaimed less than 'p2' when they were last compacted.
+        mProcessDependencies.setRss(rssBefore);
+        mProcessDependencies.setRssAfterCompaction(rssAfterLow);
+        mCachedAppOptimizerUnderTest.compactAppFull(lowYield);
+        waitForHandler();
+        mProcessDependencies.setRss(rssBefore);
+        mProcessDependencies.setRssAfterCompaction(rssAfterHigh);
+        mCachedAppOptimizerUnderTest.compactAppFull(highYield);
+        waitForHandler();
+        mProcessDependencies.mCompactedPids.clear();
+
+        // WHEN both are queued for compaction, 'p1' first.
+        CountDownLatch queued = new CountDownLatch(1);
+        mCachedAppOptimizerUnderTest.mCompactionHandler.post(() -> {
+            try {
+                queued.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+            }
+        });
+        mProcessDependencies.setRss(new long[]{/*totalRSS*/ 90000, /*fileRSS*/ 40000,
+                /*anonRSS*/ 50000, /*swap*/ 0});
+        lowYield.lastCompactTime = lowYield.lastCompactTime - 10_000;
+        highYield.lastCompactTime = highYield.lastCompactTime - 10_000;
+        mCachedAppOptimizerUnderTest.compactAppFull(lowYield);
+        mCachedAppOptimizerUnderTest.compactAppFull(highYield);
+        queued.countDown();
+        waitForHandler();
+
+        // THEN 'p2' is compacted first.
+        assertThat(mProcessDependencies.mCompactedPids).containsExactly(4, 1).inOrder();
+    }
+
+    private CachedAppOptimizer.CompactionYieldStats getYieldStats(int pid) {
+        synchronized (mCachedAppOptimizerUnderTest) {
+            return mCachedAppOptimizerUnderTest.mCompactionYieldStats.get(pid);
+        }
+    }
 
     private void setFlag(String key, String value, boolean defaultValue) throws Exception {
         mCountDown = new CountDownLatch(1);
@@ -1018,6 +1166,8 @@ public final class CachedAppOptimizerTest {
             implements CachedAppOptimizer.ProcessDependencies {
         private long[] mRss;
         private long[] mRssAfterCompaction;
+        private float mMemoryPressure = -1;
+        final List<Integer> mCompactedPids = new ArrayList<>();
 
         @Override
         public long[] getRss(int pid) {
@@ -1027,6 +1177,16 @@ public final class CachedAppOptimizerTest {
         @Override
         public void performCompaction(String action, int pid) throws IOException {
             mRss = mRssAfterCompaction;
+            mCompactedPids.add(pid);
+        }
+
+        @Override
+        public float getMemoryPressure() {
+            return mMemoryPressure;
+        }
+
+        public void setMemoryPressure(float memoryPressure) {
+            mMemoryPressure = memoryPressure;
         }
 
         public void setRss(long[] newValues) {
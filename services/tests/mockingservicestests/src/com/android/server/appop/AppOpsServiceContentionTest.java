@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.appop;
+
+import static android.app.ActivityManager.PROCESS_CAPABILITY_ALL;
+import static android.app.ActivityManager.PROCESS_STATE_TOP;
+import static android.app.AppOpsManager.MODE_ALLOWED;
+import static android.app.AppOpsManager.MODE_IGNORED;
+import static android.app.AppOpsManager.OP_CAMERA;
+import static android.app.AppOpsManager.OP_COARSE_LOCATION;
+import static android.app.AppOpsManager.OP_RECORD_AUDIO;
+
+import static com.android.dx.mockito.inline.extended.ExtendedMockito.doNothing;
+import static com.android.dx.mockito.inline.extended.ExtendedMockito.doReturn;
+import static com.android.dx.mockito.inline.extended.ExtendedMockito.mock;
+import static com.android.dx.mockito.inline.extended.ExtendedMockito.mockitoSession;
+import static com.android.dx.mockito.inline.extended.ExtendedMockito.spy;
+import static com.android.dx.mockito.inline.extended.ExtendedMockito.when;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.nullable;
+
+import android.app.Activity;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.pm.PackageManagerInternal;
+import android.os.Binder;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.UserHandle;
+import android.provider.Settings;
+import android.util.Log;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.dx.mockito.inline.extended.StaticMockitoSession;
+import com.android.server.LocalServices;
+import com.android.server.pm.parsing.pkg.AndroidPackage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.quality.Strictness;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures the throughput and the tail latency of {@link AppOpsService#noteOperation},
+ * {@link AppOpsService#startOperation} and {@link AppOpsService#checkOperation} with many binder
+ * threads calling them for many uids at once, as location, camera and microphone heavy apps do,
+ * while checking that contention doesn't change the returned modes.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class AppOpsServiceContentionTest {
+    private static final String TAG = AppOpsServiceContentionTest.class.getSimpleName();
+
+    private static final String APP_OPS_FILENAME = "appops-service-contention-test.xml";
+
+    private static final int THREAD_COUNT = 32;
+    private static final int UID_COUNT = 200;
+    private static final int CALLS_PER_THREAD = 20000;
+    private static final int[] OPS = {OP_COARSE_LOCATION, OP_CAMERA, OP_RECORD_AUDIO};
+
+    private static final Context sContext = InstrumentationRegistry.getTargetContext();
+
+    private File mAppOpsFile;
+    private Handler mHandler;
+    private AppOpsService mAppOpsService;
+    private StaticMockitoSession mMockingSession;
+
+    @Before
+    public void setUp() {
+        mAppOpsFile = new File(sContext.getFilesDir(), APP_OPS_FILENAME);
+        mAppOpsFile.delete();
+        new File(mAppOpsFile.getPath() + ".journal").delete();
+        new File(mAppOpsFile.getPath() + ".journal.old").delete();
+
+        HandlerThread handlerThread = new HandlerThread(TAG);
+        handlerThread.start();
+        mHandler = new Handler(handlerThread.getLooper());
+
+        mMockingSession = mockitoSession()
+                .strictness(Strictness.LENIENT)
+                .spyStatic(LocalServices.class)
+                .spyStatic(Settings.Global.class)
+                .startMocking();
+
+        PackageManagerInternal mockPackageManagerInternal = mock(PackageManagerInternal.class);
+        for (int i = 0; i < UID_COUNT; i++) {
+            AndroidPackage mockPkg = mock(AndroidPackage.class);
+            when(mockPkg.isPrivileged()).thenReturn(false);
+            when(mockPkg.getUid()).thenReturn(getUid(i));
+            when(mockPkg.getAttributions()).thenReturn(Collections.emptyList());
+            when(mockPackageManagerInternal.getPackage(getPackageName(i))).thenReturn(mockPkg);
+        }
+        doReturn(mockPackageManagerInternal).when(
+                () -> LocalServices.getService(PackageManagerInternal.class));
+        doReturn(null).when(() -> Settings.Global.getString(any(ContentResolver.class),
+                eq(Settings.Global.APPOP_HISTORY_PARAMETERS)));
+
+        mAppOpsService = new AppOpsService(mAppOpsFile, mHandler, spy(sContext));
+        mAppOpsService.mHistoricalRegistry.systemReady(sContext.getContentResolver());
+        doNothing().when(mAppOpsService.mContext).enforcePermission(anyString(), anyInt(),
+                anyInt(), nullable(String.class));
+
+        // Deny the ops to every fourth uid, so that both outcomes are measured. The others are
+        // in the foreground, with the capabilities needed for camera and microphone.
+        for (int i = 0; i < UID_COUNT; i++) {
+            mAppOpsService.updateUidProcState(getUid(i), PROCESS_STATE_TOP,
+                    PROCESS_CAPABILITY_ALL);
+            if (i % 4 == 0) {
+                for (int op : OPS) {
+                    mAppOpsService.setMode(op, getUid(i), getPackageName(i), MODE_IGNORED);
+                }
+            }
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mMockingSession.finishMocking();
+        mHandler.getLooper().quitSafely();
+    }
+
+    @Test
+    public void noteOperation_contended() throws Exception {
+        runContended("noteOperation_contended", (op, uid, packageName) ->
+                mAppOpsService.noteOperation(op, uid, packageName, null, false, null, false));
+    }
+
+    @Test
+    public void startOperation_contended() throws Exception {
+        runContended("startOperation_contended", (op, uid, packageName) -> {
+            final Binder clientId = new Binder();
+            final int mode = mAppOpsService.startOperation(clientId, op, uid, packageName, null,
+                    false, false, null, false);
+            if (mode == MODE_ALLOWED) {
+                mAppOpsService.finishOperation(clientId, op, uid, packageName, null);
+            }
+            return mode;
+        });
+    }
+
+    @Test
+    public void checkOperation_contended() throws Exception {
+        runContended("checkOperation_contended", (op, uid, packageName) ->
+                mAppOpsService.checkOperation(op, uid, packageName));
+    }
+
+    /** Calls an op method from all the threads at once, then reports its latency. */
+    private void runContended(String name, OpCall call) throws Exception {
+        final long[][] latenciesNs = new long[THREAD_COUNT][CALLS_PER_THREAD];
+        final AtomicInteger unexpectedModes = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        final Thread[] threads = new Thread[THREAD_COUNT];
+        for (int t = 0; t < THREAD_COUNT; t++) {
+            final long[] threadLatenciesNs = latenciesNs[t];
+            final int firstUid = t * UID_COUNT / THREAD_COUNT;
+            threads[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int n = 0; n < CALLS_PER_THREAD; n++) {
+                    final int i = (firstUid + n) % UID_COUNT;
+                    final int op = OPS[n % OPS.length];
+                    final long startNs = System.nanoTime();
+                    final int mode = call.call(op, getUid(i), getPackageName(i));
+                    threadLatenciesNs[n] = System.nanoTime() - startNs;
+                    if (mode != (i % 4 == 0 ? MODE_IGNORED : MODE_ALLOWED)) {
+                        unexpectedModes.incrementAndGet();
+                    }
+                }
+            }, TAG + "-" + t);
+            threads[t].start();
+        }
+
+        final long startNs = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        final long elapsedNs = System.nanoTime() - startNs;
+
+        final long[] allLatenciesNs = new long[THREAD_COUNT * CALLS_PER_THREAD];
+        for (int t = 0; t < THREAD_COUNT; t++) {
+            System.arraycopy(latenciesNs[t], 0, allLatenciesNs, t * CALLS_PER_THREAD,
+                    CALLS_PER_THREAD);
+        }
+        Arrays.sort(allLatenciesNs);
+
+        final Bundle status = new Bundle();
+        status.putLong("calls_per_second", allLatenciesNs.length * 1_000_000_000L / elapsedNs);
+        status.putLong("latency_p50_ns", getPercentile(allLatenciesNs, 50));
+        status.putLong("latency_p99_ns", getPercentile(allLatenciesNs, 99));
+        status.putLong("latency_p99_9_ns", getPercentile(allLatenciesNs, 99.9));
+        status.putLong("latency_max_ns", allLatenciesNs[allLatenciesNs.length - 1]);
+        Log.i(TAG, name + ": " + status);
+        InstrumentationRegistry.getInstrumentation().sendStatus(Activity.RESULT_OK, status);
+
+        assertThat(unexpectedModes.get()).isEqualTo(0);
+    }
+
+    private static long getPercentile(long[] sortedValues, double percentile) {
+        return sortedValues[(int) ((sortedValues.length - 1) * percentile / 100)];
+    }
+
+    private static int getUid(int index) {
+        return UserHandle.getUid(UserHandle.getUserId(Process.myUid()),
+                Process.FIRST_APPLICATION_UID + 1000 + index);
+    }
+
+    private static String getPackageName(int index) {
+        return "com.android.server.appop.contention" + index;
+    }
+
+    private interface OpCall {
+        int call(int op, int uid, String packageName);
+    }
+}
@@ -21,6 +21,7 @@ import static android.app.AppOpsManager.FILTER_BY_UID;
 import static android.app.AppOpsManager.MODE_ALLOWED;
 import static android.app.AppOpsManager.MODE_ERRORED;
 import static android.app.AppOpsManager.MODE_FOREGROUND;
+import static android.app.AppOpsManager.MODE_IGNORED;
 import static android.app.AppOpsManager.OP_COARSE_LOCATION;
 import static android.app.AppOpsManager.OP_FLAGS_ALL;
 import static android.app.AppOpsManager.OP_READ_SMS;
@@ -116,6 +117,8 @@ public class AppOpsServiceTest {
             // Start with a clean state (persisted into XML).
             mAppOpsFile.delete();
         }
+        new File(mAppOpsFile.getPath() + ".journal").delete();
+        new File(mAppOpsFile.getPath() + ".journal.old").delete();
 
         HandlerThread handlerThread = new HandlerThread(TAG);
         handlerThread.start();
@@ -226,6 +229,42 @@ public class AppOpsServiceTest {
         assertContainsOp(loggedOps, OP_WRITE_SMS, -1, mTestStartMillis, MODE_ERRORED);
     }
 
+    // Tests that the changes made since the state was last written are restored from the journal.
+    @Test
+    public void testJournalReplay() {
+        mAppOpsService.setMode(OP_READ_SMS, mMyUid, sMyPackageName, MODE_ALLOWED);
+        mAppOpsService.writeState();
+        mAppOpsService.setMode(OP_WRITE_SMS, mMyUid, sMyPackageName, MODE_ERRORED);
+        mAppOpsService.noteOperation(OP_READ_SMS, mMyUid, sMyPackageName, null, false, null, false);
+        mAppOpsService.noteOperation(OP_WRITE_SMS, mMyUid, sMyPackageName, null, false, null,
+                false);
+        mAppOpsService.mJournal.flush();
+
+        // Create a new app ops service, and initialize its state from XML and the journal.
+        setupAppOpsService();
+        mAppOpsService.readState();
+
+        List<PackageOps> loggedOps = getLoggedOps();
+        assertContainsOp(loggedOps, OP_READ_SMS, mTestStartMillis, -1, MODE_ALLOWED);
+        assertContainsOp(loggedOps, OP_WRITE_SMS, -1, mTestStartMillis, MODE_ERRORED);
+    }
+
+    // Tests that the journal doesn't restore changes undone after the state was written.
+    @Test
+    public void testJournalDiscardedOnceWritten() {
+        mAppOpsService.setMode(OP_READ_SMS, mMyUid, sMyPackageName, MODE_ERRORED);
+        mAppOpsService.mJournal.flush();
+        mAppOpsService.writeState();
+        mAppOpsService.packageRemoved(mMyUid, sMyPackageName);
+        mAppOpsService.writeState();
+
+        // Create a new app ops service, and initialize its state from XML and the journal.
+        setupAppOpsService();
+        mAppOpsService.readState();
+
+        assertThat(getLoggedOps()).isNull();
+    }
+
     // Tests that ops are persisted during shutdown.
     @Test
     public void testShutdown() {
@@ -370,6 +409,32 @@ public class AppOpsServiceTest {
                 false, null, false)).isNotEqualTo(MODE_ALLOWED);
     }
 
+    // Tests that the modes checked without the lock follow the changes of the uid.
+    @Test
+    public void testCheckOperation_followsChanges() {
+        setupProcStateTests();
+
+        mAppOpsService.updateUidProcState(mMyUid, ActivityManager.PROCESS_STATE_CACHED_EMPTY,
+                ActivityManager.PROCESS_CAPABILITY_NONE);
+        assertThat(mAppOpsService.checkOperation(OP_COARSE_LOCATION, mMyUid, sMyPackageName))
+                .isEqualTo(MODE_IGNORED);
+        assertThat(mAppOpsService.checkOperation(OP_COARSE_LOCATION, mMyUid, sMyPackageName))
+                .isEqualTo(MODE_IGNORED);
+
+        mAppOpsService.updateUidProcState(mMyUid, ActivityManager.PROCESS_STATE_TOP,
+                ActivityManager.PROCESS_CAPABILITY_FOREGROUND_LOCATION);
+        assertThat(mAppOpsService.checkOperation(OP_COARSE_LOCATION, mMyUid, sMyPackageName))
+                .isEqualTo(MODE_ALLOWED);
+
+        mAppOpsService.setMode(OP_COARSE_LOCATION, mMyUid, sMyPackageName, MODE_ERRORED);
+        assertThat(mAppOpsService.checkOperation(OP_COARSE_LOCATION, mMyUid, sMyPackageName))
+                .isEqualTo(MODE_ERRORED);
+
+        mAppOpsService.setUidMode(OP_COARSE_LOCATION, mMyUid, MODE_IGNORED);
+        assertThat(mAppOpsService.checkOperation(OP_COARSE_LOCATION, mMyUid, sMyPackageName))
+                .isEqualTo(MODE_IGNORED);
+    }
+
     @Test
     public void testUidProcStateChange_cachedToFgs() {
         setupProcStateTests();
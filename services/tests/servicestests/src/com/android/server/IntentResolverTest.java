@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.platform.test.annotations.Presubmit;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+/**
+ * Tests for {@link IntentResolver}
+ */
+@RunWith(AndroidJUnit4.class)
+public class IntentResolverTest {
+    private static final String ACTION = "com.android.server.TEST_ACTION";
+
+    private TestResolver mResolver;
+
+    @Before
+    public void setUp() {
+        mResolver = new TestResolver();
+    }
+
+    @Test
+    @SmallTest
+    @Presubmit
+    public void testQueryIntent_categoryPrefilterMatchesFullMatch() {
+        final IntentFilter none = newFilter(ACTION);
+        final IntentFilter browsable = newFilter(ACTION, Intent.CATEGORY_BROWSABLE);
+        final IntentFilter both = newFilter(ACTION, Intent.CATEGORY_BROWSABLE,
+                Intent.CATEGORY_DEFAULT);
+        mResolver.addFilter(none);
+        mResolver.addFilter(browsable);
+        mResolver.addFilter(both);
+
+        final Intent intent = new Intent(ACTION).addCategory(Intent.CATEGORY_BROWSABLE);
+        final List<IntentFilter> prefiltered = query(intent);
+        mResolver.setCategoryPrefilterEnabled(false);
+        final List<IntentFilter> unfiltered = query(intent);
+
+        assertEquals(unfiltered, prefiltered);
+        assertEquals(2, prefiltered.size());
+        assertTrue(prefiltered.contains(browsable));
+        assertTrue(prefiltered.contains(both));
+    }
+
+    @Test
+    @SmallTest
+    @Presubmit
+    public void testQueryIntent_undeclaredCategory() {
+        mResolver.addFilter(newFilter(ACTION, Intent.CATEGORY_BROWSABLE));
+
+        final Intent intent = new Intent(ACTION).addCategory("com.android.server.UNKNOWN");
+        assertTrue(query(intent).isEmpty());
+    }
+
+    @Test
+    @SmallTest
+    @Presubmit
+    public void testQueryIntent_categoryOfRemovedFilter() {
+        final IntentFilter filter = newFilter(ACTION, Intent.CATEGORY_BROWSABLE);
+        mResolver.addFilter(filter);
+        mResolver.addFilter(newFilter(ACTION));
+        final Intent intent = new Intent(ACTION).addCategory(Intent.CATEGORY_BROWSABLE);
+        assertEquals(1, query(intent).size());
+
+        mResolver.removeFilter(filter);
+        assertTrue(query(intent).isEmpty());
+
+        mResolver.addFilter(filter);
+        assertEquals(1, query(intent).size());
+    }
+
+    @Test
+    @SmallTest
+    @Presubmit
+    public void testQueryIntent_moreCategoriesThanMaskBits() {
+        final int count = 100;
+        for (int i = 0; i < count; i++) {
+            mResolver.addFilter(newFilter(ACTION, "category" + i, "shared"));
+        }
+
+        for (int i = 0; i < count; i++) {
+            final Intent intent = new Intent(ACTION).addCategory("category" + i)
+                    .addCategory("shared");
+            assertEquals("category" + i, 1, query(intent).size());
+        }
+        assertEquals(count, query(new Intent(ACTION).addCategory("shared")).size());
+        assertTrue(query(new Intent(ACTION).addCategory("category0")
+                .addCategory("category99")).isEmpty());
+    }
+
+    private List<IntentFilter> query(Intent intent) {
+        return mResolver.queryIntent(intent, null /* resolvedType */, false /* defaultOnly */,
+                0 /* userId */);
+    }
+
+    private static IntentFilter newFilter(String action, String... categories) {
+        final IntentFilter filter = new IntentFilter(action);
+        for (String category : categories) {
+            filter.addCategory(category);
+        }
+        return filter;
+    }
+
+    private static class TestResolver extends IntentResolver<IntentFilter, IntentFilter> {
+        @Override
+        protected IntentFilter getIntentFilter(IntentFilter input) {
+            return input;
+        }
+
+        @Override
+        protected boolean isPackageForFilter(String packageName, IntentFilter filter) {
+            return false;
+        }
+
+        @Override
+        protected IntentFilter[] newArray(int size) {
+            return new IntentFilter[size];
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import android.app.ApplicationExitInfo;
+import android.platform.test.annotations.Presubmit;
+
+import androidx.test.filters.SmallTest;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+
+/**
+ * Test class for {@link AppExitInfoStore}.
+ *
+ * Build/Install/Run:
+ *  atest FrameworksServicesTests:AppExitInfoStoreTest
+ */
+@SmallTest
+@Presubmit
+public class AppExitInfoStoreTest {
+    private static final String PACKAGE_A = "com.android.test.a";
+    private static final String PACKAGE_B = "com.android.test.b";
+    private static final int UID_A = 10123;
+    private static final int UID_B = 10124;
+
+    @Rule
+    public TemporaryFolder mTempFolder = new TemporaryFolder();
+
+    private File mDir;
+
+    @Before
+    public void setUp() {
+        mDir = mTempFolder.getRoot();
+    }
+
+    @Test
+    public void testLoad_recordsDecodedOnRead() throws IOException {
+        final ApplicationExitInfo infoA = createExitInfo(100, 1000L);
+        final ApplicationExitInfo infoB = createExitInfo(200, 2000L);
+        final AppExitInfoStore store = new AppExitInfoStore(mDir);
+        store.load(record -> { });
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AppExitInfoStore.write(out, PACKAGE_A, UID_A, infoA);
+        AppExitInfoStore.write(out, PACKAGE_B, UID_B, infoB);
+        store.append(out);
+
+        final ArrayList<AppExitInfoStore.Record> records = load(new AppExitInfoStore(mDir));
+        assertEquals(2, records.size());
+        // The index is read from the entry headers alone
+        assertRecord(records.get(0), PACKAGE_A, UID_A, infoA);
+        assertRecord(records.get(1), PACKAGE_B, UID_B, infoB);
+        assertEquals(infoA, AppExitInfoStore.read(records.get(0)));
+        assertEquals(infoB, AppExitInfoStore.read(records.get(1)));
+    }
+
+    @Test
+    public void testLoad_ignoresTornTail() throws IOException {
+        final ApplicationExitInfo infoA = createExitInfo(100, 1000L);
+        final ApplicationExitInfo infoB = createExitInfo(200, 2000L);
+        final AppExitInfoStore store = new AppExitInfoStore(mDir);
+        store.load(record -> { });
+        append(store, PACKAGE_A, UID_A, infoA);
+        append(store, PACKAGE_B, UID_B, infoB);
+
+        // Cut the last entry short, as if the device went down while appending it
+        final File segment = getSegmentFiles()[0];
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            raf.setLength(raf.length() - 3);
+        }
+
+        final AppExitInfoStore reloaded = new AppExitInfoStore(mDir);
+        ArrayList<AppExitInfoStore.Record> records = load(reloaded);
+        assertEquals(1, records.size());
+        assertEquals(infoA, AppExitInfoStore.read(records.get(0)));
+
+        // Nothing is appended after the torn entry, it goes to a new segment
+        append(reloaded, PACKAGE_B, UID_B, infoB);
+        assertEquals(2, reloaded.getSegmentCount());
+        records = load(new AppExitInfoStore(mDir));
+        assertEquals(2, records.size());
+        assertEquals(infoA, AppExitInfoStore.read(records.get(0)));
+        assertEquals(infoB, AppExitInfoStore.read(records.get(1)));
+    }
+
+    @Test
+    public void testCompact_relocatesRecords() throws IOException {
+        final ApplicationExitInfo infoA = createExitInfo(100, 1000L);
+        final ApplicationExitInfo infoB = createExitInfo(200, 2000L);
+        final AppExitInfoStore store = new AppExitInfoStore(mDir);
+        store.load(record -> { });
+        append(store, PACKAGE_A, UID_A, infoA);
+        append(store, PACKAGE_B, UID_B, infoB);
+
+        final AppExitInfoStore reloaded = new AppExitInfoStore(mDir);
+        final ArrayList<AppExitInfoStore.Record> records = load(reloaded);
+        // Drop the record of package A, keep the one of package B without decoding it
+        final AppExitInfoStore.Record recordB = records.get(1);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final int offset = AppExitInfoStore.copy(out, recordB);
+        final ByteBuffer segment = reloaded.compact(out);
+        AppExitInfoStore.relocate(recordB, segment, offset);
+
+        assertEquals(1, reloaded.getSegmentCount());
+        assertEquals(1, getSegmentFiles().length);
+        assertEquals(infoB, AppExitInfoStore.read(recordB));
+
+        final ArrayList<AppExitInfoStore.Record> compacted = load(new AppExitInfoStore(mDir));
+        assertEquals(1, compacted.size());
+        assertRecord(compacted.get(0), PACKAGE_B, UID_B, infoB);
+        assertEquals(infoB, AppExitInfoStore.read(compacted.get(0)));
+    }
+
+    @Test
+    public void testCompact_supersedesOlderSegments() throws IOException {
+        final ApplicationExitInfo infoA = createExitInfo(100, 1000L);
+        final ApplicationExitInfo infoB = createExitInfo(200, 2000L);
+        final AppExitInfoStore store = new AppExitInfoStore(mDir);
+        store.load(record -> { });
+        append(store, PACKAGE_A, UID_A, infoA);
+        final File oldSegment = getSegmentFiles()[0];
+        final byte[] oldContent = Files.readAllBytes(oldSegment.toPath());
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AppExitInfoStore.write(out, PACKAGE_B, UID_B, infoB);
+        store.compact(out);
+        assertFalse(oldSegment.exists());
+
+        // As if the device went down before the old segment could be deleted
+        try (FileOutputStream fos = new FileOutputStream(oldSegment)) {
+            fos.write(oldContent);
+        }
+        // and while writing another compaction
+        try (FileOutputStream fos = new FileOutputStream(new File(mDir,
+                AppExitInfoStore.SEGMENT_FILE_PREFIX + "9.tmp"))) {
+            fos.write(oldContent);
+        }
+
+        final ArrayList<AppExitInfoStore.Record> records = load(new AppExitInfoStore(mDir));
+        assertEquals(1, records.size());
+        assertRecord(records.get(0), PACKAGE_B, UID_B, infoB);
+        assertFalse(oldSegment.exists());
+        assertEquals(1, getSegmentFiles().length);
+    }
+
+    private static ApplicationExitInfo createExitInfo(int pid, long timestamp) {
+        final ApplicationExitInfo info = new ApplicationExitInfo();
+        info.setPid(pid);
+        info.setTimestamp(timestamp);
+        info.setReason(ApplicationExitInfo.REASON_EXIT_SELF);
+        info.setProcessName("process" + pid);
+        return info;
+    }
+
+    private static void append(AppExitInfoStore store, String packageName, int uid,
+            ApplicationExitInfo info) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AppExitInfoStore.write(out, packageName, uid, info);
+        store.append(out);
+    }
+
+    private static ArrayList<AppExitInfoStore.Record> load(AppExitInfoStore store) {
+        final ArrayList<AppExitInfoStore.Record> records = new ArrayList<>();
+        store.load(records::add);
+        return records;
+    }
+
+    private File[] getSegmentFiles() {
+        return mDir.listFiles((dir, name) -> name.startsWith(AppExitInfoStore.SEGMENT_FILE_PREFIX));
+    }
+
+    private static void assertRecord(AppExitInfoStore.Record record, String packageName, int uid,
+            ApplicationExitInfo info) {
+        assertEquals(packageName, record.packageName);
+        assertEquals(uid, record.uid);
+        assertEquals(info.getPid(), record.pid);
+        assertEquals(info.getTimestamp(), record.timestamp);
+        assertNull(record.traceFileName);
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Intent;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.platform.test.annotations.Presubmit;
+
+import androidx.test.filters.SmallTest;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test class for {@link BroadcastDispatcher}.
+ *
+ * Build/Install/Run:
+ *  atest FrameworksServicesTests:BroadcastDispatcherTest
+ */
+@SmallTest
+@Presubmit
+public class BroadcastDispatcherTest {
+    private static final String ACTION_A = "com.android.server.am.ACTION_A";
+    private static final String ACTION_B = "com.android.server.am.ACTION_B";
+
+    private BroadcastDispatcher mDispatcher;
+
+    @Before
+    public void setUp() {
+        mDispatcher = new BroadcastDispatcher(null /* queue */, null /* constants */,
+                null /* handler */, new Object());
+    }
+
+    @Test
+    public void testRemoveReplacedBroadcasts() {
+        final int user0 = UserHandle.USER_SYSTEM;
+        final BroadcastRecord recordA = createBroadcastRecord(ACTION_A, user0);
+        final BroadcastRecord recordB = createBroadcastRecord(ACTION_B, user0);
+        final BroadcastRecord recordAOtherUser = createBroadcastRecord(ACTION_A, user0 + 1);
+        mDispatcher.enqueueOrderedBroadcastLocked(recordA);
+        mDispatcher.enqueueOrderedBroadcastLocked(recordB);
+        mDispatcher.enqueueOrderedBroadcastLocked(recordAOtherUser);
+
+        final List<BroadcastRecord> removed = mDispatcher.removeReplacedBroadcastsLocked(
+                createBroadcastRecord(ACTION_A, user0), "ORDERED");
+
+        assertEquals(1, removed.size());
+        assertSame(recordA, removed.get(0));
+        assertSame(recordB, nextBroadcast());
+        assertSame(recordAOtherUser, nextBroadcast());
+        assertNull(nextBroadcast());
+    }
+
+    @Test
+    public void testRemoveReplacedBroadcasts_keepsActiveBroadcast() {
+        final int user0 = UserHandle.USER_SYSTEM;
+        final BroadcastRecord active = createBroadcastRecord(ACTION_A, user0);
+        final BroadcastRecord pending = createBroadcastRecord(ACTION_A, user0);
+        mDispatcher.enqueueOrderedBroadcastLocked(active);
+        mDispatcher.enqueueOrderedBroadcastLocked(pending);
+        assertSame(active, mDispatcher.getNextBroadcastLocked(SystemClock.uptimeMillis()));
+
+        final List<BroadcastRecord> removed = mDispatcher.removeReplacedBroadcastsLocked(
+                createBroadcastRecord(ACTION_A, user0), "ORDERED");
+
+        // The broadcast being delivered has already been popped, it can't be replaced
+        assertEquals(1, removed.size());
+        assertSame(pending, removed.get(0));
+        assertSame(active, mDispatcher.getActiveBroadcastLocked());
+        assertSame(active, nextBroadcast());
+        assertTrue(mDispatcher.isEmpty());
+    }
+
+    private BroadcastRecord nextBroadcast() {
+        final BroadcastRecord r = mDispatcher.getNextBroadcastLocked(SystemClock.uptimeMillis());
+        if (r != null) {
+            mDispatcher.retireBroadcastLocked(r);
+        }
+        return r;
+    }
+
+    private static BroadcastRecord createBroadcastRecord(String action, int userId) {
+        return new BroadcastRecord(
+                null /* queue */,
+                new Intent(action),
+                null /* callerApp */,
+                null  /* callerPackage */,
+                null /* callerFeatureId */,
+                0 /* callingPid */,
+                0 /* callingUid */,
+                false /* callerInstantApp */,
+                null /* resolvedType */,
+                null /* requiredPermissions */,
+                0 /* appOp */,
+                null /* options */,
+                new ArrayList<>(),
+                null /* resultTo */,
+                0 /* resultCode */,
+                null /* resultData */,
+                null /* resultExtras */,
+                true /* serialized */,
+                false /* sticky */,
+                false /* initialSticky */,
+                userId,
+                false, /* allowBackgroundActivityStarts */
+                false /* timeoutExempt */ );
+    }
+}
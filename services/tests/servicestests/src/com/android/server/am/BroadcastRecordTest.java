@@ -16,7 +16,11 @@
 
 package com.android.server.am;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import android.content.Intent;
 import android.content.pm.ActivityInfo;
@@ -94,6 +98,57 @@ public class BroadcastRecordTest {
         assertNull(verifyRemaining(recordU0, Collections.emptyList()));
     }
 
+    @Test
+    public void testSplitForLane() {
+        final int user0 = UserHandle.USER_SYSTEM;
+        final List<ResolveInfo> receivers = createReceiverInfos(
+                new String[] { "pkg.a", "pkg.b", "pkg.c" }, new int[] { user0 });
+        final BroadcastRecord record = createBroadcastRecord(receivers, user0);
+        final List<ResolveInfo> laneReceivers = excludeReceivers(receivers, "pkg.b", -1);
+
+        final BroadcastRecord laneRecord = record.splitForLaneLocked(null /* lane */,
+                new ArrayList<>(laneReceivers));
+
+        assertEquals(laneReceivers, laneRecord.receivers);
+        // Delivery sets the component on the intent, so each lane needs its own copy, which the
+        // receivers must not be able to tell from the original
+        assertNotSame(record.intent, laneRecord.intent);
+        assertEquals(record.intent.getFlags(), laneRecord.intent.getFlags());
+        assertNull(laneRecord.resultTo);
+        assertEquals(record.userId, laneRecord.userId);
+        assertEquals(receivers.size(), record.receivers.size());
+    }
+
+    @Test
+    public void testIsReceiverInFlightToProcessOf() {
+        final int user0 = UserHandle.USER_SYSTEM;
+        final List<ResolveInfo> receivers = createReceiverInfos(
+                new String[] { "pkg.a", "pkg.b" }, new int[] { user0, user0 + 1 });
+        final BroadcastRecord record = createBroadcastRecord(receivers, UserHandle.USER_ALL);
+        final ResolveInfo receiverA0 = receivers.get(0);
+        final ResolveInfo receiverA1 = receivers.get(1);
+        final ResolveInfo receiverB0 = receivers.get(2);
+
+        // Nothing is in flight before the first receiver is sent
+        assertFalse(record.isReceiverInFlightToProcessOfLocked(receiverA0));
+
+        record.state = BroadcastRecord.APP_RECEIVE;
+        record.curReceiver = receiverA0.activityInfo;
+        assertTrue(record.isReceiverInFlightToProcessOfLocked(receiverA0));
+        // Singleton receivers of other users run in the process of the system user
+        assertTrue(record.isReceiverInFlightToProcessOfLocked(receiverA1));
+        assertFalse(record.isReceiverInFlightToProcessOfLocked(receiverB0));
+
+        // A receiver of another process of the same app runs elsewhere
+        final ResolveInfo receiverRemote = createResolveInfo("pkg.a",
+                receiverA0.activityInfo.applicationInfo.uid);
+        receiverRemote.activityInfo.processName = "pkg.a:remote";
+        assertFalse(record.isReceiverInFlightToProcessOfLocked(receiverRemote));
+
+        record.state = BroadcastRecord.IDLE;
+        assertFalse(record.isReceiverInFlightToProcessOfLocked(receiverA0));
+    }
+
     private static void cleanupDisabledPackageReceivers(BroadcastRecord record,
             String packageName, int userId) {
         record.cleanupDisabledPackageReceiversLocked(packageName, null /* filterByClasses */,
@@ -136,6 +191,7 @@ public class BroadcastRecordTest {
         appInfo.packageName = packageName;
         appInfo.uid = uid;
         activityInfo.applicationInfo = appInfo;
+        activityInfo.processName = packageName;
         resolveInfo.activityInfo = activityInfo;
         return resolveInfo;
     }
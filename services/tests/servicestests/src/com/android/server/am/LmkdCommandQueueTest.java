@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.net.LocalSocketAddress;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.platform.test.annotations.Presubmit;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
+import android.system.UnixSocketAddress;
+import android.util.Log;
+
+import androidx.test.filters.SmallTest;
+
+import libcore.io.IoUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.FileDescriptor;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test class for {@link LmkdCommandQueue}, writing to a fake lmkd listening on a local socket.
+ *
+ * Build/Install/Run:
+ *  atest FrameworksServicesTests:LmkdCommandQueueTest
+ */
+@SmallTest
+@Presubmit
+public class LmkdCommandQueueTest {
+    private static final String TAG = LmkdCommandQueueTest.class.getSimpleName();
+
+    private static final int FIRST_PID = 10000;
+    private static final int FIRST_UID = 10100;
+    private static final int POLL_TIMEOUT_MS = 2000;
+
+    private HandlerThread mThread;
+    private FileDescriptor mServerFd;
+    private FileDescriptor mLmkdFd;
+    private LmkdConnection mConnection;
+    private LmkdCommandQueue mQueue;
+
+    @Before
+    public void setUp() throws Exception {
+        final String name = "lmkd_test_" + Os.getpid() + "_" + SystemClock.elapsedRealtimeNanos();
+        mServerFd = Os.socket(OsConstants.AF_UNIX, OsConstants.SOCK_SEQPACKET, 0);
+        Os.bind(mServerFd, UnixSocketAddress.createAbstract(name));
+        Os.listen(mServerFd, 1);
+
+        mThread = new HandlerThread(TAG);
+        mThread.start();
+        mConnection = new LmkdConnection(mThread.getLooper().getQueue(),
+                new LmkdConnection.LmkdConnectionListener() {
+                    @Override
+                    public boolean onConnect(OutputStream ostream) {
+                        return true;
+                    }
+
+                    @Override
+                    public void onDisconnect() {
+                    }
+
+                    @Override
+                    public boolean isReplyExpected(ByteBuffer replyBuf, ByteBuffer dataReceived,
+                            int receivedLen) {
+                        return false;
+                    }
+
+                    @Override
+                    public boolean handleUnsolicitedMessage(ByteBuffer dataReceived,
+                            int receivedLen) {
+                        return false;
+                    }
+                }, new LocalSocketAddress(name, LocalSocketAddress.Namespace.ABSTRACT));
+        assertTrue(mConnection.connect());
+        mLmkdFd = Os.accept(mServerFd, null);
+        mQueue = new LmkdCommandQueue(buf -> mConnection.exchange(buf, null));
+    }
+
+    @After
+    public void tearDown() {
+        IoUtils.closeQuietly(mLmkdFd);
+        IoUtils.closeQuietly(mServerFd);
+        mThread.quitSafely();
+    }
+
+    @Test
+    public void testFlush_OomAdjPass() throws Exception {
+        // A pass updating 40 processes, 10 of them twice, then removing 2 of them
+        final int processCount = 40;
+        int queuedCount = 0;
+        for (int i = 0; i < processCount; i++) {
+            mQueue.queueProcPrio(FIRST_PID + i, FIRST_UID + i, ProcessList.CACHED_APP_MIN_ADJ);
+            queuedCount++;
+        }
+        for (int i = 0; i < 10; i++) {
+            mQueue.queueProcPrio(FIRST_PID + i, FIRST_UID + i, ProcessList.SERVICE_ADJ);
+            queuedCount++;
+        }
+        mQueue.queueProcRemove(FIRST_PID + processCount - 2);
+        mQueue.queueProcRemove(FIRST_PID + processCount - 1);
+        queuedCount += 2;
+
+        final long startNs = SystemClock.elapsedRealtimeNanos();
+        final int written = mQueue.flush();
+        final long flushNs = SystemClock.elapsedRealtimeNanos() - startNs;
+        final List<int[]> packets = readPackets(written);
+        Log.i(TAG, "Pass of " + queuedCount + " commands: " + written + " writes in "
+                + (flushNs / 1000) + "us");
+
+        assertEquals(processCount, written);
+        for (int i = 0; i < processCount - 2; i++) {
+            assertArrayEquals(new int[] { ProcessList.LMK_PROCPRIO, FIRST_PID + i, FIRST_UID + i,
+                    i < 10 ? ProcessList.SERVICE_ADJ : ProcessList.CACHED_APP_MIN_ADJ },
+                    packets.get(i));
+        }
+        assertArrayEquals(new int[] { ProcessList.LMK_PROCREMOVE, FIRST_PID + processCount - 2 },
+                packets.get(processCount - 2));
+        assertArrayEquals(new int[] { ProcessList.LMK_PROCREMOVE, FIRST_PID + processCount - 1 },
+                packets.get(processCount - 1));
+        assertNull(readPacket(0));
+    }
+
+    @Test
+    public void testFlush_PidReusedAfterRemove() throws Exception {
+        mQueue.queueProcPrio(FIRST_PID, FIRST_UID, ProcessList.CACHED_APP_MIN_ADJ);
+        mQueue.queueProcRemove(FIRST_PID);
+        mQueue.queueProcPrio(FIRST_PID, FIRST_UID + 1, ProcessList.FOREGROUND_APP_ADJ);
+
+        assertEquals(2, mQueue.flush());
+        final List<int[]> packets = readPackets(2);
+        assertArrayEquals(new int[] { ProcessList.LMK_PROCREMOVE, FIRST_PID }, packets.get(0));
+        assertArrayEquals(new int[] { ProcessList.LMK_PROCPRIO, FIRST_PID, FIRST_UID + 1,
+                ProcessList.FOREGROUND_APP_ADJ }, packets.get(1));
+    }
+
+    @Test
+    public void testFlush_DisconnectedDuringFlush() throws Exception {
+        final List<int[]> written = new ArrayList<>();
+        final boolean[] connected = { true };
+        final LmkdCommandQueue queue = new LmkdCommandQueue(buf -> {
+            if (written.size() == 1 && connected[0]) {
+                // lmkd goes away while an oom adj pass keeps queueing
+                connected[0] = false;
+                mQueue.queueProcPrio(FIRST_PID + 2, FIRST_UID + 2,
+                        ProcessList.FOREGROUND_APP_ADJ);
+                mQueue.queueProcPrio(FIRST_PID + 5, FIRST_UID + 5,
+                        ProcessList.CACHED_APP_MIN_ADJ);
+            }
+            if (!connected[0]) {
+                return false;
+            }
+            final int[] packet = new int[buf.position() / 4];
+            buf.flip();
+            buf.asIntBuffer().get(packet);
+            written.add(packet);
+            return true;
+        });
+        mQueue = queue;
+        for (int i = 0; i < 4; i++) {
+            queue.queueProcPrio(FIRST_PID + i, FIRST_UID + i, ProcessList.CACHED_APP_MIN_ADJ);
+        }
+
+        assertEquals(1, queue.flush());
+        // The commands that failed are still queued and coalesce with the new ones
+        assertFalse(queue.queueProcPrio(FIRST_PID + 1, FIRST_UID + 1, ProcessList.SERVICE_ADJ));
+        assertFalse(queue.queueProcRemove(FIRST_PID + 3));
+
+        connected[0] = true;
+        assertEquals(4, queue.flush());
+        assertEquals(5, written.size());
+        assertArrayEquals(new int[] { ProcessList.LMK_PROCPRIO, FIRST_PID, FIRST_UID,
+                ProcessList.CACHED_APP_MIN_ADJ }, written.get(0));
+        assertArrayEquals(new int[] { ProcessList.LMK_PROCPRIO, FIRST_PID + 1, FIRST_UID + 1,
+                ProcessList.SERVICE_ADJ }, written.get(1));
+        assertArrayEquals(new int[] { ProcessList.LMK_PROCPRIO, FIRST_PID + 2, FIRST_UID + 2,
+                ProcessList.FOREGROUND_APP_ADJ }, written.get(2));
+        assertArrayEquals(new int[] { ProcessList.LMK_PROCPRIO, FIRST_PID + 5, FIRST_UID + 5,
+                ProcessList.CACHED_APP_MIN_ADJ }, written.get(3));
+        assertArrayEquals(new int[] { ProcessList.LMK_PROCREMOVE, FIRST_PID + 3 },
+                written.get(4));
+        assertEquals(0, queue.flush());
+    }
+
+    @Test
+    public void testFlush_Empty() throws Exception {
+        assertEquals(0, mQueue.flush());
+        assertNull(readPacket(0));
+    }
+
+    private List<int[]> readPackets(int count) throws ErrnoException {
+        final List<int[]> packets = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final int[] packet = readPacket(POLL_TIMEOUT_MS);
+            assertNotNull("Missing packet " + i, packet);
+            packets.add(packet);
+        }
+        return packets;
+    }
+
+    /** Reads a packet the way lmkd does, or returns null if none arrives in time. */
+    private int[] readPacket(int timeoutMs) throws ErrnoException {
+        final StructPollfd pollFd = new StructPollfd();
+        pollFd.fd = mLmkdFd;
+        pollFd.events = (short) OsConstants.POLLIN;
+        if (Os.poll(new StructPollfd[] { pollFd }, timeoutMs) == 0) {
+            return null;
+        }
+        final byte[] data = new byte[64];
+        final int len = Os.read(mLmkdFd, data, 0, data.length);
+        final int[] packet = new int[len / 4];
+        ByteBuffer.wrap(data, 0, len).order(ByteOrder.BIG_ENDIAN).asIntBuffer().get(packet);
+        return packet;
+    }
+}
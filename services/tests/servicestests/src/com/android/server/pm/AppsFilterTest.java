@@ -20,6 +20,7 @@ package com.android.server.pm;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.empty;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
@@ -41,13 +42,16 @@ import android.content.pm.parsing.component.ParsedIntentInfo;
 import android.content.pm.parsing.component.ParsedProvider;
 import android.os.Build;
 import android.os.Process;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.platform.test.annotations.Presubmit;
 import android.util.ArrayMap;
 import android.util.ArraySet;
+import android.util.Log;
 import android.util.SparseArray;
 
 import androidx.annotation.NonNull;
+import androidx.test.filters.LargeTest;
 
 import com.android.server.om.OverlayReferenceMapper;
 import com.android.server.pm.parsing.pkg.AndroidPackage;
@@ -77,6 +81,7 @@ import java.util.concurrent.Executor;
 @Presubmit
 @RunWith(JUnit4.class)
 public class AppsFilterTest {
+    private static final String TAG = AppsFilterTest.class.getSimpleName();
 
     private static final int DUMMY_CALLING_APPID = 10345;
     private static final int DUMMY_TARGET_APPID = 10556;
@@ -888,6 +893,159 @@ public class AppsFilterTest {
                 contains(hasProviderAppId, queriesProviderAppId));
     }
 
+    @Test
+    public void testImplicitAccess_UncachedUidStaysFiltered() throws Exception {
+        final AppsFilter appsFilter =
+                new AppsFilter(mStateProvider, mFeatureConfigMock, new String[]{}, false, null,
+                        mMockExecutor);
+        simulateAddBasicAndroid(appsFilter);
+        appsFilter.onSystemReady();
+
+        PackageSetting target = simulateAddPackage(appsFilter,
+                pkg("com.some.package"), DUMMY_TARGET_APPID);
+        PackageSetting calling = simulateAddPackage(appsFilter,
+                pkg("com.some.other.package"), DUMMY_CALLING_APPID);
+        // not added to the filter, so the cache has no rules for it
+        final PackageSetting uncached = new PackageSettingBuilder()
+                .setPackage(((ParsedPackage) pkg("com.uncached.package").hideAsParsed())
+                        .hideAsFinal())
+                .setAppId(DUMMY_ACTOR_APPID)
+                .setName("com.uncached.package")
+                .setCodePath("/")
+                .setResourcePath("/")
+                .setPVersionCode(1L)
+                .build();
+
+        appsFilter.grantImplicitAccess(DUMMY_CALLING_APPID, DUMMY_ACTOR_APPID);
+
+        assertTrue(appsFilter.shouldFilterApplication(DUMMY_TARGET_APPID, target, uncached,
+                SYSTEM_USER));
+        assertTrue(appsFilter.shouldFilterApplication(DUMMY_TARGET_APPID, target, calling,
+                SYSTEM_USER));
+    }
+
+    @Test
+    public void testIncrementalCacheMatchesUncached() throws Exception {
+        final AppsFilter cached =
+                new AppsFilter(mStateProvider, mFeatureConfigMock, new String[]{}, false, null,
+                        mMockExecutor);
+        final AppsFilter uncached =
+                new AppsFilter(mStateProvider, mFeatureConfigMock, new String[]{}, false, null,
+                        mMockExecutor);
+        simulateAddBasicAndroid(cached);
+        uncached.addPackage(mExisting.get("android"));
+        cached.onSystemReady();
+
+        final List<PackageSetting> added = new ArrayList<>();
+        added.add(simulateAddPackage(cached,
+                pkg("com.some.package", new IntentFilter("TEST_ACTION")), DUMMY_TARGET_APPID));
+        added.add(simulateAddPackage(cached,
+                pkg("com.some.other.package", new Intent("TEST_ACTION")), DUMMY_CALLING_APPID));
+        added.add(simulateAddPackage(cached,
+                pkgWithProvider("com.some.provider", "com.some.authority"), DUMMY_ACTOR_APPID));
+        added.add(simulateAddPackage(cached,
+                pkgQueriesProvider("com.some.provider.user", "com.some.authority"),
+                DUMMY_OVERLAY_APPID));
+        added.add(simulateAddPackage(cached,
+                pkg("com.some.package.user", "com.some.package"), DUMMY_OVERLAY_APPID + 1));
+        for (PackageSetting setting : added) {
+            uncached.addPackage(setting);
+        }
+        assertSameVisibility(cached, uncached);
+
+        final PackageSetting removed = added.get(0);
+        cached.removePackage(removed);
+        uncached.removePackage(removed);
+        mExisting.remove(removed.name);
+        assertSameVisibility(cached, uncached);
+
+        final PackageSetting readded = simulateAddPackage(cached,
+                pkg("com.some.package", new IntentFilter("TEST_ACTION")), DUMMY_TARGET_APPID);
+        uncached.addPackage(readded);
+        assertSameVisibility(cached, uncached);
+    }
+
+    private void assertSameVisibility(AppsFilter cached, AppsFilter uncached) {
+        for (PackageSetting calling : mExisting.values()) {
+            for (PackageSetting target : mExisting.values()) {
+                for (int userId : USER_ARRAY) {
+                    final int callingUid = UserHandle.getUid(userId, calling.appId);
+                    assertEquals(calling.name + " -> " + target.name + " in user " + userId,
+                            uncached.shouldFilterApplication(callingUid, calling, target, userId),
+                            cached.shouldFilterApplication(callingUid, calling, target, userId));
+                }
+            }
+        }
+    }
+
+    /**
+     * Measures how long it takes to add and then remove one package once the visibility cache is
+     * built, on a single user device with 300, 1000 and 3000 packages installed. Results are
+     * written to the log.
+     */
+    @Test
+    @LargeTest
+    public void testInstallLatencyBenchmark() throws Exception {
+        final UserInfo[] users = { USER_INFO_LIST[0] };
+        final AppsFilter.StateProvider stateProvider =
+                callback -> callback.currentState(mExisting, users);
+        // Mockito answers are too slow to evaluate millions of pairs, so stub the config by hand.
+        final AppsFilter.FeatureConfig featureConfig = new AppsFilter.FeatureConfig() {
+            @Override
+            public void onSystemReady() {}
+
+            @Override
+            public boolean isGloballyEnabled() {
+                return true;
+            }
+
+            @Override
+            public boolean packageIsEnabled(AndroidPackage pkg) {
+                return true;
+            }
+
+            @Override
+            public boolean isLoggingEnabled(int appId) {
+                return false;
+            }
+
+            @Override
+            public void enableLogging(int appId, boolean enable) {}
+
+            @Override
+            public void updatePackageState(PackageSetting setting, boolean removed) {}
+        };
+
+        final int iterations = 20;
+        for (int packageCount : new int[] {300, 1000, 3000}) {
+            mExisting.clear();
+            final AppsFilter appsFilter = new AppsFilter(stateProvider, featureConfig,
+                    new String[]{}, false, null, mMockExecutor);
+            simulateAddBasicAndroid(appsFilter);
+            for (int i = 0; i < packageCount; i++) {
+                final String packageName = "com.example.package" + i;
+                final ParsingPackage pkg = i % 2 == 0
+                        ? pkg(packageName, new IntentFilter("ACTION_" + (i % 50)))
+                        : pkg(packageName, new Intent("ACTION_" + (i % 50)));
+                simulateAddPackage(appsFilter, pkg, Process.FIRST_APPLICATION_UID + i);
+            }
+            appsFilter.onSystemReady();
+
+            final int installedAppId = Process.FIRST_APPLICATION_UID + packageCount;
+            long elapsedNs = 0;
+            for (int i = 0; i < iterations; i++) {
+                final long start = SystemClock.elapsedRealtimeNanos();
+                final PackageSetting installed = simulateAddPackage(appsFilter,
+                        pkg("com.example.installed", new Intent("ACTION_0")), installedAppId);
+                appsFilter.removePackage(installed);
+                elapsedNs += SystemClock.elapsedRealtimeNanos() - start;
+                mExisting.remove(installed.name);
+            }
+            Log.i(TAG, packageCount + " packages: " + (elapsedNs / iterations / 1000)
+                    + "us per install and removal");
+        }
+    }
+
     private List<Integer> toList(int[] array) {
         ArrayList<Integer> ret = new ArrayList<>(array.length);
         for (int i = 0; i < array.length; i++) {
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.when;
+
+import android.content.Intent;
+import android.content.pm.PackageManagerInternal;
+import android.content.pm.ResolveInfo;
+import android.content.pm.parsing.component.ParsedIntentInfo;
+import android.content.pm.parsing.component.ParsedMainComponent;
+import android.content.pm.parsing.component.ParsedService;
+import android.os.Build;
+import android.os.UserHandle;
+import android.platform.test.annotations.Presubmit;
+import android.util.ArrayMap;
+
+import com.android.server.pm.parsing.pkg.AndroidPackage;
+import com.android.server.pm.parsing.pkg.PackageImpl;
+import com.android.server.pm.parsing.pkg.ParsedPackage;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.List;
+
+@Presubmit
+@RunWith(JUnit4.class)
+public class ComponentResolverTest {
+    private static final String TEST_ACTION = "com.android.server.pm.TEST_ACTION";
+    private static final int USER_ID = UserHandle.USER_SYSTEM;
+
+    @Mock
+    UserManagerService mUserManager;
+    @Mock
+    PackageManagerInternal mPackageManagerInternal;
+
+    private final ArrayMap<String, PackageSetting> mPackageSettings = new ArrayMap<>();
+    private ComponentResolver mComponentResolver;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        when(mUserManager.exists(anyInt())).thenReturn(true);
+        when(mPackageManagerInternal.getKnownPackageNames(anyInt(), anyInt()))
+                .thenReturn(new String[0]);
+        when(mPackageManagerInternal.isEnabledAndMatches(
+                any(ParsedMainComponent.class), anyInt(), anyInt())).thenReturn(true);
+        when(mPackageManagerInternal.getPackageSetting(anyString())).thenAnswer(
+                invocation -> mPackageSettings.get(invocation.<String>getArgument(0)));
+        when(mPackageManagerInternal.getPackage(anyString())).thenAnswer(invocation -> {
+            final PackageSetting setting = mPackageSettings.get(invocation.getArgument(0));
+            return setting != null ? setting.pkg : null;
+        });
+        mComponentResolver = new ComponentResolver(mUserManager, mPackageManagerInternal,
+                new Object());
+    }
+
+    private AndroidPackage addPackageWithService(String packageName, int appId) {
+        final ParsedService service = new ParsedService();
+        service.setPackageName(packageName);
+        service.setName(packageName + ".TestService");
+        service.setExported(true);
+        final ParsedIntentInfo info = new ParsedIntentInfo();
+        info.addAction(TEST_ACTION);
+        service.addIntent(info);
+        final AndroidPackage pkg = ((ParsedPackage) PackageImpl.forTesting(packageName)
+                .setTargetSdkVersion(Build.VERSION_CODES.R)
+                .addService(service)
+                .hideAsParsed()).hideAsFinal();
+        mPackageSettings.put(packageName, new PackageSettingBuilder()
+                .setPackage(pkg)
+                .setAppId(appId)
+                .setName(packageName)
+                .setCodePath("/")
+                .setResourcePath("/")
+                .setPVersionCode(1L)
+                .build());
+        mComponentResolver.addAllComponents(pkg, false);
+        return pkg;
+    }
+
+    private List<ResolveInfo> queryServices() {
+        return mComponentResolver.queryServices(new Intent(TEST_ACTION), null, 0, USER_ID);
+    }
+
+    @Test
+    public void testQueryCache_returnsCachedResult() {
+        addPackageWithService("com.android.test.first", 10100);
+        final List<ResolveInfo> first = queryServices();
+        assertEquals(1, first.size());
+
+        // Without an invalidation, the cached result is returned although the state changed.
+        when(mPackageManagerInternal.isEnabledAndMatches(
+                any(ParsedMainComponent.class), anyInt(), anyInt())).thenReturn(false);
+        final List<ResolveInfo> second = queryServices();
+        assertEquals(1, second.size());
+        assertEquals(first.get(0).serviceInfo.name, second.get(0).serviceInfo.name);
+    }
+
+    @Test
+    public void testQueryCache_resultsCanBeModified() {
+        addPackageWithService("com.android.test.first", 10100);
+        final List<ResolveInfo> first = queryServices();
+        final String name = first.get(0).serviceInfo.name;
+        final int flags = first.get(0).serviceInfo.applicationInfo.flags;
+        first.get(0).serviceInfo.name = "modified";
+        first.get(0).serviceInfo.applicationInfo.flags = ~flags;
+        first.clear();
+
+        final List<ResolveInfo> second = queryServices();
+        assertEquals(1, second.size());
+        assertEquals(name, second.get(0).serviceInfo.name);
+        assertEquals(flags, second.get(0).serviceInfo.applicationInfo.flags);
+    }
+
+    @Test
+    public void testQueryCache_invalidatedByPackageStateChange() {
+        addPackageWithService("com.android.test.first", 10100);
+        assertEquals(1, queryServices().size());
+
+        when(mPackageManagerInternal.isEnabledAndMatches(
+                any(ParsedMainComponent.class), anyInt(), anyInt())).thenReturn(false);
+        ComponentResolver.invalidateQueryCaches();
+        assertTrue(queryServices().isEmpty());
+    }
+
+    @Test
+    public void testQueryCache_invalidatedByComponentChange() {
+        final AndroidPackage first = addPackageWithService("com.android.test.first", 10100);
+        assertEquals(1, queryServices().size());
+
+        addPackageWithService("com.android.test.second", 10101);
+        assertEquals(2, queryServices().size());
+
+        mComponentResolver.removeAllComponents(first, false);
+        final List<ResolveInfo> result = queryServices();
+        assertEquals(1, result.size());
+        assertNotEquals(first.getPackageName(), result.get(0).serviceInfo.packageName);
+    }
+}
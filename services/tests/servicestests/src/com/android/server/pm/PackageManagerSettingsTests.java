@@ -24,6 +24,8 @@ import static android.content.pm.SuspendDialogInfo.BUTTON_ACTION_MORE_DETAILS;
 import static android.content.pm.SuspendDialogInfo.BUTTON_ACTION_UNSUSPEND;
 import static android.content.res.Resources.ID_NULL;
 
+import static com.android.server.pm.permission.BasePermission.TYPE_NORMAL;
+
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.not;
 import static org.hamcrest.CoreMatchers.notNullValue;
@@ -58,6 +60,7 @@ import androidx.test.filters.SmallTest;
 import androidx.test.runner.AndroidJUnit4;
 
 import com.android.server.LocalServices;
+import com.android.server.pm.permission.BasePermission;
 import com.android.server.pm.permission.PermissionSettings;
 
 import org.junit.After;
@@ -124,10 +127,44 @@ public class PackageManagerSettingsTests {
 
         // write out, read back in and verify the same
         settings.writeLPr();
+        settings.flushPendingWrites();
         assertThat(settings.readLPw(createFakeUsers()), is(true));
         verifyKeySetMetaData(settings);
     }
 
+    /** binary settings which fail to parse partway are dropped in favor of packages.xml */
+    @Test
+    public void testReadBrokenBinarySettings() throws Exception {
+        writeOldFiles();
+        final Context context = InstrumentationRegistry.getContext();
+        final File systemDir = new File(context.getFilesDir(), "system");
+        final PackageSettingsStore store = new PackageSettingsStore(
+                new File(systemDir, "packages.bin"), new File(systemDir, "packages-journal.bin"));
+        final PackageSettingsStore.RecordSerializer serializer = store.newSerializer();
+        serializer.startDocument(null, true);
+        serializer.startTag(null, "packages");
+        serializer.startTag(null, "package");
+        serializer.attribute(null, "name", "com.android.bar");
+        serializer.attribute(null, "codePath", "/data/app/com.android.bar-1");
+        serializer.attribute(null, "userId", "10999");
+        serializer.endTag(null, "package");
+        // Only fails once the package above has been read
+        serializer.startTag(null, "keyset-settings");
+        serializer.attribute(null, "version", "broken");
+        serializer.endTag(null, "keyset-settings");
+        serializer.endTag(null, "packages");
+        serializer.endDocument();
+        store.commit(serializer);
+
+        final Object lock = new Object();
+        Settings settings = new Settings(context.getFilesDir(), mPermissionSettings, lock);
+        assertThat(settings.readLPw(createFakeUsers()), is(true));
+        assertThat(settings.getPackageLPr("com.android.bar"), is(nullValue()));
+        assertThat(settings.getPackageLPr(PACKAGE_NAME_1), is(notNullValue()));
+        assertThat(settings.getPackageLPr(PACKAGE_NAME_3), is(notNullValue()));
+        verifyKeySetMetaData(settings);
+    }
+
     @Test
     public void testSettingsReadOld() {
         // Write delegateshellthe package files and make sure they're parsed properly the first time
@@ -158,6 +195,7 @@ public class PackageManagerSettingsTests {
         Settings settings = new Settings(context.getFilesDir(), mPermissionSettings, lock);
         assertThat(settings.readLPw(createFakeUsers()), is(true));
         settings.writeLPr();
+        settings.flushPendingWrites();
 
         // Create Settings again to make it read from the new files
         settings = new Settings(context.getFilesDir(), mPermissionSettings, lock);
@@ -276,6 +314,7 @@ public class PackageManagerSettingsTests {
         settingsUnderTest.mPackages.put(PACKAGE_NAME_3, ps3);
 
         settingsUnderTest.writePackageRestrictionsLPr(0);
+        settingsUnderTest.flushPendingWrites();
 
         settingsUnderTest.mPackages.clear();
         settingsUnderTest.mPackages.put(PACKAGE_NAME_1, createPackageSetting(PACKAGE_NAME_1));
@@ -349,6 +388,7 @@ public class PackageManagerSettingsTests {
         settingsUnderTest.mPackages.put(PACKAGE_NAME_3, ps3);
 
         settingsUnderTest.writePackageRestrictionsLPr(0);
+        settingsUnderTest.flushPendingWrites();
 
         settingsUnderTest.mPackages.clear();
         settingsUnderTest.mPackages.put(PACKAGE_NAME_1, createPackageSetting(PACKAGE_NAME_1));
@@ -482,6 +522,50 @@ public class PackageManagerSettingsTests {
         verifySettingCopy(origPkgSetting01, testPkgSetting01);
     }
 
+    @Test
+    public void testPackageStateSnapshot() {
+        final PackageSetting origPkgSetting01 = createPackageSetting(PACKAGE_NAME);
+        origPkgSetting01.setInstalled(true, 0);
+        origPkgSetting01.setStopped(false, 0);
+        origPkgSetting01.getPkgState().setUpdatedSystemApp(true);
+
+        final PackageSetting snapshot = origPkgSetting01.snapshot();
+        verifySettingCopy(origPkgSetting01, snapshot);
+        assertThat(snapshot.getPkgState().isUpdatedSystemApp(), is(true));
+
+        // Changes to the original must not show through the snapshot
+        origPkgSetting01.setStopped(true, 0);
+        origPkgSetting01.setInstalled(false, 0);
+        assertThat(snapshot.getStopped(0), is(false));
+        assertThat(snapshot.getInstalled(0), is(true));
+        assertNotSame(origPkgSetting01.readUserState(0), snapshot.readUserState(0));
+    }
+
+    @Test
+    public void testSharedUserStateSnapshot() {
+        final SharedUserSetting sharedUser = new SharedUserSetting("android.uid.test", 0, 0);
+        sharedUser.userId = 10100;
+        final BasePermission granted =
+                new BasePermission("android.permission.GRANTED", "android", TYPE_NORMAL);
+        sharedUser.getPermissionsState().grantInstallPermission(granted);
+
+        final SharedUserSetting snapshot = sharedUser.snapshot();
+        assertThat(snapshot.userId, is(10100));
+        assertThat(snapshot.name, is("android.uid.test"));
+        assertTrue(snapshot.packages.isEmpty());
+        assertNotSame(sharedUser.getPermissionsState(), snapshot.getPermissionsState());
+        assertTrue(snapshot.getPermissionsState().hasInstallPermission(granted.getName()));
+
+        // Permission changes to the original must not show through the snapshot
+        final BasePermission added =
+                new BasePermission("android.permission.ADDED", "android", TYPE_NORMAL);
+        sharedUser.getPermissionsState().grantInstallPermission(added);
+        sharedUser.getPermissionsState().revokeInstallPermission(granted);
+        assertTrue(snapshot.getPermissionsState().hasInstallPermission(granted.getName()));
+        assertThat(snapshot.getPermissionsState().hasInstallPermission(added.getName()),
+                is(false));
+    }
+
     /** Update package */
     @Test
     public void testUpdatePackageSetting01() throws PackageManagerException {
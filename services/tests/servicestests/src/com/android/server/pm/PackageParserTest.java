@@ -21,6 +21,7 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 
@@ -168,6 +169,39 @@ public class PackageParserTest {
         }
     }
 
+    @Test
+    public void test_serializePackage_lazyComponents() throws Exception {
+        try (PackageParser2 pp = PackageParser2.forParsingFileWithDefaults()) {
+            ParsedPackage pkg = pp.parsePackage(FRAMEWORK, 0 /* parseFlags */,
+                    true /* useCaches */);
+
+            ParsedPackage deserialized = PackageCacher.fromCacheEntryStatic(
+                    PackageCacher.toCacheEntryStatic(pkg));
+
+            assertPackagesEqual(pkg, deserialized);
+        }
+    }
+
+    @Test
+    public void test_cacheEntryWrongVersionRejected() throws Exception {
+        ParsingPackage pkg = PackageImpl.forTesting("foo");
+        setKnownFields(pkg);
+        byte[] entry = PackageCacher.toCacheEntryStatic((ParsedPackage) pkg.hideAsParsed());
+
+        Parcel p = Parcel.obtain();
+        p.unmarshall(entry, 0, entry.length);
+        p.setDataPosition(Integer.BYTES);
+        p.writeInt(PackageCacher.CACHE_FORMAT_VERSION + 1);
+        byte[] staleEntry = p.marshall();
+        p.recycle();
+
+        try {
+            PackageCacher.fromCacheEntryStatic(staleEntry);
+            fail("Expected stale cache entry to be rejected");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
     @Test
     @SmallTest
     @Presubmit
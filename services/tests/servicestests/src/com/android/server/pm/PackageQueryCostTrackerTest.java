@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.os.SystemClock;
+import android.platform.test.annotations.Presubmit;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.internal.util.IndentingPrintWriter;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.StringWriter;
+
+/**
+ * Tests for {@link PackageQueryCostTracker}
+ */
+@Presubmit
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class PackageQueryCostTrackerTest {
+    private static final int HEAVY_UID = 10001;
+    private static final int LIGHT_UID = 10002;
+
+    @Test
+    public void testCallersSortedByTotalCost() {
+        final PackageQueryCostTracker tracker = new PackageQueryCostTracker();
+        final long now = SystemClock.elapsedRealtimeNanos();
+        tracker.record(LIGHT_UID, PackageQueryCostTracker.GET_INSTALLED_PACKAGES_PAGE, 20, now);
+        tracker.record(HEAVY_UID, PackageQueryCostTracker.GET_INSTALLED_PACKAGES, 300,
+                now - 50_000_000);
+        tracker.record(HEAVY_UID, PackageQueryCostTracker.GET_INSTALLED_PACKAGES, 300,
+                now - 50_000_000);
+
+        final String dump = dump(tracker);
+        final int heavy = dump.indexOf("u0a1 (com.example.heavy)");
+        final int light = dump.indexOf("u0a2");
+        assertTrue(dump, heavy >= 0 && light > heavy);
+        assertTrue(dump, dump.contains("getInstalledPackages: calls=2 packages=600"));
+        assertTrue(dump, dump.contains("getInstalledPackagesPage: calls=1 packages=20"));
+        assertFalse(dump, dump.contains("getInstalledApplications"));
+    }
+
+    private static String dump(PackageQueryCostTracker tracker) {
+        final StringWriter writer = new StringWriter();
+        final IndentingPrintWriter pw = new IndentingPrintWriter(writer, "  ");
+        tracker.dump(pw, uid -> uid == HEAVY_UID ? "com.example.heavy" : null);
+        pw.flush();
+        return writer.toString();
+    }
+}
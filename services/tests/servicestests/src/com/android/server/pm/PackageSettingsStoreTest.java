@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.os.SystemClock;
+import android.platform.test.annotations.Presubmit;
+import android.util.ArrayMap;
+import android.util.Log;
+import android.util.Xml;
+
+import androidx.test.filters.LargeTest;
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.internal.util.FastXmlSerializer;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Tests for {@link PackageSettingsStore}
+ */
+@Presubmit
+@RunWith(AndroidJUnit4.class)
+public class PackageSettingsStoreTest {
+    private static final String TAG = PackageSettingsStoreTest.class.getSimpleName();
+
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private File mBaseFile;
+    private File mJournalFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mBaseFile = new File(mTemporaryFolder.getRoot(), "packages.bin");
+        mJournalFile = new File(mTemporaryFolder.getRoot(), "packages-journal.bin");
+    }
+
+    @Test
+    @SmallTest
+    public void testRoundTrip() throws Exception {
+        final PackageSettingsStore store = newStore();
+        assertFalse(store.exists());
+        assertNull(store.openParser());
+
+        commit(store, 20, 1);
+        final ArrayMap<String, String> versions = readVersions(newStore().openParser());
+        assertEquals(20, versions.size());
+        assertEquals("1", versions.get("com.example.package0"));
+        assertEquals("1", versions.get("com.example.package19"));
+    }
+
+    @Test
+    @SmallTest
+    public void testChangeAppendsOnlyChangedRecord() throws Exception {
+        final PackageSettingsStore store = newStore();
+        commit(store, 100, 1);
+        final long baseBytes = store.getBytesWritten();
+
+        commit(store, 100, 2);
+        final long journalBytes = store.getBytesWritten() - baseBytes;
+        assertTrue("journal entry of " + journalBytes + " bytes", journalBytes * 20 < baseBytes);
+
+        // Nothing changed, nothing written.
+        commit(store, 100, 2);
+        assertEquals(baseBytes + journalBytes, store.getBytesWritten());
+
+        assertEquals("2", readVersions(newStore().openParser()).get("com.example.package0"));
+    }
+
+    @Test
+    @SmallTest
+    public void testRemovedRecordsAreDropped() throws Exception {
+        final PackageSettingsStore store = newStore();
+        commit(store, 10, 1);
+        commit(store, 5, 1);
+        final ArrayMap<String, String> versions = readVersions(newStore().openParser());
+        assertEquals(5, versions.size());
+        assertNull(versions.get("com.example.package9"));
+    }
+
+    @Test
+    @SmallTest
+    public void testContinuesAfterReopen() throws Exception {
+        commit(newStore(), 10, 1);
+        final PackageSettingsStore store = newStore();
+        assertNotNull(store.openParser());
+        commit(store, 10, 3);
+        assertEquals("3", readVersions(newStore().openParser()).get("com.example.package0"));
+    }
+
+    @Test
+    @SmallTest
+    public void testTornJournalEntryIgnored() throws Exception {
+        final PackageSettingsStore store = newStore();
+        commit(store, 10, 1);
+        commit(store, 10, 2);
+        try (RandomAccessFile journal = new RandomAccessFile(mJournalFile, "rw")) {
+            journal.setLength(journal.length() - 3);
+        }
+
+        final PackageSettingsStore reopened = newStore();
+        assertEquals("1", readVersions(reopened.openParser()).get("com.example.package0"));
+
+        // The next write must not land after the torn entry.
+        commit(reopened, 10, 4);
+        assertEquals("4", readVersions(newStore().openParser()).get("com.example.package0"));
+    }
+
+    @Test
+    @SmallTest
+    public void testStaleJournalIgnored() throws Exception {
+        final PackageSettingsStore store = newStore();
+        commit(store, 10, 1);
+        commit(store, 10, 2);
+        final byte[] staleJournal = Files.readAllBytes(mJournalFile.toPath());
+
+        // An instance that never read the store compacts on its first write, which starts a new
+        // generation.
+        commit(newStore(), 10, 5);
+        Files.write(mJournalFile.toPath(), staleJournal);
+
+        assertEquals("5", readVersions(newStore().openParser()).get("com.example.package0"));
+    }
+
+    /**
+     * Compares a full packages.xml rewrite against the binary store for a device with 1000
+     * packages: bytes written for a change to a single package, and time to parse everything
+     * back. Results are written to the log.
+     */
+    @Test
+    @LargeTest
+    public void testWriteAmplificationAndParseBenchmark() throws Exception {
+        final int packageCount = 1000;
+        final int iterations = 20;
+
+        final ByteArrayOutputStream xml = new ByteArrayOutputStream();
+        final XmlSerializer xmlSerializer = new FastXmlSerializer();
+        xmlSerializer.setOutput(xml, StandardCharsets.UTF_8.name());
+        writeDocument(xmlSerializer, packageCount, 1);
+        final byte[] xmlBytes = xml.toByteArray();
+
+        final PackageSettingsStore store = newStore();
+        commit(store, packageCount, 1);
+        final long baseBytes = store.getBytesWritten();
+        for (int i = 0; i < iterations; i++) {
+            commit(store, packageCount, i + 2);
+        }
+        final long bytesPerChange = (store.getBytesWritten() - baseBytes) / iterations;
+        Log.i(TAG, "xml: " + xmlBytes.length + " bytes per change, binary: " + bytesPerChange
+                + " bytes per change (" + baseBytes + " bytes after compaction)");
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < iterations; i++) {
+            final XmlPullParser parser = Xml.newPullParser();
+            parser.setInput(new ByteArrayInputStream(xmlBytes), StandardCharsets.UTF_8.name());
+            readVersions(parser);
+        }
+        final long xmlParseUs = (SystemClock.elapsedRealtimeNanos() - start) / iterations / 1000;
+
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < iterations; i++) {
+            readVersions(newStore().openParser());
+        }
+        final long binaryParseUs =
+                (SystemClock.elapsedRealtimeNanos() - start) / iterations / 1000;
+        Log.i(TAG, "xml: " + xmlParseUs + "us to parse, binary: " + binaryParseUs
+                + "us to read and parse");
+    }
+
+    private PackageSettingsStore newStore() {
+        return new PackageSettingsStore(mBaseFile, mJournalFile);
+    }
+
+    private static void commit(PackageSettingsStore store, int packageCount, int firstVersion)
+            throws Exception {
+        final PackageSettingsStore.RecordSerializer serializer = store.newSerializer();
+        writeDocument(serializer, packageCount, firstVersion);
+        store.commit(serializer);
+    }
+
+    /**
+     * Writes a document shaped like packages.xml. Only the first package has version
+     * {@code firstVersion}; every other package has version 1.
+     */
+    private static void writeDocument(XmlSerializer serializer, int packageCount,
+            int firstVersion) throws Exception {
+        serializer.startDocument(null, true);
+        serializer.startTag(null, "packages");
+        serializer.startTag(null, "version");
+        serializer.attribute(null, "sdkVersion", "30");
+        serializer.endTag(null, "version");
+        for (int i = 0; i < packageCount; i++) {
+            final String packageName = "com.example.package" + i;
+            serializer.startTag(null, "package");
+            serializer.attribute(null, "name", packageName);
+            serializer.attribute(null, "codePath", "/data/app/" + packageName + "-1");
+            serializer.attribute(null, "version", Integer.toString(i == 0 ? firstVersion : 1));
+            serializer.startTag(null, "perms");
+            for (int j = 0; j < 10; j++) {
+                serializer.startTag(null, "item");
+                serializer.attribute(null, "name", "android.permission.PERMISSION_" + j);
+                serializer.attribute(null, "granted", "true");
+                serializer.attribute(null, "flags", "0");
+                serializer.endTag(null, "item");
+            }
+            serializer.endTag(null, "perms");
+            serializer.endTag(null, "package");
+        }
+        serializer.endTag(null, "packages");
+        serializer.endDocument();
+    }
+
+    private static ArrayMap<String, String> readVersions(XmlPullParser parser) throws Exception {
+        assertNotNull(parser);
+        final ArrayMap<String, String> versions = new ArrayMap<>();
+        int type;
+        while ((type = parser.next()) != XmlPullParser.END_DOCUMENT) {
+            if (type == XmlPullParser.START_TAG && parser.getDepth() == 2
+                    && "package".equals(parser.getName())) {
+                versions.put(parser.getAttributeValue(null, "name"),
+                        parser.getAttributeValue(null, "version"));
+            }
+        }
+        return versions;
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import static org.junit.Assert.assertEquals;
+
+import android.platform.test.annotations.Presubmit;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+
+/**
+ * Tests for {@link PackageStateSnapshot}
+ */
+@Presubmit
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class PackageStateSnapshotTest {
+
+    private static PackageSetting createPackageSetting(String packageName) {
+        return new PackageSettingBuilder()
+                .setName(packageName)
+                .setCodePath("/")
+                .setResourcePath("/")
+                .setPVersionCode(1L)
+                .build();
+    }
+
+    @Test
+    public void testSortedPackages_pagesInNameOrder() {
+        final PackageStateSnapshot.SortedPackages sorted =
+                new PackageStateSnapshot.SortedPackages(Arrays.asList(
+                        createPackageSetting("com.example.c"),
+                        createPackageSetting("com.example.a"),
+                        createPackageSetting("com.example.b")));
+
+        assertEquals(3, sorted.size());
+        assertEquals("com.example.a", sorted.getSetting(0).name);
+        assertEquals("com.example.b", sorted.getSetting(1).name);
+        assertEquals("com.example.c", sorted.getSetting(2).name);
+
+        assertEquals(0, sorted.indexAfter(null));
+        assertEquals(0, sorted.indexAfter("com.example"));
+        assertEquals(1, sorted.indexAfter("com.example.a"));
+        assertEquals(2, sorted.indexAfter("com.example.b"));
+        // A cursor that is no longer installed still pages on from where it sorts
+        assertEquals(2, sorted.indexAfter("com.example.bb"));
+        assertEquals(3, sorted.indexAfter("com.example.c"));
+    }
+}
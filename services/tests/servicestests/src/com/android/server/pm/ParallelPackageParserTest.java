@@ -21,6 +21,7 @@ import android.util.Log;
 
 import androidx.test.runner.AndroidJUnit4;
 
+import com.android.internal.util.ConcurrentUtils;
 import com.android.server.pm.parsing.PackageParser2;
 import com.android.server.pm.parsing.TestPackageParser2;
 import com.android.server.pm.parsing.pkg.ParsedPackage;
@@ -28,11 +29,17 @@ import com.android.server.pm.parsing.pkg.ParsedPackage;
 import junit.framework.Assert;
 
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
 
@@ -46,6 +53,9 @@ public class ParallelPackageParserTest {
 
     private ParallelPackageParser mParser;
 
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
     @Before
     public void setUp() {
         mParser = new TestParallelPackageParser(new TestPackageParser2(),
@@ -74,6 +84,41 @@ public class ParallelPackageParserTest {
         }
     }
 
+    @Test(timeout = 1000)
+    public void testSubmitAll_biggestFirst() throws IOException {
+        // A single worker makes the parse order match the submission order.
+        mParser = new TestParallelPackageParser(new TestPackageParser2(),
+                ConcurrentUtils.newFixedThreadPool(1, "test-package-parsing-thread", 0));
+        final File small = createFile("small.apk", 10);
+        final File large = createFile("large.apk", 1000);
+        final File medium = createFile("medium.apk", 100);
+        final File cluster = mTemporaryFolder.newFolder("cluster");
+        createFile("cluster/base.apk", 400);
+        createFile("cluster/split_config.apk", 400);
+
+        mParser.submitAll(Arrays.asList(small, large, medium, cluster), 0);
+
+        final List<File> expected = Arrays.asList(large, cluster, medium, small);
+        for (File file : expected) {
+            Assert.assertEquals(file, mParser.take().scanFile);
+        }
+    }
+
+    @Test
+    public void testGetThreadCount_bounded() {
+        final int threads = ParallelPackageParser.getThreadCount();
+        Assert.assertTrue("Too few threads: " + threads, threads >= 4);
+        Assert.assertTrue("Too many threads: " + threads, threads <= 8);
+    }
+
+    private File createFile(String name, int size) throws IOException {
+        final File file = new File(mTemporaryFolder.getRoot(), name);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[size]);
+        }
+        return file;
+    }
+
     private class TestParallelPackageParser extends ParallelPackageParser {
 
         TestParallelPackageParser(PackageParser2 packageParser, ExecutorService executorService) {
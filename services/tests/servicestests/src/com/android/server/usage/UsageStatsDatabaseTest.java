@@ -22,6 +22,7 @@ import static junit.framework.TestCase.fail;
 
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
 
 import android.app.usage.TimeSparseArray;
 import android.app.usage.UsageEvents.Event;
@@ -719,4 +720,81 @@ public class UsageStatsDatabaseTest {
         verifyPackageDataIsNotRemoved(newDB, UsageStatsManager.INTERVAL_MONTHLY, installedPackages);
         verifyPackageDataIsNotRemoved(newDB, UsageStatsManager.INTERVAL_YEARLY, installedPackages);
     }
+
+    private static UsageStatsDatabase.StatCombiner<Event> eventsInRange(long beginTime,
+            long endTime, String packageName) {
+        return (stats, mutable, accResult) -> {
+            for (int i = 0; i < stats.events.size(); i++) {
+                final Event event = stats.events.get(i);
+                if (event.mTimeStamp >= beginTime && event.mTimeStamp < endTime
+                        && (packageName == null || packageName.equals(event.mPackage))) {
+                    accResult.add(event);
+                }
+            }
+        };
+    }
+
+    private void verifyUsageEvents(UsageStatsDatabase db, long beginTime, long endTime,
+            String packageName) {
+        final List<Event> expected = db.queryUsageStats(UsageStatsManager.INTERVAL_DAILY,
+                beginTime, endTime, eventsInRange(beginTime, endTime, packageName));
+        final List<Event> actual = db.queryUsageEvents(beginTime, endTime, packageName,
+                eventsInRange(beginTime, endTime, packageName));
+        assertFalse(expected.isEmpty(), "No events in the range to compare.");
+        assertEquals(actual.size(), expected.size());
+        for (int i = 0; i < expected.size(); i++) {
+            final Event e1 = expected.get(i);
+            final Event e2 = actual.get(i);
+            assertEquals(e2.mPackage, e1.mPackage);
+            assertEquals(e2.mClass, e1.mClass);
+            assertEquals(e2.mTimeStamp, e1.mTimeStamp);
+            assertEquals(e2.mEventType, e1.mEventType);
+            assertEquals(e2.mInstanceId, e1.mInstanceId);
+        }
+    }
+
+    @Test
+    public void testQueryUsageEvents() throws IOException {
+        mIntervalStats.endTime = mEndTime;
+        mUsageStatsDatabase.putUsageStats(UsageStatsManager.INTERVAL_DAILY, mIntervalStats);
+        mUsageStatsDatabase.writeMappingsLocked();
+
+        final File indexFile = new File(new File(mTestDir, "event-index"),
+                Long.toString(mIntervalStats.beginTime));
+        final long firstTime = mIntervalStats.events.get(0).mTimeStamp;
+        final long blockTime = mIntervalStats.events.get(UsageEventsIndex.EVENTS_PER_BLOCK)
+                .mTimeStamp - firstTime;
+
+        verifyUsageEvents(mUsageStatsDatabase, 0, mEndTime, null);
+        assertTrue(indexFile.exists());
+
+        // A range spanning part of a few blocks
+        verifyUsageEvents(mUsageStatsDatabase, firstTime + blockTime * 2 + blockTime / 2,
+                firstTime + blockTime * 4 + blockTime / 3, null);
+        // A range within a single block
+        verifyUsageEvents(mUsageStatsDatabase, firstTime + blockTime * 3 + 1,
+                firstTime + blockTime * 3 + blockTime / 4, null);
+        // A package, over the whole range and over part of it
+        verifyUsageEvents(mUsageStatsDatabase, 0, mEndTime, "fake.package.name3");
+        verifyUsageEvents(mUsageStatsDatabase, firstTime + blockTime,
+                firstTime + blockTime * 5, "fake.package.name5");
+        // A package without any events
+        assertEquals(mUsageStatsDatabase.queryUsageEvents(0, mEndTime, "fake.package.unknown",
+                eventsInRange(0, mEndTime, null)).size(), 0);
+
+        // The index is rebuilt once the file changes
+        final Event event = new Event();
+        event.mPackage = "fake.package.name1";
+        event.mClass = ".fake.class.name1";
+        event.mTimeStamp = mEndTime - 1;
+        event.mEventType = Event.ACTIVITY_RESUMED;
+        mIntervalStats.addEvent(event);
+        mUsageStatsDatabase.putUsageStats(UsageStatsManager.INTERVAL_DAILY, mIntervalStats);
+        mUsageStatsDatabase.writeMappingsLocked();
+        final List<Event> events = mUsageStatsDatabase.queryUsageEvents(mEndTime - 1, mEndTime,
+                "fake.package.name1", eventsInRange(mEndTime - 1, mEndTime, "fake.package.name1"));
+        assertEquals(events.size(), 1);
+        assertEquals(events.get(0).mEventType, Event.ACTIVITY_RESUMED);
+        verifyUsageEvents(mUsageStatsDatabase, 0, mEndTime, null);
+    }
 }
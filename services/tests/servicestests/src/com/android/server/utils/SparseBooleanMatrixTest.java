@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.platform.test.annotations.Presubmit;
+
+import androidx.test.filters.SmallTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@SmallTest
+@Presubmit
+@RunWith(JUnit4.class)
+public class SparseBooleanMatrixTest {
+
+    @Test
+    public void testPutGet() {
+        final SparseBooleanMatrix matrix = new SparseBooleanMatrix();
+        matrix.put(10001, 10002, true);
+        matrix.put(10002, 10001, false);
+
+        assertEquals(2, matrix.size());
+        assertTrue(matrix.get(10001, 10002, false));
+        assertFalse(matrix.get(10002, 10001, true));
+        assertFalse(matrix.get(10001, 10001, true));
+        assertTrue(matrix.get(10001, 10003, true));
+    }
+
+    @Test
+    public void testGrowKeepsValues() {
+        final SparseBooleanMatrix matrix = new SparseBooleanMatrix(1);
+        final int count = 300;
+        for (int i = 0; i < count; i++) {
+            for (int j = 0; j < i; j++) {
+                matrix.put(i, j, (i + j) % 3 == 0);
+            }
+        }
+        assertEquals(count, matrix.size());
+        for (int i = 0; i < count; i++) {
+            for (int j = 0; j < i; j++) {
+                assertEquals(i + "," + j, (i + j) % 3 == 0, matrix.get(i, j, false));
+                assertFalse(matrix.get(j, i, true));
+            }
+        }
+    }
+
+    @Test
+    public void testRemoveKeyClearsRowAndColumn() {
+        final SparseBooleanMatrix matrix = new SparseBooleanMatrix();
+        matrix.put(1, 2, true);
+        matrix.put(2, 1, true);
+        matrix.put(2, 3, true);
+
+        matrix.removeKey(2);
+        assertFalse(matrix.contains(2));
+        assertEquals(2, matrix.size());
+
+        // the index of the removed key is recycled and must not carry over its old values
+        matrix.addKey(4);
+        assertFalse(matrix.get(1, 4, true));
+        assertFalse(matrix.get(4, 1, true));
+        assertFalse(matrix.get(4, 3, true));
+    }
+
+    @Test
+    public void testClear() {
+        final SparseBooleanMatrix matrix = new SparseBooleanMatrix();
+        matrix.put(1, 2, true);
+        matrix.clear();
+        assertEquals(0, matrix.size());
+        matrix.put(1, 3, false);
+        matrix.addKey(2);
+        assertFalse(matrix.get(1, 2, true));
+    }
+}
@@ -124,6 +124,20 @@ public final class PackagesTokenData {
         return token;
     }
 
+    /**
+     * Fetches the token mapped to the given package name, without creating a mapping.
+     *
+     * @param packageName the package name whose token is being fetched
+     * @return the mapped token or {@code PackagesTokenData.UNASSIGNED_TOKEN} if not found
+     */
+    public int getPackageToken(String packageName) {
+        final ArrayMap<String, Integer> packageTokensMap = packagesToTokensMap.get(packageName);
+        if (packageTokensMap == null) {
+            return UNASSIGNED_TOKEN;
+        }
+        return packageTokensMap.getOrDefault(packageName, UNASSIGNED_TOKEN);
+    }
+
     /**
      * Fetches the package name for the given token.
      *
@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.usage;
+
+import android.annotation.Nullable;
+import android.app.usage.UsageEvents;
+import android.util.AtomicFile;
+import android.util.Slog;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Index of the events of an interval stats file, so that a query for a time range or a package
+ * only decodes the events which may match instead of the whole file.
+ *
+ * The events are split in blocks of consecutive events in the file. For each block, the index
+ * holds where the block is in the file, the time range of its events, and a bloom filter of the
+ * tokens of their packages. The index is only valid for the exact file it was built from, whose
+ * length and last modified time it records.
+ */
+final class UsageEventsIndex {
+    private static final String TAG = "UsageEventsIndex";
+
+    private static final int MAGIC = 0x55455649; // UEVI
+    private static final int VERSION = 1;
+
+    @VisibleForTesting
+    static final int EVENTS_PER_BLOCK = 256;
+
+    private static final int BLOOM_FILTER_WORDS = 4;
+    private static final int BLOOM_FILTER_BITS = BLOOM_FILTER_WORDS * Long.SIZE;
+    private static final int BLOOM_FILTER_HASHES = 3;
+
+    private final long mSourceLength;
+    private final long mSourceLastModified;
+    private final long mEndTime;
+    private final int mBlockCount;
+    private final int[] mStartOffsets;
+    private final int[] mEndOffsets;
+    private final long[] mFirstTimes;
+    private final long[] mLastTimes;
+    private final long[] mBloomFilters;
+
+    private UsageEventsIndex(long sourceLength, long sourceLastModified, long endTime,
+            int blockCount, int[] startOffsets, int[] endOffsets, long[] firstTimes,
+            long[] lastTimes, long[] bloomFilters) {
+        mSourceLength = sourceLength;
+        mSourceLastModified = sourceLastModified;
+        mEndTime = endTime;
+        mBlockCount = blockCount;
+        mStartOffsets = startOffsets;
+        mEndOffsets = endOffsets;
+        mFirstTimes = firstTimes;
+        mLastTimes = lastTimes;
+        mBloomFilters = bloomFilters;
+    }
+
+    /** Whether this index was built from the given file as it is now. */
+    boolean isValidFor(File source) {
+        return source.length() == mSourceLength && source.lastModified() == mSourceLastModified;
+    }
+
+    /** The end time of the interval stats the events belong to, 0 if unknown. */
+    long getEndTime() {
+        return mEndTime;
+    }
+
+    int getBlockCount() {
+        return mBlockCount;
+    }
+
+    int getStartOffset(int block) {
+        return mStartOffsets[block];
+    }
+
+    int getEndOffset(int block) {
+        return mEndOffsets[block];
+    }
+
+    /**
+     * Whether the block may hold events in the time range, of the package if its token isn't
+     * {@link PackagesTokenData#UNASSIGNED_TOKEN}.
+     */
+    boolean mayContain(int block, long beginTime, long endTime, int packageToken) {
+        if (mLastTimes[block] < beginTime || mFirstTimes[block] >= endTime) {
+            return false;
+        }
+        if (packageToken == PackagesTokenData.UNASSIGNED_TOKEN) {
+            return true;
+        }
+        for (int i = 0; i < BLOOM_FILTER_HASHES; i++) {
+            final int bit = getBloomFilterBit(packageToken, i);
+            if ((mBloomFilters[block * BLOOM_FILTER_WORDS + bit / Long.SIZE]
+                    & (1L << (bit % Long.SIZE))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int getBloomFilterBit(int token, int hash) {
+        int h = (token + hash * 0x61c88647) * 0x9e3779b1;
+        h ^= h >>> 16;
+        return h & (BLOOM_FILTER_BITS - 1);
+    }
+
+    /**
+     * Builds the index of a tokenized interval stats file, reading only its events.
+     */
+    static UsageEventsIndex build(File source, long beginTime) throws IOException {
+        final long sourceLength = source.length();
+        final long sourceLastModified = source.lastModified();
+        final Builder builder = new Builder();
+        final long endTime;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(source))) {
+            endTime = UsageStatsProtoV2.readEvents(in, beginTime, builder);
+        }
+        return builder.build(sourceLength, sourceLastModified, endTime);
+    }
+
+    /**
+     * Reads an index written by {@link #write}.
+     *
+     * @return the index, or null if it doesn't exist or is corrupted
+     */
+    static @Nullable UsageEventsIndex read(File file) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new AtomicFile(file).openRead()))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Slog.w(TAG, "Unknown index format in " + file);
+                return null;
+            }
+            final long sourceLength = in.readLong();
+            final long sourceLastModified = in.readLong();
+            final long endTime = in.readLong();
+            final int blockCount = in.readInt();
+            if (blockCount < 0 || blockCount > sourceLength) {
+                Slog.w(TAG, "Invalid block count " + blockCount + " in " + file);
+                return null;
+            }
+            final int[] startOffsets = new int[blockCount];
+            final int[] endOffsets = new int[blockCount];
+            final long[] firstTimes = new long[blockCount];
+            final long[] lastTimes = new long[blockCount];
+            final long[] bloomFilters = new long[blockCount * BLOOM_FILTER_WORDS];
+            for (int i = 0; i < blockCount; i++) {
+                startOffsets[i] = in.readInt();
+                endOffsets[i] = in.readInt();
+                firstTimes[i] = in.readLong();
+                lastTimes[i] = in.readLong();
+                for (int j = 0; j < BLOOM_FILTER_WORDS; j++) {
+                    bloomFilters[i * BLOOM_FILTER_WORDS + j] = in.readLong();
+                }
+                if (startOffsets[i] < 0 || endOffsets[i] < startOffsets[i]
+                        || endOffsets[i] > sourceLength) {
+                    Slog.w(TAG, "Invalid block in " + file);
+                    return null;
+                }
+            }
+            return new UsageEventsIndex(sourceLength, sourceLastModified, endTime, blockCount,
+                    startOffsets, endOffsets, firstTimes, lastTimes, bloomFilters);
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Slog.w(TAG, "Failed to read index " + file, e);
+            return null;
+        }
+    }
+
+    /** Writes the index to the given file. */
+    void write(File file) throws IOException {
+        final AtomicFile atomicFile = new AtomicFile(file);
+        FileOutputStream fos = atomicFile.startWrite();
+        try {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(mSourceLength);
+            out.writeLong(mSourceLastModified);
+            out.writeLong(mEndTime);
+            out.writeInt(mBlockCount);
+            for (int i = 0; i < mBlockCount; i++) {
+                out.writeInt(mStartOffsets[i]);
+                out.writeInt(mEndOffsets[i]);
+                out.writeLong(mFirstTimes[i]);
+                out.writeLong(mLastTimes[i]);
+                for (int j = 0; j < BLOOM_FILTER_WORDS; j++) {
+                    out.writeLong(mBloomFilters[i * BLOOM_FILTER_WORDS + j]);
+                }
+            }
+            out.flush();
+            atomicFile.finishWrite(fos);
+            fos = null;
+        } finally {
+            // When fos is null (successful write), this will no-op
+            atomicFile.failWrite(fos);
+        }
+    }
+
+    /** Splits the events read from a file in blocks. */
+    private static final class Builder implements UsageStatsProtoV2.EventReader {
+        private int mBlockCount;
+        private int[] mStartOffsets = new int[8];
+        private int[] mEndOffsets = new int[8];
+        private long[] mFirstTimes = new long[8];
+        private long[] mLastTimes = new long[8];
+        private long[] mBloomFilters = new long[8 * BLOOM_FILTER_WORDS];
+        private int mBlockEventCount = EVENTS_PER_BLOCK;
+
+        @Override
+        public void onEvent(UsageEvents.Event event, int startOffset, int endOffset) {
+            if (mBlockEventCount == EVENTS_PER_BLOCK) {
+                if (mBlockCount == mStartOffsets.length) {
+                    final int capacity = mBlockCount * 2;
+                    mStartOffsets = Arrays.copyOf(mStartOffsets, capacity);
+                    mEndOffsets = Arrays.copyOf(mEndOffsets, capacity);
+                    mFirstTimes = Arrays.copyOf(mFirstTimes, capacity);
+                    mLastTimes = Arrays.copyOf(mLastTimes, capacity);
+                    mBloomFilters = Arrays.copyOf(mBloomFilters, capacity * BLOOM_FILTER_WORDS);
+                }
+                mStartOffsets[mBlockCount] = startOffset;
+                mFirstTimes[mBlockCount] = Long.MAX_VALUE;
+                mLastTimes[mBlockCount] = Long.MIN_VALUE;
+                mBlockCount++;
+                mBlockEventCount = 0;
+            }
+            final int block = mBlockCount - 1;
+            mEndOffsets[block] = endOffset;
+            mFirstTimes[block] = Math.min(mFirstTimes[block], event.mTimeStamp);
+            mLastTimes[block] = Math.max(mLastTimes[block], event.mTimeStamp);
+            for (int i = 0; i < BLOOM_FILTER_HASHES; i++) {
+                final int bit = getBloomFilterBit(event.mPackageToken, i);
+                mBloomFilters[block * BLOOM_FILTER_WORDS + bit / Long.SIZE] |=
+                        1L << (bit % Long.SIZE);
+            }
+            mBlockEventCount++;
+        }
+
+        UsageEventsIndex build(long sourceLength, long sourceLastModified, long endTime) {
+            return new UsageEventsIndex(sourceLength, sourceLastModified, endTime, mBlockCount,
+                    mStartOffsets, mEndOffsets, mFirstTimes, mLastTimes, mBloomFilters);
+        }
+    }
+}
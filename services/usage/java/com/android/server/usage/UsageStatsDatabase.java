@@ -16,6 +16,7 @@
 
 package com.android.server.usage;
 
+import android.annotation.Nullable;
 import android.app.usage.TimeSparseArray;
 import android.app.usage.UsageEvents;
 import android.app.usage.UsageStats;
@@ -50,6 +51,7 @@ import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
@@ -127,6 +129,8 @@ public class UsageStatsDatabase {
 
     // The obfuscated packages to tokens mappings file
     private final File mPackageMappingsFile;
+    // The indexes of the events of the daily files, named after the begin time of the file
+    private final File mEventIndexDir;
     // Holds all of the data related to the obfuscated packages and their token mappings.
     final PackagesTokenData mPackagesTokenData = new PackagesTokenData();
 
@@ -150,6 +154,7 @@ public class UsageStatsDatabase {
         mUpdateBreadcrumb = new File(dir, "breadcrumb");
         mSortedStatFiles = new TimeSparseArray[mIntervalDirs.length];
         mPackageMappingsFile = new File(dir, "mappings");
+        mEventIndexDir = new File(dir, "event-index");
         mCal = new UnixCalendar(0);
     }
 
@@ -170,6 +175,9 @@ public class UsageStatsDatabase {
                 }
             }
 
+            // The indexes are only an optimization, so the queries still work without them.
+            mEventIndexDir.mkdirs();
+
             checkVersionAndBuildLocked();
             indexFilesLocked();
 
@@ -716,6 +724,14 @@ public class UsageStatsDatabase {
                 files.clear();
             }
 
+            // The events indexes are named after the begin time of the files which moved.
+            final File[] indexFiles = mEventIndexDir.listFiles();
+            if (indexFiles != null) {
+                for (File indexFile : indexFiles) {
+                    indexFile.delete();
+                }
+            }
+
             logBuilder.append(" files deleted: ").append(filesDeleted);
             logBuilder.append(" files moved: ").append(filesMoved);
             Slog.i(TAG, logBuilder.toString());
@@ -806,6 +822,24 @@ public class UsageStatsDatabase {
      */
     public <T> List<T> queryUsageStats(int intervalType, long beginTime, long endTime,
             StatCombiner<T> combiner) {
+        return queryUsageStats(intervalType, beginTime, endTime, combiner, false, null);
+    }
+
+    /**
+     * Find the events of all daily {@link IntervalStats} for the given range, of the given
+     * package if it isn't null.
+     *
+     * The {@link IntervalStats} passed to the combiner only hold events, and may only hold the
+     * events around the range, so the combiner must still filter them.
+     */
+    public <T> List<T> queryUsageEvents(long beginTime, long endTime, @Nullable String packageName,
+            StatCombiner<T> combiner) {
+        return queryUsageStats(UsageStatsManager.INTERVAL_DAILY, beginTime, endTime, combiner,
+                true, packageName);
+    }
+
+    private <T> List<T> queryUsageStats(int intervalType, long beginTime, long endTime,
+            StatCombiner<T> combiner, boolean eventsOnly, @Nullable String packageName) {
         synchronized (mLock) {
             if (intervalType < 0 || intervalType >= mIntervalDirs.length) {
                 throw new IllegalArgumentException("Bad interval type " + intervalType);
@@ -858,7 +892,11 @@ public class UsageStatsDatabase {
                 }
 
                 try {
-                    readLocked(f, stats);
+                    if (eventsOnly && mCurrentVersion >= 5) {
+                        readEventsLocked(f, beginTime, endTime, packageName, stats);
+                    } else {
+                        readLocked(f, stats);
+                    }
                     if (beginTime < stats.endTime) {
                         combiner.combine(stats, false, results);
                     }
@@ -921,6 +959,7 @@ public class UsageStatsDatabase {
             mCal.addDays(-10);
             pruneFilesOlderThan(mIntervalDirs[UsageStatsManager.INTERVAL_DAILY],
                     mCal.getTimeInMillis());
+            pruneFilesOlderThan(mEventIndexDir, mCal.getTimeInMillis());
 
             mCal.setTimeInMillis(currentTimeMillis);
             mCal.addDays(-SELECTION_LOG_RETENTION_LEN);
@@ -1075,6 +1114,75 @@ public class UsageStatsDatabase {
         readLocked(file, statsOut, mCurrentVersion, mPackagesTokenData);
     }
 
+    /**
+     * Reads only the events of the given file which may be in the given range and of the given
+     * package if it isn't null, using the index of the events of the file. The index is built
+     * first if the file doesn't have one yet or changed since.
+     * <p/>
+     * Note: the data read from the given file will add to the IntervalStats object passed into this
+     * method. It is up to the caller to ensure that this is the desired behavior - if not, the
+     * caller should ensure that the data in the reused object is being cleared.
+     */
+    private void readEventsLocked(AtomicFile file, long beginTime, long endTime,
+            @Nullable String packageName, IntervalStats statsOut) throws IOException {
+        int packageToken = PackagesTokenData.UNASSIGNED_TOKEN;
+        if (packageName != null) {
+            packageToken = mPackagesTokenData.getPackageToken(packageName);
+            if (packageToken == PackagesTokenData.UNASSIGNED_TOKEN) {
+                // None of the events can be of this package.
+                return;
+            }
+        }
+
+        // Restores the backup if a write didn't complete, before checking the index.
+        final FileInputStream in = file.openRead();
+        try {
+            statsOut.beginTime = parseBeginTime(file);
+            final File indexFile = new File(mEventIndexDir, Long.toString(statsOut.beginTime));
+            UsageEventsIndex index = UsageEventsIndex.read(indexFile);
+            if (index == null || !index.isValidFor(file.getBaseFile())) {
+                index = UsageEventsIndex.build(file.getBaseFile(), statsOut.beginTime);
+                try {
+                    index.write(indexFile);
+                } catch (IOException e) {
+                    Slog.w(TAG, "Failed to write events index " + indexFile, e);
+                }
+            }
+
+            final FileChannel channel = in.getChannel();
+            final DataInputStream dataIn = new DataInputStream(in);
+            final UsageStatsProtoV2.EventReader eventReader =
+                    (event, startOffset, endOffset) -> statsOut.events.insert(event);
+            final int blockCount = index.getBlockCount();
+            int block = 0;
+            while (block < blockCount) {
+                if (!index.mayContain(block, beginTime, endTime, packageToken)) {
+                    block++;
+                    continue;
+                }
+                // Read the consecutive blocks to read at once.
+                final int startOffset = index.getStartOffset(block);
+                int endOffset = index.getEndOffset(block);
+                block++;
+                while (block < blockCount && index.getStartOffset(block) == endOffset
+                        && index.mayContain(block, beginTime, endTime, packageToken)) {
+                    endOffset = index.getEndOffset(block);
+                    block++;
+                }
+                final byte[] data = new byte[endOffset - startOffset];
+                channel.position(startOffset);
+                dataIn.readFully(data);
+                UsageStatsProtoV2.readEvents(new ByteArrayInputStream(data),
+                        statsOut.beginTime, eventReader);
+            }
+            statsOut.endTime = index.getEndTime();
+            statsOut.lastTimeSaved = file.getLastModifiedTime();
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+        statsOut.deobfuscateData(mPackagesTokenData);
+    }
+
     /**
      * Returns {@code true} if any stats were omitted while reading, {@code false} otherwise.
      * <p/>
@@ -571,6 +571,58 @@ final class UsageStatsProtoV2 {
         proto.flush();
     }
 
+    /** Receives the events read by {@link #readEvents}. */
+    interface EventReader {
+        /**
+         * @param event the event, still tokenized
+         * @param startOffset the offset in the data read at which the event starts
+         * @param endOffset the offset in the data read at which the event ends
+         */
+        void onEvent(UsageEvents.Event event, int startOffset, int endOffset);
+    }
+
+    /**
+     * Reads only the events of a tokenized interval stats file, skipping over the other stats.
+     * The data can also be a run of events cut from such a file.
+     *
+     * @param in the input stream from which to read events.
+     * @param beginTime the begin time of the interval stats the events belong to.
+     * @param reader the reader receiving the events read.
+     * @return the end time of the interval stats, or 0 if the data read doesn't hold it.
+     */
+    static long readEvents(InputStream in, long beginTime, EventReader reader)
+            throws IOException {
+        final ProtoInputStream proto = new ProtoInputStream(in);
+        long endTime = 0;
+        while (true) {
+            // Every other field is skipped, so the offset is always at the start of a field.
+            final int startOffset = proto.getOffset();
+            switch (proto.nextField()) {
+                case (int) IntervalStatsObfuscatedProto.END_TIME_MS:
+                    endTime = beginTime + proto.readLong(IntervalStatsObfuscatedProto.END_TIME_MS);
+                    break;
+                case (int) IntervalStatsObfuscatedProto.EVENT_LOG:
+                    try {
+                        final long eventsToken = proto.start(
+                                IntervalStatsObfuscatedProto.EVENT_LOG);
+                        UsageEvents.Event event = parseEvent(proto, beginTime);
+                        proto.end(eventsToken);
+                        if (event != null) {
+                            reader.onEvent(event, startOffset, proto.getOffset());
+                        }
+                    } catch (IOException e) {
+                        Slog.e(TAG, "Unable to read some events from proto.", e);
+                    }
+                    break;
+                case ProtoInputStream.NO_MORE_FIELDS:
+                    return endTime;
+                default:
+                    proto.skip();
+                    break;
+            }
+        }
+    }
+
     /***** Read/Write obfuscated packages data logic. *****/
 
     private static void loadPackagesMap(ProtoInputStream proto,
@@ -411,6 +411,21 @@ class UserUsageStatsService {
      */
     private <T> List<T> queryStats(int intervalType, final long beginTime, final long endTime,
             StatCombiner<T> combiner) {
+        return queryStats(intervalType, beginTime, endTime, combiner, false, null);
+    }
+
+    /**
+     * Same as {@link #queryStats(int, long, long, StatCombiner)} for a combiner which only uses
+     * the events of the daily stats, so that only the events which may be in the range, and of
+     * the given package if it isn't null, are read from disk.
+     */
+    private <T> List<T> queryEventStats(final long beginTime, final long endTime,
+            String packageName, StatCombiner<T> combiner) {
+        return queryStats(INTERVAL_DAILY, beginTime, endTime, combiner, true, packageName);
+    }
+
+    private <T> List<T> queryStats(int intervalType, final long beginTime, final long endTime,
+            StatCombiner<T> combiner, boolean eventsOnly, String packageName) {
         if (intervalType == INTERVAL_BEST) {
             intervalType = mDatabase.findBestFitBucket(beginTime, endTime);
             if (intervalType < 0) {
@@ -449,8 +464,9 @@ class UserUsageStatsService {
         final long truncatedEndTime = Math.min(currentStats.beginTime, endTime);
 
         // Get the stats from disk.
-        List<T> results = mDatabase.queryUsageStats(intervalType, beginTime,
-                truncatedEndTime, combiner);
+        List<T> results = eventsOnly
+                ? mDatabase.queryUsageEvents(beginTime, truncatedEndTime, packageName, combiner)
+                : mDatabase.queryUsageStats(intervalType, beginTime, truncatedEndTime, combiner);
         if (DEBUG) {
             Slog.d(TAG, "Got " + (results != null ? results.size() : 0) + " results from disk");
             Slog.d(TAG, "Current stats beginTime=" + currentStats.beginTime +
@@ -502,8 +518,8 @@ class UserUsageStatsService {
             return null;
         }
         final ArraySet<String> names = new ArraySet<>();
-        List<Event> results = queryStats(INTERVAL_DAILY,
-                beginTime, endTime, new StatCombiner<Event>() {
+        List<Event> results = queryEventStats(beginTime, endTime, null,
+                new StatCombiner<Event>() {
                     @Override
                     public void combine(IntervalStats stats, boolean mutable,
                             List<Event> accumulatedResult) {
@@ -566,8 +582,8 @@ class UserUsageStatsService {
         }
         final ArraySet<String> names = new ArraySet<>();
         names.add(packageName);
-        final List<Event> results = queryStats(INTERVAL_DAILY,
-                beginTime, endTime, (stats, mutable, accumulatedResult) -> {
+        final List<Event> results = queryEventStats(beginTime, endTime, packageName,
+                (stats, mutable, accumulatedResult) -> {
                     final int startIndex = stats.events.firstIndexOnOrAfter(beginTime);
                     final int size = stats.events.size();
                     for (int i = startIndex; i < size; i++) {
@@ -917,8 +933,8 @@ class UserUsageStatsService {
 
         final long beginTime = yesterday.getTimeInMillis();
 
-        List<Event> events = queryStats(INTERVAL_DAILY,
-                beginTime, endTime, new StatCombiner<Event>() {
+        List<Event> events = queryEventStats(beginTime, endTime, null,
+                new StatCombiner<Event>() {
                     @Override
                     public void combine(IntervalStats stats, boolean mutable,
                             List<Event> accumulatedResult) {
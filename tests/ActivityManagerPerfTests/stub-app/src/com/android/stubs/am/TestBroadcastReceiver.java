@@ -20,13 +20,21 @@ package com.android.stubs.am;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.os.SystemClock;
 import android.util.Log;
 
+import com.android.frameworks.perftests.am.util.Constants;
+
 public class TestBroadcastReceiver extends BroadcastReceiver {
     private static final String TAG = "TestBroadcastReceiver";
 
     @Override
     public void onReceive(Context context, Intent intent) {
         Log.i(TAG, context.getPackageName() + " received broadcast: " + intent);
+        // Lets tests stand in for a receiver that is slow to finish
+        final long delayMs = intent.getLongExtra(Constants.EXTRA_RECEIVE_DELAY_MS, 0);
+        if (delayMs > 0) {
+            SystemClock.sleep(delayMs);
+        }
     }
 }
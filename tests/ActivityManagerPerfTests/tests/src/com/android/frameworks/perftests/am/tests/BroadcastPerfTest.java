@@ -22,6 +22,7 @@ import androidx.test.filters.LargeTest;
 import androidx.test.runner.AndroidJUnit4;
 
 import com.android.frameworks.perftests.am.util.Constants;
+import com.android.frameworks.perftests.am.util.TargetPackageUtils;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -29,6 +30,12 @@ import org.junit.runner.RunWith;
 @RunWith(AndroidJUnit4.class)
 @LargeTest
 public class BroadcastPerfTest extends BasePerfTest {
+    private static final String[] STUB_PACKAGE_NAMES = {
+            "com.android.stubs.am1", "com.android.stubs.am2", "com.android.stubs.am3"
+    };
+    private static final long SLOW_RECEIVER_DELAY_MS = 500;
+    private static final int BROADCAST_BURST_SIZE = 10;
+
     @Test
     public void manifestBroadcastRunning() {
         runPerfFunction(() -> {
@@ -80,4 +87,46 @@ public class BroadcastPerfTest extends BasePerfTest {
             return endTime - startTime;
         });
     }
+
+    /**
+     * Measures how long a burst of broadcasts to a running app takes to be delivered while
+     * other apps are slow to finish receiving an earlier broadcast.
+     */
+    @Test
+    public void manifestBroadcastBurstBehindSlowReceivers() {
+        for (String stubPackageName : STUB_PACKAGE_NAMES) {
+            TargetPackageUtils.stopStubPackage(mContext, stubPackageName);
+        }
+        try {
+            runPerfFunction(() -> {
+                startTargetPackage();
+
+                final long startTime = System.nanoTime();
+
+                for (String stubPackageName : STUB_PACKAGE_NAMES) {
+                    final Intent slowIntent = new Intent(Constants.STUB_ACTION_BROADCAST);
+                    slowIntent.setPackage(stubPackageName);
+                    slowIntent.addFlags(Intent.FLAG_RECEIVER_INCLUDE_BACKGROUND
+                            | Intent.FLAG_INCLUDE_STOPPED_PACKAGES);
+                    slowIntent.putExtra(Constants.EXTRA_RECEIVE_DELAY_MS, SLOW_RECEIVER_DELAY_MS);
+                    mContext.sendBroadcast(slowIntent);
+                }
+                for (int i = 0; i < BROADCAST_BURST_SIZE; i++) {
+                    mContext.sendBroadcast(createBroadcastIntent(
+                            Constants.ACTION_BROADCAST_MANIFEST_RECEIVE));
+                }
+
+                long endTime = 0;
+                for (int i = 0; i < BROADCAST_BURST_SIZE; i++) {
+                    endTime = getReceivedTimeNs(Constants.TYPE_BROADCAST_RECEIVE);
+                }
+
+                return endTime - startTime;
+            });
+        } finally {
+            for (String stubPackageName : STUB_PACKAGE_NAMES) {
+                TargetPackageUtils.stopStubPackage(mContext, stubPackageName);
+            }
+        }
+    }
 }
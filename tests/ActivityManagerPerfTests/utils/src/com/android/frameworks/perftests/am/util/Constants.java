@@ -36,6 +36,7 @@ public class Constants {
     public static final String EXTRA_SEQ = "seq";
     public static final String EXTRA_ARG1 = "arg1";
     public static final String EXTRA_ARG2 = "arg2";
+    public static final String EXTRA_RECEIVE_DELAY_MS = "receive_delay_ms";
 
     public static final int RESULT_NO_ERROR = 0;
     public static final int RESULT_ERROR = 1;